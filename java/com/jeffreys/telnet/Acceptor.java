@@ -0,0 +1,122 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accepts incoming connections on a number of threads.
+ *
+ * <p>Where the platform supports {@code SO_REUSEPORT}, each thread gets its own listening socket
+ * and the kernel spreads connections between them. Otherwise the threads share one socket. The
+ * {@link Handler} runs on the accepting thread, so it should hand off anything slow, like
+ * connecting to the remote.
+ */
+final class Acceptor implements Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** Takes ownership of an accepted connection. */
+  @FunctionalInterface
+  interface Handler {
+    void onAccept(SocketChannel channel) throws IOException;
+  }
+
+  private final int port;
+  private final int threads;
+  private final Handler handler;
+  private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+
+  Acceptor(int port, int threads, Handler handler) {
+    checkArgument(threads > 0, "At least one acceptor thread is required");
+
+    this.port = port;
+    this.threads = threads;
+    this.handler = checkNotNull(handler);
+  }
+
+  /** Binds the listening sockets, then accepts connections until closed. */
+  void run() throws IOException {
+    try {
+      bind();
+      logger.atInfo().log(
+          "Server listening on port %d with %d acceptor threads on %d sockets\n",
+          port, threads, serverChannels.size());
+
+      List<Thread> acceptThreads = new ArrayList<>();
+      for (int i = 0; i < threads; ++i) {
+        ServerSocketChannel serverChannel = serverChannels.get(i % serverChannels.size());
+        Thread thread = new Thread(() -> accept(serverChannel), "acceptor-" + i);
+        thread.start();
+        acceptThreads.add(thread);
+      }
+      for (Thread thread : acceptThreads) {
+        thread.join();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      close();
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (serverChannels) {
+      for (ServerSocketChannel serverChannel : serverChannels) {
+        Util.close(serverChannel);
+      }
+    }
+  }
+
+  private void bind() throws IOException {
+    ServerSocketChannel first = open();
+    boolean reusePort =
+        threads > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    if (reusePort) {
+      first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+    }
+    first.bind(new InetSocketAddress(port));
+
+    // with port 0, the rest need to share whichever port the first was given
+    int boundPort = ((InetSocketAddress) first.getLocalAddress()).getPort();
+    for (int i = 1; reusePort && i < threads; ++i) {
+      ServerSocketChannel serverChannel = open();
+      serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      serverChannel.bind(new InetSocketAddress(boundPort));
+    }
+  }
+
+  private ServerSocketChannel open() throws IOException {
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    synchronized (serverChannels) {
+      serverChannels.add(serverChannel);
+    }
+    serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    return serverChannel;
+  }
+
+  private void accept(ServerSocketChannel serverChannel) {
+    while (serverChannel.isOpen()) {
+      SocketChannel channel = null;
+      try {
+        channel = serverChannel.accept();
+        handler.onAccept(channel);
+      } catch (ClosedChannelException ex) {
+        return;
+      } catch (IOException ex) {
+        logger.atWarning().withCause(ex).log("Unable to accept connection");
+        Util.close(channel);
+      }
+    }
+  }
+}
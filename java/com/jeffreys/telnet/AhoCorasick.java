@@ -0,0 +1,182 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An Aho-Corasick automaton, which finds every occurrence of any number of byte strings in a
+ * single pass over the input.
+ *
+ * <p>The automaton is immutable, so one can be shared by any number of threads, each keeping its
+ * own state. Scanning costs the same amortized time per byte however many patterns there are.
+ */
+final class AhoCorasick {
+  /** The state before anything has matched. */
+  static final int START = 0;
+
+  private static final int NONE = -1;
+
+  /** Transitions out of {@link #START}, which is where most bytes of most inputs lead. */
+  private final int[] startNext = new int[256];
+  /** The edges out of each state are {@code edgeStart[state]} to {@code edgeStart[state + 1]}. */
+  private final int[] edgeStart;
+  /** The byte labelling each edge. */
+  private final byte[] edgeLabels;
+  private final int[] edgeTargets;
+  /** The state for the longest proper suffix of each state that is also a prefix. */
+  private final int[] fail;
+  /** The pattern ending at each state, or {@link #NONE}. */
+  private final int[] match;
+  /** The nearest state along the fail links that ends a pattern, or {@link #NONE}. */
+  private final int[] matchLink;
+
+  /**
+   * Builds an automaton for {@code patterns}, which are reported by their index. Where a pattern
+   * is repeated, only the first is reported.
+   */
+  AhoCorasick(List<byte[]> patterns) {
+    Trie trie = new Trie();
+    for (int i = 0; i < patterns.size(); ++i) {
+      checkArgument(patterns.get(i).length > 0, "Patterns must not be empty");
+      trie.add(patterns.get(i), i);
+    }
+
+    int states = trie.size;
+    edgeStart = new int[states + 1];
+    edgeLabels = new byte[states - 1];
+    edgeTargets = new int[states - 1];
+    fail = new int[states];
+    match = Arrays.copyOf(trie.match, states);
+    matchLink = new int[states];
+    Arrays.fill(matchLink, NONE);
+
+    // every state but the start is the target of exactly one edge
+    int edges = 0;
+    for (int state = 0; state < states; ++state) {
+      edgeStart[state] = edges;
+      for (int child = trie.firstChild[state]; child != NONE; child = trie.nextSibling[child]) {
+        edgeLabels[edges] = trie.label[child];
+        edgeTargets[edges++] = child;
+      }
+    }
+    edgeStart[states] = edges;
+
+    for (int label = 0; label < 256; ++label) {
+      int child = child(START, (byte) label);
+      startNext[label] = child == NONE ? START : child;
+    }
+
+    // a state's fail link is always shallower than it, so breadth first order has it ready
+    int[] queue = new int[states];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = START;
+    while (head < tail) {
+      int state = queue[head++];
+      for (int edge = edgeStart[state]; edge < edgeStart[state + 1]; ++edge) {
+        int child = edgeTargets[edge];
+        fail[child] = state == START ? START : next(fail[state], edgeLabels[edge]);
+        int suffix = fail[child];
+        matchLink[child] = match[suffix] != NONE ? suffix : matchLink[suffix];
+        queue[tail++] = child;
+      }
+    }
+  }
+
+  /** Returns the state after {@code b} follows {@code state}. */
+  int next(int state, byte b) {
+    while (state != START) {
+      int child = child(state, b);
+      if (child != NONE) {
+        return child;
+      }
+      state = fail[state];
+    }
+    return startNext[b & 0xFF];
+  }
+
+  /** Returns whether any pattern ends at {@code state}. */
+  boolean hasMatch(int state) {
+    return match[state] != NONE || matchLink[state] != NONE;
+  }
+
+  /**
+   * Calls {@code consumer} with each pattern ending at {@code state}, longest first.
+   *
+   * <p>Only worth calling once {@link #hasMatch} says there is something to find.
+   */
+  void forEachMatch(int state, MatchConsumer consumer) {
+    for (int s = match[state] != NONE ? state : matchLink[state]; s != NONE; s = matchLink[s]) {
+      consumer.accept(match[s]);
+    }
+  }
+
+  /** Receives the index of each matched pattern. */
+  @FunctionalInterface
+  interface MatchConsumer {
+    void accept(int pattern);
+  }
+
+  private int child(int state, byte b) {
+    int from = edgeStart[state];
+    int to = edgeStart[state + 1];
+    // past the first few bytes nearly every state has a single edge
+    for (int edge = from; edge < to; ++edge) {
+      if (edgeLabels[edge] == b) {
+        return edgeTargets[edge];
+      }
+    }
+    return NONE;
+  }
+
+  /** A growable trie, only used while building. */
+  private static final class Trie {
+    private int size = 1;
+    private int[] firstChild = {NONE};
+    private int[] nextSibling = {NONE};
+    private byte[] label = {0};
+    private int[] match = {NONE};
+
+    void add(byte[] pattern, int index) {
+      int state = START;
+      for (byte b : pattern) {
+        int child = child(state, b);
+        if (child == NONE) {
+          child = newState(b);
+          nextSibling[child] = firstChild[state];
+          firstChild[state] = child;
+        }
+        state = child;
+      }
+      if (match[state] == NONE) {
+        match[state] = index;
+      }
+    }
+
+    private int child(int state, byte b) {
+      for (int child = firstChild[state]; child != NONE; child = nextSibling[child]) {
+        if (label[child] == b) {
+          return child;
+        }
+      }
+      return NONE;
+    }
+
+    private int newState(byte b) {
+      if (size == match.length) {
+        int capacity = size * 2;
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        label = Arrays.copyOf(label, capacity);
+        match = Arrays.copyOf(match, capacity);
+      }
+      firstChild[size] = NONE;
+      nextSibling[size] = NONE;
+      label[size] = b;
+      match[size] = NONE;
+      return size++;
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.jeffreys.telnet.Telnet.DO;
+import static com.jeffreys.telnet.Telnet.DONT;
+import static com.jeffreys.telnet.Telnet.IAC;
+import static com.jeffreys.telnet.Telnet.SB;
+import static com.jeffreys.telnet.Telnet.SE;
+import static com.jeffreys.telnet.Telnet.WILL;
+import static com.jeffreys.telnet.Telnet.WONT;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Replaces {@link Aliases} and {@code #<count>} repeats in what the local client types with the
+ * commands they expand to, passing everything else on unchanged.
+ *
+ * <p>Works a byte at a time, so it copes with clients that send each keystroke on its own. The
+ * start of each line is held back only while it could still be an alias or a repeat, and passed
+ * on as soon as it can't be. The rest of the line is then passed on as slices of the caller's
+ * buffer, without copying, and nothing is allocated until a line actually needs expanding. Telnet
+ * commands are passed straight through wherever they appear.
+ */
+final class AliasExpander implements ByteStage {
+  /** Lines held back for longer than this are passed on as they are. */
+  private static final int MAX_LINE_LENGTH = 1024;
+
+  private static final byte BACKSPACE = (byte) '\b';
+  private static final byte DELETE = (byte) 0x7F;
+
+  private enum LineState {
+    /** Nothing on this line yet. */
+    START,
+    /** The line so far is the start of an alias name. */
+    NAME,
+    /** The line so far is {@code #}. */
+    REPEAT_HASH,
+    /** The line so far is {@code #} and a count. */
+    REPEAT_COUNT,
+    /** The line is an alias or repeat, held back until it ends. */
+    ARGUMENTS,
+    /** The line is neither, so the rest of it is passed on. */
+    PASS
+  }
+
+  private enum CommandState {
+    NONE,
+    /** After an IAC. */
+    COMMAND,
+    /** After IAC WILL, WONT, DO or DONT. */
+    OPTION,
+    /** Inside IAC SB. */
+    SUBNEGOTIATION,
+    /** After an IAC inside IAC SB. */
+    SUBNEGOTIATION_IAC
+  }
+
+  private final Aliases aliases;
+  private final ByteStage next;
+  private final byte[] held = new byte[MAX_LINE_LENGTH];
+  private int heldLength = 0;
+  private LineState lineState = LineState.START;
+  private int node = Aliases.ROOT;
+  private CommandState commandState = CommandState.NONE;
+  /** Set after an expanded line ended with CR, whose LF or NUL was replaced too. */
+  private boolean skipLineFeed = false;
+
+  AliasExpander(Aliases aliases, ByteStage next) {
+    this.aliases = checkNotNull(aliases);
+    this.next = checkNotNull(next);
+  }
+
+  @Override
+  public void accept(byte[] buffer, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    while (i < end) {
+      if (commandState != CommandState.NONE || buffer[i] == IAC) {
+        i = passCommand(buffer, i, end);
+      } else if (lineState == LineState.PASS) {
+        i = passLine(buffer, i, end);
+      } else {
+        i = holdByte(buffer, i);
+      }
+    }
+  }
+
+  /** Passes on the rest of a line, up to any telnet command, returning where it stopped. */
+  private int passLine(byte[] buffer, int offset, int end) {
+    int i = offset;
+    while (i < end && buffer[i] != IAC) {
+      byte b = buffer[i++];
+      if (b == '\r' || b == '\n') {
+        lineState = LineState.START;
+        break;
+      }
+    }
+    next.accept(buffer, offset, i - offset);
+    return i;
+  }
+
+  /**
+   * Holds back the byte at {@code i} while the line could still need expanding, returning where to
+   * carry on.
+   */
+  private int holdByte(byte[] buffer, int i) {
+    byte b = buffer[i];
+    boolean lineEnd = b == '\r' || b == '\n' || b == 0;
+    switch (lineState) {
+      case START:
+        if (skipLineFeed) {
+          skipLineFeed = false;
+          if (b == '\n' || b == 0) {
+            return i + 1;
+          }
+        }
+        if (lineEnd) {
+          next.accept(buffer, i, 1);
+          return i + 1;
+        }
+        if (b == '#') {
+          lineState = LineState.REPEAT_HASH;
+          return hold(b, i);
+        }
+        node = aliases.child(Aliases.ROOT, b);
+        if (node != Aliases.NONE) {
+          lineState = LineState.NAME;
+          return hold(b, i);
+        }
+        break;
+      case NAME:
+        if (aliases.isAlias(node) && (b == ' ' || lineEnd)) {
+          lineState = LineState.ARGUMENTS;
+          return holdByte(buffer, i);
+        }
+        node = aliases.child(node, b);
+        if (node != Aliases.NONE) {
+          return hold(b, i);
+        }
+        break;
+      case REPEAT_HASH:
+        if (b >= '0' && b <= '9') {
+          lineState = LineState.REPEAT_COUNT;
+          return hold(b, i);
+        }
+        break;
+      case REPEAT_COUNT:
+        if (b >= '0' && b <= '9') {
+          return hold(b, i);
+        }
+        if (b == ' ') {
+          lineState = LineState.ARGUMENTS;
+          return hold(b, i);
+        }
+        break;
+      case ARGUMENTS:
+        if (lineEnd) {
+          expand();
+          skipLineFeed = b == '\r';
+          return i + 1;
+        }
+        if (b == BACKSPACE || b == DELETE) {
+          if (heldLength > 0) {
+            --heldLength;
+          }
+          return i + 1;
+        }
+        return hold(b, i);
+      default:
+        throw new IllegalStateException("Unexpected line state " + lineState);
+    }
+
+    // not an alias after all
+    release();
+    return i;
+  }
+
+  private int hold(byte b, int i) {
+    if (heldLength == held.length) {
+      release();
+      return i;
+    }
+    held[heldLength++] = b;
+    return i + 1;
+  }
+
+  /** Passes on what was held back, since the line won't need expanding. */
+  private void release() {
+    if (heldLength > 0) {
+      next.accept(held, /* offset= */ 0, heldLength);
+    }
+    heldLength = 0;
+    lineState = LineState.PASS;
+  }
+
+  private void expand() {
+    byte[] commands = aliases.expand(new String(held, 0, heldLength, UTF_8)).getBytes(UTF_8);
+    heldLength = 0;
+    lineState = LineState.START;
+    next.accept(commands, /* offset= */ 0, commands.length);
+  }
+
+  /** Passes on the bytes of a telnet command, returning where it ended. */
+  private int passCommand(byte[] buffer, int offset, int end) {
+    int i = offset;
+    boolean ended = false;
+    while (i < end && !ended) {
+      ended = advanceCommand(buffer[i++]);
+    }
+    next.accept(buffer, offset, i - offset);
+    return i;
+  }
+
+  /** Moves through a telnet command, returning whether {@code b} ended it. */
+  private boolean advanceCommand(byte b) {
+    switch (commandState) {
+      case NONE:
+        // b is the IAC
+        commandState = CommandState.COMMAND;
+        return false;
+      case COMMAND:
+        if (b == WILL || b == WONT || b == DO || b == DONT) {
+          commandState = CommandState.OPTION;
+        } else if (b == SB) {
+          commandState = CommandState.SUBNEGOTIATION;
+        } else {
+          // a two byte command, or an escaped 0xFF
+          commandState = CommandState.NONE;
+        }
+        break;
+      case OPTION:
+        commandState = CommandState.NONE;
+        break;
+      case SUBNEGOTIATION:
+        if (b == IAC) {
+          commandState = CommandState.SUBNEGOTIATION_IAC;
+        }
+        break;
+      case SUBNEGOTIATION_IAC:
+        commandState = b == SE ? CommandState.NONE : CommandState.SUBNEGOTIATION;
+        break;
+    }
+    return commandState == CommandState.NONE;
+  }
+}
@@ -0,0 +1,251 @@
+package com.jeffreys.telnet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aliases loaded from a file, which expand a short command typed by the player into one or more
+ * commands for the remote.
+ *
+ * <p>Each line of an aliases file is a name, then the commands it expands to, separated by {@code
+ * ;}. {@code $1} to {@code $9} are replaced by the words typed after the name, {@code $*} by all of
+ * them, and {@code $$} by a single {@code $}. A command starting {@code #<count> } is repeated that
+ * many times, whether it's typed or part of an alias, and commands may use other aliases:
+ *
+ * <pre>
+ * # kill something, then loot it
+ * kk kill $1;get all from corpse
+ * run #5 $1;look
+ * </pre>
+ *
+ * <p>The names are kept in a trie, so {@link AliasExpander} can tell with each byte typed whether
+ * the line may still turn out to be an alias. Immutable, so one is shared by every connection.
+ */
+final class Aliases {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final Aliases EMPTY = new Aliases(ImmutableList.of(), ImmutableList.of());
+
+  /** The trie node before anything has been typed. */
+  static final int ROOT = 0;
+
+  static final int NONE = -1;
+
+  /** Stops an alias that uses itself from expanding forever. */
+  private static final int MAX_DEPTH = 8;
+
+  private static final int MAX_REPEAT = 100;
+
+  private final ImmutableList<String> names;
+  private final ImmutableList<String> bodies;
+
+  // the trie of names
+  private final int[] firstChild;
+  private final int[] nextSibling;
+  private final byte[] label;
+  private final int[] aliasAt;
+
+  private Aliases(ImmutableList<String> names, ImmutableList<String> bodies) {
+    this.names = names;
+    this.bodies = bodies;
+
+    Trie trie = new Trie();
+    for (int i = 0; i < names.size(); ++i) {
+      trie.add(names.get(i).getBytes(UTF_8), i);
+    }
+    firstChild = Arrays.copyOf(trie.firstChild, trie.size);
+    nextSibling = Arrays.copyOf(trie.nextSibling, trie.size);
+    label = Arrays.copyOf(trie.label, trie.size);
+    aliasAt = Arrays.copyOf(trie.aliasAt, trie.size);
+  }
+
+  /**
+   * Parses the aliases in {@code lines}, skipping blank lines and comments.
+   *
+   * @throws IllegalArgumentException if a line can't be parsed
+   */
+  static Aliases parse(List<String> lines) {
+    ImmutableList.Builder<String> names = ImmutableList.builder();
+    ImmutableList.Builder<String> bodies = ImmutableList.builder();
+    for (int i = 0; i < lines.size(); ++i) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      int nameEnd = line.indexOf(' ');
+      if (nameEnd < 0) {
+        throw new IllegalArgumentException(
+            String.format("Invalid alias on line %d: expected <name> <commands>", i + 1));
+      }
+      names.add(line.substring(0, nameEnd));
+      bodies.add(line.substring(nameEnd + 1).trim());
+    }
+    return new Aliases(names.build(), bodies.build());
+  }
+
+  /** Returns the aliases in the file at {@code path}, or none if it's empty. */
+  static Aliases load(String path) throws IOException {
+    if (path.isEmpty()) {
+      return EMPTY;
+    }
+    Aliases loaded = parse(Files.readAllLines(Path.of(path), UTF_8));
+    logger.atInfo().log("Loaded %d aliases from %s", loaded.names.size(), path);
+    return loaded;
+  }
+
+  boolean isEmpty() {
+    return names.isEmpty();
+  }
+
+  /** Returns the trie node after {@code b} follows {@code node}, or {@link #NONE}. */
+  int child(int node, byte b) {
+    return child(firstChild, nextSibling, label, node, b);
+  }
+
+  /** Returns whether the bytes leading to {@code node} are the whole name of an alias. */
+  boolean isAlias(int node) {
+    return aliasAt[node] != NONE;
+  }
+
+  /**
+   * Expands a line typed by the player into the commands to send, each ending in CR LF. A line
+   * that isn't an alias or a repeat is returned as it is.
+   */
+  String expand(String line) {
+    StringBuilder commands = new StringBuilder();
+    expand(line, /* depth= */ 0, commands);
+    return commands.toString();
+  }
+
+  private void expand(String command, int depth, StringBuilder commands) {
+    if (depth > MAX_DEPTH) {
+      logger.atWarning().log("Aliases nested too deeply expanding \"%s\"", command);
+      return;
+    }
+
+    int repeat = parseRepeat(command);
+    if (repeat > 0) {
+      String repeated = command.substring(command.indexOf(' ') + 1).trim();
+      for (int i = 0; i < repeat; ++i) {
+        expand(repeated, depth + 1, commands);
+      }
+      return;
+    }
+
+    int nameEnd = command.indexOf(' ');
+    int alias = find(nameEnd < 0 ? command : command.substring(0, nameEnd));
+    if (alias == NONE) {
+      commands.append(command).append("\r\n");
+      return;
+    }
+    String arguments = nameEnd < 0 ? "" : command.substring(nameEnd + 1).trim();
+    for (String expanded : substitute(bodies.get(alias), arguments).split(";")) {
+      if (!expanded.isBlank()) {
+        expand(expanded.trim(), depth + 1, commands);
+      }
+    }
+  }
+
+  /** Returns the count of a {@code #<count> <command>} line, or 0 if it isn't one. */
+  private static int parseRepeat(String command) {
+    int space = command.indexOf(' ');
+    if (!command.startsWith("#") || space < 2) {
+      return 0;
+    }
+    int count = 0;
+    for (int i = 1; i < space; ++i) {
+      char c = command.charAt(i);
+      if (c < '0' || c > '9') {
+        return 0;
+      }
+      count = Math.min(count * 10 + (c - '0'), MAX_REPEAT);
+    }
+    return count;
+  }
+
+  private static String substitute(String body, String arguments) {
+    String[] words = arguments.isEmpty() ? new String[0] : arguments.split("\\s+");
+    StringBuilder result = new StringBuilder(body.length() + arguments.length());
+    for (int i = 0; i < body.length(); ++i) {
+      char c = body.charAt(i);
+      char next = i + 1 < body.length() ? body.charAt(i + 1) : 0;
+      if (c != '$' || !(next == '*' || next == '$' || (next >= '1' && next <= '9'))) {
+        result.append(c);
+        continue;
+      }
+      ++i;
+      if (next == '*') {
+        result.append(arguments);
+      } else if (next == '$') {
+        result.append('$');
+      } else if (next - '1' < words.length) {
+        result.append(words[next - '1']);
+      }
+    }
+    return result.toString();
+  }
+
+  private int find(String name) {
+    int node = ROOT;
+    for (byte b : name.getBytes(UTF_8)) {
+      node = child(node, b);
+      if (node == NONE) {
+        return NONE;
+      }
+    }
+    return aliasAt[node];
+  }
+
+  private static int child(int[] firstChild, int[] nextSibling, byte[] label, int node, byte b) {
+    for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+      if (label[child] == b) {
+        return child;
+      }
+    }
+    return NONE;
+  }
+
+  /** A growable trie, only used while loading. */
+  private static final class Trie {
+    private int size = 1;
+    private int[] firstChild = {NONE};
+    private int[] nextSibling = {NONE};
+    private byte[] label = {0};
+    private int[] aliasAt = {NONE};
+
+    void add(byte[] name, int alias) {
+      int node = ROOT;
+      for (byte b : name) {
+        int next = Aliases.child(firstChild, nextSibling, label, node, b);
+        node = next != NONE ? next : addChild(node, b);
+      }
+      // the first of any with the same name wins
+      if (aliasAt[node] == NONE) {
+        aliasAt[node] = alias;
+      }
+    }
+
+    private int addChild(int node, byte b) {
+      if (size == aliasAt.length) {
+        int capacity = size * 2;
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        label = Arrays.copyOf(label, capacity);
+        aliasAt = Arrays.copyOf(aliasAt, capacity);
+      }
+      firstChild[size] = NONE;
+      nextSibling[size] = firstChild[node];
+      label[size] = b;
+      aliasAt[size] = NONE;
+      firstChild[node] = size;
+      return size++;
+    }
+  }
+}
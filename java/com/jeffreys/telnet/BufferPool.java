@@ -0,0 +1,198 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffers shared by every connection, so a connection only holds one while it has data in it.
+ *
+ * <p>Buffers come in power-of-two sizes from {@link #MIN_SIZE} to {@link #MAX_SIZE}, and each size
+ * has its own free list. A released buffer is kept for the next one acquired of its size, unless
+ * the pool already keeps as many bytes as it's allowed to, in which case the garbage collector has
+ * it. Requests bigger than the largest size aren't pooled at all.
+ *
+ * <p>Byte arrays are for reading streams into. {@link ByteBuffer}s are for channels, and are direct
+ * if the pool was asked for them to be, which saves the JDK copying through a direct buffer of its
+ * own on every channel write, at the cost of memory the heap limit doesn't cover.
+ */
+final class BufferPool {
+  static final int MIN_SIZE = 512;
+  static final int MAX_SIZE = 64 * 1024;
+  private static final int SIZE_CLASSES =
+      Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+
+  private final boolean direct;
+  private final long maxRetainedBytes;
+  private final ImmutableList<Queue<byte[]>> arrays = newFreeLists();
+  private final ImmutableList<Queue<ByteBuffer>> buffers = newFreeLists();
+  private final AtomicLong retainedBytes = new AtomicLong();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Keeps up to {@code maxRetainedBytes} of released buffers for reuse.
+   *
+   * @param direct whether {@link #acquireBuffer} hands out direct buffers
+   */
+  BufferPool(long maxRetainedBytes, boolean direct) {
+    checkArgument(maxRetainedBytes >= 0, "maxRetainedBytes must not be negative");
+
+    this.maxRetainedBytes = maxRetainedBytes;
+    this.direct = direct;
+  }
+
+  /** Creates a pool keeping up to 4MB of heap buffers. */
+  static BufferPool create() {
+    return new BufferPool(/* maxRetainedBytes= */ 4 * 1024 * 1024, /* direct= */ false);
+  }
+
+  /** Returns an array of at least {@code size} bytes, rounded up to the next size class. */
+  byte[] acquire(int size) {
+    int sizeClass = sizeClass(size);
+    if (sizeClass < 0) {
+      misses.increment();
+      return new byte[size];
+    }
+    byte[] array = arrays.get(sizeClass).poll();
+    if (array == null) {
+      misses.increment();
+      return new byte[classSize(sizeClass)];
+    }
+    hits.increment();
+    retainedBytes.addAndGet(-array.length);
+    return array;
+  }
+
+  /** Returns an array to the pool, after which the caller must not touch it. */
+  void release(byte[] array) {
+    int sizeClass = sizeClass(array.length);
+    if (sizeClass >= 0 && array.length == classSize(sizeClass) && retain(array.length)) {
+      arrays.get(sizeClass).add(array);
+    }
+  }
+
+  /**
+   * Returns an empty buffer of at least {@code size} bytes, rounded up to the next size class,
+   * limited to {@code size}.
+   */
+  ByteBuffer acquireBuffer(int size) {
+    int sizeClass = sizeClass(size);
+    ByteBuffer buffer = sizeClass < 0 ? null : buffers.get(sizeClass).poll();
+    if (buffer == null) {
+      misses.increment();
+      int capacity = sizeClass < 0 ? size : classSize(sizeClass);
+      buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    } else {
+      hits.increment();
+      retainedBytes.addAndGet(-buffer.capacity());
+    }
+    buffer.clear().limit(size);
+    return buffer;
+  }
+
+  /** Returns a buffer to the pool, after which the caller must not touch it. */
+  void release(ByteBuffer buffer) {
+    int sizeClass = sizeClass(buffer.capacity());
+    if (sizeClass >= 0
+        && buffer.capacity() == classSize(sizeClass)
+        && buffer.isDirect() == direct
+        && retain(buffer.capacity())) {
+      buffers.get(sizeClass).add(buffer);
+    }
+  }
+
+  /** Returns how many acquires were handed a buffer released earlier. */
+  long getHits() {
+    return hits.sum();
+  }
+
+  /** Returns how many acquires had to allocate a new buffer. */
+  long getMisses() {
+    return misses.sum();
+  }
+
+  /** Returns how many bytes of released buffers are kept for reuse. */
+  long getRetainedBytes() {
+    return retainedBytes.get();
+  }
+
+  /** Makes room for {@code size} more retained bytes, returning false if that would be too many. */
+  private boolean retain(int size) {
+    if (retainedBytes.addAndGet(size) > maxRetainedBytes) {
+      retainedBytes.addAndGet(-size);
+      return false;
+    }
+    return true;
+  }
+
+  /** Returns the smallest size class holding {@code size} bytes, or -1 if none does. */
+  private static int sizeClass(int size) {
+    if (size > MAX_SIZE) {
+      return -1;
+    }
+    int rounded = Math.max(MIN_SIZE, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+    return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(MIN_SIZE);
+  }
+
+  private static int classSize(int sizeClass) {
+    return MIN_SIZE << sizeClass;
+  }
+
+  private static <T> ImmutableList<Queue<T>> newFreeLists() {
+    ImmutableList.Builder<Queue<T>> freeLists = ImmutableList.builder();
+    for (int i = 0; i < SIZE_CLASSES; ++i) {
+      freeLists.add(new ConcurrentLinkedQueue<>());
+    }
+    return freeLists.build();
+  }
+
+  /**
+   * Picks how big a buffer one reader should be handed, from how much its recent reads filled.
+   *
+   * <p>A read that fills its buffer probably left more behind, so the next buffer is twice the
+   * size. Only after several reads in a row fill less than a quarter of theirs is the next buffer
+   * halved, so one small read in a burst doesn't shrink it. Only the reader's thread may use it.
+   */
+  static final class Sizer {
+    /** How many reads in a row must be small before the size shrinks. */
+    private static final int SHRINK_AFTER = 8;
+
+    private int size;
+    private int smallReads = 0;
+
+    Sizer(int initialSize) {
+      checkArgument(
+          initialSize >= MIN_SIZE && initialSize <= MAX_SIZE,
+          "initialSize must be between %s and %s",
+          MIN_SIZE,
+          MAX_SIZE);
+      this.size = initialSize;
+    }
+
+    /** Returns the size of buffer to acquire for the next read. */
+    int next() {
+      return size;
+    }
+
+    /** Records that a read into a buffer of {@code capacity} bytes read {@code bytes} of them. */
+    void record(int bytes, int capacity) {
+      if (bytes >= capacity) {
+        size = Math.min(MAX_SIZE, Math.max(size, capacity) * 2);
+        smallReads = 0;
+      } else if (bytes < size / 4 && size > MIN_SIZE) {
+        if (++smallReads >= SHRINK_AFTER) {
+          size /= 2;
+          smallReads = 0;
+        }
+      } else {
+        smallReads = 0;
+      }
+    }
+  }
+}
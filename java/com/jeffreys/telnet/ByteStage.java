@@ -0,0 +1,19 @@
+package com.jeffreys.telnet;
+
+/**
+ * A step in the processing of a stream of bytes.
+ *
+ * <p>Stages are chained once per connection and called for every chunk read, so implementations
+ * should avoid allocating. {@code buffer} is only valid until {@link #accept} returns, and may be
+ * reused for the next chunk.
+ */
+@FunctionalInterface
+public interface ByteStage {
+  /** Processes {@code length} bytes of {@code buffer}, starting at {@code offset}. */
+  void accept(byte[] buffer, int offset, int length);
+
+  /** Processes the first {@code length} bytes of {@code buffer}. */
+  default void accept(byte[] buffer, int length) {
+    accept(buffer, /* offset= */ 0, length);
+  }
+}
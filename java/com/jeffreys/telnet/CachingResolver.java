@@ -0,0 +1,75 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.flogger.FluentLogger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Resolves the remote host, remembering the answer for a fixed time to live.
+ *
+ * <p>If a lookup fails once the answer has expired, the last good answer is used instead, so a
+ * flaky DNS server doesn't stop new sessions reaching a remote that hasn't moved.
+ */
+final class CachingResolver {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** Looks up the addresses of a host, such as {@link InetAddress#getAllByName}. */
+  @FunctionalInterface
+  interface Lookup {
+    InetAddress[] lookup(String host) throws UnknownHostException;
+  }
+
+  private final String host;
+  private final long ttlNanos;
+  private final Ticker ticker;
+  private final Lookup lookup;
+
+  @GuardedBy("this")
+  @Nullable
+  private InetAddress[] addresses = null;
+
+  @GuardedBy("this")
+  private long expiresAtNanos = 0;
+
+  CachingResolver(String host, Duration ttl) {
+    this(host, ttl, Ticker.systemTicker(), InetAddress::getAllByName);
+  }
+
+  @VisibleForTesting
+  CachingResolver(String host, Duration ttl, Ticker ticker, Lookup lookup) {
+    this.host = checkNotNull(host);
+    this.ttlNanos = ttl.toNanos();
+    this.ticker = checkNotNull(ticker);
+    this.lookup = checkNotNull(lookup);
+  }
+
+  String getHost() {
+    return host;
+  }
+
+  /** Returns the addresses of the host, looking them up again if the cached answer expired. */
+  synchronized InetAddress[] resolve() throws UnknownHostException {
+    long now = ticker.read();
+    if (addresses != null && now - expiresAtNanos < 0) {
+      return addresses.clone();
+    }
+
+    try {
+      addresses = lookup.lookup(host);
+    } catch (UnknownHostException ex) {
+      if (addresses == null) {
+        throw ex;
+      }
+      logger.atWarning().withCause(ex).log("Unable to resolve %s, using the last answer", host);
+    }
+    expiresAtNanos = now + ttlNanos;
+    return addresses.clone();
+  }
+}
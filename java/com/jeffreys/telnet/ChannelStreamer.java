@@ -0,0 +1,252 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A {@link CloseableStreamer} over a non-blocking {@link SocketChannel} driven by a {@link
+ * SelectorLoop}.
+ *
+ * <p>Incoming data is pushed to a {@link ChunkHandler} on the loop thread instead of being pulled
+ * through an {@link InputStream}. Writes never block: whatever the socket doesn't accept right away
+ * is queued and written once the channel becomes writable. While a streamer has queued data, the
+ * streamer feeding it stops reading, so a slow reader pushes back on its writer instead of growing
+ * the queue without bound. Queued data is kept in buffers from a {@link BufferPool}, which go back
+ * to it as soon as they're written.
+ */
+final class ChannelStreamer implements CloseableStreamer, SelectorLoop.Handler {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  /** Bounds how long one busy channel can hold up the rest of the loop. */
+  private static final int MAX_READS_PER_WAKEUP = 16;
+
+  private final SocketChannel channel;
+  private final SelectorLoop loop;
+  private final BufferPool bufferPool;
+  private final ChannelOutputStream outputStream = new ChannelOutputStream();
+
+  // only accessed on the loop thread
+  @Nullable private SelectionKey key = null;
+  @Nullable private ChunkHandler onData = null;
+  @Nullable private Flushable onIdle = null;
+  @Nullable private ChannelStreamer downstream = null;
+  @Nullable private Runnable onClose = null;
+  /** The streamer whose reads are paused until our queued output drains. */
+  @Nullable private ChannelStreamer pausedUpstream = null;
+
+  ChannelStreamer(SocketChannel channel, SelectorLoop loop, BufferPool bufferPool) {
+    this.channel = checkNotNull(channel);
+    this.loop = checkNotNull(loop);
+    this.bufferPool = checkNotNull(bufferPool);
+  }
+
+  ChannelStreamer(SocketChannel channel, SelectorLoop loop) {
+    this(channel, loop, BufferPool.create());
+  }
+
+  /**
+   * Starts reading from the channel, handing data to {@code onData}.
+   *
+   * <p>{@code onIdle} is flushed after each batch of reads, once the channel has nothing more
+   * buffered or reading pauses. Reading pauses whenever {@code downstream} has data queued. {@code
+   * onClose} is called once when the channel reaches end of stream or fails. Every callback runs on
+   * the loop thread, so none of them may block.
+   */
+  void start(
+      ChunkHandler onData, Flushable onIdle, ChannelStreamer downstream, Runnable onClose) {
+    loop.execute(
+        () -> {
+          this.onData = checkNotNull(onData);
+          this.onIdle = checkNotNull(onIdle);
+          this.downstream = checkNotNull(downstream);
+          this.onClose = checkNotNull(onClose);
+          try {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            outputStream.updateWriteInterest();
+          } catch (IOException ex) {
+            logger.atWarning().withCause(ex).log("Unable to register channel");
+            fireClose();
+          }
+        });
+  }
+
+  @Override
+  public void close() throws IOException {
+    outputStream.close();
+    channel.close();
+    // nothing queued will ever drain now, so whoever was waiting for it shouldn't wait forever
+    loop.execute(this::resumeUpstream);
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    throw new UnsupportedOperationException("Channel data is pushed by the SelectorLoop");
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public void onReady(SelectionKey key) {
+    if (key.isWritable()) {
+      outputStream.drain();
+    }
+    if (key.isValid() && key.isReadable()) {
+      read();
+    }
+  }
+
+  private void read() {
+    byte[] buffer = loop.getReadBuffer();
+    try {
+      // keep reading while reads fill the buffer, so onIdle isn't flushed with more data pending
+      for (int reads = 0; reads < MAX_READS_PER_WAKEUP; ++reads) {
+        int bytes = channel.read(ByteBuffer.wrap(buffer));
+        if (bytes < 0) {
+          fireClose();
+          return;
+        }
+
+        if (bytes > 0) {
+          onData.onChunk(buffer, bytes);
+
+          if (downstream.outputStream.hasQueuedData()) {
+            setInterest(SelectionKey.OP_READ, false);
+            downstream.pausedUpstream = this;
+            break;
+          }
+        }
+        if (bytes < buffer.length) {
+          break;
+        }
+      }
+      onIdle.flush();
+    } catch (IOException ex) {
+      logger.atWarning().withCause(ex).log("Failure reading channel data");
+      fireClose();
+    }
+  }
+
+  private void fireClose() {
+    Runnable callback = onClose;
+    onClose = null;
+    Util.close(this);
+    if (callback != null) {
+      logger.atInfo().log("Exiting channel reader");
+      callback.run();
+    }
+  }
+
+  /** Called on the loop thread to resume reading whoever was paused on our queued output. */
+  private void resumeUpstream() {
+    if (pausedUpstream != null) {
+      pausedUpstream.setInterest(SelectionKey.OP_READ, true);
+      pausedUpstream = null;
+    }
+  }
+
+  private void setInterest(int op, boolean enabled) {
+    if (key != null && key.isValid()) {
+      key.interestOps(enabled ? key.interestOps() | op : key.interestOps() & ~op);
+    }
+  }
+
+  /** Writes straight to the channel when possible, and queues the remainder otherwise. */
+  private final class ChannelOutputStream extends OutputStream {
+    private final Queue<ByteBuffer> queue = new ArrayDeque<>();
+    private boolean closed = false;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      synchronized (queue) {
+        if (closed) {
+          throw new IOException("Channel is closed");
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+        if (queue.isEmpty()) {
+          channel.write(data);
+          if (!data.hasRemaining()) {
+            return;
+          }
+        }
+
+        // the caller may reuse its buffer, so we have to keep a copy of whatever is left
+        ByteBuffer copy = bufferPool.acquireBuffer(data.remaining());
+        copy.put(data).flip();
+        queue.add(copy);
+      }
+
+      loop.execute(this::updateWriteInterest);
+    }
+
+    boolean hasQueuedData() {
+      synchronized (queue) {
+        return !queue.isEmpty();
+      }
+    }
+
+    /** Called on the loop thread to keep OP_WRITE in sync with the queue. */
+    void updateWriteInterest() {
+      setInterest(SelectionKey.OP_WRITE, hasQueuedData());
+    }
+
+    /** Called on the loop thread when the channel is writable. */
+    void drain() {
+      synchronized (queue) {
+        try {
+          while (!queue.isEmpty()) {
+            ByteBuffer data = queue.peek();
+            channel.write(data);
+            if (data.hasRemaining()) {
+              return;
+            }
+            bufferPool.release(queue.remove());
+          }
+        } catch (IOException ex) {
+          logger.atWarning().withCause(ex).log("Failure writing channel data");
+          releaseQueue();
+          fireClose();
+          return;
+        }
+      }
+
+      setInterest(SelectionKey.OP_WRITE, false);
+      resumeUpstream();
+    }
+
+    @Override
+    public void close() {
+      synchronized (queue) {
+        closed = true;
+        releaseQueue();
+      }
+    }
+
+    @GuardedBy("queue")
+    private void releaseQueue() {
+      ByteBuffer data;
+      while ((data = queue.poll()) != null) {
+        bufferPool.release(data);
+      }
+    }
+  }
+}
@@ -0,0 +1,10 @@
+package com.jeffreys.telnet;
+
+import java.io.IOException;
+
+/** Receives chunks of data as they are read from a connection. */
+@FunctionalInterface
+interface ChunkHandler {
+  /** Handles the first {@code length} bytes of {@code buffer}, which is reused after returning. */
+  void onChunk(byte[] buffer, int length) throws IOException;
+}
@@ -0,0 +1,107 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link OutputStream} that gathers small writes into fewer, larger ones.
+ *
+ * <p>Writes are buffered until {@link #flush} is called, which callers do once their input goes
+ * idle, so a lone keystroke isn't held back at all. While data keeps arriving, nothing is held back
+ * for longer than the latency budget, or past the point the buffer fills. All methods are
+ * synchronized, since more than one thread may write to the same connection.
+ *
+ * <p>The buffer comes from a {@link BufferPool}, and goes back to it whenever it's emptied, so an
+ * idle connection doesn't hold one.
+ */
+final class CoalescingOutputStream extends FilterOutputStream {
+  private static final int BUFFER_SIZE = 8192;
+
+  private final long latencyBudgetNanos;
+  private final BufferPool bufferPool;
+  /** Only held while it has something in it. */
+  @Nullable private byte[] buffer = null;
+  private int count = 0;
+  /** When the oldest buffered byte was written, from {@link System#nanoTime}. */
+  private long firstWriteNanos = 0;
+  private long chunksWritten = 0;
+  private long chunksSent = 0;
+
+  CoalescingOutputStream(OutputStream out, Duration latencyBudget, BufferPool bufferPool) {
+    super(out);
+    checkArgument(!latencyBudget.isNegative(), "latencyBudget must not be negative");
+    this.latencyBudgetNanos = latencyBudget.toNanos();
+    this.bufferPool = checkNotNull(bufferPool);
+  }
+
+  CoalescingOutputStream(OutputStream out, Duration latencyBudget) {
+    this(out, latencyBudget, BufferPool.create());
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] data, int offset, int length) throws IOException {
+    ++chunksWritten;
+    if (length > BUFFER_SIZE - count) {
+      drain();
+    }
+    if (length >= BUFFER_SIZE) {
+      send(data, offset, length);
+      return;
+    }
+
+    if (count == 0) {
+      firstWriteNanos = System.nanoTime();
+      buffer = bufferPool.acquire(BUFFER_SIZE);
+    }
+    System.arraycopy(data, offset, buffer, count, length);
+    count += length;
+
+    if (System.nanoTime() - firstWriteNanos >= latencyBudgetNanos) {
+      drain();
+    }
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    drain();
+    out.flush();
+  }
+
+  /** Returns how many writes this stream has received. */
+  synchronized long getChunksWritten() {
+    return chunksWritten;
+  }
+
+  /** Returns how many writes this stream has made to the underlying stream. */
+  synchronized long getChunksSent() {
+    return chunksSent;
+  }
+
+  private void drain() throws IOException {
+    if (count > 0) {
+      try {
+        send(buffer, 0, count);
+      } finally {
+        count = 0;
+        bufferPool.release(buffer);
+        buffer = null;
+      }
+    }
+  }
+
+  private void send(byte[] data, int offset, int length) throws IOException {
+    ++chunksSent;
+    out.write(data, offset, length);
+  }
+}
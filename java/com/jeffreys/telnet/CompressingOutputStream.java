@@ -0,0 +1,105 @@
+package com.jeffreys.telnet;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link OutputStream} that can switch to zlib compression part way through, as MCCP does.
+ *
+ * <p>Data is written as is until {@link #startCompression} is called. After that every write is
+ * deflated, and {@link #flush} performs a zlib sync flush so the peer can inflate everything
+ * written so far. All methods are synchronized, since more than one thread may write to the same
+ * connection.
+ */
+final class CompressingOutputStream extends FilterOutputStream {
+  private static final int DEFLATE_BUFFER_SIZE = 2048;
+
+  private final Deflater deflater = new Deflater();
+  private final byte[] deflated = new byte[DEFLATE_BUFFER_SIZE];
+  private boolean compressing = false;
+  private boolean closed = false;
+  private long uncompressedBytes = 0;
+  private long compressedBytes = 0;
+
+  CompressingOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  /** Writes {@code marker} uncompressed, then compresses everything written afterwards. */
+  synchronized void startCompression(byte[] marker) throws IOException {
+    checkOpen();
+    out.write(marker);
+    out.flush();
+    compressing = true;
+  }
+
+  synchronized boolean isCompressing() {
+    return compressing;
+  }
+
+  /**
+   * Returns how many bytes were written for each byte sent since compression started, or 1 if
+   * nothing has been compressed yet.
+   */
+  synchronized double getCompressionRatio() {
+    return compressedBytes == 0 ? 1 : (double) uncompressedBytes / compressedBytes;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+    checkOpen();
+    if (!compressing) {
+      out.write(buffer, offset, length);
+      return;
+    }
+
+    uncompressedBytes += length;
+    deflater.setInput(buffer, offset, length);
+    while (!deflater.needsInput()) {
+      deflate(Deflater.NO_FLUSH);
+    }
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    checkOpen();
+    if (compressing) {
+      // a full output buffer means there may be more pending
+      while (deflate(Deflater.SYNC_FLUSH) == deflated.length) {}
+    }
+    out.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    deflater.end();
+    out.close();
+  }
+
+  private int deflate(int flushMode) throws IOException {
+    int bytes = deflater.deflate(deflated, /* off= */ 0, deflated.length, flushMode);
+    if (bytes > 0) {
+      compressedBytes += bytes;
+      out.write(deflated, /* off= */ 0, bytes);
+    }
+    return bytes;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+}
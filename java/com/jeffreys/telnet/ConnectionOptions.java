@@ -0,0 +1,141 @@
+package com.jeffreys.telnet;
+
+import com.google.auto.value.AutoValue;
+import java.time.Duration;
+import java.util.concurrent.ThreadFactory;
+
+/** Settings and shared services for each {@link TelnetConnection}. */
+@AutoValue
+abstract class ConnectionOptions {
+  static ConnectionOptions defaults() {
+    return builder().build();
+  }
+
+  static Builder builder() {
+    return new AutoValue_ConnectionOptions.Builder()
+        .setThreadFactory(Thread::new)
+        .setPipeline(Pipeline.EMPTY)
+        .setRemoteCompression(false)
+        .setHostCompression(false)
+        .setWriteCoalescingBudget(Duration.ZERO)
+        .setScriptBufferSize(64 * 1024)
+        .setScriptOverflowPolicy(FanOutBuffer.OverflowPolicy.DROP_OLDEST)
+        .setScriptPlugins(ScriptPlugins.EMPTY)
+        .setScriptBytesPerSecond(0)
+        .setScriptCommandsPerSecond(0)
+        .setTriggers(Triggers.EMPTY)
+        .setAliases(Aliases.EMPTY)
+        .setRecorder(SessionRecorder.DISABLED)
+        .setMetrics(Metrics.create())
+        .setSessions(new SessionRegistry())
+        .setViewerBufferSize(64 * 1024)
+        .setDetachGracePeriod(Duration.ZERO)
+        .setScrollbackSize(64 * 1024)
+        .setBufferPool(BufferPool.create());
+  }
+
+  /** Creates the threads for forwarding and script I/O. */
+  abstract ThreadFactory getThreadFactory();
+
+  /** Builds the stage chains for each direction. */
+  abstract Pipeline getPipeline();
+
+  /** Whether to negotiate MCCP compression with the remote host. */
+  abstract boolean getRemoteCompression();
+
+  /** Whether to offer MCCP compression to the local client. */
+  abstract boolean getHostCompression();
+
+  /**
+   * How long writes may be held back while more data keeps arriving, or zero to flush every write.
+   */
+  abstract Duration getWriteCoalescingBudget();
+
+  /** How many bytes of remote data a script may fall behind by before it overflows. */
+  abstract int getScriptBufferSize();
+
+  /** What happens to remote data when a script falls too far behind. */
+  abstract FanOutBuffer.OverflowPolicy getScriptOverflowPolicy();
+
+  /** The in-process scripts that can be launched by name. */
+  abstract ScriptPlugins getScriptPlugins();
+
+  /** Limits how fast script output is sent to the remote, or 0 for no limit. */
+  abstract int getScriptBytesPerSecond();
+
+  /** Limits how many lines of script output are sent to the remote a second, or 0 for no limit. */
+  abstract int getScriptCommandsPerSecond();
+
+  /** Patterns to look for in remote data, and what to do about them. */
+  abstract Triggers getTriggers();
+
+  /** Shorthand the local client may type, expanded before it's sent to the remote. */
+  abstract Aliases getAliases();
+
+  /** Records everything each session sends, unless it's {@link SessionRecorder#DISABLED}. */
+  abstract SessionRecorder getRecorder();
+
+  /** Where each session's counters are registered. */
+  abstract Metrics getMetrics();
+
+  /** Where each session is listed while it's open, for spectators to attach to. */
+  abstract SessionRegistry getSessions();
+
+  /** How many bytes of remote data a spectator may fall behind by before losing the oldest. */
+  abstract int getViewerBufferSize();
+
+  /**
+   * How long a session outlives the player's client for, waiting for them to resume it, or zero to
+   * end it with the client.
+   */
+  abstract Duration getDetachGracePeriod();
+
+  /** How many bytes of compressed remote data a detached session keeps for the player. */
+  abstract int getScrollbackSize();
+
+  /** Where read and write buffers come from, shared with other connections. */
+  abstract BufferPool getBufferPool();
+
+  @AutoValue.Builder
+  abstract static class Builder {
+    abstract Builder setThreadFactory(ThreadFactory threadFactory);
+
+    abstract Builder setPipeline(Pipeline pipeline);
+
+    abstract Builder setRemoteCompression(boolean remoteCompression);
+
+    abstract Builder setHostCompression(boolean hostCompression);
+
+    abstract Builder setWriteCoalescingBudget(Duration writeCoalescingBudget);
+
+    abstract Builder setScriptBufferSize(int scriptBufferSize);
+
+    abstract Builder setScriptOverflowPolicy(FanOutBuffer.OverflowPolicy scriptOverflowPolicy);
+
+    abstract Builder setScriptPlugins(ScriptPlugins scriptPlugins);
+
+    abstract Builder setScriptBytesPerSecond(int scriptBytesPerSecond);
+
+    abstract Builder setScriptCommandsPerSecond(int scriptCommandsPerSecond);
+
+    abstract Builder setTriggers(Triggers triggers);
+
+    abstract Builder setAliases(Aliases aliases);
+
+    abstract Builder setRecorder(SessionRecorder recorder);
+
+    abstract Builder setMetrics(Metrics metrics);
+
+    abstract Builder setSessions(SessionRegistry sessions);
+
+    abstract Builder setViewerBufferSize(int viewerBufferSize);
+
+    abstract Builder setDetachGracePeriod(Duration detachGracePeriod);
+
+    abstract Builder setScrollbackSize(int scrollbackSize);
+
+    abstract Builder setBufferPool(BufferPool bufferPool);
+
+    abstract ConnectionOptions build();
+  }
+}
@@ -0,0 +1,11 @@
+package com.jeffreys.telnet;
+
+/** The directions data flows through a connection. */
+public enum Direction {
+  /** Typed by the local client, on its way to the remote host. */
+  HOST_TO_REMOTE,
+  /** Sent by the remote host, on its way to the local client. */
+  REMOTE_TO_HOST,
+  /** Written by a running script, on its way to the remote host. */
+  PROCESS_TO_REMOTE
+}
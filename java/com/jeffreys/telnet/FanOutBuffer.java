@@ -0,0 +1,758 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Hands the same stream of data to any number of subscribers, each reading at its own pace.
+ *
+ * <p>Published data is copied once into a shared ring buffer, however many subscribers there are,
+ * and each subscriber keeps its own cursor into it. What happens when a subscriber falls more than
+ * the buffer's capacity behind is up to its {@link OverflowPolicy}.
+ *
+ * <p>A subscriber with a {@link Filter} is only handed, and only woken for, the chunks its filter
+ * matches.
+ *
+ * <p>Only one thread may publish at a time. Publishing doesn't allocate, once the subscribers'
+ * queues of pending ranges have grown to fit.
+ *
+ * <p>The ring isn't allocated until the first subscriber arrives, since nothing is kept without
+ * one, so a session that never runs a script doesn't pay for a buffer to hand scripts data.
+ */
+final class FanOutBuffer {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  /** Longest a publish waits for {@link OverflowPolicy#BLOCK} subscribers to make room. */
+  private static final long MAX_BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /** Decides which published chunks a subscriber wants, being shown each of them in order. */
+  @FunctionalInterface
+  interface Filter {
+    boolean matches(byte[] buffer, int offset, int length);
+
+    /**
+     * Returns a filter matching chunks that contain {@code pattern}, or the end of one begun in the
+     * chunks before. It remembers the end of what it's shown, so each subscriber needs its own.
+     */
+    static Filter containing(byte[] pattern) {
+      checkArgument(pattern.length > 0, "pattern must not be empty");
+      return new ContainingFilter(pattern.clone());
+    }
+  }
+
+  /** What to do when a subscriber has fallen too far behind to take the next chunk. */
+  enum OverflowPolicy {
+    /** Overwrite the oldest data it hasn't read yet. */
+    DROP_OLDEST,
+    /** Set aside what it hasn't read yet, skipping new chunks until it has read that. */
+    DROP_NEWEST,
+    /**
+     * Hold up the publisher until the subscriber makes room, for at most 100ms a chunk before
+     * dropping the oldest data instead, so a stuck subscriber can slow the publisher but not stop
+     * it. Only for publishers with a thread of their own to hold up.
+     */
+    BLOCK,
+    /** Move what it hasn't read yet to a temporary file, and add to that until it catches up. */
+    SPILL
+  }
+
+  /** Allocated by the first subscriber, after which it's never null. */
+  @GuardedBy("lock")
+  @Nullable
+  private byte[] ring = null;
+
+  private final int size;
+  private final int mask;
+  private final ReentrantLock lock = new ReentrantLock();
+  /** Signalled whenever a subscriber reads or closes, while a publisher is waiting for room. */
+  private final Condition roomMade = lock.newCondition();
+
+  /** The total number of bytes ever published, which is where the next byte will go. */
+  @GuardedBy("lock")
+  private long written = 0;
+
+  @GuardedBy("lock")
+  private final List<Subscriber> subscribers = new ArrayList<>();
+
+  /** Who wants the chunk being published, reused so publishing doesn't allocate a list. */
+  @GuardedBy("lock")
+  private final List<Subscriber> wanting = new ArrayList<>();
+
+  @GuardedBy("lock")
+  private boolean awaitingRoom = false;
+
+  /** Creates a buffer holding at least {@code capacity} bytes, rounded up to a power of two. */
+  FanOutBuffer(int capacity) {
+    checkArgument(capacity > 0 && capacity <= 1 << 30, "capacity must be between 1 and 2^30");
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.size = size;
+    this.mask = size - 1;
+  }
+
+  int getCapacity() {
+    return size;
+  }
+
+  /**
+   * Adds a subscriber, which sees everything published from now on that {@code filter} matches, or
+   * everything if it's null.
+   */
+  Subscriber subscribe(@Nullable Filter filter, OverflowPolicy overflowPolicy) {
+    lock.lock();
+    try {
+      if (ring == null) {
+        ring = new byte[size];
+      }
+      Subscriber subscriber = new Subscriber(filter, overflowPolicy);
+      subscribers.add(subscriber);
+      return subscriber;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Copies a chunk into the buffer and wakes each subscriber that wants it. */
+  void publish(byte[] buffer, int offset, int length) {
+    lock.lock();
+    try {
+      if (subscribers.isEmpty()) {
+        written += length;
+        return;
+      }
+
+      long start = written;
+      long end = start + length;
+      // anything before this is overwritten by the chunk
+      long oldestKept = end - size;
+      wanting.clear();
+      for (Subscriber subscriber : subscribers) {
+        if (subscriber.filter == null || subscriber.filter.matches(buffer, offset, length)) {
+          wanting.add(subscriber);
+        }
+      }
+      awaitRoom(oldestKept);
+
+      for (int i = 0; i < wanting.size(); ++i) {
+        wanting.get(i).offer(buffer, offset, length, start, oldestKept);
+      }
+      wanting.clear();
+
+      written = end;
+      // a chunk bigger than the ring only leaves its tail behind
+      int skipped = Math.max(0, length - size);
+      copyIn(buffer, offset + skipped, start + skipped, length - skipped);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Closes every subscriber, which then read whatever they have left before seeing the end. */
+  void close() {
+    lock.lock();
+    try {
+      for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+        subscriber.close();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Waits a limited time for blocking subscribers to read everything before {@code oldestKept}. */
+  @GuardedBy("lock")
+  private void awaitRoom(long oldestKept) {
+    long remaining = MAX_BLOCK_NANOS;
+    try {
+      while (needsRoom(oldestKept)) {
+        if (remaining <= 0) {
+          return;
+        }
+        awaitingRoom = true;
+        remaining = roomMade.awaitNanos(remaining);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      awaitingRoom = false;
+    }
+  }
+
+  @GuardedBy("lock")
+  private boolean needsRoom(long oldestKept) {
+    for (int i = 0; i < wanting.size(); ++i) {
+      Subscriber subscriber = wanting.get(i);
+      if (subscriber.overflowPolicy == OverflowPolicy.BLOCK
+          && !subscriber.closed
+          && subscriber.oldestUnread() < oldestKept) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @GuardedBy("lock")
+  private void copyIn(byte[] buffer, int offset, long position, int length) {
+    int index = (int) (position & mask);
+    int first = Math.min(length, size - index);
+    System.arraycopy(buffer, offset, ring, index, first);
+    System.arraycopy(buffer, offset + first, ring, 0, length - first);
+  }
+
+  @GuardedBy("lock")
+  private void copyOut(long position, byte[] buffer, int offset, int length) {
+    int index = (int) (position & mask);
+    int first = Math.min(length, size - index);
+    System.arraycopy(ring, index, buffer, offset, first);
+    System.arraycopy(ring, 0, buffer, offset + first, length - first);
+  }
+
+  @VisibleForTesting
+  static int indexOf(byte[] buffer, int offset, int length, byte[] pattern) {
+    int last = offset + length - pattern.length;
+    outer:
+    for (int i = offset; i <= last; ++i) {
+      for (int j = 0; j < pattern.length; ++j) {
+        if (buffer[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i - offset;
+    }
+    return -1;
+  }
+
+  /** Finds a pattern even when it's split across chunks, by keeping the end of the last ones. */
+  private static final class ContainingFilter implements Filter {
+    private final byte[] pattern;
+    /** The last bytes shown, up to one short of the pattern, which could start a match. */
+    private final byte[] tail;
+
+    private int tailLength = 0;
+
+    private ContainingFilter(byte[] pattern) {
+      this.pattern = pattern;
+      this.tail = new byte[pattern.length - 1];
+    }
+
+    @Override
+    public boolean matches(byte[] buffer, int offset, int length) {
+      boolean matched = endsSplitMatch(buffer, offset, length);
+      if (!matched) {
+        matched = indexOf(buffer, offset, length, pattern) >= 0;
+      }
+      keepTail(buffer, offset, length);
+      return matched;
+    }
+
+    /** Whether the chunk finishes a match begun in {@link #tail}. */
+    private boolean endsSplitMatch(byte[] buffer, int offset, int length) {
+      // j is how much of the pattern is in the tail
+      outer:
+      for (int j = Math.min(tailLength, pattern.length - 1); j > 0; --j) {
+        if (pattern.length - j > length) {
+          break;
+        }
+        for (int k = 0; k < j; ++k) {
+          if (tail[tailLength - j + k] != pattern[k]) {
+            continue outer;
+          }
+        }
+        for (int k = j; k < pattern.length; ++k) {
+          if (buffer[offset + k - j] != pattern[k]) {
+            continue outer;
+          }
+        }
+        return true;
+      }
+      return false;
+    }
+
+    private void keepTail(byte[] buffer, int offset, int length) {
+      if (length >= tail.length) {
+        System.arraycopy(buffer, offset + length - tail.length, tail, 0, tail.length);
+        tailLength = tail.length;
+        return;
+      }
+      int kept = Math.min(tailLength, tail.length - length);
+      System.arraycopy(tail, tailLength - kept, tail, 0, kept);
+      System.arraycopy(buffer, offset, tail, kept, length);
+      tailLength = kept + length;
+    }
+  }
+
+  /** One reader of the buffer, which is expected to be read by a single thread. */
+  final class Subscriber implements Closeable {
+    @Nullable private final Filter filter;
+    private final OverflowPolicy overflowPolicy;
+    private final Condition changed = lock.newCondition();
+
+    /** The ranges of published positions still to be read from the ring, oldest first. */
+    @GuardedBy("lock")
+    private final Ranges pending = new Ranges();
+
+    /**
+     * Holds the data a {@link OverflowPolicy#DROP_NEWEST} subscriber hadn't read when it fell
+     * behind, which is all older than anything in {@link #pending}.
+     */
+    @GuardedBy("lock")
+    @Nullable
+    private byte[] held = null;
+
+    @GuardedBy("lock")
+    private int heldRead = 0;
+
+    @GuardedBy("lock")
+    private int heldLength = 0;
+
+    /**
+     * Holds data for a {@link OverflowPolicy#SPILL} subscriber that fell behind, which is all
+     * older than anything in {@link #pending}.
+     */
+    @GuardedBy("lock")
+    @Nullable
+    private FileChannel spillFile = null;
+
+    @GuardedBy("lock")
+    private long spillRead = 0;
+
+    @GuardedBy("lock")
+    private long spillWritten = 0;
+
+    @GuardedBy("lock")
+    private boolean closed = false;
+
+    /** Whether the reader has seen the end, after reading everything it had left. */
+    @GuardedBy("lock")
+    private boolean finished = false;
+
+    @GuardedBy("lock")
+    private long dropped = 0;
+
+    @GuardedBy("lock")
+    private long spilled = 0;
+
+    private Subscriber(@Nullable Filter filter, OverflowPolicy overflowPolicy) {
+      this.filter = filter;
+      this.overflowPolicy = checkNotNull(overflowPolicy);
+    }
+
+    /**
+     * Reads the next bytes this subscriber wants into {@code buffer}, blocking until there are
+     * some.
+     *
+     * @return the number of bytes read, or -1 once the subscriber is closed and has nothing left
+     */
+    int read(byte[] buffer) throws InterruptedException, IOException {
+      FileChannel spillSource;
+      long spillPosition;
+      int spillLength;
+      lock.lock();
+      try {
+        boolean fromRing;
+        while (true) {
+          while (heldRead == heldLength && spillRead == spillWritten && pending.isEmpty()) {
+            if (closed) {
+              finished = true;
+              changed.signalAll();
+              releaseSpill();
+              return -1;
+            }
+            changed.await();
+          }
+
+          if (heldRead < heldLength) {
+            int length = Math.min(buffer.length, heldLength - heldRead);
+            System.arraycopy(held, heldRead, buffer, 0, length);
+            heldRead += length;
+            if (heldRead == heldLength) {
+              held = null;
+              heldRead = 0;
+              heldLength = 0;
+            }
+            return length;
+          }
+          if (spillRead < spillWritten) {
+            fromRing = false;
+            break;
+          }
+          skipOverwritten();
+          if (pending.firstStart() < pending.firstEnd()) {
+            fromRing = true;
+            break;
+          }
+          pending.removeFirst();
+        }
+
+        if (fromRing) {
+          long start = pending.firstStart();
+          int length = (int) Math.min(buffer.length, pending.firstEnd() - start);
+          copyOut(start, buffer, /* offset= */ 0, length);
+          pending.setFirstStart(start + length);
+          if (start + length == pending.firstEnd()) {
+            pending.removeFirst();
+          }
+          signalRoom();
+          return length;
+        }
+
+        // the spill file is only read here and only appended to while locked, so it can be read
+        // without holding up publishing
+        spillSource = spillFile;
+        spillPosition = spillRead;
+        spillLength = (int) Math.min(buffer.length, spillWritten - spillRead);
+      } finally {
+        lock.unlock();
+      }
+
+      ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, spillLength);
+      while (byteBuffer.hasRemaining()) {
+        if (spillSource.read(byteBuffer, spillPosition + byteBuffer.position()) < 0) {
+          throw new EOFException("Spill file truncated");
+        }
+      }
+
+      lock.lock();
+      try {
+        spillRead += spillLength;
+        if (spillRead == spillWritten) {
+          // caught up, so the file can be reused from the start
+          spillRead = 0;
+          spillWritten = 0;
+        }
+      } finally {
+        lock.unlock();
+      }
+      return spillLength;
+    }
+
+    /** Whether there's more to read without blocking. */
+    boolean hasPending() {
+      lock.lock();
+      try {
+        // the newest range is the last to be overwritten
+        return heldRead < heldLength
+            || spillRead < spillWritten
+            || (!pending.isEmpty() && pending.lastEnd() > written - size);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Returns how many bytes are waiting to be read, in the ring, held, or spilled to disk. */
+    long getBacklog() {
+      lock.lock();
+      try {
+        long backlog = (heldLength - heldRead) + (spillWritten - spillRead);
+        long oldestKept = written - size;
+        for (int i = 0; i < pending.size(); ++i) {
+          backlog += Math.max(0, pending.end(i) - Math.max(pending.start(i), oldestKept));
+        }
+        return backlog;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Returns how many bytes this subscriber lost by falling behind. */
+    long getDroppedBytes() {
+      lock.lock();
+      try {
+        return dropped;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Returns how many bytes were written to the spill file, since this subscriber fell behind. */
+    long getSpilledBytes() {
+      lock.lock();
+      try {
+        return spilled;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for the reader to see the end after the subscriber was
+     * closed, returning whether it did.
+     */
+    boolean awaitFinished(long timeoutMillis) throws InterruptedException {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      lock.lock();
+      try {
+        while (!finished) {
+          if (remaining <= 0) {
+            return false;
+          }
+          remaining = changed.awaitNanos(remaining);
+        }
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Stops this subscriber seeing anything newly published. */
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        closed = true;
+        subscribers.remove(this);
+        changed.signalAll();
+        signalRoom();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Drops anything left unread, for the reader to call once it stops reading. */
+    void discard() {
+      lock.lock();
+      try {
+        pending.clear();
+        held = null;
+        heldRead = 0;
+        heldLength = 0;
+        releaseSpill();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Returns the position of the oldest data still to be read from the ring. */
+    @GuardedBy("lock")
+    private long oldestUnread() {
+      return pending.isEmpty() ? Long.MAX_VALUE : pending.firstStart();
+    }
+
+    /**
+     * Takes a chunk at {@code start}, which overwrites anything before {@code oldestKept},
+     * including its own head if it's bigger than the ring.
+     */
+    @GuardedBy("lock")
+    private void offer(byte[] buffer, int offset, int length, long start, long oldestKept) {
+      switch (overflowPolicy) {
+        case DROP_NEWEST:
+          if (heldLength > 0 || oldestUnread() < oldestKept) {
+            hold();
+            drop(length);
+            return;
+          }
+          break;
+        case SPILL:
+          // a chunk bigger than the ring can't be kept whole in it, so it's spilled whole instead
+          if (spillWritten > 0 || oldestUnread() < oldestKept || length > size) {
+            spill(buffer, offset, length);
+            return;
+          }
+          break;
+        case DROP_OLDEST:
+        case BLOCK:
+          // the reader skips whatever is overwritten
+          break;
+      }
+      // only the tail of a chunk bigger than the ring is left in it
+      long kept = Math.max(start, oldestKept);
+      if (kept > start) {
+        drop(kept - start);
+      }
+      addPending(kept, start + length);
+    }
+
+    /** Moves everything unread in the ring aside, where the next chunk can't overwrite it. */
+    @GuardedBy("lock")
+    private void hold() {
+      while (!pending.isEmpty()) {
+        int rangeLength = (int) (pending.firstEnd() - pending.firstStart());
+        if (held == null) {
+          held = new byte[size];
+        }
+        copyOut(pending.firstStart(), held, heldLength, rangeLength);
+        heldLength += rangeLength;
+        pending.removeFirst();
+      }
+    }
+
+    /** Moves everything unread in the ring to the spill file, followed by the new chunk. */
+    @GuardedBy("lock")
+    private void spill(byte[] buffer, int offset, int length) {
+      try {
+        if (spillFile == null) {
+          spillFile =
+              FileChannel.open(
+                  Files.createTempFile("telnet_scripter", ".spill"),
+                  StandardOpenOption.READ,
+                  StandardOpenOption.WRITE,
+                  StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        while (!pending.isEmpty()) {
+          int index = (int) (pending.firstStart() & mask);
+          int rangeLength = (int) (pending.firstEnd() - pending.firstStart());
+          int first = Math.min(rangeLength, size - index);
+          appendToSpill(ring, index, first);
+          appendToSpill(ring, 0, rangeLength - first);
+          pending.removeFirst();
+        }
+        appendToSpill(buffer, offset, length);
+        changed.signalAll();
+      } catch (IOException ex) {
+        logger.atWarning().withCause(ex).log("Unable to spill subscriber data");
+        drop(length);
+      }
+    }
+
+    @GuardedBy("lock")
+    private void appendToSpill(byte[] buffer, int offset, int length) throws IOException {
+      ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+      while (byteBuffer.hasRemaining()) {
+        spillWritten += spillFile.write(byteBuffer, spillWritten);
+      }
+      spilled += length;
+    }
+
+    @GuardedBy("lock")
+    private void releaseSpill() {
+      if (spillFile != null) {
+        Util.close(spillFile);
+        spillFile = null;
+      }
+      spillRead = 0;
+      spillWritten = 0;
+    }
+
+    /** Moves the start of the first pending range past anything since overwritten. */
+    @GuardedBy("lock")
+    private void skipOverwritten() {
+      long oldest = written - size;
+      long start = pending.firstStart();
+      if (start < oldest) {
+        long lost = Math.min(pending.firstEnd(), oldest) - start;
+        drop(lost);
+        pending.setFirstStart(start + lost);
+      }
+    }
+
+    @GuardedBy("lock")
+    private void drop(long length) {
+      if (dropped == 0) {
+        logger.atWarning().log("Subscriber fell behind, dropping %d bytes", length);
+      }
+      dropped += length;
+    }
+
+    @GuardedBy("lock")
+    private void signalRoom() {
+      if (awaitingRoom) {
+        roomMade.signalAll();
+      }
+    }
+
+    @GuardedBy("lock")
+    private void addPending(long start, long end) {
+      if (!pending.isEmpty() && pending.lastEnd() == start) {
+        pending.setLastEnd(end);
+      } else {
+        pending.addLast(start, end);
+      }
+      changed.signalAll();
+    }
+  }
+
+  /**
+   * A queue of {@code [start, end)} ranges of positions, kept in one array of pairs used as a ring,
+   * so adding a range doesn't allocate once the array has grown to fit.
+   */
+  private static final class Ranges {
+    /** Each range's start then end, for a power of two number of ranges. */
+    private long[] bounds = new long[16];
+
+    private int first = 0;
+    private int count = 0;
+
+    boolean isEmpty() {
+      return count == 0;
+    }
+
+    int size() {
+      return count;
+    }
+
+    long start(int i) {
+      return bounds[index(i)];
+    }
+
+    long end(int i) {
+      return bounds[index(i) + 1];
+    }
+
+    long firstStart() {
+      return start(0);
+    }
+
+    long firstEnd() {
+      return end(0);
+    }
+
+    void setFirstStart(long start) {
+      bounds[index(0)] = start;
+    }
+
+    long lastEnd() {
+      return end(count - 1);
+    }
+
+    void setLastEnd(long end) {
+      bounds[index(count - 1) + 1] = end;
+    }
+
+    void addLast(long start, long end) {
+      if (count * 2 == bounds.length) {
+        long[] grown = new long[bounds.length * 2];
+        for (int i = 0; i < count; ++i) {
+          grown[i * 2] = start(i);
+          grown[i * 2 + 1] = end(i);
+        }
+        bounds = grown;
+        first = 0;
+      }
+      int index = index(count++);
+      bounds[index] = start;
+      bounds[index + 1] = end;
+    }
+
+    void removeFirst() {
+      first = (first + 1) & (bounds.length / 2 - 1);
+      --count;
+    }
+
+    void clear() {
+      first = 0;
+      count = 0;
+    }
+
+    private int index(int i) {
+      return ((first + i) & (bounds.length / 2 - 1)) * 2;
+    }
+  }
+}
@@ -2,10 +2,19 @@ package com.jeffreys.telnet;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.io.ByteArrayOutputStream;
-import java.util.function.BiConsumer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.LongAdder;
 
-public class IACFilter implements BiConsumer<byte[], Integer> {
+/**
+ * Strips telnet IAC sequences from a stream, passing everything else on to a consumer.
+ *
+ * <p>Most traffic contains no IAC bytes at all, so the filter scans for them eight bytes at a time
+ * and hands runs of clean bytes to the consumer as slices of the caller's buffer, without copying.
+ * The state machine only runs on the bytes of actual IAC sequences.
+ */
+public class IACFilter implements ByteStage {
   private static final byte WILL = (byte) 0xFB;
   private static final byte WONT = (byte) 0xFC;
   private static final byte DO = (byte) 0xFD;
@@ -15,6 +24,11 @@ public class IACFilter implements BiConsumer<byte[], Integer> {
   private static final byte SB = (byte) 0xFA;
   private static final byte SE = (byte) 0xF0;
 
+  private static final VarHandle LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final long ONES = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
   private enum ParseState {
     Normal,
     FoundIAC,
@@ -24,73 +38,96 @@ public class IACFilter implements BiConsumer<byte[], Integer> {
     SBIAC
   }
 
-  // large enough for an Ethernet jumbo frame
-  private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(10000);
-  private final BiConsumer<byte[], Integer> consumer;
+  private final ByteStage consumer;
+  /** Counts each sequence stripped, other than escaped IAC bytes. */
+  private final LongAdder sequences;
   private ParseState parseState = ParseState.Normal;
 
-  public IACFilter(BiConsumer<byte[], Integer> consumer) {
-    this.consumer = checkNotNull(consumer);
+  public IACFilter(ByteStage consumer) {
+    this(consumer, new LongAdder());
   }
 
-  @Override
-  public void accept(byte[] data, Integer length) {
-    for (int i = 0; i < length; ++i) {
-      accept(data[i]);
-    }
-
-    flush();
+  IACFilter(ByteStage consumer, LongAdder sequences) {
+    this.consumer = checkNotNull(consumer);
+    this.sequences = checkNotNull(sequences);
   }
 
-  private void accept(byte b) {
-    switch (parseState) {
-      case Normal:
-        if (b == IAC) {
-          parseState = ParseState.FoundIAC;
-        } else {
-          byteArrayOutputStream.write(b);
-        }
-        break;
-      case FoundIAC:
-        if (b == SB) {
-          parseState = ParseState.SBStart;
-        } else if (b == WILL || b == WONT || b == DO || b == DONT) {
-          parseState = ParseState.IACCommand;
-        } else if (b == IAC) { // special escape sequence
-          byteArrayOutputStream.write(b);
-        } else {
-          parseState = ParseState.Normal;
+  @Override
+  public void accept(byte[] data, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    while (i < end) {
+      if (parseState == ParseState.Normal || parseState == ParseState.SBValue) {
+        int iac = indexOfIac(data, i, end);
+        if (parseState == ParseState.Normal && iac > i) {
+          consumer.accept(data, i, iac - i);
         }
-        break;
-      case IACCommand:
-        parseState = ParseState.Normal;
-        break;
-      case SBStart:
-        parseState = ParseState.SBValue;
-        break;
-      case SBValue:
-        if (b == IAC) {
-          parseState = ParseState.SBIAC;
+        if (iac == end) {
+          return;
         }
-        break;
-      case SBIAC:
-        if (b == SE) {
+
+        parseState = parseState == ParseState.Normal ? ParseState.FoundIAC : ParseState.SBIAC;
+        i = iac + 1;
+        continue;
+      }
+
+      byte b = data[i];
+      switch (parseState) {
+        case FoundIAC:
+          if (b == SB) {
+            parseState = ParseState.SBStart;
+          } else if (b == WILL || b == WONT || b == DO || b == DONT) {
+            parseState = ParseState.IACCommand;
+          } else if (b == IAC) { // special escape sequence
+            consumer.accept(data, i, 1);
+            parseState = ParseState.Normal;
+          } else {
+            sequences.increment();
+            parseState = ParseState.Normal;
+          }
+          break;
+        case IACCommand:
+          sequences.increment();
           parseState = ParseState.Normal;
-        } else {
+          break;
+        case SBStart:
           parseState = ParseState.SBValue;
-        }
-        break;
+          break;
+        case SBIAC:
+          if (b == SE) {
+            sequences.increment();
+            parseState = ParseState.Normal;
+          } else {
+            parseState = ParseState.SBValue;
+          }
+          break;
+        default:
+          throw new IllegalStateException("Unexpected state " + parseState);
+      }
+      ++i;
     }
   }
 
-  private void flush() {
-    if (byteArrayOutputStream.size() == 0) {
-      return;
+  /**
+   * Returns the index of the first IAC byte in {@code data} between {@code from} (inclusive) and
+   * {@code to} (exclusive), or {@code to} if there is none.
+   */
+  static int indexOfIac(byte[] data, int from, int to) {
+    int i = from;
+    for (; i <= to - Long.BYTES; i += Long.BYTES) {
+      // IAC is 0xFF, so it's the only byte that inverts to zero. The zero-byte test can flag bytes
+      // above a real zero, but never below one, so the lowest flagged byte is always a match.
+      long inverted = ~(long) LONGS.get(data, i);
+      long found = (inverted - ONES) & ~inverted & HIGH_BITS;
+      if (found != 0) {
+        return i + (Long.numberOfTrailingZeros(found) >>> 3);
+      }
     }
-
-    byte[] data = byteArrayOutputStream.toByteArray();
-    byteArrayOutputStream.reset();
-
-    consumer.accept(data, data.length);
+    for (; i < to; ++i) {
+      if (data[i] == IAC) {
+        return i;
+      }
+    }
+    return to;
   }
 }
@@ -2,56 +2,347 @@ package com.jeffreys.telnet;
 
 import static com.jeffreys.telnet.Util.close;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
-/** Listens for incoming connections and creates a {@link TelnetConnection} for them. */
+/**
+ * Listens for incoming connections and creates a {@link TelnetConnection} for them.
+ *
+ * <p>Connections are bridged by the engine selected in {@link Options#getEngine}. Each of the
+ * {@link Routes} gets a listener on its local port, and the menu port, if any, lets the player pick
+ * a route. Every route shares the one engine, buffer pool and thread factory.
+ */
 final class Interceptor {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
   private final Options options;
+  private final ThreadFactory threadFactory;
+  private final ConnectionOptions connectionOptions;
+  private final Routes routes;
+  private final Metrics metrics;
+  private final SessionRegistry sessions = new SessionRegistry();
+  /** The engine bridging connections, or null if they're each bridged by threads of their own. */
+  @Nullable private final NioInterceptor nioInterceptor;
 
-  Interceptor(Options options) {
+  Interceptor(Options options) throws IOException {
     this.options = options;
+    this.threadFactory = options.getVirtualThreads() ? Util.virtualThreadFactory() : Thread::new;
+    this.routes =
+        options.getRoutesFile().isEmpty()
+            ? Routes.of(
+                Routes.Route.create(
+                    options.getRemoteHost(),
+                    options.getRemoteHost(),
+                    options.getRemotePort(),
+                    options.getLocalPort()))
+            : Routes.load(options.getRoutesFile());
+    this.metrics = Metrics.withJmx(ManagementFactory.getPlatformMBeanServer());
+    BufferPool bufferPool = new BufferPool(options.getBufferPoolSize(), options.getDirectBuffers());
+    metrics.setBufferPool(bufferPool);
+    this.connectionOptions =
+        ConnectionOptions.builder()
+            .setThreadFactory(threadFactory)
+            .setPipeline(Pipeline.loadInstalled())
+            .setRemoteCompression(options.getRemoteCompression())
+            .setHostCompression(options.getHostCompression())
+            .setWriteCoalescingBudget(options.getWriteCoalescingBudget())
+            .setScriptBufferSize(options.getScriptBufferSize())
+            .setScriptOverflowPolicy(options.getScriptOverflowPolicy())
+            .setScriptPlugins(ScriptPlugins.load(options.getPluginsDir()))
+            .setScriptBytesPerSecond(options.getScriptBytesPerSecond())
+            .setScriptCommandsPerSecond(options.getScriptCommandsPerSecond())
+            .setTriggers(Triggers.load(options.getTriggersFile()))
+            .setAliases(Aliases.load(options.getAliasesFile()))
+            .setRecorder(
+                SessionRecorder.create(
+                    options.getRecordDir(),
+                    options.getRecordSegmentSize(),
+                    options.getRecordCompress()))
+            .setMetrics(metrics)
+            .setSessions(sessions)
+            .setViewerBufferSize(options.getSpectatorBufferSize())
+            .setDetachGracePeriod(options.getDetachGracePeriod())
+            .setScrollbackSize(options.getScrollbackSize())
+            .setBufferPool(bufferPool)
+            .build();
+    this.nioInterceptor =
+        options.getEngine() == Options.Engine.NIO
+            ? new NioInterceptor(options, connectionOptions)
+            : null;
   }
 
   void run() throws IOException {
-    try (ServerSocket socket = new ServerSocket()) {
-      socket.setReuseAddress(true);
-      socket.bind(new InetSocketAddress(options.getLocalPort()));
-
-      logger.atInfo().log("Server listening on port %d\n", options.getLocalPort());
-
-      while (true) {
-        Socket incomingSocket = null;
-        Socket remoteConnection = null;
-        try {
-          incomingSocket = socket.accept();
-          remoteConnection = new Socket(options.getRemoteHost(), options.getRemotePort());
-
-          incomingSocket.setTcpNoDelay(true);
-          remoteConnection.setTcpNoDelay(true);
-
-          logger.atInfo().log(
-              "Accepted incoming connection to remote host %s:%d",
-              options.getRemoteHost(), options.getRemotePort());
-
-          new TelnetConnection(
-                  new SocketCloseableStreamer(incomingSocket),
-                  new SocketCloseableStreamer(remoteConnection))
-              .start();
-        } catch (IOException ex) {
-          logger.atWarning().withCause(ex).log(
-              "Unable to accept connection/connect to remote host %s:%d",
-              options.getRemoteHost(), options.getRemotePort());
-
-          close(incomingSocket);
-          close(remoteConnection);
+    MetricsServer metricsServer = null;
+    if (options.getMetricsPort() > 0) {
+      metricsServer = new MetricsServer(metrics, options.getMetricsPort());
+      metricsServer.start();
+    }
+    ScheduledExecutorService latencyReporter = startLatencyReports();
+    SpectatorServer spectatorServer = null;
+    if (options.getSpectatorPort() > 0) {
+      spectatorServer =
+          startInBackground(
+              new SpectatorServer(
+                  sessions,
+                  options.getSpectatorPort(),
+                  options.getSpectatorsMayDrive(),
+                  threadFactory),
+              "spectator-acceptor");
+    }
+    SpectatorServer resumeServer = null;
+    if (options.getResumePort() > 0) {
+      resumeServer =
+          startInBackground(
+              SpectatorServer.forResuming(sessions, options.getResumePort(), threadFactory),
+              "resume-acceptor");
+    }
+    if (spectatorServer == null
+        && resumeServer == null
+        && !options.getDetachGracePeriod().isZero()) {
+      logger.atWarning().log(
+          "Detached sessions can only be resumed with --resume_port or --spectator_port");
+    }
+
+    List<Destination> destinations = new ArrayList<>();
+    try {
+      ImmutableMap.Builder<String, Destination> byName = ImmutableMap.builder();
+      List<Acceptor> acceptors = new ArrayList<>();
+      for (Routes.Route route : routes.getRoutes()) {
+        Destination destination = new Destination(route);
+        destinations.add(destination);
+        byName.put(route.getName(), destination);
+        if (route.getLocalPort() > 0) {
+          acceptors.add(
+              new Acceptor(
+                  route.getLocalPort(),
+                  options.getAcceptorThreads(),
+                  incomingChannel -> accept(incomingChannel, destination)));
         }
       }
+      if (options.getMenuPort() > 0) {
+        ImmutableMap<String, Destination> destinationsByName = byName.build();
+        RouteMenu menu = new RouteMenu(routes);
+        // the menu waits on the player, so each gets a thread of its own until they've answered
+        acceptors.add(
+            new Acceptor(
+                options.getMenuPort(),
+                options.getAcceptorThreads(),
+                incomingChannel ->
+                    threadFactory
+                        .newThread(() -> choose(incomingChannel, menu, destinationsByName))
+                        .start()));
+      }
+      if (acceptors.isEmpty()) {
+        throw new IllegalArgumentException("No route has a local port, and there's no menu port");
+      }
+
+      if (nioInterceptor != null) {
+        nioInterceptor.start();
+      }
+      runAll(acceptors);
+    } finally {
+      close(nioInterceptor);
+      for (Destination destination : destinations) {
+        close(destination);
+      }
+      close(metricsServer);
+      close(spectatorServer);
+      close(resumeServer);
+      if (latencyReporter != null) {
+        latencyReporter.shutdownNow();
+      }
+    }
+  }
+
+  /** Logs the latencies every interval, if asked to, then starts the next one. */
+  @Nullable
+  private ScheduledExecutorService startLatencyReports() {
+    long intervalMillis = options.getLatencyReportInterval().toMillis();
+    if (intervalMillis <= 0) {
+      return null;
+    }
+    ScheduledExecutorService reporter =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "latency-reporter");
+              thread.setDaemon(true);
+              return thread;
+            });
+    reporter.scheduleAtFixedRate(
+        () ->
+            logger.atInfo().log(
+                "Latency over the last %ds:\n%s",
+                options.getLatencyReportInterval().getSeconds(), metrics.resetLatencies()),
+        intervalMillis,
+        intervalMillis,
+        TimeUnit.MILLISECONDS);
+    return reporter;
+  }
+
+  /** Runs {@code server} on a thread of its own, named {@code threadName}. */
+  private static SpectatorServer startInBackground(SpectatorServer server, String threadName) {
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                server.run();
+              } catch (IOException ex) {
+                logger.atWarning().withCause(ex).log("Unable to accept on %s", threadName);
+              }
+            },
+            threadName);
+    thread.setDaemon(true);
+    thread.start();
+    return server;
+  }
+
+  /** Runs each of {@code acceptors} on a thread of its own until any of them stops. */
+  private static void runAll(List<Acceptor> acceptors) throws IOException {
+    CompletableFuture<Void> stopped = new CompletableFuture<>();
+    for (int i = 0; i < acceptors.size(); ++i) {
+      Acceptor acceptor = acceptors.get(i);
+      new Thread(
+              () -> {
+                try {
+                  acceptor.run();
+                  stopped.complete(null);
+                } catch (IOException | RuntimeException ex) {
+                  stopped.completeExceptionally(ex);
+                }
+              },
+              "listener-" + i)
+          .start();
+    }
+
+    try {
+      stopped.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw (RuntimeException) ex.getCause();
+    } finally {
+      for (Acceptor acceptor : acceptors) {
+        acceptor.close();
+      }
+    }
+  }
+
+  /** Hands {@code incomingChannel} to the engine, to connect to {@code destination}. */
+  private void accept(SocketChannel incomingChannel, Destination destination) throws IOException {
+    if (nioInterceptor != null) {
+      nioInterceptor.connect(incomingChannel, destination.route, destination.connector);
+    } else {
+      // connecting may take a while, so it happens on the connection's own thread
+      threadFactory.newThread(() -> connect(incomingChannel.socket(), destination)).start();
+    }
+  }
+
+  /** Asks the player on {@code incomingChannel} where to go, then connects them there. */
+  private void choose(
+      SocketChannel incomingChannel,
+      RouteMenu menu,
+      ImmutableMap<String, Destination> destinations) {
+    try {
+      Routes.Route route = menu.choose(incomingChannel.socket());
+      if (route == null) {
+        close(incomingChannel);
+        return;
+      }
+      Destination destination = destinations.get(route.getName());
+      if (nioInterceptor != null) {
+        nioInterceptor.connect(incomingChannel, route, destination.connector);
+      } else {
+        // already on a thread of its own
+        connect(incomingChannel.socket(), destination);
+      }
+    } catch (IOException ex) {
+      logger.atInfo().withCause(ex).log("Unable to route connection from the menu");
+      close(incomingChannel);
+    }
+  }
+
+  /** Connects {@code incomingSocket} to the remote host and starts bridging them. */
+  private void connect(Socket incomingSocket, Destination destination) {
+    Routes.Route route = destination.route;
+    CloseableStreamer remoteConnection = null;
+    try {
+      remoteConnection = destination.remotePool.take();
+
+      incomingSocket.setTcpNoDelay(true);
+
+      logger.atInfo().log(
+          "Accepted incoming connection to remote host %s:%d",
+          route.getRemoteHost(), route.getRemotePort());
+
+      new TelnetConnection(
+              new SocketCloseableStreamer(incomingSocket),
+              remoteConnection,
+              ProcessBuilder::start,
+              connectionOptions)
+          .start();
+    } catch (IOException ex) {
+      logger.atWarning().withCause(ex).log(
+          "Unable to accept connection/connect to remote host %s:%d",
+          route.getRemoteHost(), route.getRemotePort());
+
+      close(incomingSocket);
+      close(remoteConnection);
+    }
+  }
+
+  /** A route's remote, and what connects to it. */
+  private final class Destination implements Closeable {
+    private final Routes.Route route;
+    private final RemoteConnector connector;
+    /** Only used by the blocking engine. */
+    @Nullable private final RemotePool remotePool;
+
+    private Destination(Routes.Route route) throws IOException {
+      this.route = route;
+      this.connector =
+          new RemoteConnector(
+              new CachingResolver(route.getRemoteHost(), options.getDnsCacheTtl()),
+              route.getRemotePort(),
+              options.getConnectAttemptDelay(),
+              options.getConnectTimeout());
+      Thread connectorThread = new Thread(connector, "remote-connector-" + route.getName());
+      connectorThread.setDaemon(true);
+      connectorThread.start();
+
+      if (nioInterceptor == null) {
+        remotePool =
+            new RemotePool(
+                connector,
+                options.getRemotePoolSize(),
+                options.getRemotePoolMaxIdle(),
+                threadFactory);
+        remotePool.start();
+      } else {
+        remotePool = null;
+      }
+    }
+
+    @Override
+    public void close() {
+      Util.close(remotePool);
+      Util.close(connector);
     }
   }
 }
@@ -0,0 +1,137 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in nanoseconds into logarithmic buckets, in the style of HdrHistogram, so
+ * percentiles can be read off without keeping every value.
+ *
+ * <p>Every power of two is split into {@value #SUB_BUCKETS} buckets, so values are kept to within
+ * about 3%, up to {@link #MAX_VALUE}, around 68 seconds, beyond which they're clamped. That keeps
+ * each histogram to about 8KB, as every session has a few. Recording is lock free, and safe from
+ * any number of threads.
+ */
+final class LatencyHistogram {
+  /** The largest value kept, any larger are counted as this. */
+  static final long MAX_VALUE = (1L << 36) - 1;
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /** Counts a latency of {@code nanos}, where negative values count as zero. */
+  void record(long nanos) {
+    long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+    buckets.incrementAndGet(bucketIndex(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /** Adds everything recorded by {@code other} to this. */
+  void add(LatencyHistogram other) {
+    long added = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      long bucket = other.buckets.get(i);
+      if (bucket != 0) {
+        buckets.addAndGet(i, bucket);
+        added += bucket;
+      }
+    }
+    count.add(added);
+    sum.add(other.sum.sum());
+    max.accumulate(other.getMax());
+  }
+
+  /**
+   * Moves everything recorded so far into a new histogram, leaving this one empty for the next
+   * interval. Values recorded meanwhile land in one or the other, not both.
+   */
+  LatencyHistogram snapshotAndReset() {
+    LatencyHistogram snapshot = new LatencyHistogram();
+    long moved = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      long bucket = buckets.getAndSet(i, 0);
+      if (bucket != 0) {
+        snapshot.buckets.set(i, bucket);
+        moved += bucket;
+      }
+    }
+    count.add(-moved);
+    snapshot.count.add(moved);
+    snapshot.sum.add(sum.sumThenReset());
+    snapshot.max.accumulate(max.getThenReset());
+    return snapshot;
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  long getSum() {
+    return sum.sum();
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  double getMean() {
+    long count = getCount();
+    return count == 0 ? 0 : (double) sum.sum() / count;
+  }
+
+  /**
+   * Returns the value that {@code percentile} percent of recorded values are at or below, to
+   * within the precision of a bucket, or 0 if nothing has been recorded.
+   */
+  long getValueAtPercentile(double percentile) {
+    checkArgument(percentile >= 0 && percentile <= 100, "Invalid percentile %s", percentile);
+    long[] counts = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(highestValueIn(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Returns the bucket for {@code value}, which counts values exactly up to twice {@link
+   * #SUB_BUCKETS}, and keeps the top {@code SUB_BUCKET_BITS + 1} bits of anything larger.
+   */
+  private static int bucketIndex(long value) {
+    int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS + 1));
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  private static long highestValueIn(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long top = index - (long) shift * SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+}
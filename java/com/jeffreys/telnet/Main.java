@@ -1,8 +1,18 @@
 package com.jeffreys.telnet;
 
+import java.nio.file.Path;
+
 public class Main {
   public static void main(String[] args) throws Exception {
     Options options = Options.parse(args);
+    if (!options.getReplaySession().isEmpty()) {
+      new ReplayServer(
+              SessionRecorder.findSegments(Path.of(options.getReplaySession())),
+              options.getLocalPort(),
+              options.getReplaySpeed())
+          .run();
+      return;
+    }
     new Interceptor(options).run();
   }
 }
@@ -0,0 +1,267 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.jeffreys.telnet.Telnet.COMPRESS2;
+import static com.jeffreys.telnet.Telnet.COMPRESS3;
+import static com.jeffreys.telnet.Telnet.DO;
+import static com.jeffreys.telnet.Telnet.DONT;
+import static com.jeffreys.telnet.Telnet.IAC;
+import static com.jeffreys.telnet.Telnet.SB;
+import static com.jeffreys.telnet.Telnet.SE;
+import static com.jeffreys.telnet.Telnet.WILL;
+import static com.jeffreys.telnet.Telnet.WONT;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Negotiates MCCP with the remote host and inflates its compressed output.
+ *
+ * <p>Sits on the raw remote stream, before anything else sees it. When the remote offers MCCP2 or
+ * MCCP3 we accept on the client's behalf, and strip both the offer and the {@code IAC SB COMPRESS2
+ * IAC SE} marker from the stream, so the client never knows compression was in use. Everything
+ * else, including unrelated IAC sequences, passes through unchanged.
+ *
+ * <p>As RFC 1143 asks, only an offer or withdrawal that changes whether an option is agreed is
+ * answered, so a remote repeating itself can't start a negotiation loop.
+ *
+ * <p>Accepting MCCP3 switches the remote {@link CompressingOutputStream} to compression as well.
+ * Failures writing to the remote are thrown as {@link UncheckedIOException}.
+ */
+final class MccpDecoder implements ByteStage, Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final int INFLATE_BUFFER_SIZE = 8192;
+
+  private enum ParseState {
+    Normal,
+    FoundIAC,
+    FoundWill,
+    FoundWont,
+    FoundSB,
+    FoundSBCompress,
+    FoundSBCompressIAC
+  }
+
+  private final ByteStage next;
+  private final CompressingOutputStream remoteOutputStream;
+  private final Inflater inflater = new Inflater();
+  private final byte[] inflated = new byte[INFLATE_BUFFER_SIZE];
+  /** Bytes of a possible negotiation, held back until we know whether to strip them. */
+  private final byte[] held = new byte[5];
+
+  private int heldLength = 0;
+  private ParseState parseState = ParseState.Normal;
+  private boolean inflating = false;
+  // whether we've agreed to each option, which is only answered when it changes
+  private boolean compress2Agreed = false;
+  private boolean compress3Agreed = false;
+
+  MccpDecoder(ByteStage next, CompressingOutputStream remoteOutputStream) {
+    this.next = checkNotNull(next);
+    this.remoteOutputStream = checkNotNull(remoteOutputStream);
+  }
+
+  @Override
+  public void accept(byte[] buffer, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    while (i < end) {
+      if (inflating) {
+        i = inflate(buffer, i, end);
+      } else {
+        i = parse(buffer, i, end);
+      }
+    }
+  }
+
+  /** Whether the remote is currently sending compressed data. */
+  boolean isInflating() {
+    return inflating;
+  }
+
+  @Override
+  public void close() {
+    inflater.end();
+    Util.close(remoteOutputStream);
+  }
+
+  /**
+   * Inflates {@code buffer} from {@code offset}, returning the index of the first byte following
+   * the end of the compressed stream, or {@code end} if it hasn't ended.
+   */
+  private int inflate(byte[] buffer, int offset, int end) {
+    inflater.setInput(buffer, offset, end - offset);
+    try {
+      while (true) {
+        int bytes = inflater.inflate(inflated);
+        if (bytes > 0) {
+          // the inflated stream may hold negotiations of its own, but never another SB COMPRESS2
+          parse(inflated, 0, bytes);
+        } else if (inflater.finished()) {
+          logger.atInfo().log("Remote ended MCCP compression");
+          int remaining = inflater.getRemaining();
+          inflater.reset();
+          inflating = false;
+          return end - remaining;
+        } else if (inflater.needsInput()) {
+          return end;
+        } else if (inflater.needsDictionary()) {
+          throw new DataFormatException("Preset dictionaries are not supported");
+        }
+      }
+    } catch (DataFormatException ex) {
+      throw new UncheckedIOException(new IOException("Corrupt MCCP stream from remote", ex));
+    }
+  }
+
+  /**
+   * Passes {@code buffer} on from {@code offset}, minus any negotiation we handle. Returns the
+   * index following the last byte parsed, which is short of {@code end} if compression started.
+   */
+  private int parse(byte[] buffer, int offset, int end) {
+    int i = offset;
+    while (i < end) {
+      if (parseState == ParseState.Normal) {
+        int iac = IACFilter.indexOfIac(buffer, i, end);
+        if (iac > i) {
+          next.accept(buffer, i, iac - i);
+        }
+        if (iac == end) {
+          return end;
+        }
+
+        hold(IAC, ParseState.FoundIAC);
+        i = iac + 1;
+        continue;
+      }
+
+      byte b = buffer[i++];
+      switch (parseState) {
+        case FoundIAC:
+          if (b == WILL) {
+            hold(b, ParseState.FoundWill);
+          } else if (b == WONT) {
+            hold(b, ParseState.FoundWont);
+          } else if (b == SB) {
+            hold(b, ParseState.FoundSB);
+          } else {
+            release(b);
+          }
+          break;
+        case FoundWill:
+          if (b == COMPRESS2 || b == COMPRESS3) {
+            discard();
+            acceptOffer(b);
+          } else {
+            release(b);
+          }
+          break;
+        case FoundWont:
+          if (b == COMPRESS2 || b == COMPRESS3) {
+            discard();
+            acceptWithdrawal(b);
+          } else {
+            release(b);
+          }
+          break;
+        case FoundSB:
+          if (b == COMPRESS2) {
+            hold(b, ParseState.FoundSBCompress);
+          } else {
+            release(b);
+          }
+          break;
+        case FoundSBCompress:
+          if (b == IAC) {
+            hold(b, ParseState.FoundSBCompressIAC);
+          } else {
+            release(b);
+          }
+          break;
+        case FoundSBCompressIAC:
+          if (b == SE) {
+            discard();
+            if (buffer != inflated) {
+              logger.atInfo().log("Remote started MCCP2 compression");
+              inflating = true;
+              return i;
+            }
+          } else {
+            release(b);
+          }
+          break;
+        default:
+          throw new IllegalStateException("Unexpected state " + parseState);
+      }
+    }
+    return end;
+  }
+
+  /** Replies to the remote's offer of {@code option}, unless it's already agreed. */
+  private void acceptOffer(byte option) {
+    if (isAgreed(option)) {
+      return;
+    }
+    setAgreed(option, true);
+    try {
+      remoteOutputStream.write(new byte[] {IAC, DO, option});
+      if (option == COMPRESS3 && !remoteOutputStream.isCompressing()) {
+        logger.atInfo().log("Starting MCCP3 compression to remote");
+        remoteOutputStream.startCompression(Telnet.startCompression(COMPRESS3));
+      }
+      remoteOutputStream.flush();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Acknowledges the remote withdrawing {@code option}, if it was agreed. Compression already
+   * running is left to end as the remote ends it.
+   */
+  private void acceptWithdrawal(byte option) {
+    if (!isAgreed(option)) {
+      return;
+    }
+    setAgreed(option, false);
+    try {
+      remoteOutputStream.write(new byte[] {IAC, DONT, option});
+      remoteOutputStream.flush();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private boolean isAgreed(byte option) {
+    return option == COMPRESS2 ? compress2Agreed : compress3Agreed;
+  }
+
+  private void setAgreed(byte option, boolean agreed) {
+    if (option == COMPRESS2) {
+      compress2Agreed = agreed;
+    } else {
+      compress3Agreed = agreed;
+    }
+  }
+
+  private void hold(byte b, ParseState newState) {
+    held[heldLength++] = b;
+    parseState = newState;
+  }
+
+  /** Not a negotiation we handle, so pass on what we held back along with {@code b}. */
+  private void release(byte b) {
+    held[heldLength++] = b;
+    next.accept(held, 0, heldLength);
+    discard();
+  }
+
+  private void discard() {
+    heldLength = 0;
+    parseState = ParseState.Normal;
+  }
+}
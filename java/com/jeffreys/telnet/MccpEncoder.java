@@ -0,0 +1,159 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.jeffreys.telnet.Telnet.COMPRESS2;
+import static com.jeffreys.telnet.Telnet.DO;
+import static com.jeffreys.telnet.Telnet.DONT;
+import static com.jeffreys.telnet.Telnet.IAC;
+import static com.jeffreys.telnet.Telnet.WILL;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Offers MCCP2 to the local client and compresses what it's sent once accepted.
+ *
+ * <p>Sits on the raw stream from the client, stripping its {@code DO COMPRESS2} or {@code DONT
+ * COMPRESS2} reply so the remote never sees a negotiation it didn't start. Everything else passes
+ * through unchanged.
+ *
+ * <p>Flushing compressed data has a cost in both bytes and ratio, so callers shouldn't flush after
+ * every write, only at a prompt or when the remote has nothing more to send. Failures writing to
+ * the client are thrown as {@link UncheckedIOException}.
+ */
+final class MccpEncoder implements ByteStage, Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private enum ParseState {
+    Normal,
+    FoundIAC,
+    FoundDo,
+    FoundDont
+  }
+
+  private final ByteStage next;
+  private final CompressingOutputStream hostOutputStream;
+  /** Bytes of a possible reply, held back until we know whether to strip them. */
+  private final byte[] held = new byte[3];
+
+  private int heldLength = 0;
+  private ParseState parseState = ParseState.Normal;
+
+  MccpEncoder(ByteStage next, CompressingOutputStream hostOutputStream) {
+    this.next = checkNotNull(next);
+    this.hostOutputStream = checkNotNull(hostOutputStream);
+  }
+
+  /**
+   * Returns an encoder for a client taking over from this one, which passes on what it reads to the
+   * same stage but negotiates compression afresh.
+   */
+  MccpEncoder forClient(CompressingOutputStream hostOutputStream) {
+    return new MccpEncoder(next, hostOutputStream);
+  }
+
+  /** Sends the client our offer of MCCP2. */
+  void offer() throws IOException {
+    hostOutputStream.write(new byte[] {IAC, WILL, COMPRESS2});
+    hostOutputStream.flush();
+  }
+
+  @Override
+  public void accept(byte[] buffer, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    while (i < end) {
+      if (parseState == ParseState.Normal) {
+        int iac = IACFilter.indexOfIac(buffer, i, end);
+        if (iac > i) {
+          next.accept(buffer, i, iac - i);
+        }
+        if (iac == end) {
+          return;
+        }
+
+        hold(IAC, ParseState.FoundIAC);
+        i = iac + 1;
+        continue;
+      }
+
+      byte b = buffer[i++];
+      switch (parseState) {
+        case FoundIAC:
+          if (b == DO) {
+            hold(b, ParseState.FoundDo);
+          } else if (b == DONT) {
+            hold(b, ParseState.FoundDont);
+          } else {
+            release(b);
+          }
+          break;
+        case FoundDo:
+          if (b == COMPRESS2) {
+            discard();
+            startCompression();
+          } else {
+            release(b);
+          }
+          break;
+        case FoundDont:
+          if (b == COMPRESS2) {
+            discard();
+            logger.atInfo().log("Client declined MCCP2 compression");
+          } else {
+            release(b);
+          }
+          break;
+        default:
+          throw new IllegalStateException("Unexpected state " + parseState);
+      }
+    }
+  }
+
+  /** Whether the client accepted compression. */
+  boolean isCompressing() {
+    return hostOutputStream.isCompressing();
+  }
+
+  /** The ratio of bytes written to bytes sent since compression started. */
+  double getCompressionRatio() {
+    return hostOutputStream.getCompressionRatio();
+  }
+
+  @Override
+  public void close() {
+    Util.close(hostOutputStream);
+  }
+
+  private void startCompression() {
+    if (hostOutputStream.isCompressing()) {
+      return;
+    }
+
+    logger.atInfo().log("Starting MCCP2 compression to client");
+    try {
+      hostOutputStream.startCompression(Telnet.startCompression(COMPRESS2));
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private void hold(byte b, ParseState newState) {
+    held[heldLength++] = b;
+    parseState = newState;
+  }
+
+  /** Not a reply we handle, so pass on what we held back along with {@code b}. */
+  private void release(byte b) {
+    held[heldLength++] = b;
+    next.accept(held, 0, heldLength);
+    discard();
+  }
+
+  private void discard() {
+    heldLength = 0;
+    parseState = ParseState.Normal;
+  }
+}
@@ -0,0 +1,583 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Keeps the {@link SessionMetrics} of every open session, and totals for the whole proxy.
+ *
+ * <p>Totals add up the open sessions on demand, plus what closed sessions counted, so counting
+ * never touches anything shared. The lock here is only taken to read totals and to open or close
+ * a session, which keeps the totals from going backwards while a session's counts move over.
+ *
+ * <p>Latencies cover the time since they were last reset with {@link #resetLatencies}, so each
+ * interval can be compared with the last, unlike the counters which only ever go up.
+ *
+ * <p>If given an {@link MBeanServer}, the totals are registered as {@code
+ * com.jeffreys.telnet:type=Proxy}, with operations to dump and reset the latencies, and each open
+ * session as {@code com.jeffreys.telnet:type=Session,id=<id>}.
+ */
+final class Metrics {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String DOMAIN = "com.jeffreys.telnet";
+  private static final String PROMETHEUS_PREFIX = "telnet_scripter_";
+
+  /** What's counted for each session, and summed for the totals. */
+  private static final ImmutableList<Metric<SessionMetrics>> SESSION_METRICS =
+      ImmutableList.of(
+          counter(
+              "host_to_remote_bytes_total",
+              "Bytes read from the local client",
+              session -> session.getBytes(Direction.HOST_TO_REMOTE)),
+          counter(
+              "remote_to_host_bytes_total",
+              "Bytes read from the remote host",
+              session -> session.getBytes(Direction.REMOTE_TO_HOST)),
+          counter(
+              "process_to_remote_bytes_total",
+              "Bytes read from scripts",
+              session -> session.getBytes(Direction.PROCESS_TO_REMOTE)),
+          counter(
+              "host_to_remote_chunks_total",
+              "Reads from the local client",
+              session -> session.getChunks(Direction.HOST_TO_REMOTE)),
+          counter(
+              "remote_to_host_chunks_total",
+              "Reads from the remote host",
+              session -> session.getChunks(Direction.REMOTE_TO_HOST)),
+          counter(
+              "process_to_remote_chunks_total",
+              "Reads from scripts",
+              session -> session.getChunks(Direction.PROCESS_TO_REMOTE)),
+          counter(
+              "iac_sequences_filtered_total",
+              "Telnet sequences filtered out before scripts saw the data",
+              SessionMetrics::getIacSequences),
+          counter(
+              "scripts_launched_total",
+              "Scripts and script plugins launched",
+              SessionMetrics::getScriptsLaunched),
+          counter(
+              "scripts_died_total",
+              "Scripts and script plugins that exited or were stopped",
+              SessionMetrics::getScriptsDied),
+          gauge(
+              "script_stdin_backlog_bytes",
+              "Remote data waiting to be written to scripts",
+              SessionMetrics::getScriptBacklog));
+
+  /** Only kept for the whole proxy. */
+  private static final ImmutableList<Metric<Metrics>> PROXY_METRICS =
+      ImmutableList.of(
+          gauge("active_sessions", "Sessions open now", Metrics::getActiveSessions),
+          counter("sessions_total", "Sessions opened", Metrics::getSessionsOpened),
+          gauge(
+              "threads",
+              "Live threads in the JVM",
+              metrics -> ManagementFactory.getThreadMXBean().getThreadCount()),
+          counter(
+              "buffer_pool_hits_total",
+              "Buffers handed out that were reused from the pool",
+              metrics -> metrics.bufferPool.getHits()),
+          counter(
+              "buffer_pool_misses_total",
+              "Buffers handed out that had to be allocated",
+              metrics -> metrics.bufferPool.getMisses()),
+          gauge(
+              "buffer_pool_retained_bytes",
+              "Bytes of free buffers kept by the pool",
+              metrics -> metrics.bufferPool.getRetainedBytes()));
+
+  /** Everything kept for the whole proxy, including the totals of each session metric. */
+  private static final ImmutableList<Metric<Metrics>> TOTAL_METRICS = totalMetrics();
+
+  /** The percentile reported for each Prometheus quantile. */
+  private static final ImmutableMap<String, Double> QUANTILES =
+      ImmutableMap.of("0.5", 50.0, "0.99", 99.0, "0.999", 99.9);
+
+  private static final ImmutableList<Operation<Metrics>> PROXY_OPERATIONS =
+      ImmutableList.of(
+          new Operation<>(
+              "dumpLatencies",
+              "Latencies since they were last reset, for all sessions and each open one",
+              Metrics::dumpLatencies),
+          new Operation<>(
+              "resetLatencies",
+              "Latencies since they were last reset, then starts the next interval",
+              Metrics::resetLatencies));
+
+  @Nullable private final MBeanServer mbeanServer;
+  private final AtomicLong nextId = new AtomicLong(1);
+  private final ConcurrentMap<Long, SessionMetrics> sessions = new ConcurrentHashMap<>();
+
+  /** What sessions counted before they closed. */
+  @GuardedBy("this")
+  private final SessionMetrics closedSessions = new SessionMetrics(0);
+
+  @GuardedBy("this")
+  private long sessionsOpened = 0;
+
+  /** Where the buffer counts are read from, which keeps nothing until one is set. */
+  private volatile BufferPool bufferPool =
+      new BufferPool(/* maxRetainedBytes= */ 0, /* direct= */ false);
+
+  private Metrics(@Nullable MBeanServer mbeanServer) {
+    this.mbeanServer = mbeanServer;
+  }
+
+  /** Creates metrics that are only read through {@link #writePrometheus} and the getters. */
+  static Metrics create() {
+    return new Metrics(null);
+  }
+
+  /** Creates metrics that are also registered with {@code mbeanServer}. */
+  static Metrics withJmx(MBeanServer mbeanServer) {
+    Metrics metrics = new Metrics(checkNotNull(mbeanServer));
+    metrics.registerBean(proxyName(), metrics, TOTAL_METRICS, PROXY_OPERATIONS);
+    return metrics;
+  }
+
+  /** Returns counters for a new session, which aren't part of the totals until registered. */
+  SessionMetrics newSession() {
+    return new SessionMetrics(nextId.getAndIncrement());
+  }
+
+  /** Adds {@code session} to the totals. */
+  void register(SessionMetrics session) {
+    synchronized (this) {
+      if (sessions.putIfAbsent(session.getId(), session) != null) {
+        return;
+      }
+      ++sessionsOpened;
+    }
+    registerBean(sessionName(session), session, SESSION_METRICS, ImmutableList.of());
+  }
+
+  /** Moves what {@code session} counted into the totals of closed sessions. */
+  void unregister(SessionMetrics session) {
+    synchronized (this) {
+      if (!sessions.remove(session.getId(), session)) {
+        return;
+      }
+      closedSessions.addAll(session);
+    }
+    if (mbeanServer != null) {
+      try {
+        mbeanServer.unregisterMBean(sessionName(session));
+      } catch (JMException ex) {
+        logger.atWarning().withCause(ex).log("Failed to unregister session %d", session.getId());
+      }
+    }
+  }
+
+  /** Sets the pool whose hits, misses and retained bytes are reported. */
+  void setBufferPool(BufferPool bufferPool) {
+    this.bufferPool = checkNotNull(bufferPool);
+  }
+
+  long getActiveSessions() {
+    return sessions.size();
+  }
+
+  synchronized long getSessionsOpened() {
+    return sessionsOpened;
+  }
+
+  /** Returns {@code metric} summed over every session, open or closed. */
+  private synchronized long total(Metric<SessionMetrics> metric) {
+    long total = metric.read(closedSessions);
+    for (SessionMetrics session : sessions.values()) {
+      total += metric.read(session);
+    }
+    return total;
+  }
+
+  /** Returns the named total, as in the Prometheus output without its prefix. */
+  long getTotal(String name) {
+    for (Metric<Metrics> metric : TOTAL_METRICS) {
+      if (metric.name.equals(name)) {
+        return metric.read(this);
+      }
+    }
+    throw new IllegalArgumentException("Unknown metric " + name);
+  }
+
+  /** Returns {@code latency} over every session, since latencies were last reset. */
+  synchronized LatencyHistogram getLatency(SessionMetrics.Latency latency) {
+    LatencyHistogram total = new LatencyHistogram();
+    total.add(closedSessions.getLatency(latency));
+    for (SessionMetrics session : sessions.values()) {
+      total.add(session.getLatency(latency));
+    }
+    return total;
+  }
+
+  /** Returns a table of latencies since they were last reset, for all and each open session. */
+  String dumpLatencies() {
+    return formatLatencies(/* reset= */ false);
+  }
+
+  /**
+   * Returns the same as {@link #dumpLatencies}, and starts the next interval, so every value is
+   * reported once.
+   */
+  String resetLatencies() {
+    return formatLatencies(/* reset= */ true);
+  }
+
+  private synchronized String formatLatencies(boolean reset) {
+    Map<String, Map<SessionMetrics.Latency, LatencyHistogram>> rows = new LinkedHashMap<>();
+    Map<SessionMetrics.Latency, LatencyHistogram> totals =
+        new EnumMap<>(SessionMetrics.Latency.class);
+    rows.put("all sessions", totals);
+    for (SessionMetrics.Latency latency : SessionMetrics.Latency.values()) {
+      totals.put(latency, new LatencyHistogram());
+    }
+    List<SessionMetrics> open = openSessions();
+    for (SessionMetrics session : open) {
+      rows.put("session " + session.getId(), new EnumMap<>(SessionMetrics.Latency.class));
+    }
+    for (SessionMetrics.Latency latency : SessionMetrics.Latency.values()) {
+      totals.get(latency).add(take(closedSessions, latency, reset));
+      for (SessionMetrics session : open) {
+        LatencyHistogram histogram = take(session, latency, reset);
+        rows.get("session " + session.getId()).put(latency, histogram);
+        totals.get(latency).add(histogram);
+      }
+    }
+
+    StringBuilder text = new StringBuilder();
+    text.append(
+        String.format(
+            "%-18s %9s %9s %9s %9s %9s%n", "", "count", "p50", "p99", "p99.9", "max"));
+    for (Map.Entry<String, Map<SessionMetrics.Latency, LatencyHistogram>> row : rows.entrySet()) {
+      text.append(row.getKey()).append('\n');
+      for (Map.Entry<SessionMetrics.Latency, LatencyHistogram> entry : row.getValue().entrySet()) {
+        LatencyHistogram histogram = entry.getValue();
+        text.append(
+            String.format(
+                "  %-16s %9d %9s %9s %9s %9s%n",
+                entry.getKey().name().toLowerCase(Locale.ROOT),
+                histogram.getCount(),
+                formatNanos(histogram.getValueAtPercentile(50)),
+                formatNanos(histogram.getValueAtPercentile(99)),
+                formatNanos(histogram.getValueAtPercentile(99.9)),
+                formatNanos(histogram.getMax())));
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Writes the totals, then each open session's metrics labelled with its id, in the Prometheus
+   * text format.
+   */
+  void writePrometheus(Writer out) throws IOException {
+    for (Metric<Metrics> metric : TOTAL_METRICS) {
+      metric.writeHeader(out, PROMETHEUS_PREFIX);
+      metric.writeSample(out, PROMETHEUS_PREFIX, "", metric.read(this));
+    }
+    for (SessionMetrics.Latency latency : SessionMetrics.Latency.values()) {
+      String name = PROMETHEUS_PREFIX + latencyName(latency);
+      writeSummaryHeader(out, name, latency);
+      writeSummary(out, name, "", getLatency(latency));
+    }
+
+    List<SessionMetrics> open = openSessions();
+    String sessionPrefix = PROMETHEUS_PREFIX + "session_";
+    for (Metric<SessionMetrics> metric : SESSION_METRICS) {
+      metric.writeHeader(out, sessionPrefix);
+      for (SessionMetrics session : open) {
+        metric.writeSample(
+            out, sessionPrefix, "{session=\"" + session.getId() + "\"}", metric.read(session));
+      }
+    }
+    for (SessionMetrics.Latency latency : SessionMetrics.Latency.values()) {
+      String name = sessionPrefix + latencyName(latency);
+      writeSummaryHeader(out, name, latency);
+      for (SessionMetrics session : open) {
+        writeSummary(
+            out, name, "session=\"" + session.getId() + "\"", session.getLatency(latency));
+      }
+    }
+  }
+
+  private List<SessionMetrics> openSessions() {
+    List<SessionMetrics> open = new ArrayList<>(sessions.values());
+    open.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+    return open;
+  }
+
+  private static LatencyHistogram take(
+      SessionMetrics session, SessionMetrics.Latency latency, boolean reset) {
+    LatencyHistogram histogram = session.getLatency(latency);
+    return reset ? histogram.snapshotAndReset() : histogram;
+  }
+
+  private static String latencyName(SessionMetrics.Latency latency) {
+    return latency.name().toLowerCase(Locale.ROOT) + "_latency_seconds";
+  }
+
+  private static void writeSummaryHeader(Writer out, String name, SessionMetrics.Latency latency)
+      throws IOException {
+    String help;
+    switch (latency) {
+      case HOST_TO_REMOTE:
+        help = "Time from reading the local client to writing the remote, since the last reset";
+        break;
+      case REMOTE_TO_HOST:
+        help = "Time from reading the remote to writing the local client, since the last reset";
+        break;
+      case SCRIPT_REACTION:
+        help = "Time from reading the remote to scripts reacting, since the last reset";
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown latency " + latency);
+    }
+    out.write("# HELP " + name + " " + help + "\n");
+    out.write("# TYPE " + name + " summary\n");
+  }
+
+  private static void writeSummary(
+      Writer out, String name, String labels, LatencyHistogram histogram) throws IOException {
+    String separator = labels.isEmpty() ? "" : ",";
+    for (Map.Entry<String, Double> quantile : QUANTILES.entrySet()) {
+      out.write(
+          String.format(
+              "%s{%s%squantile=\"%s\"} %s\n",
+              name,
+              labels,
+              separator,
+              quantile.getKey(),
+              seconds(histogram.getValueAtPercentile(quantile.getValue()))));
+    }
+    String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+    out.write(name + "_sum" + braces + " " + seconds(histogram.getSum()) + "\n");
+    out.write(name + "_count" + braces + " " + histogram.getCount() + "\n");
+  }
+
+  private static String seconds(long nanos) {
+    return Double.toString(nanos / 1e9);
+  }
+
+  private static String formatNanos(long nanos) {
+    if (nanos < 1_000_000) {
+      return String.format("%.1fus", nanos / 1e3);
+    }
+    return String.format("%.2fms", nanos / 1e6);
+  }
+
+  private <T> void registerBean(
+      ObjectName name,
+      T target,
+      ImmutableList<Metric<T>> metrics,
+      ImmutableList<Operation<T>> operations) {
+    if (mbeanServer == null) {
+      return;
+    }
+    try {
+      mbeanServer.registerMBean(new MetricsBean<>(target, metrics, operations), name);
+    } catch (JMException ex) {
+      logger.atWarning().withCause(ex).log("Failed to register %s", name);
+    }
+  }
+
+  private static ObjectName proxyName() {
+    return objectName("type=Proxy");
+  }
+
+  private static ObjectName sessionName(SessionMetrics session) {
+    return objectName("type=Session,id=" + session.getId());
+  }
+
+  private static ObjectName objectName(String properties) {
+    try {
+      return new ObjectName(DOMAIN + ":" + properties);
+    } catch (JMException ex) {
+      throw new IllegalArgumentException(ex);
+    }
+  }
+
+  private static ImmutableList<Metric<Metrics>> totalMetrics() {
+    ImmutableList.Builder<Metric<Metrics>> metrics = ImmutableList.builder();
+    metrics.addAll(PROXY_METRICS);
+    for (Metric<SessionMetrics> metric : SESSION_METRICS) {
+      metrics.add(new Metric<>(metric.name, metric.help, metric.gauge, m -> m.total(metric)));
+    }
+    return metrics.build();
+  }
+
+  private static <T> Metric<T> counter(String name, String help, ToLongFunction<T> reader) {
+    return new Metric<>(name, help, /* gauge= */ false, reader);
+  }
+
+  private static <T> Metric<T> gauge(String name, String help, ToLongFunction<T> reader) {
+    return new Metric<>(name, help, /* gauge= */ true, reader);
+  }
+
+  /** A named value read from a {@code T}. */
+  private static final class Metric<T> {
+    private final String name;
+    private final String help;
+    private final boolean gauge;
+    private final ToLongFunction<T> reader;
+
+    private Metric(String name, String help, boolean gauge, ToLongFunction<T> reader) {
+      this.name = name;
+      this.help = help;
+      this.gauge = gauge;
+      this.reader = reader;
+    }
+
+    private long read(T target) {
+      return reader.applyAsLong(target);
+    }
+
+    private void writeHeader(Writer out, String prefix) throws IOException {
+      out.write("# HELP " + prefix + name + " " + help + "\n");
+      out.write("# TYPE " + prefix + name + (gauge ? " gauge\n" : " counter\n"));
+    }
+
+    private void writeSample(Writer out, String prefix, String labels, long value)
+        throws IOException {
+      out.write(prefix + name + labels + " " + value + "\n");
+    }
+  }
+
+  /** A JMX operation on a {@code T}, taking no arguments and describing what it did. */
+  private static final class Operation<T> {
+    private final String name;
+    private final String description;
+    private final Function<T, String> action;
+
+    private Operation(String name, String description, Function<T, String> action) {
+      this.name = name;
+      this.description = description;
+      this.action = action;
+    }
+  }
+
+  /** Exposes metrics read from a {@code T} as read-only JMX attributes, and its operations. */
+  private static final class MetricsBean<T> implements DynamicMBean {
+    private final T target;
+    private final ImmutableList<Metric<T>> metrics;
+    private final ImmutableList<Operation<T>> operations;
+
+    private MetricsBean(
+        T target, ImmutableList<Metric<T>> metrics, ImmutableList<Operation<T>> operations) {
+      this.target = target;
+      this.metrics = metrics;
+      this.operations = operations;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      for (Metric<T> metric : metrics) {
+        if (metric.name.equals(attribute)) {
+          return metric.read(target);
+        }
+      }
+      throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        try {
+          list.add(new Attribute(attribute, getAttribute(attribute)));
+        } catch (AttributeNotFoundException ex) {
+          // left out, as the interface expects
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+        throws ReflectionException {
+      for (Operation<T> operation : operations) {
+        if (operation.name.equals(actionName) && (params == null || params.length == 0)) {
+          return operation.action.apply(target);
+        }
+      }
+      throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<>();
+      for (Metric<?> metric : metrics) {
+        attributes.add(attributeInfo(metric));
+      }
+      List<MBeanOperationInfo> operationInfos = new ArrayList<>();
+      for (Operation<T> operation : operations) {
+        operationInfos.add(
+            new MBeanOperationInfo(
+                operation.name,
+                operation.description,
+                new MBeanParameterInfo[0],
+                String.class.getName(),
+                MBeanOperationInfo.ACTION_INFO));
+      }
+      return new MBeanInfo(
+          Metrics.class.getName(),
+          "Telnet scripter metrics",
+          attributes.toArray(new MBeanAttributeInfo[0]),
+          /* constructors= */ null,
+          operationInfos.toArray(new MBeanOperationInfo[0]),
+          /* notifications= */ null);
+    }
+
+    private static MBeanAttributeInfo attributeInfo(Metric<?> metric) {
+      return new MBeanAttributeInfo(
+          metric.name,
+          "long",
+          metric.help,
+          /* isReadable= */ true,
+          /* isWritable= */ false,
+          /* isIs= */ false);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.jeffreys.telnet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.flogger.FluentLogger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Serves {@link Metrics} on {@code /metrics} in the Prometheus text format, on a port that only
+ * accepts local connections.
+ */
+final class MetricsServer implements Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final Metrics metrics;
+  private final HttpServer server;
+
+  /** Listens on {@code port}, or any free port if it's 0. */
+  MetricsServer(Metrics metrics, int port) throws IOException {
+    this.metrics = metrics;
+    this.server =
+        HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port), /* backlog= */ 0);
+    server.createContext("/metrics", this::serve);
+  }
+
+  /** Starts serving, on a thread of the server's own. */
+  void start() {
+    server.start();
+    logger.atInfo().log("Serving metrics on port %d", getPort());
+  }
+
+  int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    server.stop(/* delay= */ 0);
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      if (!exchange.getRequestMethod().equals("GET")) {
+        exchange.sendResponseHeaders(/* rCode= */ 405, /* responseLength= */ -1);
+        return;
+      }
+      StringWriter text = new StringWriter();
+      metrics.writePrometheus(text);
+      byte[] body = text.toString().getBytes(UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(/* rCode= */ 200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+}
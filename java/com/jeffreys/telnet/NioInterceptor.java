@@ -0,0 +1,123 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bridges connections on a fixed set of {@link SelectorLoop}s.
+ *
+ * <p>Unlike the blocking engine, the number of threads doesn't grow with the number of
+ * connections. Each connection is pinned to one loop, round robin, so both of its channels are
+ * serviced by the same thread. The loops are shared by every route.
+ */
+final class NioInterceptor implements Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** Its thread factory creates the threads reading script output, as pipes can't be selected. */
+  private final ConnectionOptions connectionOptions;
+  private final SelectorLoop[] loops;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  NioInterceptor(Options options, ConnectionOptions connectionOptions) throws IOException {
+    checkArgument(options.getSelectorThreads() > 0, "At least one selector thread is required");
+    checkArgument(
+        connectionOptions.getScriptOverflowPolicy() != FanOutBuffer.OverflowPolicy.BLOCK,
+        "Scripts can't block selector threads");
+
+    this.connectionOptions = connectionOptions;
+    this.loops = new SelectorLoop[options.getSelectorThreads()];
+    for (int i = 0; i < loops.length; ++i) {
+      loops[i] = new SelectorLoop();
+    }
+  }
+
+  /** Starts the selector threads. */
+  void start() {
+    for (int i = 0; i < loops.length; ++i) {
+      new Thread(loops[i], "selector-" + i).start();
+    }
+
+    logger.atInfo().log("Bridging connections with %d selector threads", loops.length);
+  }
+
+  @Override
+  public void close() {
+    for (SelectorLoop loop : loops) {
+      loop.close();
+    }
+  }
+
+  /**
+   * Starts connecting {@code route}'s remote with {@code connector}, bridging the connections once
+   * it completes.
+   */
+  void connect(SocketChannel incomingChannel, Routes.Route route, RemoteConnector connector)
+      throws IOException {
+    incomingChannel.configureBlocking(false);
+    incomingChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+    SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    connector
+        .connect()
+        .whenComplete(
+            (remoteChannel, failure) -> {
+              if (failure != null) {
+                logger.atWarning().withCause(failure).log(
+                    "Unable to connect to remote host %s:%d",
+                    route.getRemoteHost(), route.getRemotePort());
+                Util.close(incomingChannel);
+              } else {
+                loop.execute(() -> bridge(loop, incomingChannel, remoteChannel, route));
+              }
+            });
+  }
+
+  private void bridge(
+      SelectorLoop loop,
+      SocketChannel incomingChannel,
+      SocketChannel remoteChannel,
+      Routes.Route route) {
+    logger.atInfo().log(
+        "Accepted incoming connection to remote host %s:%d",
+        route.getRemoteHost(), route.getRemotePort());
+
+    try {
+      remoteChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+      ChannelStreamer host =
+          new ChannelStreamer(incomingChannel, loop, connectionOptions.getBufferPool());
+      ChannelStreamer remote =
+          new ChannelStreamer(remoteChannel, loop, connectionOptions.getBufferPool());
+      TelnetConnection telnetConnection =
+          new TelnetConnection(host, remote, ProcessBuilder::start, connectionOptions);
+      telnetConnection.startNonBlocking();
+
+      // ending a session waits for its threads, which mustn't hold up the rest of the loop
+      ThreadFactory threadFactory = connectionOptions.getThreadFactory();
+      host.start(
+          telnetConnection::receiveFromHost,
+          telnetConnection::flushToRemote,
+          remote,
+          () -> threadFactory.newThread(telnetConnection::onHostClosed).start());
+      remote.start(
+          telnetConnection::receiveFromRemote,
+          telnetConnection::flushToHost,
+          host,
+          () -> threadFactory.newThread(telnetConnection::shutdown).start());
+    } catch (IOException ex) {
+      logger.atWarning().withCause(ex).log(
+          "Unable to bridge connection to remote host %s:%d",
+          route.getRemoteHost(), route.getRemotePort());
+
+      Util.close(incomingChannel);
+      Util.close(remoteChannel);
+    }
+  }
+}
@@ -1,21 +1,203 @@
 package com.jeffreys.telnet;
 
 import com.google.auto.value.AutoValue;
+import java.time.Duration;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
 @AutoValue
 abstract class Options {
+  /** The I/O engine used to bridge connections. */
+  enum Engine {
+    /** Two forwarding threads per connection, plus one per running script. */
+    BLOCKING,
+    /** A fixed set of {@link java.nio.channels.Selector} threads shared by all connections. */
+    NIO
+  }
+
   private static class Flags {
-    @Option(name = "--remote_host", usage = "Remote host to connect to", required = true)
-    public String remoteHost;
+    @Option(
+        name = "--remote_host",
+        usage = "Remote host to connect to, required unless replaying or given --routes_file")
+    public String remoteHost = "";
 
     @Option(name = "--remote_port", usage = "Remote host to connect to")
     public int remotePort = 23;
 
     @Option(name = "--local_port", usage = "Local port to listen on")
     public int localPort = 2112;
+
+    @Option(
+        name = "--routes_file",
+        usage = "File of remotes to route to, and the local ports routed to them, instead")
+    public String routesFile = "";
+
+    @Option(
+        name = "--menu_port",
+        usage = "Local port whose connections pick a route from a menu first, 0 for none")
+    public int menuPort = 0;
+
+    @Option(name = "--engine", usage = "I/O engine to use, BLOCKING or NIO")
+    public Engine engine = Engine.BLOCKING;
+
+    @Option(
+        name = "--selector_threads",
+        usage = "Number of selector threads for the NIO engine, defaults to one per core")
+    public int selectorThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(
+        name = "--virtual_threads",
+        usage = "Run connection and script I/O on virtual threads, requires Java 21+")
+    public boolean virtualThreads = false;
+
+    @Option(
+        name = "--remote_compression",
+        usage = "Negotiate MCCP compression with the remote host, the local client is unaffected")
+    public boolean remoteCompression = false;
+
+    @Option(
+        name = "--host_compression",
+        usage = "Offer MCCP compression to the local client, for clients on a slow link")
+    public boolean hostCompression = false;
+
+    @Option(
+        name = "--write_coalescing_ms",
+        usage =
+            "Longest time to hold back writes while more data keeps arriving, 0 flushes every read")
+    public int writeCoalescingMs = 0;
+
+    @Option(
+        name = "--remote_pool_size",
+        usage = "Number of remote connections to keep open ahead of new sessions, BLOCKING only")
+    public int remotePoolSize = 0;
+
+    @Option(
+        name = "--remote_pool_max_idle_secs",
+        usage = "Longest time a pooled remote connection waits for a session before it's replaced")
+    public int remotePoolMaxIdleSecs = 60;
+
+    @Option(name = "--dns_cache_ttl_secs", usage = "How long to cache the remote host's addresses")
+    public int dnsCacheTtlSecs = 60;
+
+    @Option(
+        name = "--acceptor_threads",
+        usage = "Number of threads accepting connections, each on its own SO_REUSEPORT socket")
+    public int acceptorThreads = 1;
+
+    @Option(name = "--connect_timeout_ms", usage = "Longest time to wait connecting to the remote")
+    public int connectTimeoutMs = 10_000;
+
+    @Option(
+        name = "--connect_attempt_delay_ms",
+        usage = "Delay before racing the remote's next address while connecting")
+    public int connectAttemptDelayMs = 250;
+
+    @Option(
+        name = "--script_buffer_kb",
+        usage = "How far behind the remote a script may fall before its overflow policy applies")
+    public int scriptBufferKb = 64;
+
+    @Option(
+        name = "--script_overflow",
+        usage = "What to do when a script falls behind, DROP_OLDEST, DROP_NEWEST, BLOCK or SPILL")
+    public FanOutBuffer.OverflowPolicy scriptOverflow = FanOutBuffer.OverflowPolicy.DROP_OLDEST;
+
+    @Option(
+        name = "--plugins_dir",
+        usage = "Directory of jars to load in-process script plugins from")
+    public String pluginsDir = "";
+
+    @Option(
+        name = "--script_bytes_per_sec",
+        usage = "Limits how fast scripts may send to the remote, 0 for no limit")
+    public int scriptBytesPerSec = 0;
+
+    @Option(
+        name = "--script_commands_per_sec",
+        usage = "Limits how many lines a second scripts may send to the remote, 0 for no limit")
+    public int scriptCommandsPerSec = 0;
+
+    @Option(
+        name = "--triggers_file",
+        usage = "File of trigger patterns to look for in remote data, and their actions")
+    public String triggersFile = "";
+
+    @Option(
+        name = "--aliases_file",
+        usage = "File of aliases to expand in what the local client types")
+    public String aliasesFile = "";
+
+    @Option(
+        name = "--record_dir",
+        usage = "Directory to record every session into, for auditing and replay")
+    public String recordDir = "";
+
+    @Option(name = "--record_segment_mb", usage = "Size of each session recording segment file")
+    public int recordSegmentMb = 16;
+
+    @Option(name = "--record_compress", usage = "Compress session recording segments once full")
+    public boolean recordCompress = false;
+
+    @Option(
+        name = "--replay_session",
+        usage = "Stand in for the remote host by replaying this recorded session on --local_port")
+    public String replaySession = "";
+
+    @Option(
+        name = "--replay_speed",
+        usage = "How many times faster than real time to replay, 0 for as fast as possible")
+    public double replaySpeed = 1;
+
+    @Option(
+        name = "--metrics_port",
+        usage = "Local port to serve metrics on in the Prometheus text format, 0 for none")
+    public int metricsPort = 0;
+
+    @Option(
+        name = "--latency_report_secs",
+        usage = "Log latency percentiles this often, then start the next interval, 0 for never")
+    public int latencyReportSecs = 0;
+
+    @Option(
+        name = "--spectator_port",
+        usage = "Local port spectators connect to, to watch an open session, 0 for none")
+    public int spectatorPort = 0;
+
+    @Option(
+        name = "--spectators_may_drive",
+        usage = "Whether spectators may ask to send commands to the session they watch")
+    public boolean spectatorsMayDrive = false;
+
+    @Option(
+        name = "--spectator_buffer_kb",
+        usage = "How far a spectator may fall behind before missing remote data, in KB")
+    public int spectatorBufferKb = 64;
+
+    @Option(
+        name = "--detach_grace_secs",
+        usage = "Keep a session connected this long after its client goes, to resume, 0 for never")
+    public int detachGraceSecs = 0;
+
+    @Option(
+        name = "--resume_port",
+        usage = "Port players connect to from anywhere to resume a detached session, 0 for none")
+    public int resumePort = 0;
+
+    @Option(
+        name = "--scrollback_kb",
+        usage = "Compressed remote data kept for a detached session to replay on resuming, in KB")
+    public int scrollbackKb = 64;
+
+    @Option(
+        name = "--buffer_pool_mb",
+        usage = "Free I/O buffers kept to reuse, shared by every connection, in MB")
+    public int bufferPoolMb = 4;
+
+    @Option(
+        name = "--direct_buffers",
+        usage = "Whether the nio engine queues writes in direct buffers, off the heap")
+    public boolean directBuffers = false;
   }
 
   static Options parse(String[] args) {
@@ -23,16 +205,229 @@ abstract class Options {
       Flags flags = new Flags();
       CmdLineParser parser = new CmdLineParser(flags);
       parser.parseArgument(args);
+      if (flags.remoteHost.isEmpty()
+          && flags.replaySession.isEmpty()
+          && flags.routesFile.isEmpty()) {
+        throw new IllegalArgumentException("--remote_host is required");
+      }
+      if (!flags.remoteHost.isEmpty() && !flags.routesFile.isEmpty()) {
+        throw new IllegalArgumentException("--remote_host can't be used with --routes_file");
+      }
+      // publishing to scripts happens on a selector thread, which must never wait on one script
+      if (flags.engine == Engine.NIO
+          && flags.scriptOverflow == FanOutBuffer.OverflowPolicy.BLOCK) {
+        throw new IllegalArgumentException(
+            "--script_overflow=BLOCK can't be used with --engine=NIO");
+      }
 
-      return new AutoValue_Options(flags.remoteHost, flags.remotePort, flags.localPort);
+      return builder()
+          .setRemoteHost(flags.remoteHost)
+          .setRemotePort(flags.remotePort)
+          .setLocalPort(flags.localPort)
+          .setRoutesFile(flags.routesFile)
+          .setMenuPort(flags.menuPort)
+          .setEngine(flags.engine)
+          .setSelectorThreads(flags.selectorThreads)
+          .setVirtualThreads(flags.virtualThreads)
+          .setRemoteCompression(flags.remoteCompression)
+          .setHostCompression(flags.hostCompression)
+          .setWriteCoalescingBudget(Duration.ofMillis(flags.writeCoalescingMs))
+          .setRemotePoolSize(flags.remotePoolSize)
+          .setRemotePoolMaxIdle(Duration.ofSeconds(flags.remotePoolMaxIdleSecs))
+          .setDnsCacheTtl(Duration.ofSeconds(flags.dnsCacheTtlSecs))
+          .setAcceptorThreads(flags.acceptorThreads)
+          .setConnectTimeout(Duration.ofMillis(flags.connectTimeoutMs))
+          .setConnectAttemptDelay(Duration.ofMillis(flags.connectAttemptDelayMs))
+          .setScriptBufferSize(flags.scriptBufferKb * 1024)
+          .setScriptOverflowPolicy(flags.scriptOverflow)
+          .setPluginsDir(flags.pluginsDir)
+          .setScriptBytesPerSecond(flags.scriptBytesPerSec)
+          .setScriptCommandsPerSecond(flags.scriptCommandsPerSec)
+          .setTriggersFile(flags.triggersFile)
+          .setAliasesFile(flags.aliasesFile)
+          .setRecordDir(flags.recordDir)
+          .setRecordSegmentSize((long) flags.recordSegmentMb * 1024 * 1024)
+          .setRecordCompress(flags.recordCompress)
+          .setReplaySession(flags.replaySession)
+          .setReplaySpeed(flags.replaySpeed)
+          .setMetricsPort(flags.metricsPort)
+          .setLatencyReportInterval(Duration.ofSeconds(flags.latencyReportSecs))
+          .setSpectatorPort(flags.spectatorPort)
+          .setSpectatorsMayDrive(flags.spectatorsMayDrive)
+          .setSpectatorBufferSize(flags.spectatorBufferKb * 1024)
+          .setDetachGracePeriod(Duration.ofSeconds(flags.detachGraceSecs))
+          .setResumePort(flags.resumePort)
+          .setScrollbackSize(flags.scrollbackKb * 1024)
+          .setBufferPoolSize((long) flags.bufferPoolMb * 1024 * 1024)
+          .setDirectBuffers(flags.directBuffers)
+          .build();
     } catch (CmdLineException e) {
       throw new IllegalArgumentException(e);
     }
   }
 
+  static Builder builder() {
+    return new AutoValue_Options.Builder();
+  }
+
   abstract String getRemoteHost();
 
   abstract int getRemotePort();
 
   abstract int getLocalPort();
+
+  abstract String getRoutesFile();
+
+  abstract int getMenuPort();
+
+  abstract Engine getEngine();
+
+  abstract int getSelectorThreads();
+
+  abstract boolean getVirtualThreads();
+
+  abstract boolean getRemoteCompression();
+
+  abstract boolean getHostCompression();
+
+  abstract Duration getWriteCoalescingBudget();
+
+  abstract int getRemotePoolSize();
+
+  abstract Duration getRemotePoolMaxIdle();
+
+  abstract Duration getDnsCacheTtl();
+
+  abstract int getAcceptorThreads();
+
+  abstract Duration getConnectTimeout();
+
+  abstract Duration getConnectAttemptDelay();
+
+  abstract int getScriptBufferSize();
+
+  abstract FanOutBuffer.OverflowPolicy getScriptOverflowPolicy();
+
+  abstract String getPluginsDir();
+
+  abstract int getScriptBytesPerSecond();
+
+  abstract int getScriptCommandsPerSecond();
+
+  abstract String getTriggersFile();
+
+  abstract String getAliasesFile();
+
+  abstract String getRecordDir();
+
+  abstract long getRecordSegmentSize();
+
+  abstract boolean getRecordCompress();
+
+  abstract String getReplaySession();
+
+  abstract double getReplaySpeed();
+
+  abstract int getMetricsPort();
+
+  abstract Duration getLatencyReportInterval();
+
+  abstract int getSpectatorPort();
+
+  abstract boolean getSpectatorsMayDrive();
+
+  abstract int getSpectatorBufferSize();
+
+  abstract Duration getDetachGracePeriod();
+
+  abstract int getResumePort();
+
+  abstract int getScrollbackSize();
+
+  abstract long getBufferPoolSize();
+
+  abstract boolean getDirectBuffers();
+
+  @AutoValue.Builder
+  abstract static class Builder {
+    abstract Builder setRemoteHost(String remoteHost);
+
+    abstract Builder setRemotePort(int remotePort);
+
+    abstract Builder setLocalPort(int localPort);
+
+    abstract Builder setRoutesFile(String routesFile);
+
+    abstract Builder setMenuPort(int menuPort);
+
+    abstract Builder setEngine(Engine engine);
+
+    abstract Builder setSelectorThreads(int selectorThreads);
+
+    abstract Builder setVirtualThreads(boolean virtualThreads);
+
+    abstract Builder setRemoteCompression(boolean remoteCompression);
+
+    abstract Builder setHostCompression(boolean hostCompression);
+
+    abstract Builder setWriteCoalescingBudget(Duration writeCoalescingBudget);
+
+    abstract Builder setRemotePoolSize(int remotePoolSize);
+
+    abstract Builder setRemotePoolMaxIdle(Duration remotePoolMaxIdle);
+
+    abstract Builder setDnsCacheTtl(Duration dnsCacheTtl);
+
+    abstract Builder setAcceptorThreads(int acceptorThreads);
+
+    abstract Builder setConnectTimeout(Duration connectTimeout);
+
+    abstract Builder setConnectAttemptDelay(Duration connectAttemptDelay);
+
+    abstract Builder setScriptBufferSize(int scriptBufferSize);
+
+    abstract Builder setScriptOverflowPolicy(FanOutBuffer.OverflowPolicy scriptOverflowPolicy);
+
+    abstract Builder setPluginsDir(String pluginsDir);
+
+    abstract Builder setScriptBytesPerSecond(int scriptBytesPerSecond);
+
+    abstract Builder setScriptCommandsPerSecond(int scriptCommandsPerSecond);
+
+    abstract Builder setTriggersFile(String triggersFile);
+
+    abstract Builder setAliasesFile(String aliasesFile);
+
+    abstract Builder setRecordDir(String recordDir);
+
+    abstract Builder setRecordSegmentSize(long recordSegmentSize);
+
+    abstract Builder setRecordCompress(boolean recordCompress);
+
+    abstract Builder setReplaySession(String replaySession);
+
+    abstract Builder setReplaySpeed(double replaySpeed);
+
+    abstract Builder setMetricsPort(int metricsPort);
+
+    abstract Builder setLatencyReportInterval(Duration latencyReportInterval);
+
+    abstract Builder setSpectatorPort(int spectatorPort);
+
+    abstract Builder setSpectatorsMayDrive(boolean spectatorsMayDrive);
+
+    abstract Builder setSpectatorBufferSize(int spectatorBufferSize);
+
+    abstract Builder setDetachGracePeriod(Duration detachGracePeriod);
+
+    abstract Builder setResumePort(int resumePort);
+
+    abstract Builder setScrollbackSize(int scrollbackSize);
+
+    abstract Builder setBufferPoolSize(long bufferPoolSize);
+
+    abstract Builder setDirectBuffers(boolean directBuffers);
+
+    abstract Options build();
+  }
 }
@@ -0,0 +1,35 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ServiceLoader;
+
+/** An ordered list of {@link StageFactory}s, used to build the stage chains for each connection. */
+final class Pipeline {
+  static final Pipeline EMPTY = new Pipeline(ImmutableList.of());
+
+  private final ImmutableList<StageFactory> factories;
+
+  Pipeline(Iterable<StageFactory> factories) {
+    this.factories = ImmutableList.copyOf(factories);
+  }
+
+  /** Returns a pipeline of every {@link StageFactory} installed on the classpath. */
+  static Pipeline loadInstalled() {
+    return new Pipeline(ServiceLoader.load(StageFactory.class));
+  }
+
+  /**
+   * Builds the chain for {@code direction}, ending in {@code terminal}.
+   *
+   * <p>Data is handed to the stages in the order their factories were given.
+   */
+  ByteStage build(Direction direction, ByteStage terminal) {
+    ByteStage stage = checkNotNull(terminal);
+    for (StageFactory factory : factories.reverse()) {
+      stage = checkNotNull(factory.create(direction, stage));
+    }
+    return stage;
+  }
+}
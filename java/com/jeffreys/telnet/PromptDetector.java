@@ -0,0 +1,40 @@
+package com.jeffreys.telnet;
+
+import static com.jeffreys.telnet.Telnet.EOR;
+import static com.jeffreys.telnet.Telnet.GA;
+
+/**
+ * Spots the end of a prompt, marked by {@code IAC GA} or {@code IAC EOR}, in data being sent to
+ * the client.
+ *
+ * <p>The remote is waiting on the user at that point, so it's worth flushing anything held back
+ * right away. Sequences may be split across chunks.
+ */
+final class PromptDetector {
+  /** Whether the last byte seen started a command. */
+  private boolean afterIac = false;
+
+  /** Returns whether the data ends a prompt. */
+  boolean containsPrompt(byte[] buffer, int offset, int length) {
+    int end = offset + length;
+    int i = offset;
+    boolean found = false;
+    while (i < end) {
+      if (afterIac) {
+        // also consumes the second IAC of an escaped 0xFF
+        afterIac = false;
+        found |= buffer[i] == GA || buffer[i] == EOR;
+        ++i;
+        continue;
+      }
+
+      int iac = IACFilter.indexOfIac(buffer, i, end);
+      if (iac == end) {
+        break;
+      }
+      afterIac = true;
+      i = iac + 1;
+    }
+    return found;
+  }
+}
@@ -0,0 +1,720 @@
+package com.jeffreys.telnet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ascii;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Searches for any number of regular expressions at once, in a single pass over the input.
+ *
+ * <p>The expressions are combined into one NFA, and the DFA for it is built lazily from the
+ * states the input actually reaches, so each byte costs one array lookup once the DFA has warmed
+ * up. The DFA is shared by every thread scanning with it, and thrown away and rebuilt if it gets
+ * too big.
+ *
+ * <p>Without backtracking, only the common subset of {@link java.util.regex.Pattern} is supported:
+ * literals, {@code .}, classes like {@code [^a-z_]}, {@code \d \w \s} and their negations, groups,
+ * alternation, the {@code * + ? {n,m}} quantifiers, a leading {@code (?i)}, {@code ^} for the start
+ * of a line, at the start of the expression or of one of its top-level alternatives, and {@code $}
+ * for the end of one. Since any match at all is reported, lazy quantifiers
+ * behave like greedy ones. Matching is on the UTF-8 bytes, so classes are limited to ASCII.
+ */
+final class RegexDfa {
+  /**
+   * Bounds the memory the cached DFA may use, which is mostly the 256 entry transition table of
+   * each of its states.
+   */
+  @VisibleForTesting static final int MAX_CACHED_STATES = 4096;
+
+  private static final int MAX_REPEAT = 100;
+
+  // kinds of NFA state
+  private static final int CHARS = 0;
+  private static final int SPLIT = 1;
+  private static final int MATCH = 2;
+
+  private static final int NONE = -1;
+
+  /** A state of the DFA, which is the set of NFA states the input could be in. */
+  static final class State {
+    /** The NFA states reached so far, which doesn't include those just starting a new match. */
+    private final int[] progress;
+    /** Whether the input is at the start of a line, so anchored expressions may start matching. */
+    private final boolean lineStart;
+    /** The expressions that match ending here, in order. */
+    private final int[] matches;
+    /** Filled in as the input reaches each next state. Read without locking, see {@link #next}. */
+    private final State[] next = new State[256];
+
+    private State(int[] progress, boolean lineStart, int[] matches) {
+      this.progress = progress;
+      this.lineStart = lineStart;
+      this.matches = matches;
+    }
+
+    /** Returns the expressions that match ending at this state. */
+    int[] getMatches() {
+      return matches;
+    }
+  }
+
+  // the NFA, which never changes once built
+  private final int[] kind;
+  private final long[][] chars;
+  private final int[] out;
+  private final int[] out2;
+  private final int[] matchOf;
+  /** The NFA states any expression may start from, at the start of a line or anywhere else. */
+  private final int[] lineStarts;
+  private final int[] midLineStarts;
+
+  @GuardedBy("this")
+  private final Map<Key, State> cache = new HashMap<>();
+
+  /** Scratch space for computing closures, only used while holding the lock. */
+  @GuardedBy("this")
+  private final int[] marks;
+
+  @GuardedBy("this")
+  private int generation = 0;
+
+  private volatile State start;
+
+  /**
+   * Compiles {@code patterns}, which are reported by their index.
+   *
+   * @throws PatternSyntaxException if any of them can't be compiled, or would match empty text
+   */
+  RegexDfa(List<String> patterns) {
+    Nfa nfa = new Nfa();
+    List<Integer> anchored = new ArrayList<>();
+    List<Integer> unanchored = new ArrayList<>();
+    for (int i = 0; i < patterns.size(); ++i) {
+      new Parser(patterns.get(i), nfa).parse(i, anchored, unanchored);
+    }
+
+    kind = Arrays.copyOf(nfa.kind, nfa.size);
+    chars = Arrays.copyOf(nfa.chars, nfa.size);
+    out = Arrays.copyOf(nfa.out, nfa.size);
+    out2 = Arrays.copyOf(nfa.out2, nfa.size);
+    matchOf = Arrays.copyOf(nfa.matchOf, nfa.size);
+    marks = new int[nfa.size];
+
+    synchronized (this) {
+      midLineStarts = closure(unanchored);
+      List<Integer> all = new ArrayList<>(unanchored);
+      all.addAll(anchored);
+      lineStarts = closure(all);
+      // a MATCH state among the starts means the expression matches without reading anything
+      for (int state : lineStarts) {
+        if (kind[state] == MATCH) {
+          throw new PatternSyntaxException(
+              "Matches empty text", patterns.get(matchOf[state]), /* index= */ -1);
+        }
+      }
+      start = newState(new int[0], /* lineStart= */ true);
+    }
+  }
+
+  /** Returns the state before any input has been seen. */
+  State start() {
+    return start;
+  }
+
+  /** Returns the state after {@code b} follows {@code state}. */
+  State next(State state, byte b) {
+    // a racing read sees either null or a fully built state, since its fields are final
+    State next = state.next[b & 0xFF];
+    return next != null ? next : computeNext(state, b);
+  }
+
+  @VisibleForTesting
+  synchronized int getCachedStates() {
+    return cache.size();
+  }
+
+  private synchronized State computeNext(State state, byte b) {
+    if (state.next[b & 0xFF] != null) {
+      return state.next[b & 0xFF];
+    }
+    int[] from = state.lineStart ? lineStarts : midLineStarts;
+    List<Integer> reached = new ArrayList<>();
+    step(state.progress, b, reached);
+    step(from, b, reached);
+    int[] progress = closure(reached);
+
+    if (cache.size() >= MAX_CACHED_STATES) {
+      // scanners may still be part way through the old DFA, which is fine since every state in it
+      // is still correct, they just won't find any transitions cached
+      for (State cached : cache.values()) {
+        Arrays.fill(cached.next, null);
+      }
+      cache.clear();
+      start = newState(new int[0], /* lineStart= */ true);
+    }
+
+    State next = newState(progress, /* lineStart= */ b == '\n');
+    state.next[b & 0xFF] = next;
+    return next;
+  }
+
+  @GuardedBy("this")
+  private State newState(int[] progress, boolean lineStart) {
+    Key key = new Key(progress, lineStart);
+    State state = cache.get(key);
+    if (state == null) {
+      int matchCount = 0;
+      for (int nfaState : progress) {
+        if (kind[nfaState] == MATCH) {
+          ++matchCount;
+        }
+      }
+      int[] matches = new int[matchCount];
+      matchCount = 0;
+      for (int nfaState : progress) {
+        if (kind[nfaState] == MATCH) {
+          matches[matchCount++] = matchOf[nfaState];
+        }
+      }
+      Arrays.sort(matches);
+
+      state = new State(progress, lineStart, matches);
+      cache.put(key, state);
+    }
+    return state;
+  }
+
+  /** Adds the NFA states reached by {@code b} from {@code states} to {@code reached}. */
+  private void step(int[] states, byte b, List<Integer> reached) {
+    int c = b & 0xFF;
+    for (int state : states) {
+      if (kind[state] == CHARS && (chars[state][c >>> 6] & (1L << c)) != 0) {
+        reached.add(out[state]);
+      }
+    }
+  }
+
+  /** Returns the sorted CHARS and MATCH states reachable from {@code states} by splits alone. */
+  @GuardedBy("this")
+  private int[] closure(List<Integer> states) {
+    if (++generation == 0) {
+      Arrays.fill(marks, 0);
+      generation = 1;
+    }
+    List<Integer> result = new ArrayList<>();
+    ArrayList<Integer> stack = new ArrayList<>(states);
+    while (!stack.isEmpty()) {
+      int state = stack.remove(stack.size() - 1);
+      if (state == NONE || marks[state] == generation) {
+        continue;
+      }
+      marks[state] = generation;
+      if (kind[state] == SPLIT) {
+        stack.add(out[state]);
+        stack.add(out2[state]);
+      } else {
+        result.add(state);
+      }
+    }
+    return result.stream().mapToInt(Integer::intValue).sorted().toArray();
+  }
+
+  private static final class Key {
+    private final int[] states;
+    private final boolean lineStart;
+
+    private Key(int[] states, boolean lineStart) {
+      this.states = states;
+      this.lineStart = lineStart;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return lineStart == key.lineStart && Arrays.equals(states, key.states);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(states) * 2 + (lineStart ? 1 : 0);
+    }
+  }
+
+  /** A growable Thompson NFA, only used while compiling. */
+  private static final class Nfa {
+    private int size = 0;
+    private int[] kind = new int[16];
+    private long[][] chars = new long[16][];
+    private int[] out = new int[16];
+    private int[] out2 = new int[16];
+    private int[] matchOf = new int[16];
+
+    int add(int stateKind, long[] stateChars, int next, int next2) {
+      if (size == kind.length) {
+        int capacity = size * 2;
+        kind = Arrays.copyOf(kind, capacity);
+        chars = Arrays.copyOf(chars, capacity);
+        out = Arrays.copyOf(out, capacity);
+        out2 = Arrays.copyOf(out2, capacity);
+        matchOf = Arrays.copyOf(matchOf, capacity);
+      }
+      kind[size] = stateKind;
+      chars[size] = stateChars;
+      out[size] = next;
+      out2[size] = next2;
+      matchOf[size] = NONE;
+      return size++;
+    }
+  }
+
+  /**
+   * A piece of NFA with one way in and any number of loose ends, each encoded as {@code state * 2}
+   * for its {@code out} or {@code state * 2 + 1} for its {@code out2}.
+   */
+  private static final class Fragment {
+    private final int start;
+    private final List<Integer> ends;
+
+    private Fragment(int start, List<Integer> ends) {
+      this.start = start;
+      this.ends = ends;
+    }
+  }
+
+  /** Compiles one expression, by recursive descent, straight into the NFA. */
+  private static final class Parser {
+    private final String pattern;
+    private final Nfa nfa;
+    private int pos = 0;
+    private boolean ignoreCase = false;
+
+    private Parser(String pattern, Nfa nfa) {
+      this.pattern = pattern;
+      this.nfa = nfa;
+    }
+
+    /**
+     * Compiles the expression, which reports {@code index} when it matches, adding the first state
+     * of each of its top-level alternatives to {@code anchored} if it starts with {@code ^}, or to
+     * {@code unanchored} if not.
+     */
+    void parse(int index, List<Integer> anchored, List<Integer> unanchored) {
+      if (pattern.startsWith("(?i)")) {
+        ignoreCase = true;
+        pos = 4;
+      }
+      int match = nfa.add(MATCH, null, NONE, NONE);
+      nfa.matchOf[match] = index;
+
+      while (true) {
+        boolean branchAnchored = peek('^');
+        if (branchAnchored) {
+          ++pos;
+        }
+        Fragment branch = parseConcatenation();
+        patch(branch, match);
+        (branchAnchored ? anchored : unanchored).add(branch.start);
+        if (!peek('|')) {
+          break;
+        }
+        ++pos;
+      }
+      if (pos < pattern.length()) {
+        throw error("Unmatched closing ')'");
+      }
+    }
+
+    private Fragment parseAlternation() {
+      Fragment fragment = parseConcatenation();
+      while (peek('|')) {
+        ++pos;
+        Fragment other = parseConcatenation();
+        List<Integer> ends = new ArrayList<>(fragment.ends);
+        ends.addAll(other.ends);
+        fragment = new Fragment(nfa.add(SPLIT, null, fragment.start, other.start), ends);
+      }
+      return fragment;
+    }
+
+    private Fragment parseConcatenation() {
+      Fragment fragment = null;
+      while (pos < pattern.length() && !peek('|') && !peek(')')) {
+        Fragment next = parseRepetition();
+        if (fragment == null) {
+          fragment = next;
+        } else {
+          patch(fragment, next.start);
+          fragment = new Fragment(fragment.start, next.ends);
+        }
+      }
+      return fragment != null ? fragment : empty();
+    }
+
+    private Fragment parseRepetition() {
+      int atomStart = pos;
+      Fragment fragment = parseAtom();
+      int atomEnd = pos;
+      if (pos == pattern.length()) {
+        return fragment;
+      }
+
+      int min;
+      int max;
+      switch (pattern.charAt(pos)) {
+        case '*':
+          min = 0;
+          max = NONE;
+          break;
+        case '+':
+          min = 1;
+          max = NONE;
+          break;
+        case '?':
+          min = 0;
+          max = 1;
+          break;
+        case '{':
+          int close = pattern.indexOf('}', pos);
+          if (close < 0) {
+            throw error("Unclosed repetition");
+          }
+          String[] bounds = pattern.substring(pos + 1, close).split(",", -1);
+          try {
+            min = Integer.parseInt(bounds[0]);
+            max =
+                bounds.length == 1
+                    ? min
+                    : bounds[1].isEmpty() ? NONE : Integer.parseInt(bounds[1]);
+          } catch (NumberFormatException ex) {
+            throw error("Invalid repetition");
+          }
+          if (bounds.length > 2
+              || min > MAX_REPEAT
+              || max > MAX_REPEAT
+              || (max != NONE && max < min)) {
+            throw error("Invalid repetition");
+          }
+          pos = close;
+          break;
+        default:
+          return fragment;
+      }
+      ++pos;
+      if (peek('?')) {
+        // lazy, which finds the same matches
+        ++pos;
+      } else if (peek('+')) {
+        throw error("Possessive quantifiers are not supported");
+      }
+      int quantifierEnd = pos;
+
+      // each copy past the first is compiled again from the pattern
+      Fragment result = null;
+      for (int i = 0; i < min; ++i) {
+        Fragment copy = i == 0 ? fragment : reparse(atomStart, atomEnd);
+        result = concatenate(result, max == NONE && i == min - 1 ? oneOrMore(copy) : copy);
+      }
+      if (max == NONE && min == 0) {
+        result = zeroOrMore(fragment);
+      }
+      for (int i = min; max != NONE && i < max; ++i) {
+        Fragment copy = i == 0 ? fragment : reparse(atomStart, atomEnd);
+        result = concatenate(result, optional(copy));
+      }
+      pos = quantifierEnd;
+      return result != null ? result : empty();
+    }
+
+    private Fragment reparse(int atomStart, int atomEnd) {
+      pos = atomStart;
+      Fragment fragment = parseAtom();
+      pos = atomEnd;
+      return fragment;
+    }
+
+    private Fragment parseAtom() {
+      char c = pattern.charAt(pos++);
+      switch (c) {
+        case '(':
+          if (pattern.startsWith("?:", pos)) {
+            pos += 2;
+          } else if (peek('?')) {
+            throw error("Only (?:...) groups are supported");
+          }
+          Fragment group = parseAlternation();
+          if (!peek(')')) {
+            throw error("Unclosed group");
+          }
+          ++pos;
+          return group;
+        case '[':
+          return chars(parseClass());
+        case '.':
+          long[] any = range(new long[4], 0, 255);
+          clear(any, '\n');
+          return chars(any);
+        case '$':
+          long[] lineEnd = new long[4];
+          set(lineEnd, '\n');
+          set(lineEnd, '\r');
+          return chars(lineEnd);
+        case '^':
+          throw error("^ is only supported at the start of a top-level alternative");
+        case '*':
+        case '+':
+        case '?':
+        case '{':
+          throw error("Dangling quantifier");
+        case '\\':
+          return chars(parseEscape());
+        default:
+          if (c < 0x80) {
+            return chars(literal(c));
+          }
+          // anything else is matched as its UTF-8 bytes
+          int end = pos - 1 + Character.charCount(pattern.codePointAt(pos - 1));
+          byte[] bytes = pattern.substring(pos - 1, end).getBytes(UTF_8);
+          pos = end;
+          Fragment fragment = null;
+          for (byte b : bytes) {
+            long[] set = new long[4];
+            set(set, b & 0xFF);
+            fragment = concatenate(fragment, chars(set));
+          }
+          return fragment;
+      }
+    }
+
+    private long[] parseClass() {
+      boolean negated = peek('^');
+      if (negated) {
+        ++pos;
+      }
+      long[] set = new long[4];
+      boolean first = true;
+      while (pos < pattern.length() && (first || !peek(']'))) {
+        first = false;
+        char c = pattern.charAt(pos++);
+        long[] item;
+        int low = NONE;
+        if (c == '\\') {
+          item = parseEscape();
+          low = singleChar(item);
+        } else if (c == '[') {
+          throw error("Nested classes are not supported");
+        } else {
+          low = checkAscii(c);
+          item = literal(c);
+        }
+        boolean isRange =
+            peek('-') && pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']';
+        if (low != NONE && isRange) {
+          ++pos;
+          char h = pattern.charAt(pos++);
+          int high = h == '\\' ? singleChar(parseEscape()) : checkAscii(h);
+          if (high == NONE || high < low) {
+            throw error("Invalid range");
+          }
+          item = range(new long[4], low, high);
+          if (ignoreCase) {
+            for (int i = low; i <= high; ++i) {
+              set(item, Ascii.toLowerCase((char) i));
+              set(item, Ascii.toUpperCase((char) i));
+            }
+          }
+        }
+        for (int i = 0; i < 4; ++i) {
+          set[i] |= item[i];
+        }
+      }
+      if (!peek(']')) {
+        throw error("Unclosed character class");
+      }
+      ++pos;
+      if (negated) {
+        for (int i = 0; i < 4; ++i) {
+          set[i] = ~set[i];
+        }
+      }
+      return set;
+    }
+
+    private long[] parseEscape() {
+      if (pos == pattern.length()) {
+        throw error("Trailing backslash");
+      }
+      char c = pattern.charAt(pos++);
+      long[] set = new long[4];
+      switch (c) {
+        case 'd':
+        case 'D':
+          range(set, '0', '9');
+          break;
+        case 'w':
+        case 'W':
+          range(set, 'a', 'z');
+          range(set, 'A', 'Z');
+          range(set, '0', '9');
+          set(set, '_');
+          break;
+        case 's':
+        case 'S':
+          for (char space : " \t\n\u000B\f\r".toCharArray()) {
+            set(set, space);
+          }
+          break;
+        case 't':
+          set(set, '\t');
+          return set;
+        case 'n':
+          set(set, '\n');
+          return set;
+        case 'r':
+          set(set, '\r');
+          return set;
+        case 'f':
+          set(set, '\f');
+          return set;
+        case 'e':
+          set(set, 0x1B);
+          return set;
+        case 'x':
+          if (pos + 2 > pattern.length()) {
+            throw error("Invalid hex escape");
+          }
+          try {
+            set(set, Integer.parseInt(pattern.substring(pos, pos + 2), 16));
+          } catch (NumberFormatException ex) {
+            throw error("Invalid hex escape");
+          }
+          pos += 2;
+          return set;
+        default:
+          if (Character.isLetterOrDigit(c)) {
+            throw error("Unsupported escape \\" + c);
+          }
+          return literal(checkAscii(c));
+      }
+      if (Character.isUpperCase(c)) {
+        for (int i = 0; i < 4; ++i) {
+          set[i] = ~set[i];
+        }
+      }
+      return set;
+    }
+
+    private long[] literal(int c) {
+      long[] set = new long[4];
+      set(set, c);
+      if (ignoreCase) {
+        set(set, Ascii.toLowerCase((char) c));
+        set(set, Ascii.toUpperCase((char) c));
+      }
+      return set;
+    }
+
+    private int checkAscii(char c) {
+      if (c >= 0x80) {
+        throw error("Only ASCII is supported in character classes");
+      }
+      return c;
+    }
+
+    private static int singleChar(long[] set) {
+      int found = NONE;
+      for (int c = 0; c < 256; ++c) {
+        if ((set[c >>> 6] & (1L << c)) != 0) {
+          if (found != NONE) {
+            return NONE;
+          }
+          found = c;
+        }
+      }
+      return found;
+    }
+
+    private Fragment chars(long[] set) {
+      int state = nfa.add(CHARS, set, NONE, NONE);
+      return new Fragment(state, new ArrayList<>(List.of(state * 2)));
+    }
+
+    private Fragment empty() {
+      int state = nfa.add(SPLIT, null, NONE, NONE);
+      return new Fragment(state, new ArrayList<>(List.of(state * 2)));
+    }
+
+    /** Returns {@code fragment} or nothing. */
+    private Fragment optional(Fragment fragment) {
+      int split = nfa.add(SPLIT, null, fragment.start, NONE);
+      List<Integer> ends = new ArrayList<>(fragment.ends);
+      ends.add(split * 2 + 1);
+      return new Fragment(split, ends);
+    }
+
+    /** Returns {@code fragment} repeated one or more times. */
+    private Fragment oneOrMore(Fragment fragment) {
+      int split = nfa.add(SPLIT, null, fragment.start, NONE);
+      patch(fragment, split);
+      return new Fragment(fragment.start, new ArrayList<>(List.of(split * 2 + 1)));
+    }
+
+    /** Returns {@code fragment} repeated any number of times. */
+    private Fragment zeroOrMore(Fragment fragment) {
+      int split = nfa.add(SPLIT, null, fragment.start, NONE);
+      patch(fragment, split);
+      return new Fragment(split, new ArrayList<>(List.of(split * 2 + 1)));
+    }
+
+    private Fragment concatenate(Fragment first, Fragment second) {
+      if (first == null) {
+        return second;
+      }
+      patch(first, second.start);
+      return new Fragment(first.start, second.ends);
+    }
+
+    private void patch(Fragment fragment, int target) {
+      for (int end : fragment.ends) {
+        if (end % 2 == 0) {
+          nfa.out[end / 2] = target;
+        } else {
+          nfa.out2[end / 2] = target;
+        }
+      }
+    }
+
+    private boolean peek(char c) {
+      return pos < pattern.length() && pattern.charAt(pos) == c;
+    }
+
+    private PatternSyntaxException error(String description) {
+      return new PatternSyntaxException(description, pattern, pos - 1);
+    }
+
+    private static long[] range(long[] set, int low, int high) {
+      for (int c = low; c <= high; ++c) {
+        set(set, c);
+      }
+      return set;
+    }
+
+    private static void set(long[] set, int c) {
+      set[c >>> 6] |= 1L << c;
+    }
+
+    private static void clear(long[] set, int c) {
+      set[c >>> 6] &= ~(1L << c);
+    }
+  }
+}
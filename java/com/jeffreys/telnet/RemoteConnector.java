@@ -0,0 +1,339 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Connects to the remote host asynchronously, racing its addresses in the style of Happy Eyeballs
+ * (RFC 8305).
+ *
+ * <p>All connects in progress share one thread and {@link Selector}, so a remote that's slow to
+ * answer never holds up accepting or connecting anyone else. The remote is looked up on that
+ * thread too, so a slow DNS server doesn't hold up whoever asked to connect either. Each connect
+ * tries the remote's addresses in turn, alternating address families, starting the next attempt
+ * whenever the last one fails or hasn't finished within the attempt delay. The first attempt to
+ * connect wins and the rest are abandoned. A connect that hasn't succeeded within the timeout,
+ * counting the lookup, fails with a {@link SocketTimeoutException}.
+ *
+ * <p>Channels are handed back connected and in non-blocking mode.
+ */
+final class RemoteConnector implements Runnable, Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final CachingResolver resolver;
+  private final int port;
+  private final long attemptDelayNanos;
+  private final long timeoutNanos;
+  private final Selector selector;
+
+  @GuardedBy("this")
+  private final Queue<Race> newRaces = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private boolean closed = false;
+
+  // only accessed on the connector thread
+  private final List<Race> races = new ArrayList<>();
+
+  RemoteConnector(CachingResolver resolver, int port, Duration attemptDelay, Duration timeout)
+      throws IOException {
+    this.resolver = checkNotNull(resolver);
+    this.port = port;
+    this.attemptDelayNanos = attemptDelay.toNanos();
+    this.timeoutNanos = timeout.toNanos();
+    this.selector = Selector.open();
+  }
+
+  /** Starts connecting to the remote, without waiting for anything. */
+  CompletableFuture<SocketChannel> connect() {
+    CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+    synchronized (this) {
+      if (closed) {
+        future.completeExceptionally(new IOException("Remote connector closed"));
+        return future;
+      }
+      newRaces.add(new Race(future));
+    }
+    selector.wakeup();
+    return future;
+  }
+
+  /** Connects to the remote, blocking until connected or failed. */
+  SocketChannel connectBlocking() throws IOException {
+    try {
+      return connect().get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted connecting to remote");
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException(ex.getCause());
+    }
+  }
+
+  String describeRemote() {
+    return resolver.getHost() + ":" + port;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (selector.isOpen()) {
+        long waitNanos = advanceRaces();
+        // advanceRaces may have selected keys already, which select wouldn't wake up for
+        if (selector.selectedKeys().isEmpty()) {
+          selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+        }
+
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+          SelectionKey key = iterator.next();
+          iterator.remove();
+          ((Race) key.attachment()).onConnectable(key);
+        }
+      }
+    } catch (ClosedSelectorException ex) {
+      // closed while selecting
+    } catch (IOException ex) {
+      logger.atSevere().withCause(ex).log("Remote connector failed");
+    } finally {
+      synchronized (this) {
+        closed = true;
+        races.addAll(newRaces);
+        newRaces.clear();
+      }
+      for (Race race : races) {
+        race.fail(new IOException("Remote connector closed"));
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+    }
+    selector.close();
+  }
+
+  /**
+   * Adopts new races, starts attempts that are due and times out the rest, returning how long
+   * until one of them next needs attention.
+   */
+  private long advanceRaces() throws IOException {
+    List<Race> adopted;
+    synchronized (this) {
+      if (newRaces.isEmpty()) {
+        adopted = ImmutableList.of();
+      } else {
+        adopted = new ArrayList<>(newRaces);
+        newRaces.clear();
+      }
+    }
+    if (!adopted.isEmpty()) {
+      // one lookup for everyone who asked since the last one
+      try {
+        ImmutableList<InetAddress> addresses = interleave(resolver.resolve());
+        for (Race race : adopted) {
+          race.addresses = addresses;
+        }
+        races.addAll(adopted);
+      } catch (UnknownHostException ex) {
+        for (Race race : adopted) {
+          race.fail(ex);
+        }
+      }
+    }
+
+    long now = System.nanoTime();
+    long waitNanos = Long.MAX_VALUE;
+    for (Race race : races) {
+      waitNanos = Math.min(waitNanos, race.advance(now));
+    }
+
+    // flush the keys of finished races, so their channels can change blocking mode
+    selector.selectNow();
+    for (Race race : races) {
+      race.completeIfWon();
+    }
+    races.removeIf(Race::isDone);
+    return waitNanos;
+  }
+
+  /**
+   * Orders addresses so the address families alternate, keeping the resolver's order within each
+   * family and starting with the family it put first.
+   */
+  @VisibleForTesting
+  static ImmutableList<InetAddress> interleave(InetAddress[] addresses) {
+    if (addresses.length == 0) {
+      return ImmutableList.of();
+    }
+
+    boolean firstIsIpv6 = addresses[0] instanceof Inet6Address;
+    List<InetAddress> first = new ArrayList<>();
+    List<InetAddress> second = new ArrayList<>();
+    for (InetAddress address : addresses) {
+      (address instanceof Inet6Address == firstIsIpv6 ? first : second).add(address);
+    }
+
+    ImmutableList.Builder<InetAddress> interleaved = ImmutableList.builder();
+    for (int i = 0; i < Math.max(first.size(), second.size()); ++i) {
+      if (i < first.size()) {
+        interleaved.add(first.get(i));
+      }
+      if (i < second.size()) {
+        interleaved.add(second.get(i));
+      }
+    }
+    return interleaved.build();
+  }
+
+  /** One connect, with its attempts to each address. */
+  private final class Race {
+    private final CompletableFuture<SocketChannel> future;
+    private final List<SelectionKey> attempts = new ArrayList<>();
+    private final long deadlineNanos = System.nanoTime() + timeoutNanos;
+
+    /** Set once the remote is looked up, before the race is first advanced. */
+    private ImmutableList<InetAddress> addresses = ImmutableList.of();
+
+    private int nextAddress = 0;
+    private long nextAttemptNanos = System.nanoTime();
+    @Nullable private SocketChannel winner = null;
+    @Nullable private IOException lastFailure = null;
+
+    private Race(CompletableFuture<SocketChannel> future) {
+      this.future = future;
+    }
+
+    private boolean isDone() {
+      return future.isDone();
+    }
+
+    /**
+     * Returns how long until this race next needs attention, which doesn't matter once it's won or
+     * failed.
+     */
+    private long advance(long now) {
+      if (winner != null) {
+        return Long.MAX_VALUE;
+      }
+      if (now - deadlineNanos >= 0) {
+        fail(new SocketTimeoutException("Timed out connecting to " + describeRemote()));
+        return Long.MAX_VALUE;
+      }
+
+      while (nextAddress < addresses.size()
+          && (attempts.isEmpty() || now - nextAttemptNanos >= 0)) {
+        startAttempt(addresses.get(nextAddress++));
+        nextAttemptNanos = now + attemptDelayNanos;
+        if (winner != null) {
+          return Long.MAX_VALUE;
+        }
+      }
+
+      if (attempts.isEmpty()) {
+        fail(
+            lastFailure != null
+                ? lastFailure
+                : new IOException("No addresses for " + describeRemote()));
+        return Long.MAX_VALUE;
+      }
+
+      long wait = deadlineNanos - now;
+      if (nextAddress < addresses.size()) {
+        wait = Math.min(wait, nextAttemptNanos - now);
+      }
+      return wait;
+    }
+
+    private void startAttempt(InetAddress address) {
+      SocketChannel channel = null;
+      try {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        if (channel.connect(new InetSocketAddress(address, port))) {
+          win(channel);
+        } else {
+          attempts.add(channel.register(selector, SelectionKey.OP_CONNECT, this));
+        }
+      } catch (IOException ex) {
+        lastFailure = ex;
+        Util.close(channel);
+      }
+    }
+
+    private void onConnectable(SelectionKey key) {
+      SocketChannel channel = (SocketChannel) key.channel();
+      try {
+        if (channel.finishConnect()) {
+          attempts.remove(key);
+          key.cancel();
+          win(channel);
+        }
+      } catch (IOException ex) {
+        logger.atFine().withCause(ex).log("Connect attempt to %s failed", channel);
+        lastFailure = ex;
+        attempts.remove(key);
+        key.cancel();
+        Util.close(channel);
+        // per RFC 8305, a failure starts the next attempt right away
+        nextAttemptNanos = System.nanoTime();
+      }
+    }
+
+    private void win(SocketChannel channel) {
+      winner = channel;
+      abandonAttempts();
+    }
+
+    /** Hands over the winning channel, once its key has been flushed from the selector. */
+    private void completeIfWon() {
+      if (winner != null && !future.complete(winner)) {
+        Util.close(winner);
+      }
+    }
+
+    private void fail(IOException ex) {
+      abandonAttempts();
+      future.completeExceptionally(ex);
+    }
+
+    private void abandonAttempts() {
+      for (SelectionKey key : attempts) {
+        key.cancel();
+        Util.close(key.channel());
+      }
+      attempts.clear();
+    }
+  }
+}
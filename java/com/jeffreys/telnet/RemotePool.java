@@ -0,0 +1,206 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Hands out connections to the remote host, keeping a number of them connected ahead of time.
+ *
+ * <p>A background thread keeps the pool full, so a new session only pays for a health check
+ * instead of a DNS lookup and TCP handshake. Connections that have sat idle too long, or that the
+ * remote has since closed, are discarded and replaced. Anything the remote sent while a connection
+ * sat in the pool, such as a login banner, is kept and handed to the session.
+ *
+ * <p>With a size of zero every connection is made on demand.
+ */
+final class RemotePool implements Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  /** Backs off the refill thread while the remote is unreachable. */
+  private static final long RETRY_DELAY_MILLIS = 1_000;
+  /** How long the health check waits to see whether the remote closed the connection. */
+  private static final int HEALTH_CHECK_TIMEOUT_MILLIS = 1;
+
+  private final RemoteConnector connector;
+  private final int size;
+  private final long maxIdleNanos;
+  private final ThreadFactory threadFactory;
+  private final BlockingDeque<PooledSocket> ready = new LinkedBlockingDeque<>();
+  /** One permit for each connection the pool is missing. */
+  private final Semaphore missing;
+
+  private volatile boolean closed = false;
+
+  RemotePool(RemoteConnector connector, int size, Duration maxIdle, ThreadFactory threadFactory) {
+    checkArgument(size >= 0, "size must not be negative");
+    checkArgument(!maxIdle.isNegative() && !maxIdle.isZero(), "maxIdle must be positive");
+
+    this.connector = checkNotNull(connector);
+    this.size = size;
+    this.maxIdleNanos = maxIdle.toNanos();
+    this.threadFactory = checkNotNull(threadFactory);
+    this.missing = new Semaphore(size);
+  }
+
+  /** Starts filling the pool in the background. */
+  void start() {
+    if (size > 0) {
+      Thread thread = threadFactory.newThread(this::refill);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /** Returns a healthy connection to the remote, connecting a new one if none are ready. */
+  CloseableStreamer take() throws IOException {
+    PooledSocket pooledSocket;
+    while ((pooledSocket = ready.pollFirst()) != null) {
+      missing.release();
+
+      SocketCloseableStreamer streamer = pooledSocket.checkHealth();
+      if (streamer != null) {
+        return streamer;
+      }
+      logger.atInfo().log("Discarding stale pooled connection to %s", connector.describeRemote());
+      Util.close(pooledSocket.socket);
+    }
+
+    return new SocketCloseableStreamer(connect());
+  }
+
+  @VisibleForTesting
+  int getReadyCount() {
+    return ready.size();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    // wakes the refill thread
+    missing.release(size);
+
+    PooledSocket pooledSocket;
+    while ((pooledSocket = ready.pollFirst()) != null) {
+      Util.close(pooledSocket.socket);
+    }
+  }
+
+  /** Connects a new blocking socket to the remote. */
+  private Socket connect() throws IOException {
+    SocketChannel channel = connector.connectBlocking();
+    try {
+      channel.configureBlocking(true);
+      Socket socket = channel.socket();
+      socket.setTcpNoDelay(true);
+      socket.setKeepAlive(true);
+      return socket;
+    } catch (IOException ex) {
+      Util.close(channel);
+      throw ex;
+    }
+  }
+
+  private void refill() {
+    while (!closed) {
+      try {
+        if (!missing.tryAcquire(maxIdleNanos / 2, TimeUnit.NANOSECONDS)) {
+          evictIdle();
+          continue;
+        }
+        if (closed) {
+          return;
+        }
+
+        try {
+          ready.addLast(new PooledSocket(connect()));
+        } catch (IOException ex) {
+          missing.release();
+          logger.atWarning().withCause(ex).log(
+              "Unable to pre-connect to remote host %s", connector.describeRemote());
+          Thread.sleep(RETRY_DELAY_MILLIS);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /** Replaces connections that have sat in the pool long enough for the remote to drop them. */
+  private void evictIdle() {
+    // the oldest connections are at the front
+    PooledSocket pooledSocket;
+    while ((pooledSocket = ready.peekFirst()) != null && pooledSocket.isIdleTooLong()) {
+      if (ready.remove(pooledSocket)) {
+        missing.release();
+        Util.close(pooledSocket.socket);
+      }
+    }
+  }
+
+  private final class PooledSocket {
+    private final Socket socket;
+    private final long connectedAtNanos = System.nanoTime();
+
+    private PooledSocket(Socket socket) {
+      this.socket = socket;
+    }
+
+    private boolean isIdleTooLong() {
+      return System.nanoTime() - connectedAtNanos > maxIdleNanos;
+    }
+
+    /**
+     * Returns a streamer for the socket if it's still usable, including whatever the remote sent
+     * while it sat in the pool, or null if not.
+     */
+    @Nullable
+    private SocketCloseableStreamer checkHealth() {
+      if (socket.isClosed() || isIdleTooLong()) {
+        return null;
+      }
+
+      ByteArrayOutputStream received = new ByteArrayOutputStream();
+      try {
+        InputStream inputStream = socket.getInputStream();
+        socket.setSoTimeout(HEALTH_CHECK_TIMEOUT_MILLIS);
+        byte[] buffer = new byte[1024];
+        while (true) {
+          int bytes = inputStream.read(buffer);
+          if (bytes < 0) {
+            // the remote closed the connection while it was pooled
+            return null;
+          }
+          received.write(buffer, 0, bytes);
+        }
+      } catch (SocketTimeoutException ex) {
+        // nothing more to read, but the connection is still open
+      } catch (IOException ex) {
+        return null;
+      }
+
+      try {
+        socket.setSoTimeout(0);
+      } catch (IOException ex) {
+        return null;
+      }
+      return new SocketCloseableStreamer(socket, received.toByteArray());
+    }
+  }
+}
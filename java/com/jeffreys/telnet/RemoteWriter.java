@@ -0,0 +1,294 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.flogger.FluentLogger;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The single way into the remote's output stream, so the local client and any number of scripts
+ * can share it without garbling each other's commands.
+ *
+ * <p>What the local client types is written straight away, ahead of anything scripts have queued.
+ * Script output is queued a line at a time, and each line is written in one piece. While the
+ * player is part way through typing a line, script lines wait for them to finish it, for up to a
+ * second. Script lines may also be rate limited, in bytes and in commands a second, so bots don't
+ * trip a server's flood protection. Lines held back are written later from a timer thread shared
+ * by every connection.
+ */
+final class RemoteWriter {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  /** How long script lines wait for the player to finish typing a line. */
+  private static final long HUMAN_LINE_GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+  /** Script writes wait once this much is queued, so a flooding script backs up into its pipe. */
+  private static final int MAX_QUEUED_BYTES = 64 * 1024;
+
+  private final OutputStream out;
+  private final boolean flushEachWrite;
+  private final Ticker ticker;
+  private final ScheduledExecutorService timer;
+  @Nullable private final TokenBucket byteLimit;
+  @Nullable private final TokenBucket commandLimit;
+
+  @GuardedBy("this")
+  private final ArrayDeque<byte[]> queued = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private int queuedBytes = 0;
+
+  /** Whether the last thing the player typed didn't end a line. */
+  @GuardedBy("this")
+  private boolean humanMidLine = false;
+
+  @GuardedBy("this")
+  private long lastHumanWriteNanos = 0;
+
+  @GuardedBy("this")
+  private boolean drainScheduled = false;
+
+  /** Set once a queued line couldn't be written, after which scripts can't write any more. */
+  @GuardedBy("this")
+  private boolean failed = false;
+
+  @GuardedBy("this")
+  private long droppedLines = 0;
+
+  /**
+   * Creates a writer for {@code out}.
+   *
+   * @param flushEachWrite whether to flush after each of the local client's writes, rather than
+   *     only when {@link #flush} is called
+   * @param bytesPerSecond limits script output, or 0 for no limit
+   * @param commandsPerSecond limits script lines, or 0 for no limit
+   */
+  RemoteWriter(
+      OutputStream out, boolean flushEachWrite, int bytesPerSecond, int commandsPerSecond) {
+    this(
+        out,
+        flushEachWrite,
+        bytesPerSecond,
+        commandsPerSecond,
+        Ticker.systemTicker(),
+        SharedTimer.INSTANCE);
+  }
+
+  @VisibleForTesting
+  RemoteWriter(
+      OutputStream out,
+      boolean flushEachWrite,
+      int bytesPerSecond,
+      int commandsPerSecond,
+      Ticker ticker,
+      ScheduledExecutorService timer) {
+    this.out = checkNotNull(out);
+    this.flushEachWrite = flushEachWrite;
+    this.ticker = checkNotNull(ticker);
+    this.timer = checkNotNull(timer);
+    this.byteLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, ticker) : null;
+    this.commandLimit = commandsPerSecond > 0 ? new TokenBucket(commandsPerSecond, ticker) : null;
+  }
+
+  /** Writes what the local client typed, ahead of any queued script output. */
+  synchronized void writeHuman(byte[] buffer, int offset, int length) throws IOException {
+    out.write(buffer, offset, length);
+    if (flushEachWrite) {
+      out.flush();
+    }
+
+    // telnet negotiation from the client says nothing about what the player is typing
+    if (length > 0 && buffer[offset] != Telnet.IAC) {
+      byte last = buffer[offset + length - 1];
+      humanMidLine = last != '\n' && last != '\r' && last != 0;
+      lastHumanWriteNanos = ticker.read();
+    }
+    if (!humanMidLine && !queued.isEmpty()) {
+      drain();
+    }
+  }
+
+  /** Flushes anything written but held back by the underlying stream. */
+  synchronized void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Returns a new source of script output, whose writes wait for room in the queue if {@code
+   * mayBlock} is set, or are dropped if not.
+   */
+  Source newSource(boolean mayBlock) {
+    return new Source(mayBlock);
+  }
+
+  synchronized int getQueuedBytes() {
+    return queuedBytes;
+  }
+
+  /** Returns how many script lines were dropped, since the queue was full. */
+  synchronized long getDroppedLines() {
+    return droppedLines;
+  }
+
+  /** Writes as many queued lines as the player and the rate limits allow. */
+  @VisibleForTesting
+  synchronized void drain() throws IOException {
+    boolean wrote = false;
+    while (!queued.isEmpty()) {
+      long now = ticker.read();
+      long waitNanos = 0;
+      if (humanMidLine) {
+        waitNanos = HUMAN_LINE_GRACE_NANOS - (now - lastHumanWriteNanos);
+      }
+      byte[] line = queued.peekFirst();
+      if (byteLimit != null) {
+        waitNanos = Math.max(waitNanos, byteLimit.nanosUntilAvailable(line.length));
+      }
+      if (commandLimit != null) {
+        waitNanos = Math.max(waitNanos, commandLimit.nanosUntilAvailable(1));
+      }
+      if (waitNanos > 0) {
+        scheduleDrain(waitNanos);
+        break;
+      }
+
+      humanMidLine = false;
+      if (byteLimit != null) {
+        byteLimit.tryTake(line.length);
+      }
+      if (commandLimit != null) {
+        commandLimit.tryTake(1);
+      }
+      out.write(line);
+      queued.removeFirst();
+      queuedBytes -= line.length;
+      wrote = true;
+    }
+
+    if (wrote) {
+      out.flush();
+      notifyAll();
+    }
+  }
+
+  @GuardedBy("this")
+  private void scheduleDrain(long delayNanos) {
+    if (!drainScheduled) {
+      drainScheduled = true;
+      timer.schedule(this::drainFromTimer, delayNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private synchronized void drainFromTimer() {
+    drainScheduled = false;
+    if (failed) {
+      return;
+    }
+    try {
+      drain();
+    } catch (IOException ex) {
+      logger.atWarning().withCause(ex).log("Unable to write queued script output to remote");
+      failed = true;
+      queued.clear();
+      queuedBytes = 0;
+      notifyAll();
+    }
+  }
+
+  @GuardedBy("this")
+  private void enqueue(byte[] line, boolean mayBlock) throws IOException {
+    while (mayBlock && queuedBytes >= MAX_QUEUED_BYTES && !failed) {
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to write to remote");
+      }
+    }
+    if (failed) {
+      throw new IOException("Unable to write to remote");
+    }
+    if (queuedBytes >= MAX_QUEUED_BYTES) {
+      if (droppedLines++ == 0) {
+        logger.atWarning().log("Script output queue full, dropping lines");
+      }
+      return;
+    }
+
+    queued.addLast(line);
+    queuedBytes += line.length;
+  }
+
+  /** Output from one script, which is queued a whole line at a time. */
+  final class Source implements Closeable {
+    private final boolean mayBlock;
+
+    /** The start of a line, waiting for the rest of it. */
+    @GuardedBy("RemoteWriter.this")
+    private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+
+    private Source(boolean mayBlock) {
+      this.mayBlock = mayBlock;
+    }
+
+    /** Queues every complete line, keeping any unfinished one until the rest of it is written. */
+    void write(byte[] buffer, int offset, int length) throws IOException {
+      synchronized (RemoteWriter.this) {
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; ++i) {
+          if (buffer[i] == '\n') {
+            partial.write(buffer, lineStart, i + 1 - lineStart);
+            enqueuePartial();
+            lineStart = i + 1;
+          }
+        }
+        partial.write(buffer, lineStart, end - lineStart);
+        drain();
+      }
+    }
+
+    /** Queues any unfinished line as it is, since the script has nothing more to say for now. */
+    void flush() throws IOException {
+      synchronized (RemoteWriter.this) {
+        if (partial.size() > 0) {
+          enqueuePartial();
+          drain();
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+
+    @GuardedBy("RemoteWriter.this")
+    private void enqueuePartial() throws IOException {
+      byte[] line = partial.toByteArray();
+      partial.reset();
+      enqueue(line, mayBlock);
+    }
+  }
+
+  /** Writes held back lines for every connection, which needs very little time. */
+  private static final class SharedTimer {
+    static final ScheduledExecutorService INSTANCE =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "remote-writer-timer");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+}
@@ -0,0 +1,158 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for the remote host by playing back what it sent in a session recorded by {@link
+ * SessionRecorder}, so the proxy and its scripts can be tested with real traffic and no network.
+ *
+ * <p>Everyone who connects gets their own playback from the start, keeping the recorded gaps
+ * between reads, scaled by the speed, or with no gaps at all at a speed of 0. Whatever the client
+ * sends is read and ignored, and the connection is closed once the recording ends.
+ */
+final class ReplayServer implements Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final int READ_BUFFER_SIZE = 2048;
+
+  private final ImmutableList<Path> segments;
+  private final double speed;
+  private final ServerSocket serverSocket;
+  private final AtomicInteger connectionCount = new AtomicInteger();
+
+  /**
+   * Listens on {@code port} to play back {@code segments}, from {@link
+   * SessionRecorder#findSegments}.
+   *
+   * @param speed how many times faster than real time to play back, or 0 for as fast as possible
+   */
+  ReplayServer(ImmutableList<Path> segments, int port, double speed) throws IOException {
+    checkArgument(!segments.isEmpty(), "Nothing to replay");
+    checkArgument(speed >= 0, "Invalid replay speed %s", speed);
+
+    this.segments = checkNotNull(segments);
+    this.speed = speed;
+    this.serverSocket = new ServerSocket(port);
+  }
+
+  /** Returns the port being listened on, which is only interesting when asked for any port. */
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /** Accepts connections until closed, playing back to each one on its own thread. */
+  void run() throws IOException {
+    logger.atInfo().log(
+        "Replaying %d segments on port %d at %s",
+        segments.size(), getPort(), speed == 0 ? "full speed" : speed + "x");
+    try {
+      while (true) {
+        Socket socket = serverSocket.accept();
+        int connection = connectionCount.incrementAndGet();
+        startDaemon(() -> replay(socket), "replay-" + connection);
+        startDaemon(() -> discardInput(socket), "replay-input-" + connection);
+      }
+    } catch (SocketException ex) {
+      if (!serverSocket.isClosed()) {
+        throw ex;
+      }
+      // closed
+    }
+  }
+
+  @Override
+  public void close() {
+    Util.close(serverSocket);
+  }
+
+  private void replay(Socket socket) {
+    logger.atInfo().log("Replaying to %s", socket.getRemoteSocketAddress());
+    try (OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+      Playback playback = new Playback(out);
+      for (Path segment : segments) {
+        SessionRecorder.read(segment, playback);
+      }
+      out.flush();
+      logger.atInfo().log("Finished replaying to %s", socket.getRemoteSocketAddress());
+    } catch (IOException ex) {
+      logger.atInfo().log(
+          "Stopped replaying to %s: %s", socket.getRemoteSocketAddress(), ex.getMessage());
+    } finally {
+      Util.close(socket);
+    }
+  }
+
+  /** Reads what the client sends so it never blocks writing, closing the socket once it's done. */
+  private static void discardInput(Socket socket) {
+    byte[] buffer = new byte[READ_BUFFER_SIZE];
+    try (InputStream in = socket.getInputStream()) {
+      while (in.read(buffer) >= 0) {
+        // ignored
+      }
+    } catch (IOException ex) {
+      // closed by the other thread
+    } finally {
+      Util.close(socket);
+    }
+  }
+
+  private static void startDaemon(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Writes the remote's records when they're due, relative to the first. */
+  private final class Playback implements SessionRecorder.RecordConsumer {
+    private final OutputStream out;
+    private final long startNanos = System.nanoTime();
+    private long firstRecordNanos;
+    private boolean started = false;
+
+    private Playback(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void accept(Direction direction, long nanoTime, byte[] buffer, int length)
+        throws IOException {
+      if (direction != Direction.REMOTE_TO_HOST) {
+        return;
+      }
+      if (!started) {
+        firstRecordNanos = nanoTime;
+        started = true;
+      }
+      if (speed > 0) {
+        long dueNanos = startNanos + (long) ((nanoTime - firstRecordNanos) / speed);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+          // everything up to now is sent before waiting, otherwise writes are gathered up
+          out.flush();
+          try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while replaying");
+          }
+        }
+      }
+      out.write(buffer, /* offset= */ 0, length);
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import javax.annotation.Nullable;
+
+/**
+ * Asks a player connecting to the menu port which route to take, before connecting them anywhere.
+ *
+ * <p>The player is shown the routes and answers with the name of one, in any case. The answer is
+ * read a byte at a time, so nothing typed after it is lost when the session takes over.
+ */
+final class RouteMenu {
+  /** How long a player has to pick a route before being disconnected. */
+  private static final int ANSWER_TIMEOUT_MILLIS = 60_000;
+  /** The longest answer read, since nothing sensible is longer. */
+  private static final int MAX_ANSWER_LENGTH = 80;
+
+  private final Routes routes;
+
+  RouteMenu(Routes routes) {
+    this.routes = checkNotNull(routes);
+  }
+
+  /**
+   * Shows the menu on {@code socket} and returns the route picked, or null if the player picked
+   * none, in which case they've been told why and the socket should be closed.
+   */
+  @Nullable
+  Routes.Route choose(Socket socket) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    ImmutableList<String> names =
+        routes.getRoutes().stream().map(Routes.Route::getName).collect(toImmutableList());
+    write(out, "Destinations: " + Joiner.on(", ").join(names) + "\r\nDestination: ");
+
+    int timeout = socket.getSoTimeout();
+    socket.setSoTimeout(ANSWER_TIMEOUT_MILLIS);
+    String answer = Util.readAnswer(socket.getInputStream(), MAX_ANSWER_LENGTH);
+    socket.setSoTimeout(timeout);
+    if (answer == null) {
+      return null;
+    }
+
+    Routes.Route route = routes.get(answer);
+    if (route == null) {
+      write(out, "No destination " + answer + "\r\n");
+      return null;
+    }
+    write(out, "Connecting to " + route.getName() + "\r\n");
+    return route;
+  }
+
+  private static void write(OutputStream out, String text) throws IOException {
+    out.write(text.getBytes(US_ASCII));
+    out.flush();
+  }
+}
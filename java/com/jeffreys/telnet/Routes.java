@@ -0,0 +1,136 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.net.HostAndPort;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * The remotes connections may be routed to, so one process can front several of them.
+ *
+ * <p>Each line of a routes file is a name, the remote as {@code host:port}, then optionally the
+ * local port whose connections go straight to it. A route without a local port can only be picked
+ * from the menu on {@code --menu_port}:
+ *
+ * <pre>
+ * # name  remote                 local port
+ * aard    aardmud.org:4000       4000
+ * disc    discworld.atuin.net:23
+ * </pre>
+ */
+final class Routes {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final int DEFAULT_REMOTE_PORT = 23;
+
+  /** Where one route goes. */
+  @AutoValue
+  abstract static class Route {
+    static Route create(String name, String remoteHost, int remotePort, int localPort) {
+      return new AutoValue_Routes_Route(name, remoteHost, remotePort, localPort);
+    }
+
+    abstract String getName();
+
+    abstract String getRemoteHost();
+
+    abstract int getRemotePort();
+
+    /** The local port whose connections take this route, or 0 if it's only on the menu. */
+    abstract int getLocalPort();
+  }
+
+  /** By lower case name. */
+  private final ImmutableMap<String, Route> routes;
+
+  private Routes(ImmutableMap<String, Route> routes) {
+    checkArgument(!routes.isEmpty(), "At least one route is required");
+
+    this.routes = routes;
+  }
+
+  /** Returns the single route given by {@code --remote_host}, when there's no routes file. */
+  static Routes of(Route route) {
+    return new Routes(ImmutableMap.of(key(route.getName()), route));
+  }
+
+  /**
+   * Parses the routes in {@code lines}, skipping blank lines and comments.
+   *
+   * @throws IllegalArgumentException if a line can't be parsed, or repeats a name or local port
+   */
+  static Routes parse(List<String> lines) {
+    Map<String, Route> routes = new LinkedHashMap<>();
+    Set<Integer> localPorts = new HashSet<>();
+    for (int i = 0; i < lines.size(); ++i) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      Route route = parseRoute(line, i + 1);
+      if (routes.putIfAbsent(key(route.getName()), route) != null) {
+        throw new IllegalArgumentException(
+            String.format("Route %s on line %d is already defined", route.getName(), i + 1));
+      }
+      if (route.getLocalPort() > 0 && !localPorts.add(route.getLocalPort())) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Local port %d on line %d is already routed", route.getLocalPort(), i + 1));
+      }
+    }
+    return new Routes(ImmutableMap.copyOf(routes));
+  }
+
+  /** Returns the routes in the file at {@code path}. */
+  static Routes load(String path) throws IOException {
+    Routes loaded = parse(Files.readAllLines(Path.of(path), UTF_8));
+    logger.atInfo().log("Loaded %d routes from %s", loaded.routes.size(), path);
+    return loaded;
+  }
+
+  /** Returns the routes in the order they were defined. */
+  ImmutableList<Route> getRoutes() {
+    return routes.values().asList();
+  }
+
+  /** Returns the route called {@code name}, ignoring case, or null if there isn't one. */
+  @Nullable
+  Route get(String name) {
+    return routes.get(key(name));
+  }
+
+  private static Route parseRoute(String line, int lineNumber) {
+    String[] fields = line.split("\\s+");
+    try {
+      if (fields.length < 2 || fields.length > 3) {
+        throw new IllegalArgumentException("expected <name> <host>:<port> [<local_port>]");
+      }
+      HostAndPort remote = HostAndPort.fromString(fields[1]).withDefaultPort(DEFAULT_REMOTE_PORT);
+      int localPort = fields.length == 3 ? Integer.parseInt(fields[2]) : 0;
+      checkArgument(localPort > 0 || fields.length == 2, "local port must be positive");
+      checkArgument(localPort <= 0xffff, "local port must be below 65536");
+      return Route.create(fields[0], remote.getHost(), remote.getPort(), localPort);
+    } catch (IllegalArgumentException ex) {
+      // NumberFormatException included
+      throw new IllegalArgumentException(
+          String.format("Invalid route on line %d: %s", lineNumber, ex.getMessage()), ex);
+    }
+  }
+
+  private static String key(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+}
@@ -1,15 +1,13 @@
 package com.jeffreys.telnet;
 
-import com.google.common.collect.ImmutableSet;
-import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /** Parses incoming data for a #!script tag, and then captures the script to execute. */
-final class ScriptParser implements BiConsumer<byte[], Integer> {
+final class ScriptParser implements ByteStage {
   private static final byte[] SCRIPT_LAUNCH_PREFIX = "#!script ".getBytes();
   private static final int MAX_PATH_LENGTH = 256;
-  private static final ImmutableSet<Byte> backspaceCharacters =
-      ImmutableSet.of((byte) '\b', (byte) 0x7F);
+  private static final byte BACKSPACE = (byte) '\b';
+  private static final byte DELETE = (byte) 0x7F;
 
   /** The {@link Consumer} to call when script text is identified. */
   private final Consumer<String> onLaunchScript;
@@ -23,8 +21,9 @@ final class ScriptParser implements BiConsumer<byte[], Integer> {
   }
 
   @Override
-  public void accept(byte[] buffer, Integer length) {
-    for (int i = 0; i < length; ++i) {
+  public void accept(byte[] buffer, int offset, int length) {
+    int end = offset + length;
+    for (int i = offset; i < end; ++i) {
       parseByte(buffer[i]);
     }
   }
@@ -57,7 +56,7 @@ final class ScriptParser implements BiConsumer<byte[], Integer> {
       }
       scriptStringBuilder = null;
       return;
-    } else if (backspaceCharacters.contains(b)) {
+    } else if (b == BACKSPACE || b == DELETE) {
       if (scriptStringBuilder.length() > 0) {
         scriptStringBuilder.deleteCharAt(scriptStringBuilder.length() - 1);
       }
@@ -0,0 +1,44 @@
+package com.jeffreys.telnet;
+
+import java.io.IOException;
+
+/**
+ * A script that runs inside the JVM instead of as a separate process.
+ *
+ * <p>Implementations are discovered with {@link java.util.ServiceLoader}, so they can be added by
+ * listing them in {@code META-INF/services/com.jeffreys.telnet.ScriptPlugin} of a jar on the
+ * classpath or in the {@code --plugins_dir} directory. Typing {@code #!script <name> [arguments]}
+ * starts the plugin called {@code name} in place of an external script.
+ */
+public interface ScriptPlugin {
+  /** The name used to launch this plugin, which must not contain whitespace. */
+  String getName();
+
+  /**
+   * Starts an instance of this plugin for a session.
+   *
+   * @param arguments whatever followed the name on the {@code #!script} line, possibly empty
+   * @param toRemote sends data to the remote host, from any thread, throwing {@link
+   *     java.io.UncheckedIOException} if the remote can't be written to
+   */
+  Script start(String arguments, ByteStage toRemote) throws IOException;
+
+  /**
+   * A running instance of a plugin, which is handed the remote data as it arrives.
+   *
+   * <p>Data is handed over on the thread reading the remote, straight from its read buffer, after
+   * it has been forwarded to the local client. Implementations must not block, and must copy
+   * anything they want to keep.
+   */
+  @FunctionalInterface
+  interface Script extends ByteStage {
+    /**
+     * Called on the thread reading the remote when a {@code notify <name>} trigger fires, see
+     * {@code --triggers_file}.
+     */
+    default void onTrigger(String name) {}
+
+    /** Called once the session ends, after which no more data is handed over. */
+    default void stop() {}
+  }
+}
@@ -0,0 +1,77 @@
+package com.jeffreys.telnet;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import javax.annotation.Nullable;
+
+/** The {@link ScriptPlugin}s available to launch, by name. */
+final class ScriptPlugins {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final ScriptPlugins EMPTY = new ScriptPlugins(ImmutableMap.of());
+
+  private final ImmutableMap<String, ScriptPlugin> plugins;
+
+  private ScriptPlugins(ImmutableMap<String, ScriptPlugin> plugins) {
+    this.plugins = plugins;
+  }
+
+  /** Indexes {@code plugins} by name, keeping the first of any with the same name. */
+  static ScriptPlugins of(Iterable<ScriptPlugin> plugins) {
+    Map<String, ScriptPlugin> byName = new LinkedHashMap<>();
+    for (ScriptPlugin plugin : plugins) {
+      ScriptPlugin existing = byName.putIfAbsent(plugin.getName(), plugin);
+      if (existing != null) {
+        logger.atWarning().log(
+            "Ignoring script plugin %s, %s already uses the name \"%s\"",
+            plugin.getClass().getName(), existing.getClass().getName(), plugin.getName());
+      }
+    }
+    return new ScriptPlugins(ImmutableMap.copyOf(byName));
+  }
+
+  /**
+   * Returns every plugin installed on the classpath, or in a jar in {@code pluginsDir} if it isn't
+   * empty.
+   */
+  static ScriptPlugins load(String pluginsDir) throws IOException {
+    ClassLoader classLoader = ScriptPlugins.class.getClassLoader();
+    if (!pluginsDir.isEmpty()) {
+      List<URL> jars = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(Path.of(pluginsDir), "*.jar")) {
+        for (Path jar : stream) {
+          jars.add(jar.toUri().toURL());
+        }
+      }
+      classLoader = new URLClassLoader(jars.toArray(new URL[0]), classLoader);
+    }
+
+    ScriptPlugins scriptPlugins = of(ServiceLoader.load(ScriptPlugin.class, classLoader));
+    if (!scriptPlugins.getNames().isEmpty()) {
+      logger.atInfo().log("Loaded script plugins %s", scriptPlugins.getNames());
+    }
+    return scriptPlugins;
+  }
+
+  /** Returns the plugin called {@code name}, or null if there isn't one. */
+  @Nullable
+  ScriptPlugin get(String name) {
+    return plugins.get(name);
+  }
+
+  ImmutableSet<String> getNames() {
+    return plugins.keySet();
+  }
+}
@@ -0,0 +1,126 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The newest remote data sent to a detached session, kept to replay once the player is back.
+ *
+ * <p>Data is gathered into a block, which is compressed once full. Blocks are kept in direct
+ * buffers, off the heap, and the oldest are dropped once they add up to more than the capacity, so
+ * a parked session holds at most the capacity plus one uncompressed block, however long it's
+ * parked for. The compressors are only held while a block is being compressed or expanded, since
+ * their native state is larger than a block.
+ */
+final class Scrollback {
+  private static final int BLOCK_SIZE = 16 * 1024;
+
+  private final int capacity;
+  private final Deque<Block> blocks = new ArrayDeque<>();
+  private final ByteBuffer current = ByteBuffer.allocateDirect(BLOCK_SIZE);
+  private long compressedBytes = 0;
+  private long droppedBytes = 0;
+
+  /** Keeps up to {@code capacity} bytes of compressed blocks. */
+  Scrollback(int capacity) {
+    checkArgument(capacity > 0, "Scrollback capacity must be positive");
+
+    this.capacity = capacity;
+  }
+
+  synchronized void write(byte[] buffer, int offset, int length) {
+    while (length > 0) {
+      int toCopy = Math.min(length, current.remaining());
+      current.put(buffer, offset, toCopy);
+      offset += toCopy;
+      length -= toCopy;
+      if (!current.hasRemaining()) {
+        compressCurrent();
+      }
+    }
+  }
+
+  /** Writes what's been kept to {@code out}, oldest first. */
+  synchronized void writeTo(OutputStream out) throws IOException {
+    byte[] expanded = new byte[BLOCK_SIZE];
+    Inflater inflater = new Inflater();
+    try {
+      for (Block block : blocks) {
+        inflater.reset();
+        inflater.setInput(block.data.duplicate());
+        int length = 0;
+        while (length < block.length) {
+          int expandedLength = inflater.inflate(expanded, length, block.length - length);
+          if (expandedLength == 0 && (inflater.needsInput() || inflater.finished())) {
+            throw new IOException("Truncated scrollback block");
+          }
+          length += expandedLength;
+        }
+        out.write(expanded, /* offset= */ 0, length);
+      }
+    } catch (DataFormatException ex) {
+      throw new IOException("Corrupt scrollback block", ex);
+    } finally {
+      inflater.end();
+    }
+
+    ByteBuffer partial = current.duplicate().flip();
+    int partialLength = partial.remaining();
+    partial.get(expanded, /* offset= */ 0, partialLength);
+    out.write(expanded, /* offset= */ 0, partialLength);
+  }
+
+  /** Returns how many bytes of remote data were dropped to stay within the capacity. */
+  synchronized long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  /** Returns how many bytes are held off the heap, compressed or not. */
+  synchronized long getRetainedBytes() {
+    return compressedBytes + current.capacity();
+  }
+
+  private void compressCurrent() {
+    byte[] compressed = new byte[BLOCK_SIZE + BLOCK_SIZE / 16 + 64];
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    int compressedLength;
+    try {
+      deflater.setInput(current.flip());
+      deflater.finish();
+      compressedLength = deflater.deflate(compressed);
+    } finally {
+      deflater.end();
+    }
+
+    ByteBuffer data = ByteBuffer.allocateDirect(compressedLength);
+    data.put(compressed, /* offset= */ 0, compressedLength).flip();
+    blocks.addLast(new Block(data, current.limit()));
+    compressedBytes += compressedLength;
+    current.clear();
+
+    while (compressedBytes > capacity) {
+      Block dropped = blocks.removeFirst();
+      compressedBytes -= dropped.data.capacity();
+      droppedBytes += dropped.length;
+    }
+  }
+
+  /** A compressed block, and how long it was before. */
+  private static final class Block {
+    private final ByteBuffer data;
+    private final int length;
+
+    private Block(ByteBuffer data, int length) {
+      this.data = data;
+      this.length = length;
+    }
+  }
+}
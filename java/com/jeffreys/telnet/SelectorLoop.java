@@ -0,0 +1,132 @@
+package com.jeffreys.telnet;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Multiplexes any number of non-blocking channels on a single thread.
+ *
+ * <p>All channel handlers run on the loop thread, so they never need to synchronize with each
+ * other. Other threads hand work to the loop with {@link #execute}.
+ */
+final class SelectorLoop implements Runnable, Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  static final int READ_BUFFER_SIZE = 2048;
+
+  /** Receives readiness events for a registered channel. */
+  interface Handler {
+    /** Called on the loop thread when {@code key} is ready for one of its interest operations. */
+    void onReady(SelectionKey key);
+  }
+
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  /** Shared by every channel on this loop, since handlers consume reads synchronously. */
+  private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+  private volatile boolean running = true;
+  private volatile Thread thread = null;
+
+  SelectorLoop() throws IOException {
+    this.selector = Selector.open();
+  }
+
+  /** Runs {@code task} on the loop thread, immediately if called from it. */
+  void execute(Runnable task) {
+    if (inLoop()) {
+      task.run();
+      return;
+    }
+
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /** The read buffer for handlers on this loop, only valid on the loop thread. */
+  byte[] getReadBuffer() {
+    return readBuffer;
+  }
+
+  /**
+   * Registers {@code channel} with this loop, or re-targets its existing key to {@code handler}.
+   *
+   * <p>Must be called on the loop thread.
+   */
+  SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+      throws ClosedChannelException {
+    SelectionKey key = channel.keyFor(selector);
+    if (key == null) {
+      return channel.register(selector, ops, handler);
+    }
+
+    key.interestOps(ops);
+    key.attach(handler);
+    return key;
+  }
+
+  @Override
+  public void run() {
+    thread = Thread.currentThread();
+    try {
+      while (running) {
+        selector.select();
+        runTasks();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          if (!key.isValid()) {
+            continue;
+          }
+
+          try {
+            ((Handler) key.attachment()).onReady(key);
+          } catch (RuntimeException ex) {
+            // one misbehaving connection must not take down every other one on this loop
+            logger.atWarning().withCause(ex).log("Channel handler failed, closing channel");
+            Util.close(key.channel());
+          }
+        }
+      }
+    } catch (IOException ex) {
+      logger.atSevere().withCause(ex).log("Selector failed, exiting loop");
+    } finally {
+      logger.atInfo().log("Exiting selector loop");
+      for (SelectionKey key : selector.keys()) {
+        Util.close(key.channel());
+      }
+      Util.close(selector);
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException ex) {
+        logger.atWarning().withCause(ex).log("Selector task failed");
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    selector.wakeup();
+  }
+}
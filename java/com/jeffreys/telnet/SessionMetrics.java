@@ -0,0 +1,123 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latencies for a single session.
+ *
+ * <p>Each counter is a {@link LongAdder}, and each latency a {@link LatencyHistogram}, so the
+ * threads serving the session count without locks or contention, and only whoever reads them pays
+ * to add them up.
+ */
+final class SessionMetrics {
+  /** What's timed, in nanoseconds. */
+  enum Latency {
+    /** From reading what the local client typed to having written it to the remote. */
+    HOST_TO_REMOTE,
+    /** From reading remote data to having written it to the local client. */
+    REMOTE_TO_HOST,
+    /** From reading remote data no script had reacted to yet, to reading a script's output. */
+    SCRIPT_REACTION
+  }
+
+  private final long id;
+  private final LongAdder[] bytes = newAdders(Direction.values().length);
+  private final LongAdder[] chunks = newAdders(Direction.values().length);
+  private final LongAdder iacSequences = new LongAdder();
+  private final LongAdder scriptsLaunched = new LongAdder();
+  private final LongAdder scriptsDied = new LongAdder();
+  private final LatencyHistogram[] latencies = new LatencyHistogram[Latency.values().length];
+  private volatile LongSupplier scriptBacklog = () -> 0;
+
+  SessionMetrics(long id) {
+    this.id = id;
+    for (int i = 0; i < latencies.length; ++i) {
+      latencies[i] = new LatencyHistogram();
+    }
+  }
+
+  long getId() {
+    return id;
+  }
+
+  /** Counts a chunk read on its way in {@code direction}. */
+  void addChunk(Direction direction, int length) {
+    bytes[direction.ordinal()].add(length);
+    chunks[direction.ordinal()].increment();
+  }
+
+  /** Returns the counter for telnet sequences filtered out of either direction. */
+  LongAdder getIacSequenceCounter() {
+    return iacSequences;
+  }
+
+  void recordLatency(Latency latency, long nanos) {
+    latencies[latency.ordinal()].record(nanos);
+  }
+
+  LatencyHistogram getLatency(Latency latency) {
+    return latencies[latency.ordinal()];
+  }
+
+  void scriptLaunched() {
+    scriptsLaunched.increment();
+  }
+
+  void scriptDied() {
+    scriptsDied.increment();
+  }
+
+  /** Sets where the number of bytes waiting to be written to scripts is read from. */
+  void setScriptBacklog(LongSupplier scriptBacklog) {
+    this.scriptBacklog = checkNotNull(scriptBacklog);
+  }
+
+  long getBytes(Direction direction) {
+    return bytes[direction.ordinal()].sum();
+  }
+
+  long getChunks(Direction direction) {
+    return chunks[direction.ordinal()].sum();
+  }
+
+  long getIacSequences() {
+    return iacSequences.sum();
+  }
+
+  long getScriptsLaunched() {
+    return scriptsLaunched.sum();
+  }
+
+  long getScriptsDied() {
+    return scriptsDied.sum();
+  }
+
+  long getScriptBacklog() {
+    return scriptBacklog.getAsLong();
+  }
+
+  /** Adds the counters and latencies of {@code other} to these, leaving the backlog alone. */
+  void addAll(SessionMetrics other) {
+    for (Direction direction : Direction.values()) {
+      bytes[direction.ordinal()].add(other.getBytes(direction));
+      chunks[direction.ordinal()].add(other.getChunks(direction));
+    }
+    iacSequences.add(other.getIacSequences());
+    scriptsLaunched.add(other.getScriptsLaunched());
+    scriptsDied.add(other.getScriptsDied());
+    for (Latency latency : Latency.values()) {
+      getLatency(latency).add(other.getLatency(latency));
+    }
+  }
+
+  private static LongAdder[] newAdders(int count) {
+    LongAdder[] adders = new LongAdder[count];
+    for (int i = 0; i < count; ++i) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+}
@@ -0,0 +1,386 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Records everything sent through each session, timestamped, into append-only segment files for
+ * auditing and replay.
+ *
+ * <p>Each segment is mapped into memory, so recording a chunk costs the forwarding thread a copy
+ * into the mapped region and nothing more. The file system work all happens on a background
+ * thread shared by every session: the next segment is created and mapped before the current one
+ * fills, and full segments are flushed to disk, trimmed and optionally compressed once they're
+ * sealed.
+ *
+ * <p>A session's segments are named {@code <session>.<index>.rec}, or {@code .rec.gz} once
+ * compressed. Each starts with a {@value #SEGMENT_HEADER_SIZE} byte header of a magic number, a
+ * version, and the wall clock and {@link System#nanoTime} when it was created. That's followed by
+ * records of a direction byte, the {@link System#nanoTime} it was recorded, a length and that many
+ * bytes, all big endian. A zero direction byte, or the end of the file, ends the segment.
+ */
+final class SessionRecorder {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** Records nothing. */
+  static final SessionRecorder DISABLED = new SessionRecorder();
+
+  @VisibleForTesting static final int MAGIC = 0x54535243; // "TSRC"
+  private static final int VERSION = 1;
+  @VisibleForTesting static final int SEGMENT_HEADER_SIZE = 24;
+  /** The direction, time and length before each record's bytes. */
+  @VisibleForTesting static final int RECORD_HEADER_SIZE = 13;
+
+  private static final String SEGMENT_SUFFIX = ".rec";
+  private static final String COMPRESSED_SUFFIX = ".gz";
+  private static final DateTimeFormatter SESSION_TIME =
+      DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+  /** Called with each record read back from a segment. */
+  @FunctionalInterface
+  interface RecordConsumer {
+    /** {@code buffer} is only valid during the call. */
+    void accept(Direction direction, long nanoTime, byte[] buffer, int length) throws IOException;
+  }
+
+  @Nullable private final Path directory;
+  private final int segmentSize;
+  private final boolean compress;
+  private final Executor roller;
+  private final AtomicInteger sessionCount = new AtomicInteger();
+
+  private SessionRecorder() {
+    this.directory = null;
+    this.segmentSize = 0;
+    this.compress = false;
+    this.roller = Runnable::run;
+  }
+
+  /**
+   * Records into {@code directory}, with segments of {@code segmentSize} bytes.
+   *
+   * @param compress whether to gzip each segment once it's sealed
+   */
+  SessionRecorder(Path directory, long segmentSize, boolean compress) {
+    this(directory, segmentSize, compress, SharedRoller.INSTANCE);
+  }
+
+  @VisibleForTesting
+  SessionRecorder(Path directory, long segmentSize, boolean compress, Executor roller) {
+    checkArgument(
+        segmentSize > SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE && segmentSize <= Integer.MAX_VALUE,
+        "Invalid segment size %s",
+        segmentSize);
+    this.directory = checkNotNull(directory);
+    this.segmentSize = (int) segmentSize;
+    this.compress = compress;
+    this.roller = checkNotNull(roller);
+  }
+
+  /**
+   * Returns a recorder writing into the directory at {@code path}, creating it if needed, or
+   * {@link #DISABLED} if {@code path} is empty.
+   */
+  static SessionRecorder create(String path, long segmentSize, boolean compress)
+      throws IOException {
+    if (path.isEmpty()) {
+      return DISABLED;
+    }
+    Path directory = Files.createDirectories(Path.of(path));
+    logger.atInfo().log("Recording sessions to %s", directory);
+    return new SessionRecorder(directory, segmentSize, compress);
+  }
+
+  boolean isEnabled() {
+    return directory != null;
+  }
+
+  /** Starts recording a new session, mapping its first segment. */
+  Recording start() throws IOException {
+    checkState(isEnabled(), "Recording is disabled");
+    String session =
+        String.format(
+            "session-%s-%d",
+            LocalDateTime.now().format(SESSION_TIME), sessionCount.incrementAndGet());
+    return new Recording(session);
+  }
+
+  /**
+   * Returns the segments of a recorded session in order, where {@code session} is its directory
+   * and name, like {@code recordings/session-20240101-120000-1}.
+   *
+   * @throws IOException if no segments were found
+   */
+  static ImmutableList<Path> findSegments(Path session) throws IOException {
+    Path directory = session.toAbsolutePath().getParent();
+    String prefix = session.getFileName() + ".";
+    // keyed by the uncompressed name, since a segment is briefly both while it's compressed
+    SortedMap<String, Path> segments = new TreeMap<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(
+          file -> {
+            String name = file.getFileName().toString();
+            if (name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX)) {
+              segments.put(name, file);
+            } else if (name.startsWith(prefix)
+                && name.endsWith(SEGMENT_SUFFIX + COMPRESSED_SUFFIX)) {
+              segments.putIfAbsent(
+                  name.substring(0, name.length() - COMPRESSED_SUFFIX.length()), file);
+            }
+          });
+    }
+    if (segments.isEmpty()) {
+      throw new IOException("No recording found for " + session);
+    }
+    return ImmutableList.copyOf(segments.values());
+  }
+
+  /** Reads each record of the segment at {@code path}, compressed or not, in order. */
+  static void read(Path path, RecordConsumer consumer) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      DataInputStream data =
+          new DataInputStream(
+              new BufferedInputStream(
+                  path.toString().endsWith(COMPRESSED_SUFFIX) ? new GZIPInputStream(in) : in));
+      if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+        throw new IOException("Not a session recording: " + path);
+      }
+      data.readLong(); // wall clock
+      data.readLong(); // nanoTime
+
+      Direction[] directions = Direction.values();
+      byte[] buffer = new byte[0];
+      int code;
+      while ((code = data.read()) > 0) {
+        if (code > directions.length) {
+          throw new IOException("Corrupt session recording: " + path);
+        }
+        long nanoTime = data.readLong();
+        int length = data.readInt();
+        if (length > buffer.length) {
+          buffer = new byte[length];
+        }
+        data.readFully(buffer, /* offset= */ 0, length);
+        consumer.accept(directions[code - 1], nanoTime, buffer, length);
+      }
+    } catch (EOFException ex) {
+      throw new IOException("Truncated session recording: " + path, ex);
+    }
+  }
+
+  /** The recording of a single session, which any of its threads may add to. */
+  final class Recording implements Closeable {
+    private final String session;
+
+    /** The segment being written, or null once closed or if recording failed. */
+    @GuardedBy("this")
+    @Nullable
+    private Segment segment;
+
+    /** The segment to switch to once {@link #segment} fills, mapped ahead of time. */
+    @GuardedBy("this")
+    @Nullable
+    private CompletableFuture<Segment> nextSegment;
+
+    private Recording(String session) throws IOException {
+      this.session = session;
+      this.segment = map(/* index= */ 0);
+      this.nextSegment = mapLater(/* index= */ 1);
+    }
+
+    String getSession() {
+      return session;
+    }
+
+    /**
+     * Appends {@code length} bytes of {@code buffer}. Anything bigger than the room left in a
+     * segment is split across segments.
+     */
+    synchronized void record(Direction direction, byte[] buffer, int offset, int length) {
+      if (segment == null || length == 0) {
+        return;
+      }
+      long nanoTime = System.nanoTime();
+      byte code = (byte) (direction.ordinal() + 1);
+      while (length > 0) {
+        if (segment.buffer.remaining() <= RECORD_HEADER_SIZE && !roll()) {
+          return;
+        }
+        int bytes = Math.min(length, segment.buffer.remaining() - RECORD_HEADER_SIZE);
+        segment.buffer.put(code).putLong(nanoTime).putInt(bytes).put(buffer, offset, bytes);
+        offset += bytes;
+        length -= bytes;
+      }
+    }
+
+    /** Seals the segment being written and the session with it. */
+    @Override
+    public synchronized void close() {
+      if (segment == null) {
+        return;
+      }
+      seal(segment);
+      segment = null;
+      // the segment mapped ahead of time was never used
+      nextSegment.thenAccept(spare -> delete(spare.path));
+      nextSegment = null;
+    }
+
+    /**
+     * Switches to the next segment, returning whether there is one.
+     *
+     * <p>The next segment is almost always mapped already, so this only waits on the file system
+     * if the background thread has fallen a whole segment behind.
+     */
+    @GuardedBy("this")
+    private boolean roll() {
+      Segment full = segment;
+      seal(full);
+      try {
+        segment = nextSegment.join();
+      } catch (CompletionException ex) {
+        logger.atWarning().withCause(ex.getCause()).log(
+            "Failed to map the next segment of %s, trying again", session);
+        try {
+          segment = map(full.index + 1);
+        } catch (IOException retryEx) {
+          logger.atWarning().withCause(retryEx).log(
+              "Stopped recording %s, it's missing everything from now on", session);
+          segment = null;
+          nextSegment = null;
+          return false;
+        }
+      }
+      nextSegment = mapLater(segment.index + 1);
+      return true;
+    }
+
+    /** Finishes with {@code full} in the background, which is no longer written to. */
+    private void seal(Segment full) {
+      int length = full.buffer.position();
+      roller.execute(() -> finish(full, length));
+    }
+
+    private CompletableFuture<Segment> mapLater(int index) {
+      return CompletableFuture.supplyAsync(
+          () -> {
+            try {
+              return map(index);
+            } catch (IOException ex) {
+              throw new UncheckedIOException(ex);
+            }
+          },
+          roller);
+    }
+
+    private Segment map(int index) throws IOException {
+      Path path = directory.resolve(String.format("%s.%06d%s", session, index, SEGMENT_SUFFIX));
+      try (FileChannel channel =
+          FileChannel.open(
+              path,
+              StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        // grows the file to the full size, which stays sparse until written
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        buffer
+            .putInt(MAGIC)
+            .putInt(VERSION)
+            .putLong(System.currentTimeMillis())
+            .putLong(System.nanoTime());
+        return new Segment(index, path, buffer);
+      }
+    }
+  }
+
+  /**
+   * Flushes a sealed segment to disk and trims the unused end off, then compresses it if asked to.
+   */
+  private void finish(Segment sealed, int length) {
+    try {
+      sealed.buffer.force();
+      try (FileChannel channel = FileChannel.open(sealed.path, StandardOpenOption.WRITE)) {
+        channel.truncate(length);
+      } catch (IOException ex) {
+        // some platforms won't truncate a mapped file, which readers cope with
+        logger.atFine().withCause(ex).log("Failed to trim %s", sealed.path);
+      }
+      if (compress) {
+        Path compressed = Path.of(sealed.path + COMPRESSED_SUFFIX);
+        Path partial = Path.of(compressed + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(partial))) {
+          Files.copy(sealed.path, out);
+        }
+        Files.move(partial, compressed, StandardCopyOption.ATOMIC_MOVE);
+        Files.delete(sealed.path);
+      }
+    } catch (IOException | UncheckedIOException ex) {
+      logger.atWarning().withCause(ex).log("Failed to seal %s", sealed.path);
+    }
+  }
+
+  private static void delete(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException ex) {
+      logger.atWarning().withCause(ex).log("Failed to delete %s", path);
+    }
+  }
+
+  /** A mapped segment file. */
+  private static final class Segment {
+    private final int index;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+
+    private Segment(int index, Path path, MappedByteBuffer buffer) {
+      this.index = index;
+      this.path = path;
+      this.buffer = buffer;
+    }
+  }
+
+  /** Maps and seals segments for every session, created the first time a session is recorded. */
+  private static final class SharedRoller {
+    static final Executor INSTANCE =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "session-recorder-roller");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+}
@@ -0,0 +1,39 @@
+package com.jeffreys.telnet;
+
+import com.google.common.collect.ImmutableSortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * The open sessions by id, so spectators can find one to attach to, and by token, so players can
+ * find theirs to resume.
+ */
+final class SessionRegistry {
+  private final ConcurrentMap<Long, TelnetConnection> sessions = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, TelnetConnection> sessionsByToken = new ConcurrentHashMap<>();
+
+  void add(TelnetConnection session) {
+    sessions.put(session.getId(), session);
+    sessionsByToken.put(session.getToken(), session);
+  }
+
+  void remove(TelnetConnection session) {
+    sessions.remove(session.getId(), session);
+    sessionsByToken.remove(session.getToken(), session);
+  }
+
+  @Nullable
+  TelnetConnection get(long id) {
+    return sessions.get(id);
+  }
+
+  @Nullable
+  TelnetConnection getByToken(String token) {
+    return sessionsByToken.get(token);
+  }
+
+  ImmutableSortedSet<Long> getIds() {
+    return ImmutableSortedSet.copyOf(sessions.keySet());
+  }
+}
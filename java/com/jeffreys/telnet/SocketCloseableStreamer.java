@@ -2,16 +2,25 @@ package com.jeffreys.telnet;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.Socket;
 
 final class SocketCloseableStreamer implements CloseableStreamer {
   private final Socket socket;
+  /** Data already read from the socket, returned ahead of anything still to be read. */
+  private final byte[] prefix;
 
   SocketCloseableStreamer(Socket socket) {
+    this(socket, new byte[0]);
+  }
+
+  SocketCloseableStreamer(Socket socket, byte[] prefix) {
     this.socket = checkNotNull(socket);
+    this.prefix = checkNotNull(prefix);
   }
 
   @Override
@@ -21,7 +30,10 @@ final class SocketCloseableStreamer implements CloseableStreamer {
 
   @Override
   public InputStream getInputStream() throws IOException {
-    return socket.getInputStream();
+    if (prefix.length == 0) {
+      return socket.getInputStream();
+    }
+    return new SequenceInputStream(new ByteArrayInputStream(prefix), socket.getInputStream());
   }
 
   @Override
@@ -0,0 +1,192 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.google.common.base.Joiner;
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Lets local clients attach to an open session, to watch what the remote sends it or, if allowed,
+ * to drive it too, and lets players resume their detached sessions.
+ *
+ * <p>On connecting, a spectator is shown the open sessions and asked which to watch. Answering
+ * {@code drive <id>} instead of just {@code <id>} asks to drive it too. Answering {@code resume
+ * <token>} resumes the detached session with that token instead.
+ *
+ * <p>Nothing asks who a spectator is, so only connections from this machine are accepted. A
+ * server made by {@link #forResuming} only lets players resume, which needs the secret token, so it
+ * accepts connections from anywhere, as the player's own port does.
+ */
+final class SpectatorServer implements Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  /** How long a spectator has to pick a session before being disconnected. */
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 60_000;
+  /** The longest answer read, since nothing sensible is longer. */
+  private static final int MAX_ANSWER_LENGTH = 80;
+
+  private final SessionRegistry sessions;
+  private final boolean allowDriving;
+  /** Whether clients may only resume, rather than watch or drive. */
+  private final boolean resumeOnly;
+  private final ThreadFactory threadFactory;
+  private final ServerSocket serverSocket;
+
+  /** Listens on {@code port} of the loopback interface, or any free port if it's 0. */
+  SpectatorServer(
+      SessionRegistry sessions, int port, boolean allowDriving, ThreadFactory threadFactory)
+      throws IOException {
+    this(
+        sessions,
+        new ServerSocket(port, /* backlog= */ 0, InetAddress.getLoopbackAddress()),
+        allowDriving,
+        /* resumeOnly= */ false,
+        threadFactory);
+  }
+
+  private SpectatorServer(
+      SessionRegistry sessions,
+      ServerSocket serverSocket,
+      boolean allowDriving,
+      boolean resumeOnly,
+      ThreadFactory threadFactory) {
+    this.sessions = checkNotNull(sessions);
+    this.serverSocket = checkNotNull(serverSocket);
+    this.allowDriving = allowDriving;
+    this.resumeOnly = resumeOnly;
+    this.threadFactory = checkNotNull(threadFactory);
+  }
+
+  /**
+   * Returns a server that only lets players resume their detached sessions, listening on {@code
+   * port} of every interface, or any free port if it's 0.
+   */
+  static SpectatorServer forResuming(
+      SessionRegistry sessions, int port, ThreadFactory threadFactory) throws IOException {
+    return new SpectatorServer(
+        sessions,
+        new ServerSocket(port),
+        /* allowDriving= */ false,
+        /* resumeOnly= */ true,
+        threadFactory);
+  }
+
+  /** Returns the port being listened on, which is only interesting when asked for any port. */
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /** Accepts spectators until closed. */
+  void run() throws IOException {
+    logger.atInfo().log(
+        "Accepting %s on port %d", resumeOnly ? "resumes" : "spectators", getPort());
+    try {
+      while (true) {
+        Socket socket = serverSocket.accept();
+        // asking which session to attach to waits on the spectator, so it gets a thread of its own
+        threadFactory.newThread(() -> attach(socket)).start();
+      }
+    } catch (SocketException ex) {
+      if (!serverSocket.isClosed()) {
+        throw ex;
+      }
+      // closed
+    }
+  }
+
+  @Override
+  public void close() {
+    Util.close(serverSocket);
+  }
+
+  /** Asks {@code socket} which session it wants, then attaches it. */
+  private void attach(Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+
+      OutputStream out = socket.getOutputStream();
+      if (resumeOnly) {
+        write(out, "Session to resume: ");
+        String answer = Util.readAnswer(socket.getInputStream(), MAX_ANSWER_LENGTH);
+        if (answer == null) {
+          Util.close(socket);
+          return;
+        }
+        // players are told to answer resume <token>, but the token alone will do
+        String token = answer.startsWith("resume ") ? answer.substring("resume ".length()) : answer;
+        resume(socket, token.trim());
+        return;
+      }
+      write(
+          out,
+          "Open sessions: "
+              + (sessions.getIds().isEmpty() ? "none" : Joiner.on(", ").join(sessions.getIds()))
+              + "\r\n"
+              + (allowDriving ? "Session to watch, or drive <session>: " : "Session to watch: "));
+
+      String answer = Util.readAnswer(socket.getInputStream(), MAX_ANSWER_LENGTH);
+      if (answer == null) {
+        Util.close(socket);
+        return;
+      }
+      if (answer.startsWith("resume ")) {
+        resume(socket, answer.substring("resume ".length()).trim());
+        return;
+      }
+      boolean driving = false;
+      if (allowDriving && answer.startsWith("drive ")) {
+        driving = true;
+        answer = answer.substring("drive ".length()).trim();
+      }
+
+      TelnetConnection session = null;
+      try {
+        session = sessions.get(Long.parseLong(answer));
+      } catch (NumberFormatException ex) {
+        // no such session, as below
+      }
+      if (session == null) {
+        write(out, "No session " + answer + "\r\n");
+        Util.close(socket);
+        return;
+      }
+
+      write(out, (driving ? "Driving" : "Watching") + " session " + session.getId() + "\r\n");
+      socket.setSoTimeout(0);
+      session.attachViewer(new SocketCloseableStreamer(socket), driving);
+    } catch (IOException ex) {
+      logger.atInfo().withCause(ex).log("Unable to attach spectator");
+      Util.close(socket);
+    }
+  }
+
+  /** Resumes the detached session with {@code token}, if there is one. */
+  private void resume(Socket socket, String token) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    TelnetConnection session = sessions.getByToken(token);
+    if (session == null) {
+      // the token is a secret, so it isn't repeated back
+      write(out, "No session to resume\r\n");
+      Util.close(socket);
+      return;
+    }
+
+    write(out, "Resuming session " + session.getId() + "\r\n");
+    socket.setSoTimeout(0);
+    session.resume(new SocketCloseableStreamer(socket));
+  }
+
+  private static void write(OutputStream out, String text) throws IOException {
+    out.write(text.getBytes(US_ASCII));
+    out.flush();
+  }
+}
@@ -0,0 +1,16 @@
+package com.jeffreys.telnet;
+
+/**
+ * Creates the {@link ByteStage}s for a connection.
+ *
+ * <p>Implementations are discovered with {@link java.util.ServiceLoader}, so additional stages can
+ * be added by listing them in {@code META-INF/services/com.jeffreys.telnet.StageFactory} of a jar
+ * on the classpath. Stages see data after telnet IAC sequences have been removed.
+ */
+public interface StageFactory {
+  /**
+   * Returns a new stage for data flowing in {@code direction}, which must pass data on to {@code
+   * next}. Factories that don't apply to {@code direction} return {@code next} itself.
+   */
+  ByteStage create(Direction direction, ByteStage next);
+}
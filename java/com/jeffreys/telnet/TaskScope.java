@@ -0,0 +1,102 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.flogger.FluentLogger;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Owns the threads forked for a session, so they can all be cancelled and joined together.
+ *
+ * <p>A small stand-in for {@code StructuredTaskScope}, which is still a preview API. Closing the
+ * scope waits for every thread to exit, interrupting any that are still running after a short
+ * grace period. Callers are expected to close the resources the threads block on first, so the
+ * interrupt is only a backstop. Closing is idempotent and may be called from one of the scope's own
+ * threads, which is never joined.
+ */
+final class TaskScope implements Closeable {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final long CANCEL_GRACE_MILLIS = 250;
+  private static final long JOIN_TIMEOUT_MILLIS = 5000;
+
+  private final ThreadFactory threadFactory;
+
+  @GuardedBy("this")
+  private final List<Thread> threads = new ArrayList<>();
+
+  @GuardedBy("this")
+  private boolean closed = false;
+
+  TaskScope(ThreadFactory threadFactory) {
+    this.threadFactory = checkNotNull(threadFactory);
+  }
+
+  /**
+   * Starts each of {@code tasks} on a new thread owned by this scope.
+   *
+   * <p>All of the threads are started before the scope can be closed, even if one of them closes
+   * it immediately.
+   *
+   * @throws RejectedExecutionException if the scope is already closed
+   */
+  synchronized void fork(Runnable... tasks) {
+    if (closed) {
+      throw new RejectedExecutionException("TaskScope is closed");
+    }
+
+    for (Runnable task : tasks) {
+      Thread thread = threadFactory.newThread(task);
+      threads.add(thread);
+      thread.start();
+    }
+  }
+
+  @Override
+  public void close() {
+    List<Thread> toJoin;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      toJoin = new ArrayList<>(threads);
+      threads.clear();
+    }
+
+    toJoin.remove(Thread.currentThread());
+    try {
+      joinAll(toJoin, CANCEL_GRACE_MILLIS);
+      for (Thread thread : toJoin) {
+        thread.interrupt();
+      }
+      joinAll(toJoin, JOIN_TIMEOUT_MILLIS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    for (Thread thread : toJoin) {
+      if (thread.isAlive()) {
+        logger.atWarning().log("Thread %s did not exit when its scope closed", thread.getName());
+      }
+    }
+  }
+
+  private static void joinAll(List<Thread> threads, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    for (Thread thread : threads) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) {
+        return;
+      }
+      thread.join(remaining);
+    }
+  }
+}
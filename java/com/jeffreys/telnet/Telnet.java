@@ -0,0 +1,27 @@
+package com.jeffreys.telnet;
+
+/** Telnet protocol constants. */
+final class Telnet {
+  static final byte IAC = (byte) 0xFF;
+  static final byte DONT = (byte) 0xFE;
+  static final byte DO = (byte) 0xFD;
+  static final byte WONT = (byte) 0xFC;
+  static final byte WILL = (byte) 0xFB;
+  static final byte SB = (byte) 0xFA;
+  static final byte GA = (byte) 0xF9;
+  static final byte SE = (byte) 0xF0;
+  static final byte EOR = (byte) 0xEF;
+
+  /** MCCP2, server to client compression. */
+  static final byte COMPRESS2 = 86;
+  /** MCCP3, client to server compression. */
+  static final byte COMPRESS3 = 87;
+
+  // thou shall not instantiate
+  private Telnet() {}
+
+  /** Returns the {@code IAC SB option IAC SE} sequence, which starts MCCP compression. */
+  static byte[] startCompression(byte option) {
+    return new byte[] {IAC, SB, option, IAC, SE};
+  }
+}
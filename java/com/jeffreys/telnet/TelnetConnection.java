@@ -3,83 +3,692 @@ package com.jeffreys.telnet;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static com.jeffreys.telnet.Util.close;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.flogger.FluentLogger;
+import com.google.common.io.BaseEncoding;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.function.BiConsumer;
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Manages the host and remote socket connection, by bridging the data between them.
  *
- * <p>Also responsible for parsing remote script commands and launching a local script, passing
- * socket data as stdin/stdout to it.
+ * <p>Also responsible for parsing remote script commands and launching local scripts, passing
+ * socket data as stdin/stdout to them. Any number of scripts may run at once, each reading the
+ * remote data from a shared {@link FanOutBuffer} at its own pace. Scripts named after a {@link
+ * ScriptPlugin} run in process instead, and are handed the remote data directly.
+ *
+ * <p>Spectators may attach to watch what the remote sends, each reading from another {@link
+ * FanOutBuffer} at their own pace, and losing the oldest data rather than holding anyone else up if
+ * they fall too far behind. Spectators attached to drive have what they type sent to the remote a
+ * line at a time, like script output, so several people typing don't garble each other's commands.
+ *
+ * <p>If detaching is enabled, the session outlives the player's client for a grace period, keeping
+ * the remote connected and what it sends in a {@link Scrollback}. A client presenting the session's
+ * token in that time resumes it, being sent the scrollback and then taking the player's place.
  */
 final class TelnetConnection {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
   private static final int READ_BUFFER_SIZE = 2048;
-  private static final int PROCESS_READ_THREAD_INDEX = 2;
+  /** What an idle reader waits on, before it's handed a pooled buffer once data starts flowing. */
+  private static final int IDLE_READ_BUFFER_SIZE = 256;
+  /** How long a script that exits is given to read the remote data already sent its way. */
+  private static final long SCRIPT_DRAIN_MILLIS = 250;
+  /** Follows the script path to run it only for remote data containing some text. */
+  private static final String SCRIPT_MATCH_FLAG = " --match=";
+  private static final SecureRandom tokenRandom = new SecureRandom();
 
   private final CloseableStreamer host;
   private final CloseableStreamer remote;
-  private final Thread[] threads = new Thread[3]; // 2 socket read threads + 1 process read thread
+  private final ConnectionOptions options;
+  /** Whether writes are only flushed once their input goes idle. */
+  private final boolean coalescing;
+  /** Owns both socket read threads. */
+  private final TaskScope sessionScope;
   private final ScriptParser scriptParser = new ScriptParser(this::launchScript);
+  private final PromptDetector promptDetector = new PromptDetector();
+  // the stage chains for each direction, built once
+  private final ByteStage hostStages;
+  private final ByteStage remoteStages;
   private final ProcessLauncher processLauncher;
-  private final Object processLock = new Object();
-  @Nullable private Process process = null;
+  /** Remote data, shared by every running script. */
+  private final FanOutBuffer scriptBuffer;
+  private final SessionMetrics metrics;
+
+  @GuardedBy("scripts")
+  private final List<Script> scripts = new ArrayList<>();
+
+  /** In-process scripts, which are called on the remote read thread. */
+  private final List<PluginScript> pluginScripts = new CopyOnWriteArrayList<>();
+
+  @GuardedBy("viewers")
+  private final List<Viewer> viewers = new ArrayList<>();
+
+  /** Remote data, shared by every attached spectator, created when the first one attaches. */
+  @Nullable private volatile FanOutBuffer viewerBuffer = null;
+
+  /** Set once the session shuts down, after which no more spectators may attach. */
+  @GuardedBy("viewers")
+  private boolean viewersClosed = false;
+
+  /** Proves a client resuming the session is the player. */
+  private final String token;
+
+  /**
+   * Whether the player's original client is still forwarded to. It never is again once gone, since
+   * a resumed player is written to from {@link #viewerBuffer} instead.
+   */
+  private volatile boolean hostAttached = true;
+
+  /** Whether {@link #scrollback} is kept, so remote data has to be published under the lock. */
+  private volatile boolean keepingScrollback = false;
+
+  /** Remote data sent while detached, or null while the player is attached. */
+  @GuardedBy("viewers")
+  @Nullable
+  private Scrollback scrollback = null;
+
+  /** Ends the session if the player doesn't come back in time, while detached. */
+  @GuardedBy("viewers")
+  @Nullable
+  private ScheduledFuture<?> detachExpiry = null;
+
+  /** The client that resumed the session, standing in for the player's original one. */
+  @GuardedBy("viewers")
+  @Nullable
+  private Viewer player = null;
+
+  /** Whether {@link #scripts} has any, so the remote thread can tell without the lock. */
+  private volatile boolean scriptsRunning = false;
+
+  // when the chunk being forwarded each way was read, only touched by the thread reading it
+  private long hostReadNanos;
+  private long remoteReadNanos;
+
+  /** When the oldest remote data no script has reacted to was read, or 0 if there's none. */
+  private final AtomicLong unansweredRemoteNanos = new AtomicLong();
+
+  private boolean started = false;
+
+  /** Whether the caller's threads read both sides, which mustn't wait on anything slow. */
+  private boolean nonBlocking = false;
+  // resolved once the connection starts
+  private OutputStream hostOutputStream;
+  /** Everything bound for the remote goes through this. */
+  private RemoteWriter remoteWriter;
+  /** Commands sent by triggers, which are dropped rather than block the remote thread. */
+  private RemoteWriter.Source triggerSource;
+  // handle compression on the raw streams, before anything else sees them
+  private ByteStage hostInbound;
+  private ByteStage remoteInbound;
+  @Nullable private MccpEncoder mccpEncoder = null;
+  @Nullable private MccpDecoder mccpDecoder = null;
+  /** Records everything sent each way, if recording is enabled. */
+  @Nullable private SessionRecorder.Recording recording = null;
+  /** Whether host writes are only flushed at a prompt or once the remote goes idle. */
+  private boolean deferHostFlushes = false;
   // these exist primarily for unit test purposes
-  @Nullable private BiConsumer<byte[], Integer> onPostHostDataReceived = null;
-  @Nullable private BiConsumer<byte[], Integer> onPostRemoteDataReceived = null;
-  @Nullable private BiConsumer<byte[], Integer> onPostProcessDataReceived = null;
+  @Nullable private ByteStage onPostHostDataReceived = null;
+  @Nullable private ByteStage onPostRemoteDataReceived = null;
+  @Nullable private ByteStage onPostProcessDataReceived = null;
 
   TelnetConnection(
-      CloseableStreamer host, CloseableStreamer remote, ProcessLauncher processLauncher) {
+      CloseableStreamer host,
+      CloseableStreamer remote,
+      ProcessLauncher processLauncher,
+      ConnectionOptions options) {
     this.host = checkNotNull(host);
     this.remote = checkNotNull(remote);
     this.processLauncher = checkNotNull(processLauncher);
+    this.options = checkNotNull(options);
+    this.sessionScope = new TaskScope(options.getThreadFactory());
+    this.coalescing = !options.getWriteCoalescingBudget().isZero();
+    this.scriptBuffer = new FanOutBuffer(options.getScriptBufferSize());
+    this.metrics = options.getMetrics().newSession();
+    byte[] secret = new byte[16];
+    tokenRandom.nextBytes(secret);
+    this.token = BaseEncoding.base16().lowerCase().encode(secret);
+
+    Pipeline pipeline = options.getPipeline();
+    this.hostStages =
+        new IACFilter(
+            pipeline.build(Direction.HOST_TO_REMOTE, this::onHostDataReceived),
+            metrics.getIacSequenceCounter());
+    ByteStage remoteChain = pipeline.build(Direction.REMOTE_TO_HOST, this::onRemoteDataReceived);
+    if (!options.getTriggers().isEmpty()) {
+      // triggers are found once, ahead of any script or stage that might look for them too
+      remoteChain = new TriggerStage(options.getTriggers(), this::onTrigger, remoteChain);
+    }
+    this.remoteStages = new IACFilter(remoteChain, metrics.getIacSequenceCounter());
+  }
+
+  TelnetConnection(
+      CloseableStreamer host, CloseableStreamer remote, ProcessLauncher processLauncher) {
+    this(host, remote, processLauncher, ConnectionOptions.defaults());
   }
 
   TelnetConnection(CloseableStreamer host, CloseableStreamer remote) {
     this(host, remote, ProcessBuilder::start);
   }
 
+  /** Starts bridging with a pair of forwarding threads, one for each direction. */
   public void start() throws IOException {
-    checkState(threads[0] == null && threads[1] == null);
+    openStreams();
 
-    threads[0] =
-        new Thread(
-            new OutputStreamForwardingThread(
-                host.getInputStream(),
-                remote.getOutputStream(),
-                new IACFilter(this::onHostDataReceived),
-                this::shutdown));
-    threads[1] =
-        new Thread(
-            new OutputStreamForwardingThread(
-                remote.getInputStream(),
-                host.getOutputStream(),
-                new IACFilter(this::onRemoteDataReceived),
-                this::shutdown));
+    sessionScope.fork(
+        new OutputStreamForwardingThread(
+            host.getInputStream(),
+            this::receiveFromHost,
+            this::flushToRemote,
+            this::onHostClosed,
+            options.getBufferPool()),
+        new OutputStreamForwardingThread(
+            remote.getInputStream(),
+            this::receiveFromRemote,
+            this::flushToHost,
+            this::shutdown,
+            options.getBufferPool()));
+  }
 
-    threads[0].start();
-    threads[1].start();
+  /**
+   * Starts bridging without any threads of its own.
+   *
+   * <p>The caller is responsible for reading both sides, handing the data to {@link
+   * #receiveFromHost} and {@link #receiveFromRemote}, calling {@link #flushToRemote} or {@link
+   * #flushToHost} whenever that side has nothing more to read, and calling {@link #onHostClosed} or
+   * {@link #shutdown} once the host or remote closes. Those two wait for the session's threads to
+   * exit, so they shouldn't be called on a thread other connections depend on. Scripts are started
+   * on threads of their own, so launching one doesn't hold up the caller.
+   */
+  void startNonBlocking() throws IOException {
+    nonBlocking = true;
+    openStreams();
+  }
+
+  private void openStreams() throws IOException {
+    checkState(!started);
+    started = true;
+
+    hostOutputStream = host.getOutputStream();
+    OutputStream remoteOutputStream = remote.getOutputStream();
+    hostInbound = this::forwardToRemote;
+    remoteInbound = this::forwardToHost;
+    if (!options.getAliases().isEmpty()) {
+      // expanded in place of what was typed, so they reach the remote as if typed themselves
+      hostInbound = new AliasExpander(options.getAliases(), hostInbound);
+    }
+
+    if (coalescing) {
+      hostOutputStream =
+          new CoalescingOutputStream(
+              hostOutputStream, options.getWriteCoalescingBudget(), options.getBufferPool());
+      remoteOutputStream =
+          new CoalescingOutputStream(
+              remoteOutputStream, options.getWriteCoalescingBudget(), options.getBufferPool());
+    }
+
+    if (options.getRemoteCompression()) {
+      CompressingOutputStream compressingOutputStream =
+          new CompressingOutputStream(remoteOutputStream);
+      remoteOutputStream = compressingOutputStream;
+      mccpDecoder = new MccpDecoder(remoteInbound, compressingOutputStream);
+      remoteInbound = mccpDecoder;
+    }
+    if (options.getHostCompression()) {
+      CompressingOutputStream compressingOutputStream =
+          new CompressingOutputStream(hostOutputStream);
+      hostOutputStream = compressingOutputStream;
+      mccpEncoder = new MccpEncoder(hostInbound, compressingOutputStream);
+      hostInbound = mccpEncoder;
+      mccpEncoder.offer();
+    }
+    deferHostFlushes = coalescing || mccpEncoder != null;
+    remoteWriter =
+        new RemoteWriter(
+            remoteOutputStream,
+            /* flushEachWrite= */ !coalescing,
+            options.getScriptBytesPerSecond(),
+            options.getScriptCommandsPerSecond());
+    triggerSource = remoteWriter.newSource(/* mayBlock= */ false);
+
+    if (options.getRecorder().isEnabled()) {
+      try {
+        recording = options.getRecorder().start();
+        logger.atInfo().log("Recording session %s", recording.getSession());
+      } catch (IOException ex) {
+        logger.atWarning().withCause(ex).log("Failed to start recording, continuing without it");
+      }
+    }
+
+    metrics.setScriptBacklog(this::getScriptBacklog);
+    options.getMetrics().register(metrics);
+    options.getSessions().add(this);
+
+    if (!options.getDetachGracePeriod().isZero()) {
+      hostOutputStream.write(
+          ("Resume this session with: resume " + token + "\r\n").getBytes(UTF_8));
+      hostOutputStream.flush();
+    }
+  }
+
+  /** Forwards data read from the host to the remote, then inspects it. */
+  void receiveFromHost(byte[] buffer, int length) throws IOException {
+    hostReadNanos = System.nanoTime();
+    metrics.addChunk(Direction.HOST_TO_REMOTE, length);
+    try {
+      hostInbound.accept(buffer, /* offset= */ 0, length);
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /** The end of {@link #hostInbound}, once the host stream has been decoded. */
+  private void forwardToRemote(byte[] buffer, int offset, int length) {
+    record(Direction.HOST_TO_REMOTE, buffer, offset, length);
+    try {
+      remoteWriter.writeHuman(buffer, offset, length);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    metrics.recordLatency(SessionMetrics.Latency.HOST_TO_REMOTE, System.nanoTime() - hostReadNanos);
+
+    hostStages.accept(buffer, offset, length);
+  }
+
+  /** Forwards data read from the remote to the host, then inspects it. */
+  void receiveFromRemote(byte[] buffer, int length) throws IOException {
+    remoteReadNanos = System.nanoTime();
+    metrics.addChunk(Direction.REMOTE_TO_HOST, length);
+    try {
+      remoteInbound.accept(buffer, /* offset= */ 0, length);
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /** The end of {@link #remoteInbound}, once the remote stream has been decoded. */
+  private void forwardToHost(byte[] buffer, int offset, int length) {
+    record(Direction.REMOTE_TO_HOST, buffer, offset, length);
+    if (hostAttached) {
+      try {
+        hostOutputStream.write(buffer, offset, length);
+        // deferred output is flushed when the user is prompted, or by flushToHost
+        if (!deferHostFlushes || promptDetector.containsPrompt(buffer, offset, length)) {
+          hostOutputStream.flush();
+        }
+        metrics.recordLatency(
+            SessionMetrics.Latency.REMOTE_TO_HOST, System.nanoTime() - remoteReadNanos);
+      } catch (IOException ex) {
+        if (!detach()) {
+          throw new UncheckedIOException(ex);
+        }
+      }
+    }
+    publishToViewers(buffer, offset, length);
+
+    remoteStages.accept(buffer, offset, length);
+  }
+
+  /** Hands remote data to the spectators, and to the scrollback while detached. */
+  private void publishToViewers(byte[] buffer, int offset, int length) {
+    if (keepingScrollback) {
+      // under the lock, so a resume gets each chunk exactly once, either replayed or delivered
+      synchronized (viewers) {
+        if (scrollback != null) {
+          scrollback.write(buffer, offset, length);
+        }
+        if (viewerBuffer != null) {
+          viewerBuffer.publish(buffer, offset, length);
+        }
+      }
+      return;
+    }
+    FanOutBuffer viewerBuffer = this.viewerBuffer;
+    if (viewerBuffer != null) {
+      viewerBuffer.publish(buffer, offset, length);
+    }
+  }
+
+  private void record(Direction direction, byte[] buffer, int offset, int length) {
+    if (recording != null) {
+      recording.record(direction, buffer, offset, length);
+    }
+  }
+
+  /**
+   * Flushes anything held back from the host, since the remote has nothing more to send. A resumed
+   * player's thread flushes for itself, whenever it's caught up.
+   */
+  void flushToHost() throws IOException {
+    if (deferHostFlushes && hostAttached) {
+      try {
+        hostOutputStream.flush();
+      } catch (IOException ex) {
+        if (!detach()) {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  /**
+   * Flushes anything held back from the remote, since the host or script has nothing more to send.
+   */
+  void flushToRemote() throws IOException {
+    if (coalescing) {
+      remoteWriter.flush();
+    }
+  }
+
+  /**
+   * Returns how many bytes the host would have been sent for each byte actually sent, which is 1
+   * unless the host accepted compression.
+   */
+  double getHostCompressionRatio() {
+    return mccpEncoder == null ? 1 : mccpEncoder.getCompressionRatio();
   }
 
   @VisibleForTesting
-  void setOnPostHostDataReceived(BiConsumer<byte[], Integer> handler) {
+  SessionMetrics getMetrics() {
+    return metrics;
+  }
+
+  /** Identifies the session, to spectators and in metrics. */
+  long getId() {
+    return metrics.getId();
+  }
+
+  /** Returns the secret a client needs to {@link #resume} the session. */
+  String getToken() {
+    return token;
+  }
+
+  /**
+   * Called once the player's client closes, which ends the session unless it can be detached.
+   *
+   * @see #detach
+   */
+  void onHostClosed() {
+    if (!detach()) {
+      shutdown();
+    }
+  }
+
+  /**
+   * Stops forwarding to the player's client, if detaching is enabled, keeping the remote data in
+   * the scrollback until a client resumes the session or the grace period runs out.
+   *
+   * @return whether the session is now detached, as opposed to needing to shut down
+   */
+  private boolean detach() {
+    Duration gracePeriod = options.getDetachGracePeriod();
+    synchronized (viewers) {
+      if (viewersClosed || gracePeriod.isZero()) {
+        return false;
+      }
+      if (scrollback != null) {
+        return true;
+      }
+      hostAttached = false;
+      player = null;
+      Scrollback parked = new Scrollback(options.getScrollbackSize());
+      scrollback = parked;
+      keepingScrollback = true;
+      detachExpiry =
+          DetachTimer.INSTANCE.schedule(
+              () -> expireDetached(parked), gracePeriod.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    logger.atInfo().log(
+        "Player detached from session %d, keeping it for %ds", getId(), gracePeriod.getSeconds());
+    close(host);
+    return true;
+  }
+
+  /** Ends the session if it's still detached with {@code parked}, since nobody came back. */
+  private void expireDetached(Scrollback parked) {
+    synchronized (viewers) {
+      if (scrollback != parked) {
+        return;
+      }
+    }
+    logger.atInfo().log(
+        "Nobody resumed session %d, dropping %d bytes of scrollback",
+        getId(), parked.getRetainedBytes());
+    shutdown();
+  }
+
+  /**
+   * Sends {@code client} the remote data kept while detached, then has it take the player's place.
+   *
+   * <p>The client is written to on a thread of its own, so the remote isn't held up by it, but
+   * unlike a spectator's nothing is dropped; what it falls behind on is spilled to a temporary file
+   * instead. It's offered compression afresh, if the player's original client was.
+   *
+   * @throws IOException if the session isn't detached, or has ended
+   */
+  void resume(CloseableStreamer client) throws IOException {
+    Viewer resumed;
+    MccpEncoder encoder = null;
+    MccpEncoder previousEncoder = null;
+    synchronized (viewers) {
+      if (viewersClosed || scrollback == null) {
+        throw new IOException("Session " + getId() + " is not waiting to be resumed");
+      }
+      OutputStream outputStream = client.getOutputStream();
+      if (mccpEncoder != null) {
+        CompressingOutputStream compressingOutputStream = new CompressingOutputStream(outputStream);
+        outputStream = compressingOutputStream;
+        encoder = mccpEncoder.forClient(compressingOutputStream);
+      }
+      if (viewerBuffer == null) {
+        viewerBuffer = new FanOutBuffer(options.getViewerBufferSize());
+      }
+      resumed =
+          new Viewer(
+              client,
+              outputStream,
+              viewerBuffer.subscribe(/* filter= */ null, FanOutBuffer.OverflowPolicy.SPILL),
+              /* source= */ null,
+              new TaskScope(options.getThreadFactory()),
+              scrollback);
+      scrollback = null;
+      keepingScrollback = false;
+      detachExpiry.cancel(/* mayInterruptIfRunning= */ false);
+      detachExpiry = null;
+      player = resumed;
+      viewers.add(resumed);
+      if (encoder != null) {
+        // what the client types is only read once its threads start, after this
+        previousEncoder = mccpEncoder;
+        mccpEncoder = encoder;
+        hostInbound = encoder;
+      }
+    }
+
+    logger.atInfo().log(
+        "Player resumed session %d, replaying %d bytes of scrollback after losing %d",
+        getId(), resumed.replay.getRetainedBytes(), resumed.replay.getDroppedBytes());
+    try {
+      if (encoder != null) {
+        close(previousEncoder);
+        encoder.offer();
+      }
+      resumed.scope.fork(() -> deliverToViewer(resumed), () -> readFromViewer(resumed));
+    } catch (IOException ex) {
+      detachViewer(resumed);
+      throw ex;
+    } catch (RejectedExecutionException ex) {
+      detachViewer(resumed);
+      throw new IOException("Unable to start resumed session threads", ex);
+    }
+  }
+
+  /**
+   * Sends {@code viewer} everything the remote sends from now on, and sends what it types to the
+   * remote too if {@code driving} is set, until either closes.
+   *
+   * @throws IOException if the session has already ended
+   */
+  void attachViewer(CloseableStreamer viewer, boolean driving) throws IOException {
+    Viewer attached;
+    synchronized (viewers) {
+      if (viewersClosed) {
+        throw new IOException("Session " + getId() + " has ended");
+      }
+      if (viewerBuffer == null) {
+        viewerBuffer = new FanOutBuffer(options.getViewerBufferSize());
+      }
+      attached =
+          new Viewer(
+              viewer,
+              viewer.getOutputStream(),
+              viewerBuffer.subscribe(/* filter= */ null, FanOutBuffer.OverflowPolicy.DROP_OLDEST),
+              driving ? remoteWriter.newSource(/* mayBlock= */ true) : null,
+              new TaskScope(options.getThreadFactory()),
+              /* replay= */ null);
+      viewers.add(attached);
+    }
+
+    logger.atInfo().log(
+        "Spectator attached to session %d%s", getId(), driving ? " to drive" : "");
+    try {
+      attached.scope.fork(() -> deliverToViewer(attached), () -> readFromViewer(attached));
+    } catch (RejectedExecutionException ex) {
+      detachViewer(attached);
+      throw new IOException("Unable to start spectator threads", ex);
+    }
+  }
+
+  @VisibleForTesting
+  int getViewerCount() {
+    synchronized (viewers) {
+      return viewers.size();
+    }
+  }
+
+  /** Writes the remote data into a spectator's socket, until either side closes. */
+  private void deliverToViewer(Viewer viewer) {
+    byte[] buffer = new byte[READ_BUFFER_SIZE];
+    int bytes;
+    try {
+      OutputStream outputStream = viewer.outputStream;
+      if (viewer.replay != null) {
+        viewer.replay.writeTo(outputStream);
+        outputStream.flush();
+      }
+      while ((bytes = viewer.subscriber.read(buffer)) >= 0) {
+        outputStream.write(buffer, /* offset= */ 0, bytes);
+        if (!viewer.subscriber.hasPending()) {
+          outputStream.flush();
+        }
+      }
+    } catch (IOException ex) {
+      logger.atInfo().log("Unable to write to spectator of session %d", getId());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      detachViewer(viewer);
+    }
+  }
+
+  /**
+   * Sends what a driving spectator types to the remote, or ignores it if they're watching. What a
+   * resumed player types is handled as if typed into their original client.
+   */
+  private void readFromViewer(Viewer viewer) {
+    byte[] buffer = new byte[READ_BUFFER_SIZE];
+    int bytes;
+    try {
+      InputStream inputStream = viewer.streamer.getInputStream();
+      while ((bytes = inputStream.read(buffer)) > 0) {
+        if (viewer.replay != null) {
+          receiveFromHost(buffer, bytes);
+          if (inputStream.available() == 0) {
+            flushToRemote();
+          }
+        } else if (viewer.stages != null) {
+          viewer.stages.accept(buffer, /* offset= */ 0, bytes);
+        }
+      }
+    } catch (IOException | UncheckedIOException ex) {
+      logger.atInfo().log("Spectator of session %d disconnected", getId());
+    } finally {
+      detachViewer(viewer);
+    }
+  }
+
+  /** Sends a line typed by a driving spectator to the remote. */
+  private void sendFromViewer(Viewer viewer, byte[] buffer, int offset, int length) {
+    metrics.addChunk(Direction.HOST_TO_REMOTE, length);
+    record(Direction.HOST_TO_REMOTE, buffer, offset, length);
+    try {
+      viewer.source.write(buffer, offset, length);
+      viewer.source.flush();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private void detachViewer(Viewer viewer) {
+    boolean playerLeft;
+    synchronized (viewers) {
+      if (!viewers.remove(viewer)) {
+        return;
+      }
+      playerLeft = viewer == player && !viewersClosed;
+    }
+
+    logger.atInfo().log("Spectator detached from session %d", getId());
+    viewer.subscriber.close();
+    close(viewer.streamer);
+    viewer.scope.close();
+    close(viewer.source);
+    if (playerLeft) {
+      // the resumed player may leave and come back too
+      onHostClosed();
+    }
+  }
+
+  /** Returns how many bytes of remote data are waiting to be written to scripts. */
+  private long getScriptBacklog() {
+    long backlog = 0;
+    synchronized (scripts) {
+      for (Script script : scripts) {
+        backlog += script.subscriber.getBacklog();
+      }
+    }
+    return backlog;
+  }
+
+  @VisibleForTesting
+  void setOnPostHostDataReceived(ByteStage handler) {
     this.onPostHostDataReceived = handler;
   }
 
   @VisibleForTesting
-  void setOnPostRemoteDataReceived(BiConsumer<byte[], Integer> handler) {
+  void setOnPostRemoteDataReceived(ByteStage handler) {
     this.onPostRemoteDataReceived = handler;
   }
 
   @VisibleForTesting
-  void setOnPostProcessDataReceived(BiConsumer<byte[], Integer> handler) {
+  void setOnPostProcessDataReceived(ByteStage handler) {
     this.onPostProcessDataReceived = handler;
   }
 
@@ -88,137 +697,510 @@ final class TelnetConnection {
    *
    * <p>It actively looks for #!script tags and launches scripts.
    */
-  private void onHostDataReceived(byte[] buffer, int length) {
-    scriptParser.accept(buffer, length);
+  private void onHostDataReceived(byte[] buffer, int offset, int length) {
+    scriptParser.accept(buffer, offset, length);
 
     if (onPostHostDataReceived != null) {
-      onPostHostDataReceived.accept(buffer, length);
+      onPostHostDataReceived.accept(buffer, offset, length);
     }
   }
 
   /**
    * Called when remote data is received from the server.
    *
-   * <p>It forwards this data to any executing script.
+   * <p>It hands this data to any executing scripts, plugins first since they're the quickest to
+   * react.
    */
-  private void onRemoteDataReceived(byte[] buffer, int length) {
-    Process processValue;
-    synchronized (processLock) {
-      processValue = process;
+  private void onRemoteDataReceived(byte[] buffer, int offset, int length) {
+    if ((scriptsRunning || !pluginScripts.isEmpty()) && unansweredRemoteNanos.get() == 0) {
+      unansweredRemoteNanos.compareAndSet(0, remoteReadNanos);
     }
-
-    if (processValue != null) {
-      try {
-        OutputStream outputStream = processValue.getOutputStream();
-        outputStream.write(buffer, /* offset= */ 0, length);
-        outputStream.flush();
-      } catch (IOException ex) {
-        logger.atWarning().log("Failed to write received data to process.");
-        // if we can't write to the process, it's most likely that it has died, so pretend that it
-        // has.
-        onProcessDied();
-      }
+    for (PluginScript pluginScript : pluginScripts) {
+      pluginScript.accept(buffer, offset, length);
     }
+    scriptBuffer.publish(buffer, offset, length);
 
     if (onPostRemoteDataReceived != null) {
-      onPostRemoteDataReceived.accept(buffer, length);
+      onPostRemoteDataReceived.accept(buffer, offset, length);
+    }
+  }
+
+  /** Carries out a trigger's action, on the thread reading the remote. */
+  private void onTrigger(Triggers.Trigger trigger) {
+    logger.atFine().log("Trigger fired: %s", trigger);
+    switch (trigger.getAction()) {
+      case SEND:
+        byte[] command = (trigger.getArgument() + "\r\n").getBytes(UTF_8);
+        record(Direction.PROCESS_TO_REMOTE, command, /* offset= */ 0, command.length);
+        try {
+          triggerSource.write(command, /* offset= */ 0, command.length);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+        break;
+      case SCRIPT:
+        launchScript(trigger.getArgument());
+        break;
+      case NOTIFY:
+        for (PluginScript pluginScript : pluginScripts) {
+          pluginScript.onTrigger(trigger.getArgument());
+        }
+        break;
+    }
+  }
+
+  /** Times how long scripts took to react to the remote, now one has. */
+  private void onScriptOutput() {
+    long unanswered = unansweredRemoteNanos.getAndSet(0);
+    if (unanswered != 0) {
+      metrics.recordLatency(
+          SessionMetrics.Latency.SCRIPT_REACTION, System.nanoTime() - unanswered);
+    }
+  }
+
+  /** Queues data read from a script process for the remote, then inspects it. */
+  private void receiveFromProcess(Script script, byte[] buffer, int length) throws IOException {
+    metrics.addChunk(Direction.PROCESS_TO_REMOTE, length);
+    onScriptOutput();
+    record(Direction.PROCESS_TO_REMOTE, buffer, /* offset= */ 0, length);
+    script.source.write(buffer, /* offset= */ 0, length);
+
+    script.stages.accept(buffer, /* offset= */ 0, length);
+  }
+
+  /** Writes the remote data a script subscribed to into its stdin, until either side closes. */
+  private void deliverToProcess(Script script) {
+    OutputStream outputStream = script.process.getOutputStream();
+    byte[] buffer = new byte[READ_BUFFER_SIZE];
+    int bytes;
+    try {
+      while ((bytes = script.subscriber.read(buffer)) >= 0) {
+        outputStream.write(buffer, /* offset= */ 0, bytes);
+        if (!script.subscriber.hasPending()) {
+          outputStream.flush();
+        }
+      }
+    } catch (IOException ex) {
+      logger.atWarning().log("Failed to write received data to script \"%s\"", script.command);
+      // if we can't write to the process, it's most likely that it has died, so pretend that it
+      // has.
+      onProcessDied(script, /* drain= */ false);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      script.subscriber.discard();
     }
   }
 
   /** Called when data from the script process is received. */
-  private void onProcessDataReceived(byte[] buffer, int length) {
+  private void onProcessDataReceived(byte[] buffer, int offset, int length) {
     if (onPostProcessDataReceived != null) {
-      onPostProcessDataReceived.accept(buffer, length);
+      onPostProcessDataReceived.accept(buffer, offset, length);
     }
   }
 
-  private void launchScript(String script) {
-    synchronized (processLock) {
-      if (process != null) {
-        logger.atWarning().log("Process already running, cannot run two simultaneous scripts");
-        return;
-      }
+  private void launchScript(String scriptLine) {
+    int matchIndex = scriptLine.indexOf(SCRIPT_MATCH_FLAG);
+    String command = matchIndex < 0 ? scriptLine : scriptLine.substring(0, matchIndex).trim();
+    String match =
+        matchIndex < 0 ? "" : scriptLine.substring(matchIndex + SCRIPT_MATCH_FLAG.length());
+    FanOutBuffer.Filter filter =
+        match.isEmpty() ? null : FanOutBuffer.Filter.containing(match.getBytes(UTF_8));
+
+    int nameEnd = command.indexOf(' ');
+    ScriptPlugin plugin =
+        options.getScriptPlugins().get(nameEnd < 0 ? command : command.substring(0, nameEnd));
+    if (plugin != null) {
+      launchPlugin(plugin, nameEnd < 0 ? "" : command.substring(nameEnd + 1).trim(), filter);
+      return;
+    }
+
+    // subscribed now, so the script sees everything from here on however long it takes to start
+    FanOutBuffer.Subscriber subscriber =
+        scriptBuffer.subscribe(filter, options.getScriptOverflowPolicy());
+    if (nonBlocking) {
+      options.getThreadFactory().newThread(() -> launchProcess(command, subscriber)).start();
+    } else {
+      launchProcess(command, subscriber);
+    }
+  }
 
-      logger.atInfo().log("Launching script \"%s\"", script);
+  private void launchProcess(String command, FanOutBuffer.Subscriber subscriber) {
+    logger.atInfo().log("Launching script \"%s\"", command);
 
-      ProcessBuilder processBuilder = new ProcessBuilder(script);
-      processBuilder.redirectInput(ProcessBuilder.Redirect.PIPE);
-      processBuilder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+    ProcessBuilder processBuilder = new ProcessBuilder(command);
+    processBuilder.redirectInput(ProcessBuilder.Redirect.PIPE);
+    processBuilder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+    try {
+      Process process = processLauncher.start(processBuilder);
+      Script script =
+          new Script(
+              command,
+              process,
+              subscriber,
+              remoteWriter.newSource(/* mayBlock= */ true),
+              options.getPipeline(),
+              this::onProcessDataReceived,
+              new TaskScope(options.getThreadFactory()));
+      synchronized (scripts) {
+        scripts.add(script);
+        scriptsRunning = true;
+      }
       try {
-        Process newProcess = processLauncher.start(processBuilder);
-        threads[PROCESS_READ_THREAD_INDEX] =
-            new Thread(
-                new OutputStreamForwardingThread(
-                    newProcess.getInputStream(),
-                    remote.getOutputStream(),
-                    this::onProcessDataReceived,
-                    this::onProcessDied));
-        threads[PROCESS_READ_THREAD_INDEX].start();
-        process = newProcess;
-      } catch (IOException ex) {
-        logger.atWarning().withCause(ex).log("Failed to launch script \"%s\"", script);
+        script.scope.fork(
+            new OutputStreamForwardingThread(
+                process.getInputStream(),
+                (buffer, length) -> receiveFromProcess(script, buffer, length),
+                script.source::flush,
+                () -> onProcessDied(script, /* drain= */ true),
+                options.getBufferPool()),
+            () -> deliverToProcess(script));
+      } catch (RejectedExecutionException ex) {
+        onProcessDied(script, /* drain= */ false);
+        throw new IOException("Unable to start process threads", ex);
       }
+      metrics.scriptLaunched();
+    } catch (IOException ex) {
+      logger.atWarning().withCause(ex).log("Failed to launch script \"%s\"", command);
+      subscriber.close();
+      subscriber.discard();
     }
   }
 
-  private void onProcessDied() {
-    Process oldProcess;
-    synchronized (processLock) {
-      oldProcess = process;
-      process = null;
-    }
+  private void launchPlugin(
+      ScriptPlugin plugin, String arguments, @Nullable FanOutBuffer.Filter filter) {
+    logger.atInfo().log("Launching script plugin %s \"%s\"", plugin.getName(), arguments);
 
-    if (oldProcess != null) {
-      logger.atInfo().log("Closing down script process");
+    PluginScript pluginScript =
+        new PluginScript(
+            plugin.getName(),
+            filter,
+            remoteWriter.newSource(/* mayBlock= */ false),
+            options.getPipeline().build(Direction.PROCESS_TO_REMOTE, this::onProcessDataReceived));
+    try {
+      pluginScript.start(plugin.start(arguments, pluginScript::sendToRemote));
+      pluginScripts.add(pluginScript);
+      metrics.scriptLaunched();
+    } catch (IOException | RuntimeException ex) {
+      logger.atWarning().withCause(ex).log("Failed to launch script plugin %s", plugin.getName());
+    }
+  }
 
-      close(oldProcess.getInputStream());
-      close(oldProcess.getOutputStream());
+  /**
+   * Stops a script and its threads, first giving it a chance to read the remote data it was
+   * already sent if {@code drain} is set.
+   */
+  private void onProcessDied(Script script, boolean drain) {
+    synchronized (scripts) {
+      if (!scripts.remove(script)) {
+        return;
+      }
+      scriptsRunning = !scripts.isEmpty();
+    }
 
-      oldProcess.destroy();
+    logger.atInfo().log("Closing down script \"%s\"", script.command);
+    metrics.scriptDied();
+    script.subscriber.close();
+    if (drain) {
+      try {
+        script.subscriber.awaitFinished(SCRIPT_DRAIN_MILLIS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (script.subscriber.getDroppedBytes() > 0 || script.subscriber.getSpilledBytes() > 0) {
+      logger.atWarning().log(
+          "Script \"%s\" fell behind, losing %d bytes of remote data and spilling %d to disk",
+          script.command, script.subscriber.getDroppedBytes(), script.subscriber.getSpilledBytes());
     }
+
+    close(script.process.getInputStream());
+    close(script.process.getOutputStream());
+
+    script.process.destroy();
+    script.scope.close();
+    // sends whatever the script had left of a line
+    close(script.source);
   }
 
-  private void shutdown() {
+  void shutdown() {
+    options.getSessions().remove(this);
     close(host);
     close(remote);
     // closing the sockets should cause the threads to exit
 
-    onProcessDied();
+    List<Viewer> attachedViewers;
+    synchronized (viewers) {
+      viewersClosed = true;
+      attachedViewers = new ArrayList<>(viewers);
+      scrollback = null;
+      if (detachExpiry != null) {
+        detachExpiry.cancel(/* mayInterruptIfRunning= */ false);
+        detachExpiry = null;
+      }
+    }
+    for (Viewer viewer : attachedViewers) {
+      detachViewer(viewer);
+    }
+
+    List<Script> runningScripts;
+    synchronized (scripts) {
+      runningScripts = new ArrayList<>(scripts);
+    }
+    for (Script script : runningScripts) {
+      onProcessDied(script, /* drain= */ false);
+    }
+    for (PluginScript pluginScript : pluginScripts) {
+      pluginScript.stop();
+    }
+    sessionScope.close();
+
+    if (mccpDecoder != null) {
+      mccpDecoder.close();
+    }
+    if (mccpEncoder != null) {
+      if (mccpEncoder.isCompressing()) {
+        logger.atInfo().log("Host compression ratio %.2f", mccpEncoder.getCompressionRatio());
+      }
+      mccpEncoder.close();
+    }
+    close(recording);
+    options.getMetrics().unregister(metrics);
+  }
+
+  /** A running {@link ScriptPlugin}, and the stages for what it sends. */
+  private final class PluginScript {
+    private final String name;
+    @Nullable private final FanOutBuffer.Filter filter;
+    private final RemoteWriter.Source source;
+    /** The chain for data from this plugin, only called while holding the lock on this. */
+    private final ByteStage stages;
+    private ScriptPlugin.Script script;
+
+    private PluginScript(
+        String name,
+        @Nullable FanOutBuffer.Filter filter,
+        RemoteWriter.Source source,
+        ByteStage stages) {
+      this.name = name;
+      this.filter = filter;
+      this.source = source;
+      this.stages = stages;
+    }
+
+    private void start(ScriptPlugin.Script script) {
+      this.script = checkNotNull(script);
+    }
+
+    /** Hands remote data to the plugin, stopping it if it throws. */
+    private void accept(byte[] buffer, int offset, int length) {
+      if (filter != null && !filter.matches(buffer, offset, length)) {
+        return;
+      }
+      try {
+        script.accept(buffer, offset, length);
+      } catch (RuntimeException ex) {
+        logger.atWarning().withCause(ex).log("Script plugin %s failed, stopping it", name);
+        stop();
+      }
+    }
+
+    /** Tells the plugin a trigger fired, stopping it if it throws. */
+    private void onTrigger(String triggerName) {
+      try {
+        script.onTrigger(triggerName);
+      } catch (RuntimeException ex) {
+        logger.atWarning().withCause(ex).log("Script plugin %s failed, stopping it", name);
+        stop();
+      }
+    }
+
+    /**
+     * Queues the plugin's output for the remote, which is sent right away unless the player is
+     * typing or the rate limits say otherwise.
+     */
+    private synchronized void sendToRemote(byte[] buffer, int offset, int length) {
+      metrics.addChunk(Direction.PROCESS_TO_REMOTE, length);
+      onScriptOutput();
+      record(Direction.PROCESS_TO_REMOTE, buffer, offset, length);
+      try {
+        source.write(buffer, offset, length);
+        source.flush();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+
+      stages.accept(buffer, offset, length);
+    }
+
+    private void stop() {
+      if (!pluginScripts.remove(this)) {
+        return;
+      }
+
+      logger.atInfo().log("Stopping script plugin %s", name);
+      metrics.scriptDied();
+      try {
+        script.stop();
+      } catch (RuntimeException ex) {
+        logger.atWarning().withCause(ex).log("Script plugin %s failed to stop", name);
+      }
+    }
+  }
+
+  /** A running script process, and the threads and stages serving it. */
+  private static final class Script {
+    private final String command;
+    private final Process process;
+    private final FanOutBuffer.Subscriber subscriber;
+    private final RemoteWriter.Source source;
+    /** The chain for data from this script, since stages may keep state. */
+    private final ByteStage stages;
+    /** Owns the threads reading the process and writing to it. */
+    private final TaskScope scope;
+
+    private Script(
+        String command,
+        Process process,
+        FanOutBuffer.Subscriber subscriber,
+        RemoteWriter.Source source,
+        Pipeline pipeline,
+        ByteStage onProcessDataReceived,
+        TaskScope scope) {
+      this.command = command;
+      this.process = process;
+      this.subscriber = subscriber;
+      this.source = source;
+      this.stages = pipeline.build(Direction.PROCESS_TO_REMOTE, onProcessDataReceived);
+      this.scope = scope;
+    }
+  }
+
+  /** An attached spectator, or resumed player, and the threads serving it. */
+  private final class Viewer {
+    private final CloseableStreamer streamer;
+    /** The streamer's output, wrapped to compress it if this is the player and they asked. */
+    private final OutputStream outputStream;
+    private final FanOutBuffer.Subscriber subscriber;
+    /** Where what a driving spectator types goes, or null if they're only watching. */
+    @Nullable private final RemoteWriter.Source source;
+    /** Strips the telnet negotiation from what a driving spectator sends, then sends the rest. */
+    @Nullable private final ByteStage stages;
+    /** Owns the threads writing to the spectator and reading from it. */
+    private final TaskScope scope;
+    /** What to send first, if this is the player resuming the session, or null for spectators. */
+    @Nullable private final Scrollback replay;
+
+    private Viewer(
+        CloseableStreamer streamer,
+        OutputStream outputStream,
+        FanOutBuffer.Subscriber subscriber,
+        @Nullable RemoteWriter.Source source,
+        TaskScope scope,
+        @Nullable Scrollback replay) {
+      this.streamer = streamer;
+      this.outputStream = outputStream;
+      this.subscriber = subscriber;
+      this.source = source;
+      this.stages =
+          source == null
+              ? null
+              : new IACFilter(
+                  (buffer, offset, length) -> sendFromViewer(this, buffer, offset, length));
+      this.scope = scope;
+      this.replay = replay;
+    }
   }
 
-  /** Reads from {@link #from} and forwards to {@link #to}. */
+  /** Ends detached sessions nobody comes back for, on one thread shared by every session. */
+  private static final class DetachTimer {
+    private static final ScheduledThreadPoolExecutor INSTANCE = create();
+
+    private static ScheduledThreadPoolExecutor create() {
+      ScheduledThreadPoolExecutor executor =
+          new ScheduledThreadPoolExecutor(
+              /* corePoolSize= */ 1,
+              runnable -> {
+                Thread thread = new Thread(runnable, "detach-timer");
+                thread.setDaemon(true);
+                return thread;
+              });
+      // sessions that are resumed shouldn't leave their expiry behind
+      executor.setRemoveOnCancelPolicy(true);
+      return executor;
+    }
+  }
+
+  /**
+   * Reads from {@link #from} and hands each chunk to {@link #onDataReceived}.
+   *
+   * <p>While {@link #from} is idle, it's waited on with a small buffer of the thread's own, which
+   * is all a lone command or keystroke needs. Once a read fills that, a buffer sized from recent
+   * reads is taken from the pool, and kept until {@link #from} goes idle again.
+   */
   private static class OutputStreamForwardingThread implements Runnable {
     private final InputStream from;
-    private final OutputStream to;
 
-    private final BiConsumer<byte[], Integer> onDataReceived;
+    private final ChunkHandler onDataReceived;
+    /** Flushed whenever {@link #from} has nothing more buffered. */
+    private final Flushable onIdle;
     private final Runnable onClose;
+    private final BufferPool bufferPool;
+    private final BufferPool.Sizer sizer = new BufferPool.Sizer(READ_BUFFER_SIZE);
 
     private OutputStreamForwardingThread(
         InputStream from,
-        OutputStream to,
-        BiConsumer<byte[], Integer> onDataReceived,
-        Runnable onClose) {
+        ChunkHandler onDataReceived,
+        Flushable onIdle,
+        Runnable onClose,
+        BufferPool bufferPool) {
       this.from = checkNotNull(from);
-      this.to = checkNotNull(to);
       this.onDataReceived = checkNotNull(onDataReceived);
+      this.onIdle = checkNotNull(onIdle);
       this.onClose = checkNotNull(onClose);
+      this.bufferPool = checkNotNull(bufferPool);
     }
 
     @Override
     public void run() {
-      byte[] buffer = new byte[READ_BUFFER_SIZE];
+      byte[] idleBuffer = new byte[IDLE_READ_BUFFER_SIZE];
+      byte[] buffer = null;
       int bytes;
       try {
-        while ((bytes = from.read(buffer)) > 0) {
-          to.write(buffer, /* offset= */ 0, bytes);
-          to.flush();
+        while (true) {
+          if (buffer == null) {
+            if ((bytes = from.read(idleBuffer)) <= 0) {
+              break;
+            }
+            if (bytes == idleBuffer.length && from.available() > 0) {
+              // busy again, so carry on with a pooled buffer, reading what's already arrived
+              buffer = bufferPool.acquire(sizer.next());
+              System.arraycopy(idleBuffer, 0, buffer, 0, bytes);
+              bytes += Math.max(0, from.read(buffer, bytes, buffer.length - bytes));
+              sizer.record(bytes, buffer.length);
+            }
+          } else {
+            if ((bytes = from.read(buffer)) <= 0) {
+              break;
+            }
+            sizer.record(bytes, buffer.length);
+          }
 
-          onDataReceived.accept(buffer, bytes);
+          onDataReceived.onChunk(buffer == null ? idleBuffer : buffer, bytes);
+          if (from.available() == 0) {
+            onIdle.flush();
+            if (buffer != null) {
+              bufferPool.release(buffer);
+              buffer = null;
+            }
+          }
         }
       } catch (IOException ex) {
         logger.atWarning().withCause(ex).log("Failure reading InputStream data");
       } finally {
+        if (buffer != null) {
+          bufferPool.release(buffer);
+        }
         logger.atInfo().log("Exiting forwarding thread");
         onClose.run();
       }
@@ -0,0 +1,54 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter, which allows bursts of up to one second's worth of tokens.
+ *
+ * <p>Taking more tokens than the bucket holds is allowed once it's full, leaving it in debt, so
+ * an oversized request is delayed rather than refused forever. Not thread safe.
+ */
+final class TokenBucket {
+  private final double tokensPerNano;
+  private final double capacity;
+  private final Ticker ticker;
+  private double tokens;
+  private long lastRefillNanos;
+
+  /** Creates a full bucket refilling at {@code tokensPerSecond}. */
+  TokenBucket(double tokensPerSecond, Ticker ticker) {
+    checkArgument(tokensPerSecond > 0, "tokensPerSecond must be positive");
+    this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = tokensPerSecond;
+    this.ticker = checkNotNull(ticker);
+    this.tokens = capacity;
+    this.lastRefillNanos = ticker.read();
+  }
+
+  /** Takes {@code count} tokens if there are enough, returning whether it did. */
+  boolean tryTake(double count) {
+    refill();
+    if (tokens < Math.min(count, capacity)) {
+      return false;
+    }
+    tokens -= count;
+    return true;
+  }
+
+  /** Returns how long until {@link #tryTake} would succeed for {@code count} tokens. */
+  long nanosUntilAvailable(double count) {
+    refill();
+    double missing = Math.min(count, capacity) - tokens;
+    return missing <= 0 ? 0 : (long) Math.ceil(missing / tokensPerNano);
+  }
+
+  private void refill() {
+    long now = ticker.read();
+    tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+    lastRefillNanos = now;
+  }
+}
@@ -0,0 +1,89 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * Looks for every {@link Triggers} pattern in a stream, then passes the data on unchanged.
+ *
+ * <p>Each byte is scanned once, by at most two automata, whatever the number of triggers, and
+ * patterns may be split across chunks. A trigger fires at most once a line, however many times its
+ * pattern matches on it.
+ */
+final class TriggerStage implements ByteStage {
+  /** Told about each trigger that fires. */
+  @FunctionalInterface
+  interface Listener {
+    void onTrigger(Triggers.Trigger trigger);
+  }
+
+  private final Triggers triggers;
+  private final Listener listener;
+  private final ByteStage next;
+  @Nullable private final AhoCorasick literals;
+  @Nullable private final RegexDfa regexes;
+  private int literalState = AhoCorasick.START;
+  @Nullable private RegexDfa.State regexState;
+  private final AhoCorasick.MatchConsumer onLiteralMatch = this::onLiteralMatch;
+
+  /** The triggers that have fired on the current line, which is almost always very few. */
+  private int[] firedOnLine = new int[4];
+
+  private int firedOnLineCount = 0;
+
+  TriggerStage(Triggers triggers, Listener listener, ByteStage next) {
+    this.triggers = checkNotNull(triggers);
+    this.listener = checkNotNull(listener);
+    this.next = checkNotNull(next);
+    this.literals = triggers.getLiterals();
+    this.regexes = triggers.getRegexes();
+    this.regexState = regexes == null ? null : regexes.start();
+  }
+
+  @Override
+  public void accept(byte[] buffer, int offset, int length) {
+    int end = offset + length;
+    for (int i = offset; i < end; ++i) {
+      byte b = buffer[i];
+      if (literals != null) {
+        literalState = literals.next(literalState, b);
+        if (literals.hasMatch(literalState)) {
+          literals.forEachMatch(literalState, onLiteralMatch);
+        }
+      }
+      if (regexes != null) {
+        regexState = regexes.next(regexState, b);
+        for (int regex : regexState.getMatches()) {
+          fire(triggers.getRegexTrigger(regex));
+        }
+      }
+      if (b == '\n') {
+        firedOnLineCount = 0;
+      }
+    }
+
+    next.accept(buffer, offset, length);
+  }
+
+  private void onLiteralMatch(int literal) {
+    for (int trigger : triggers.getLiteralTriggers(literal)) {
+      fire(trigger);
+    }
+  }
+
+  private void fire(int trigger) {
+    for (int i = 0; i < firedOnLineCount; ++i) {
+      if (firedOnLine[i] == trigger) {
+        return;
+      }
+    }
+    if (firedOnLineCount == firedOnLine.length) {
+      firedOnLine = Arrays.copyOf(firedOnLine, firedOnLineCount * 2);
+    }
+    firedOnLine[firedOnLineCount++] = trigger;
+
+    listener.onTrigger(triggers.getTriggers().get(trigger));
+  }
+}
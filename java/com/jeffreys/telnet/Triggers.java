@@ -0,0 +1,227 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+import javax.annotation.Nullable;
+
+/**
+ * Trigger patterns to look for in what the remote sends, and what to do when they're seen.
+ *
+ * <p>Every literal pattern is compiled into one {@link AhoCorasick} automaton, and every regular
+ * expression into one {@link RegexDfa}, so a {@link TriggerStage} finds all of them in a single
+ * pass however many there are. Both are immutable, or safely shared, so one {@code Triggers} is
+ * used by every connection.
+ *
+ * <p>Each line of a triggers file is a pattern and an action, separated by {@code =>}:
+ *
+ * <pre>
+ * # literal text
+ * You are hungry. => send eat bread
+ * # regular expressions between slashes
+ * /^(\w+) tells you/ => notify tell
+ * is DEAD!! => script ./loot.sh --match=gold
+ * </pre>
+ */
+final class Triggers {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  static final Triggers EMPTY = new Triggers(ImmutableList.of());
+
+  private static final String SEPARATOR = " => ";
+
+  /** What a trigger does when its pattern is seen. */
+  enum Action {
+    /** Sends the argument to the remote as a command. */
+    SEND,
+    /** Launches the argument as a script, just like {@code #!script <argument>}. */
+    SCRIPT,
+    /** Hands the argument to {@link ScriptPlugin.Script#onTrigger} of every running plugin. */
+    NOTIFY
+  }
+
+  /** A single pattern and the action it triggers. */
+  static final class Trigger {
+    private final String pattern;
+    private final boolean regex;
+    private final Action action;
+    private final String argument;
+
+    Trigger(String pattern, boolean regex, Action action, String argument) {
+      this.pattern = checkNotNull(pattern);
+      this.regex = regex;
+      this.action = checkNotNull(action);
+      this.argument = checkNotNull(argument);
+    }
+
+    String getPattern() {
+      return pattern;
+    }
+
+    boolean isRegex() {
+      return regex;
+    }
+
+    Action getAction() {
+      return action;
+    }
+
+    String getArgument() {
+      return argument;
+    }
+
+    @Override
+    public String toString() {
+      String action = this.action.name().toLowerCase(Locale.ROOT) + " " + argument;
+      return (regex ? "/" + pattern + "/" : pattern) + SEPARATOR + action;
+    }
+  }
+
+  private final ImmutableList<Trigger> triggers;
+  /** Finds the literal patterns, with the triggers for each in {@link #literalTriggers}. */
+  @Nullable private final AhoCorasick literals;
+  private final int[][] literalTriggers;
+  /** Finds the regular expressions, with the trigger for each in {@link #regexTriggers}. */
+  @Nullable private final RegexDfa regexes;
+  private final int[] regexTriggers;
+
+  /**
+   * Compiles {@code triggers}.
+   *
+   * @throws PatternSyntaxException if a regular expression isn't supported by {@link RegexDfa}
+   */
+  Triggers(List<Trigger> triggers) {
+    this.triggers = ImmutableList.copyOf(triggers);
+
+    // the same text may trigger more than one action
+    Map<ByteBuffer, List<Integer>> byLiteral = new LinkedHashMap<>();
+    List<String> regexPatterns = new ArrayList<>();
+    List<Integer> regexIndexes = new ArrayList<>();
+    for (int i = 0; i < triggers.size(); ++i) {
+      Trigger trigger = triggers.get(i);
+      if (trigger.isRegex()) {
+        regexPatterns.add(trigger.getPattern());
+        regexIndexes.add(i);
+      } else {
+        byLiteral
+            .computeIfAbsent(
+                ByteBuffer.wrap(trigger.getPattern().getBytes(UTF_8)), key -> new ArrayList<>())
+            .add(i);
+      }
+    }
+
+    List<byte[]> literalPatterns = new ArrayList<>();
+    literalTriggers = new int[byLiteral.size()][];
+    for (Map.Entry<ByteBuffer, List<Integer>> entry : byLiteral.entrySet()) {
+      literalTriggers[literalPatterns.size()] =
+          entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+      literalPatterns.add(entry.getKey().array());
+    }
+    literals = literalPatterns.isEmpty() ? null : new AhoCorasick(literalPatterns);
+    regexes = regexPatterns.isEmpty() ? null : new RegexDfa(regexPatterns);
+    regexTriggers = regexIndexes.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * Parses the triggers in {@code lines}, skipping blank lines and comments.
+   *
+   * @throws IllegalArgumentException if a line can't be parsed
+   */
+  static Triggers parse(List<String> lines) {
+    List<Trigger> triggers = new ArrayList<>();
+    for (int i = 0; i < lines.size(); ++i) {
+      String line = lines.get(i).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      try {
+        triggers.add(parseTrigger(line));
+      } catch (IllegalArgumentException ex) {
+        throw new IllegalArgumentException(
+            String.format("Invalid trigger on line %d: %s", i + 1, ex.getMessage()), ex);
+      }
+    }
+    return new Triggers(triggers);
+  }
+
+  /** Returns the triggers in the file at {@code path}, or none if it's empty. */
+  static Triggers load(String path) throws IOException {
+    if (path.isEmpty()) {
+      return EMPTY;
+    }
+    Triggers loaded = parse(Files.readAllLines(Path.of(path), UTF_8));
+    logger.atInfo().log("Loaded %d triggers from %s", loaded.getTriggers().size(), path);
+    return loaded;
+  }
+
+  ImmutableList<Trigger> getTriggers() {
+    return triggers;
+  }
+
+  boolean isEmpty() {
+    return triggers.isEmpty();
+  }
+
+  @Nullable
+  AhoCorasick getLiterals() {
+    return literals;
+  }
+
+  /** Returns the indexes of the triggers for the {@code literal}th distinct literal pattern. */
+  int[] getLiteralTriggers(int literal) {
+    return literalTriggers[literal];
+  }
+
+  @Nullable
+  RegexDfa getRegexes() {
+    return regexes;
+  }
+
+  /** Returns the index of the trigger for the {@code regex}th regular expression. */
+  int getRegexTrigger(int regex) {
+    return regexTriggers[regex];
+  }
+
+  private static Trigger parseTrigger(String line) {
+    int separator = line.lastIndexOf(SEPARATOR);
+    if (separator <= 0) {
+      throw new IllegalArgumentException("expected <pattern> => <action> <argument>");
+    }
+    String pattern = line.substring(0, separator).trim();
+    String action = line.substring(separator + SEPARATOR.length()).trim();
+
+    boolean regex = pattern.length() > 2 && pattern.startsWith("/") && pattern.endsWith("/");
+    if (regex) {
+      pattern = pattern.substring(1, pattern.length() - 1);
+      // compiled on its own too, so a bad expression is reported with its line
+      new RegexDfa(ImmutableList.of(pattern));
+    }
+
+    int actionEnd = action.indexOf(' ');
+    String argument = actionEnd < 0 ? "" : action.substring(actionEnd + 1).trim();
+    if (argument.isEmpty()) {
+      throw new IllegalArgumentException("missing an argument for \"" + action + "\"");
+    }
+    try {
+      return new Trigger(
+          pattern,
+          regex,
+          Action.valueOf(action.substring(0, actionEnd).toUpperCase(Locale.ROOT)),
+          argument);
+    } catch (IllegalArgumentException ex) {
+      throw new IllegalArgumentException("unknown action \"" + action + "\"", ex);
+    }
+  }
+}
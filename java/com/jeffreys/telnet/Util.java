@@ -1,8 +1,13 @@
 package com.jeffreys.telnet;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
 import com.google.common.flogger.FluentLogger;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ThreadFactory;
 import javax.annotation.Nullable;
 
 /** Grabbag of utility methods. */
@@ -22,4 +27,41 @@ final class Util {
       logger.atWarning().withCause(ex).log("Failed to close Closeable");
     }
   }
+
+  /**
+   * Reads a line answering a prompt, without the telnet negotiation the client may send first, or
+   * returns null if the client disconnects before finishing it or it runs past {@code maxLength}.
+   *
+   * <p>Reads a byte at a time, so nothing after the line is consumed.
+   */
+  @Nullable
+  static String readAnswer(InputStream in, int maxLength) throws IOException {
+    ByteArrayOutputStream answer = new ByteArrayOutputStream();
+    IACFilter filter = new IACFilter(answer::write);
+    byte[] buffer = new byte[1];
+    while (answer.size() < maxLength && in.read(buffer) > 0) {
+      if (buffer[0] == '\n') {
+        return answer.toString(US_ASCII).trim();
+      }
+      filter.accept(buffer, /* offset= */ 0, /* length= */ 1);
+    }
+    return null;
+  }
+
+  /**
+   * Returns a {@link ThreadFactory} creating virtual threads.
+   *
+   * <p>Looked up reflectively so that we still build and run on JDKs older than 21.
+   *
+   * @throws UnsupportedOperationException if the running JVM doesn't support virtual threads
+   */
+  static ThreadFactory virtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory)
+          Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException ex) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later", ex);
+    }
+  }
 }
@@ -0,0 +1,79 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AhoCorasickTest {
+  @Test
+  public void findsEveryPattern() {
+    AhoCorasick automaton = compile("he", "she", "his", "hers");
+
+    assertThat(scan(automaton, "ushers")).containsExactly("1@4", "0@4", "3@6").inOrder();
+  }
+
+  @Test
+  public void findsOverlappingOccurrences() {
+    AhoCorasick automaton = compile("aa");
+
+    assertThat(scan(automaton, "aaaa")).containsExactly("0@2", "0@3", "0@4").inOrder();
+  }
+
+  @Test
+  public void followsFailLinksAfterMismatch() {
+    AhoCorasick automaton = compile("abcd", "bce");
+
+    assertThat(scan(automaton, "abce")).containsExactly("1@4");
+  }
+
+  @Test
+  public void nonAsciiBytes() {
+    AhoCorasick automaton = compile("café");
+
+    assertThat(scan(automaton, "un café noir")).containsExactly("0@8");
+  }
+
+  @Test
+  public void noPatterns_neverMatches() {
+    AhoCorasick automaton = new AhoCorasick(ImmutableList.of());
+
+    assertThat(scan(automaton, "anything")).isEmpty();
+  }
+
+  @Test
+  public void emptyPattern_throws() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new AhoCorasick(ImmutableList.of(new byte[0])));
+  }
+
+  private static AhoCorasick compile(String... patterns) {
+    List<byte[]> bytes = new ArrayList<>();
+    for (String pattern : patterns) {
+      bytes.add(pattern.getBytes(UTF_8));
+    }
+    return new AhoCorasick(bytes);
+  }
+
+  /** Returns each match as {@code pattern@end}, with end counted in bytes. */
+  private static List<String> scan(AhoCorasick automaton, String text) {
+    List<String> matches = new ArrayList<>();
+    byte[] bytes = text.getBytes(UTF_8);
+    int state = AhoCorasick.START;
+    for (int i = 0; i < bytes.length; ++i) {
+      state = automaton.next(state, bytes[i]);
+      int end = i + 1;
+      if (automaton.hasMatch(state)) {
+        automaton.forEachMatch(state, pattern -> matches.add(pattern + "@" + end));
+      }
+    }
+    return matches;
+  }
+}
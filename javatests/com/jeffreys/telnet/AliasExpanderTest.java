@@ -0,0 +1,93 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AliasExpanderTest {
+  private final ByteArrayOutputStream passedOn = new ByteArrayOutputStream();
+  private final AliasExpander expander =
+      new AliasExpander(
+          Aliases.parse(ImmutableList.of("kk kill $1;get all from corpse", "n north")),
+          passedOn::write);
+
+  @Test
+  public void plainLines_passedOnUnchanged() {
+    accept("look\r\nsay kk is my friend\r\n");
+
+    assertThat(passedOn()).isEqualTo("look\r\nsay kk is my friend\r\n");
+  }
+
+  @Test
+  public void alias_expanded() {
+    accept("kk orc\r\nlook\r\n");
+
+    assertThat(passedOn()).isEqualTo("kill orc\r\nget all from corpse\r\nlook\r\n");
+  }
+
+  @Test
+  public void repeat_expanded() {
+    accept("#3 n\r\n");
+
+    assertThat(passedOn()).isEqualTo("north\r\nnorth\r\nnorth\r\n");
+  }
+
+  @Test
+  public void keystrokes_heldOnlyWhileTheyCouldBeAnAlias() {
+    accept("k");
+    assertThat(passedOn()).isEmpty();
+    accept("i");
+    assertThat(passedOn()).isEqualTo("ki");
+    accept("ck\r\n");
+    assertThat(passedOn()).isEqualTo("kick\r\n");
+
+    passedOn.reset();
+    accept("n");
+    accept("\r");
+    accept("\n");
+    assertThat(passedOn()).isEqualTo("north\r\n");
+  }
+
+  @Test
+  public void backspace_editsHeldArguments() {
+    accept("kk orx\bc\r\n");
+
+    assertThat(passedOn()).isEqualTo("kill orc\r\nget all from corpse\r\n");
+  }
+
+  @Test
+  public void lineEndingInNul_replaced() {
+    accept("n\r\0look\r\0");
+
+    assertThat(passedOn()).isEqualTo("north\r\nlook\r\0");
+  }
+
+  @Test
+  public void telnetCommands_passedStraightThrough() {
+    accept("kÿý\u0001k orc\r\n");
+
+    assertThat(passedOn()).isEqualTo("ÿý\u0001kill orc\r\nget all from corpse\r\n");
+  }
+
+  @Test
+  public void scriptLaunch_notMistakenForRepeat() {
+    accept("#!script test.sh\r\n");
+
+    assertThat(passedOn()).isEqualTo("#!script test.sh\r\n");
+  }
+
+  private void accept(String data) {
+    byte[] bytes = data.getBytes(ISO_8859_1);
+    expander.accept(bytes, /* offset= */ 0, bytes.length);
+  }
+
+  private String passedOn() {
+    return new String(passedOn.toByteArray(), ISO_8859_1);
+  }
+}
@@ -0,0 +1,82 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AliasesTest {
+  private final Aliases aliases =
+      Aliases.parse(
+          ImmutableList.of(
+              "# a comment",
+              "",
+              "kk kill $1;get all from corpse",
+              "gs give $* to $1",
+              "run #3 $1;look",
+              "price say $$5",
+              "loop loop"));
+
+  @Test
+  public void expand_notAnAlias() {
+    assertThat(aliases.expand("look")).isEqualTo("look\r\n");
+    assertThat(aliases.expand("kkk orc")).isEqualTo("kkk orc\r\n");
+  }
+
+  @Test
+  public void expand_substitutesArguments() {
+    assertThat(aliases.expand("kk orc")).isEqualTo("kill orc\r\nget all from corpse\r\n");
+    assertThat(aliases.expand("gs bob 5 gold")).isEqualTo("give bob 5 gold to bob\r\n");
+    assertThat(aliases.expand("price")).isEqualTo("say $5\r\n");
+  }
+
+  @Test
+  public void expand_missingArgumentsAreEmpty() {
+    assertThat(aliases.expand("kk")).isEqualTo("kill\r\nget all from corpse\r\n");
+  }
+
+  @Test
+  public void expand_repeats() {
+    assertThat(aliases.expand("#2 north")).isEqualTo("north\r\nnorth\r\n");
+    assertThat(aliases.expand("run east")).isEqualTo("east\r\neast\r\neast\r\nlook\r\n");
+    assertThat(aliases.expand("#2 kk rat"))
+        .isEqualTo("kill rat\r\nget all from corpse\r\nkill rat\r\nget all from corpse\r\n");
+  }
+
+  @Test
+  public void expand_notARepeat() {
+    assertThat(aliases.expand("#!script test.sh")).isEqualTo("#!script test.sh\r\n");
+    assertThat(aliases.expand("#2x north")).isEqualTo("#2x north\r\n");
+  }
+
+  @Test
+  public void expand_stopsRecursiveAliases() {
+    assertThat(aliases.expand("loop")).isEmpty();
+  }
+
+  @Test
+  public void trie_matchesNamesByteByByte() {
+    int node = aliases.child(Aliases.ROOT, (byte) 'k');
+    assertThat(aliases.isAlias(node)).isFalse();
+
+    node = aliases.child(node, (byte) 'k');
+    assertThat(aliases.isAlias(node)).isTrue();
+
+    assertThat(aliases.child(node, (byte) 'k')).isEqualTo(Aliases.NONE);
+  }
+
+  @Test
+  public void parse_badLine_throws() {
+    assertThrows(IllegalArgumentException.class, () -> Aliases.parse(ImmutableList.of("lonely")));
+  }
+
+  @Test
+  public void load_noFile_isEmpty() throws Exception {
+    assertThat(Aliases.load("")).isSameInstanceAs(Aliases.EMPTY);
+    assertThat(Aliases.EMPTY.isEmpty()).isTrue();
+  }
+}
@@ -0,0 +1,126 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BufferPoolTest {
+  private final BufferPool pool = new BufferPool(/* maxRetainedBytes= */ 8192, /* direct= */ false);
+
+  @Test
+  public void acquire_roundsUpToSizeClass() {
+    assertThat(pool.acquire(1)).hasLength(512);
+    assertThat(pool.acquire(512)).hasLength(512);
+    assertThat(pool.acquire(513)).hasLength(1024);
+    assertThat(pool.acquire(BufferPool.MAX_SIZE)).hasLength(BufferPool.MAX_SIZE);
+    assertThat(pool.acquire(BufferPool.MAX_SIZE + 1)).hasLength(BufferPool.MAX_SIZE + 1);
+    assertThat(pool.getMisses()).isEqualTo(5);
+  }
+
+  @Test
+  public void release_reusedBySameSize() {
+    byte[] array = pool.acquire(2048);
+    pool.release(array);
+
+    assertThat(pool.getRetainedBytes()).isEqualTo(2048);
+    assertThat(pool.acquire(1500)).isSameInstanceAs(array);
+    assertThat(pool.acquire(1500)).isNotSameInstanceAs(array);
+    assertThat(pool.getHits()).isEqualTo(1);
+    assertThat(pool.getMisses()).isEqualTo(2);
+    assertThat(pool.getRetainedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void release_dropsPastRetainedLimit() {
+    pool.release(pool.acquire(4096));
+    pool.release(pool.acquire(4096));
+    pool.release(new byte[4096]);
+
+    assertThat(pool.getRetainedBytes()).isEqualTo(8192);
+  }
+
+  @Test
+  public void release_ignoresOddSizes() {
+    pool.release(new byte[1000]);
+    pool.release(new byte[BufferPool.MAX_SIZE * 2]);
+
+    assertThat(pool.getRetainedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void acquireBuffer_limitedToRequest() {
+    ByteBuffer buffer = pool.acquireBuffer(600);
+    buffer.put((byte) 1).flip();
+    pool.release(buffer);
+
+    ByteBuffer reused = pool.acquireBuffer(700);
+
+    assertThat(reused).isSameInstanceAs(buffer);
+    assertThat(reused.position()).isEqualTo(0);
+    assertThat(reused.limit()).isEqualTo(700);
+    assertThat(reused.capacity()).isEqualTo(1024);
+    assertThat(reused.isDirect()).isFalse();
+  }
+
+  @Test
+  public void directPool_handsOutDirectBuffers() {
+    BufferPool directPool = new BufferPool(/* maxRetainedBytes= */ 8192, /* direct= */ true);
+    ByteBuffer buffer = directPool.acquireBuffer(100);
+
+    assertThat(buffer.isDirect()).isTrue();
+
+    // a heap buffer isn't kept by a pool of direct ones
+    directPool.release(ByteBuffer.allocate(512));
+    directPool.release(buffer);
+
+    assertThat(directPool.getRetainedBytes()).isEqualTo(512);
+  }
+
+  @Test
+  public void sizer_growsOnFullReads() {
+    BufferPool.Sizer sizer = new BufferPool.Sizer(2048);
+
+    sizer.record(2048, 2048);
+    assertThat(sizer.next()).isEqualTo(4096);
+
+    for (int i = 0; i < 10; ++i) {
+      sizer.record(sizer.next(), sizer.next());
+    }
+    assertThat(sizer.next()).isEqualTo(BufferPool.MAX_SIZE);
+  }
+
+  @Test
+  public void sizer_shrinksAfterSeveralSmallReads() {
+    BufferPool.Sizer sizer = new BufferPool.Sizer(4096);
+
+    for (int i = 0; i < 7; ++i) {
+      sizer.record(100, 4096);
+    }
+    assertThat(sizer.next()).isEqualTo(4096);
+
+    // one bigger read in between starts the count over
+    sizer.record(2000, 4096);
+    for (int i = 0; i < 7; ++i) {
+      sizer.record(100, 4096);
+    }
+    assertThat(sizer.next()).isEqualTo(4096);
+
+    sizer.record(100, 4096);
+    assertThat(sizer.next()).isEqualTo(2048);
+  }
+
+  @Test
+  public void sizer_neverBelowMinimum() {
+    BufferPool.Sizer sizer = new BufferPool.Sizer(BufferPool.MIN_SIZE);
+
+    for (int i = 0; i < 100; ++i) {
+      sizer.record(1, BufferPool.MIN_SIZE);
+    }
+
+    assertThat(sizer.next()).isEqualTo(BufferPool.MIN_SIZE);
+  }
+}
@@ -0,0 +1,74 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+
+import com.google.common.base.Ticker;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CachingResolverTest {
+  private static final Duration TTL = Duration.ofSeconds(60);
+
+  private long nowNanos = 0;
+  private int lookups = 0;
+  private boolean failLookups = false;
+
+  private final Ticker ticker =
+      new Ticker() {
+        @Override
+        public long read() {
+          return nowNanos;
+        }
+      };
+  private final CachingResolver resolver =
+      new CachingResolver("bbs.example.com", TTL, ticker, this::lookup);
+
+  @Test
+  public void resolve_cachedWithinTtl() throws Exception {
+    InetAddress[] first = resolver.resolve();
+    nowNanos += TTL.toNanos() - 1;
+    InetAddress[] second = resolver.resolve();
+
+    assertThat(lookups).isEqualTo(1);
+    assertThat(second).isEqualTo(first);
+  }
+
+  @Test
+  public void resolve_lookedUpAgainAfterTtl() throws Exception {
+    resolver.resolve();
+    nowNanos += TTL.toNanos();
+    resolver.resolve();
+
+    assertThat(lookups).isEqualTo(2);
+  }
+
+  @Test
+  public void resolve_failureAfterTtl_usesLastAnswer() throws Exception {
+    InetAddress[] first = resolver.resolve();
+    nowNanos += TTL.toNanos();
+    failLookups = true;
+
+    assertThat(resolver.resolve()).isEqualTo(first);
+  }
+
+  @Test
+  public void resolve_failureWithNoAnswer_throws() {
+    failLookups = true;
+
+    assertThrows(UnknownHostException.class, resolver::resolve);
+  }
+
+  private InetAddress[] lookup(String host) throws UnknownHostException {
+    ++lookups;
+    if (failLookups) {
+      throw new UnknownHostException(host);
+    }
+    return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1})};
+  }
+}
@@ -0,0 +1,177 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ChannelStreamerTest {
+  private SelectorLoop loop;
+  private ServerSocketChannel serverChannel;
+
+  @Before
+  public void setUp() throws IOException {
+    loop = new SelectorLoop();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    new Thread(loop, "test-selector").start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    loop.close();
+    serverChannel.close();
+  }
+
+  @Test
+  public void bridgesBothDirections() throws Exception {
+    try (Socket hostClient = connect();
+        SocketChannel hostChannel = serverChannel.accept();
+        Socket remoteServer = connect();
+        SocketChannel remoteChannel = serverChannel.accept()) {
+      CountDownLatch closeLatch = new CountDownLatch(1);
+      startBridge(hostChannel, remoteChannel, closeLatch);
+
+      hostClient.getOutputStream().write("you typed this".getBytes(UTF_8));
+      assertThat(readFully(remoteServer.getInputStream(), 14)).isEqualTo("you typed this");
+
+      remoteServer.getOutputStream().write("Welcome to the BBS!".getBytes(UTF_8));
+      assertThat(readFully(hostClient.getInputStream(), 19)).isEqualTo("Welcome to the BBS!");
+
+      hostClient.shutdownOutput();
+      assertThat(closeLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+      assertThat(remoteServer.getInputStream().read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void slowReader_allDataEventuallyDelivered() throws Exception {
+    try (Socket hostClient = connect();
+        SocketChannel hostChannel = serverChannel.accept();
+        Socket remoteServer = connect();
+        SocketChannel remoteChannel = serverChannel.accept()) {
+      startBridge(hostChannel, remoteChannel, new CountDownLatch(1));
+
+      // far more than the socket buffers hold, so the bridge has to queue and pause reading
+      byte[] chunk = new byte[26 * 2048];
+      for (int i = 0; i < chunk.length; ++i) {
+        chunk[i] = (byte) ('a' + (i % 26));
+      }
+      int total = chunk.length * 160;
+      Thread writer =
+          new Thread(
+              () -> {
+                try {
+                  for (int written = 0; written < total; written += chunk.length) {
+                    remoteServer.getOutputStream().write(chunk);
+                  }
+                } catch (IOException ex) {
+                  throw new IllegalStateException(ex);
+                }
+              });
+      writer.start();
+
+      Thread.sleep(200);
+      InputStream inputStream = hostClient.getInputStream();
+      byte[] buffer = new byte[64 * 1024];
+      long received = 0;
+      while (received < total) {
+        int bytes = inputStream.read(buffer);
+        assertThat(bytes).isGreaterThan(0);
+        for (int i = 0; i < bytes; ++i) {
+          assertThat(buffer[i]).isEqualTo((byte) ('a' + ((received + i) % 26)));
+        }
+        received += bytes;
+      }
+      writer.join();
+    }
+  }
+
+  @Test
+  public void slowScriptLaunch_doesNotHoldUpTheLoop() throws Exception {
+    CountDownLatch launching = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    try (Socket hostClient = connect();
+        SocketChannel hostChannel = serverChannel.accept();
+        Socket remoteServer = connect();
+        SocketChannel remoteChannel = serverChannel.accept()) {
+      startBridge(
+          hostChannel,
+          remoteChannel,
+          new CountDownLatch(1),
+          processBuilder -> {
+            launching.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            throw new IOException("no scripts here");
+          });
+
+      hostClient.setSoTimeout(5000);
+      hostClient.getOutputStream().write("#!script slow.sh\r\n".getBytes(UTF_8));
+      assertThat(launching.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+      remoteServer.getOutputStream().write("still here".getBytes(UTF_8));
+      assertThat(readFully(hostClient.getInputStream(), 10)).isEqualTo("still here");
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private void startBridge(
+      SocketChannel hostChannel, SocketChannel remoteChannel, CountDownLatch closeLatch)
+      throws IOException {
+    startBridge(hostChannel, remoteChannel, closeLatch, ProcessBuilder::start);
+  }
+
+  private void startBridge(
+      SocketChannel hostChannel,
+      SocketChannel remoteChannel,
+      CountDownLatch closeLatch,
+      ProcessLauncher processLauncher)
+      throws IOException {
+    hostChannel.configureBlocking(false);
+    remoteChannel.configureBlocking(false);
+
+    ChannelStreamer host = new ChannelStreamer(hostChannel, loop);
+    ChannelStreamer remote = new ChannelStreamer(remoteChannel, loop);
+    TelnetConnection telnetConnection = new TelnetConnection(host, remote, processLauncher);
+    telnetConnection.startNonBlocking();
+
+    Runnable onClose =
+        () -> {
+          telnetConnection.shutdown();
+          closeLatch.countDown();
+        };
+    host.start(telnetConnection::receiveFromHost, telnetConnection::flushToRemote, remote, onClose);
+    remote.start(telnetConnection::receiveFromRemote, telnetConnection::flushToHost, host, onClose);
+  }
+
+  private Socket connect() throws IOException {
+    return new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+  }
+
+  private static String readFully(InputStream inputStream, int length) throws IOException {
+    byte[] buffer = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      int bytes = inputStream.read(buffer, offset, length - offset);
+      assertThat(bytes).isGreaterThan(0);
+      offset += bytes;
+    }
+    return new String(buffer, UTF_8);
+  }
+}
@@ -0,0 +1,96 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CoalescingOutputStreamTest {
+  private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+  @Test
+  public void smallWrites_gatheredUntilFlush() throws IOException {
+    CoalescingOutputStream outputStream = new CoalescingOutputStream(sent, Duration.ofHours(1));
+
+    for (int i = 0; i < 100; ++i) {
+      outputStream.write(bytes("line " + i + "\r\n"));
+    }
+    assertThat(sent.size()).isEqualTo(0);
+
+    outputStream.flush();
+
+    assertThat(sent.toString()).startsWith("line 0\r\nline 1\r\n");
+    assertThat(sent.toString()).endsWith("line 99\r\n");
+    assertThat(outputStream.getChunksWritten()).isEqualTo(100);
+    assertThat(outputStream.getChunksSent()).isEqualTo(1);
+  }
+
+  @Test
+  public void zeroBudget_sendsEveryWrite() throws IOException {
+    CoalescingOutputStream outputStream = new CoalescingOutputStream(sent, Duration.ZERO);
+
+    outputStream.write(bytes("a"));
+    outputStream.write(bytes("b"));
+
+    assertThat(sent.toString()).isEqualTo("ab");
+    assertThat(outputStream.getChunksSent()).isEqualTo(2);
+  }
+
+  @Test
+  public void fullBuffer_sent() throws IOException {
+    CoalescingOutputStream outputStream = new CoalescingOutputStream(sent, Duration.ofHours(1));
+    byte[] chunk = new byte[3000];
+
+    outputStream.write(chunk);
+    outputStream.write(chunk);
+    outputStream.write(chunk);
+
+    // the third write doesn't fit, so the first two go out together
+    assertThat(sent.size()).isEqualTo(6000);
+    assertThat(outputStream.getChunksSent()).isEqualTo(1);
+  }
+
+  @Test
+  public void largeWrite_sentDirectlyInOrder() throws IOException {
+    CoalescingOutputStream outputStream = new CoalescingOutputStream(sent, Duration.ofHours(1));
+    byte[] large = new byte[20000];
+    large[0] = 'b';
+
+    outputStream.write(bytes("a"));
+    outputStream.write(large);
+
+    assertThat(sent.size()).isEqualTo(20001);
+    assertThat(sent.toByteArray()[0]).isEqualTo((byte) 'a');
+    assertThat(sent.toByteArray()[1]).isEqualTo((byte) 'b');
+  }
+
+  @Test
+  public void buffer_returnedToPoolOnceEmptied() throws IOException {
+    BufferPool pool = BufferPool.create();
+    CoalescingOutputStream outputStream =
+        new CoalescingOutputStream(sent, Duration.ofHours(1), pool);
+
+    outputStream.write(bytes("look\r\n"));
+    assertThat(pool.getRetainedBytes()).isEqualTo(0);
+
+    outputStream.flush();
+    assertThat(pool.getRetainedBytes()).isGreaterThan(0);
+
+    outputStream.write(bytes("eat\r\n"));
+    outputStream.flush();
+
+    assertThat(sent.toString()).isEqualTo("look\r\neat\r\n");
+    assertThat(pool.getMisses()).isEqualTo(1);
+    assertThat(pool.getHits()).isEqualTo(1);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(UTF_8);
+  }
+}
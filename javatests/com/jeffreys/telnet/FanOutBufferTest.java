@@ -0,0 +1,340 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+import static com.jeffreys.telnet.FanOutBuffer.OverflowPolicy.BLOCK;
+import static com.jeffreys.telnet.FanOutBuffer.OverflowPolicy.DROP_NEWEST;
+import static com.jeffreys.telnet.FanOutBuffer.OverflowPolicy.DROP_OLDEST;
+import static com.jeffreys.telnet.FanOutBuffer.OverflowPolicy.SPILL;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FanOutBufferTest {
+  private final FanOutBuffer fanOutBuffer = new FanOutBuffer(16);
+
+  @Test
+  public void capacity_roundsUpToPowerOfTwo() {
+    assertThat(new FanOutBuffer(10).getCapacity()).isEqualTo(16);
+    assertThat(new FanOutBuffer(16).getCapacity()).isEqualTo(16);
+    assertThrows(IllegalArgumentException.class, () -> new FanOutBuffer(0));
+  }
+
+  @Test
+  public void everySubscriberSeesEverything() throws Exception {
+    FanOutBuffer.Subscriber first = fanOutBuffer.subscribe(null, DROP_OLDEST);
+    FanOutBuffer.Subscriber second = fanOutBuffer.subscribe(null, DROP_OLDEST);
+
+    publish("hello ");
+    publish("there");
+
+    assertThat(readAll(first)).isEqualTo("hello there");
+    assertThat(readAll(second)).isEqualTo("hello there");
+  }
+
+  @Test
+  public void subscriber_onlySeesDataAfterSubscribing() throws Exception {
+    publish("before");
+    FanOutBuffer.Subscriber subscriber = fanOutBuffer.subscribe(null, DROP_OLDEST);
+    publish("after");
+
+    assertThat(readAll(subscriber)).isEqualTo("after");
+  }
+
+  @Test
+  public void filter_onlyMatchingChunks() throws Exception {
+    FanOutBuffer.Subscriber subscriber =
+        fanOutBuffer.subscribe(FanOutBuffer.Filter.containing("hungry".getBytes()), DROP_OLDEST);
+
+    publish("A tree.");
+    publish("Hungry?");
+    publish("I'm hungry.");
+
+    assertThat(subscriber.hasPending()).isTrue();
+    assertThat(readAll(subscriber)).isEqualTo("I'm hungry.");
+  }
+
+  @Test
+  public void filter_findsMatchesSplitAcrossChunks() throws Exception {
+    FanOutBuffer big = new FanOutBuffer(64);
+    FanOutBuffer.Subscriber subscriber =
+        big.subscribe(FanOutBuffer.Filter.containing("hungry".getBytes()), DROP_OLDEST);
+
+    for (String chunk : new String[] {"I'm hun", "gry.", "hu", "n", "gry", "eat hungr", "ily"}) {
+      big.publish(chunk.getBytes(), 0, chunk.length());
+    }
+
+    // each match counts for the chunk it ends in
+    assertThat(readAll(subscriber)).isEqualTo("gry.gry");
+  }
+
+  @Test
+  public void filter_keepsManySeparateRanges() throws Exception {
+    FanOutBuffer big = new FanOutBuffer(1024);
+    FanOutBuffer.Subscriber subscriber =
+        big.subscribe(FanOutBuffer.Filter.containing("x".getBytes()), DROP_OLDEST);
+    StringBuilder expected = new StringBuilder();
+    byte[] buffer = new byte[64];
+
+    for (int i = 0; i < 40; ++i) {
+      byte[] wanted = ("x" + i).getBytes();
+      big.publish(wanted, 0, wanted.length);
+      big.publish(new byte[] {'y'}, 0, 1);
+      expected.append("x").append(i);
+      // reading some as it goes moves the start of the queue around
+      if (i % 7 == 6) {
+        int bytes = subscriber.read(buffer);
+        expected.delete(0, bytes);
+      }
+    }
+
+    assertThat(readAll(subscriber)).isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void read_wrapsAroundTheRing() throws Exception {
+    FanOutBuffer.Subscriber subscriber = fanOutBuffer.subscribe(null, DROP_OLDEST);
+
+    publish("0123456789");
+    assertThat(read(subscriber)).isEqualTo("0123456789");
+    publish("abcdefghij");
+
+    assertThat(readAll(subscriber)).isEqualTo("abcdefghij");
+    assertThat(subscriber.getDroppedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void slowSubscriber_losesOldestData() throws Exception {
+    FanOutBuffer.Subscriber slow = fanOutBuffer.subscribe(null, DROP_OLDEST);
+
+    publish("0123456789");
+    publish("abcdefghij");
+
+    assertThat(readAll(slow)).isEqualTo("456789abcdefghij");
+    assertThat(slow.getDroppedBytes()).isEqualTo(4);
+  }
+
+  @Test
+  public void dropNewest_keepsUnreadData() throws Exception {
+    FanOutBuffer.Subscriber slow = fanOutBuffer.subscribe(null, DROP_NEWEST);
+
+    publish("0123456789");
+    publish("abcdefghij");
+    publish("ABCDEF");
+
+    assertThat(readAll(slow)).isEqualTo("0123456789");
+    assertThat(slow.getDroppedBytes()).isEqualTo(16);
+
+    publish("caught up");
+    assertThat(readAll(slow)).isEqualTo("caught up");
+  }
+
+  @Test
+  public void spill_keepsEverythingInOrder() throws Exception {
+    FanOutBuffer.Subscriber slow = fanOutBuffer.subscribe(null, SPILL);
+    FanOutBuffer.Subscriber fast = fanOutBuffer.subscribe(null, DROP_OLDEST);
+
+    publish("0123456789");
+    assertThat(read(fast)).isEqualTo("0123456789");
+    publish("abcdefghij");
+    assertThat(read(fast)).isEqualTo("abcdefghij");
+    publish("ABCDEFGHIJ");
+    assertThat(read(fast)).isEqualTo("ABCDEFGHIJ");
+
+    assertThat(readAll(slow)).isEqualTo("0123456789abcdefghijABCDEFGHIJ");
+    assertThat(slow.getDroppedBytes()).isEqualTo(0);
+    assertThat(slow.getSpilledBytes()).isEqualTo(30);
+  }
+
+  @Test
+  public void spill_returnsToTheRingOnceCaughtUp() throws Exception {
+    FanOutBuffer.Subscriber slow = fanOutBuffer.subscribe(null, SPILL);
+
+    publish("0123456789");
+    publish("abcdefghij");
+    assertThat(readAll(slow)).isEqualTo("0123456789abcdefghij");
+    publish("ABCDEFGHIJ");
+
+    assertThat(readAll(slow)).isEqualTo("ABCDEFGHIJ");
+    assertThat(slow.getSpilledBytes()).isEqualTo(20);
+  }
+
+  @Test
+  public void backlog_countsUnreadBytes() throws Exception {
+    FanOutBuffer.Subscriber slow = fanOutBuffer.subscribe(null, DROP_OLDEST);
+    FanOutBuffer.Subscriber spilling = fanOutBuffer.subscribe(null, SPILL);
+
+    publish("0123456789");
+    assertThat(slow.getBacklog()).isEqualTo(10);
+    publish("abcdefghij");
+    // only what's left in the ring
+    assertThat(slow.getBacklog()).isEqualTo(fanOutBuffer.getCapacity());
+    assertThat(spilling.getBacklog()).isEqualTo(20);
+
+    readAll(slow);
+    assertThat(slow.getBacklog()).isEqualTo(0);
+  }
+
+  @Test
+  public void block_waitsForTheReader() throws Exception {
+    FanOutBuffer.Subscriber subscriber = fanOutBuffer.subscribe(null, BLOCK);
+    publish("0123456789");
+    CountDownLatch publishLatch = new CountDownLatch(1);
+    Thread publisher =
+        new Thread(
+            () -> {
+              publish("abcdefghij");
+              publishLatch.countDown();
+            });
+    publisher.start();
+
+    assertThat(publishLatch.await(20, TimeUnit.MILLISECONDS)).isFalse();
+    assertThat(read(subscriber)).isEqualTo("0123456789");
+
+    assertThat(publishLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    assertThat(readAll(subscriber)).isEqualTo("abcdefghij");
+    assertThat(subscriber.getDroppedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void block_givesUpOnAStuckReader() throws Exception {
+    FanOutBuffer.Subscriber stuck = fanOutBuffer.subscribe(null, BLOCK);
+
+    publish("0123456789");
+    publish("abcdefghij");
+
+    assertThat(readAll(stuck)).isEqualTo("456789abcdefghij");
+    assertThat(stuck.getDroppedBytes()).isEqualTo(4);
+  }
+
+  @Test
+  public void hugeChunk_keepsItsTail() throws Exception {
+    FanOutBuffer.Subscriber subscriber = fanOutBuffer.subscribe(null, DROP_OLDEST);
+
+    publish("0123456789abcdefghij");
+
+    assertThat(readAll(subscriber)).isEqualTo("456789abcdefghij");
+    assertThat(subscriber.getDroppedBytes()).isEqualTo(4);
+  }
+
+  @Test
+  public void hugeChunk_dropNewest_holdsItsTail() throws Exception {
+    FanOutBuffer.Subscriber slow = fanOutBuffer.subscribe(null, DROP_NEWEST);
+
+    publish("0123456789abcdefghij");
+    publish("XYZ");
+
+    assertThat(readAll(slow)).isEqualTo("456789abcdefghij");
+    assertThat(slow.getDroppedBytes()).isEqualTo(7);
+
+    publish("caught up");
+    assertThat(readAll(slow)).isEqualTo("caught up");
+  }
+
+  @Test
+  public void hugeChunk_block_keepsItsTail() throws Exception {
+    FanOutBuffer.Subscriber stuck = fanOutBuffer.subscribe(null, BLOCK);
+
+    publish("0123456789abcdefghij");
+    publish("XYZ");
+
+    assertThat(readAll(stuck)).isEqualTo("789abcdefghijXYZ");
+    assertThat(stuck.getDroppedBytes()).isEqualTo(7);
+  }
+
+  @Test
+  public void hugeChunk_spill_keepsAllOfIt() throws Exception {
+    FanOutBuffer.Subscriber slow = fanOutBuffer.subscribe(null, SPILL);
+
+    publish("0123456789abcdefghij");
+    publish("XYZ");
+
+    assertThat(readAll(slow)).isEqualTo("0123456789abcdefghijXYZ");
+    assertThat(slow.getDroppedBytes()).isEqualTo(0);
+
+    publish("caught up");
+    assertThat(readAll(slow)).isEqualTo("caught up");
+  }
+
+  @Test
+  public void closedSubscriber_readsWhatsLeftThenEnds() throws Exception {
+    FanOutBuffer.Subscriber subscriber = fanOutBuffer.subscribe(null, DROP_OLDEST);
+    publish("left");
+
+    subscriber.close();
+    publish("ignored");
+
+    assertThat(read(subscriber)).isEqualTo("left");
+    assertThat(subscriber.read(new byte[16])).isEqualTo(-1);
+    assertThat(subscriber.awaitFinished(0)).isTrue();
+  }
+
+  @Test
+  public void read_blocksUntilPublished() throws Exception {
+    FanOutBuffer.Subscriber subscriber = fanOutBuffer.subscribe(null, DROP_OLDEST);
+    CountDownLatch readLatch = new CountDownLatch(1);
+    StringBuilder received = new StringBuilder();
+    Thread reader =
+        new Thread(
+            () -> {
+              try {
+                received.append(read(subscriber));
+              } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+              }
+              readLatch.countDown();
+            });
+    reader.start();
+
+    assertThat(readLatch.await(50, TimeUnit.MILLISECONDS)).isFalse();
+    publish("wake");
+
+    assertThat(readLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    assertThat(received.toString()).isEqualTo("wake");
+  }
+
+  @Test
+  public void close_endsEverySubscriber() throws Exception {
+    FanOutBuffer.Subscriber first = fanOutBuffer.subscribe(null, DROP_OLDEST);
+    FanOutBuffer.Subscriber second = fanOutBuffer.subscribe(null, DROP_OLDEST);
+
+    fanOutBuffer.close();
+
+    assertThat(first.read(new byte[16])).isEqualTo(-1);
+    assertThat(second.read(new byte[16])).isEqualTo(-1);
+  }
+
+  @Test
+  public void indexOf() {
+    byte[] buffer = "xxYou are hungry.".getBytes();
+
+    assertThat(FanOutBuffer.indexOf(buffer, 2, buffer.length - 2, "hungry".getBytes()))
+        .isEqualTo(8);
+    assertThat(FanOutBuffer.indexOf(buffer, 2, 8, "hungry".getBytes())).isEqualTo(-1);
+    assertThat(FanOutBuffer.indexOf(buffer, 0, buffer.length, "xY".getBytes())).isEqualTo(1);
+  }
+
+  private void publish(String data) {
+    byte[] bytes = data.getBytes();
+    fanOutBuffer.publish(bytes, 0, bytes.length);
+  }
+
+  private static String read(FanOutBuffer.Subscriber subscriber) throws Exception {
+    byte[] buffer = new byte[64];
+    int bytes = subscriber.read(buffer);
+    return new String(buffer, 0, bytes);
+  }
+
+  /** Reads everything the subscriber has pending, without blocking. */
+  private static String readAll(FanOutBuffer.Subscriber subscriber) throws Exception {
+    StringBuilder builder = new StringBuilder();
+    while (subscriber.hasPending()) {
+      builder.append(read(subscriber));
+    }
+    return builder.toString();
+  }
+}
@@ -5,6 +5,9 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.primitives.Bytes;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -14,7 +17,8 @@ public class IACFilterTest {
 
   private final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
   private final IACFilter iacFilter =
-      new IACFilter((bytes, length) -> byteArrayOutputStream.write(bytes, 0, length));
+      new IACFilter(
+          (bytes, offset, length) -> byteArrayOutputStream.write(bytes, offset, length));
 
   @Test
   public void passThrough_noIAC() {
@@ -91,4 +95,107 @@ public class IACFilterTest {
     assertThat(new String(byteArrayOutputStream.toByteArray(), UTF_8))
         .isEqualTo("This is a test of the emergency system");
   }
+
+  @Test
+  public void escapedIAC_passedThrough() {
+    byte[] escaped = {(byte) 0xFF, (byte) 0xFF};
+    byte[] b = Bytes.concat("before".getBytes(UTF_8), escaped, "after".getBytes(UTF_8));
+
+    iacFilter.accept(b, b.length);
+
+    byte[] unescaped = {(byte) 0xFF};
+    assertThat(byteArrayOutputStream.toByteArray())
+        .isEqualTo(Bytes.concat("before".getBytes(UTF_8), unescaped, "after".getBytes(UTF_8)));
+  }
+
+  @Test
+  public void subnegotiation_strippingOverPackets() {
+    byte[] sbStart = {(byte) 0xFF, (byte) 0xFA};
+    byte[] first = Bytes.concat("This is a test".getBytes(UTF_8), sbStart);
+    byte[] second = {0x18, 0x00, 0x41, 0x4E, 0x53, 0x49, (byte) 0xFF};
+    byte[] sbEnd = {(byte) 0xF0};
+    byte[] third = Bytes.concat(sbEnd, " of the emergency system".getBytes(UTF_8));
+
+    iacFilter.accept(first, first.length);
+    iacFilter.accept(second, second.length);
+    iacFilter.accept(third, third.length);
+
+    assertThat(new String(byteArrayOutputStream.toByteArray(), UTF_8))
+        .isEqualTo("This is a test of the emergency system");
+  }
+
+  @Test
+  public void offset_onlyFiltersSlice() {
+    byte[] b = "xxxxtesting 1234yyyy".getBytes(UTF_8);
+
+    iacFilter.accept(b, 4, 12);
+
+    assertThat(new String(byteArrayOutputStream.toByteArray(), UTF_8)).isEqualTo("testing 1234");
+  }
+
+  @Test
+  public void cleanData_passedWithoutCopying() {
+    byte[] b = "a long enough line of text without any IAC in it".getBytes(UTF_8);
+    List<byte[]> buffers = new ArrayList<>();
+
+    new IACFilter((bytes, offset, length) -> buffers.add(bytes)).accept(b, b.length);
+
+    assertThat(buffers).hasSize(1);
+    assertThat(buffers.get(0)).isSameInstanceAs(b);
+  }
+
+  @Test
+  public void iacAtEveryPosition_stripped() {
+    byte[] command = {(byte) 0xFF, (byte) 0xFD, 0x01};
+    String text = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    for (int position = 0; position <= text.length(); ++position) {
+      byteArrayOutputStream.reset();
+      byte[] b =
+          Bytes.concat(
+              text.substring(0, position).getBytes(UTF_8),
+              command,
+              text.substring(position).getBytes(UTF_8));
+
+      iacFilter.accept(b, b.length);
+
+      assertThat(new String(byteArrayOutputStream.toByteArray(), UTF_8)).isEqualTo(text);
+    }
+  }
+
+  @Test
+  public void sequences_counted() {
+    LongAdder sequences = new LongAdder();
+    IACFilter counting =
+        new IACFilter(
+            (bytes, offset, length) -> byteArrayOutputStream.write(bytes, offset, length),
+            sequences);
+    byte[] b = {
+      (byte) 0xFF, (byte) 0xFB, 0x01, // WILL ECHO
+      'a',
+      (byte) 0xFF, (byte) 0xFF, // escaped IAC, which is data
+      (byte) 0xFF, (byte) 0xF9, // GA
+      (byte) 0xFF, (byte) 0xFA, 0x18, 0x01, (byte) 0xFF, (byte) 0xF0, // subnegotiation
+    };
+
+    counting.accept(b, 0, 5);
+    counting.accept(b, 5, b.length - 5);
+
+    assertThat(sequences.sum()).isEqualTo(3);
+  }
+
+  @Test
+  public void indexOfIac_findsFirstMatch() {
+    byte[] b = new byte[40];
+    assertThat(IACFilter.indexOfIac(b, 0, b.length)).isEqualTo(b.length);
+
+    for (int i = 0; i < b.length; ++i) {
+      b[i] = (byte) 0xFF;
+      for (int from = 0; from <= i; ++from) {
+        assertThat(IACFilter.indexOfIac(b, from, b.length)).isEqualTo(i);
+      }
+      // bytes just below 0xFF mustn't be mistaken for it
+      b[i] = (byte) 0xFE;
+    }
+  }
 }
@@ -0,0 +1,108 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  @Test
+  public void empty_reportsZero() {
+    assertThat(histogram.getCount()).isEqualTo(0);
+    assertThat(histogram.getValueAtPercentile(99)).isEqualTo(0);
+    assertThat(histogram.getMean()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void smallValues_keptExactly() {
+    for (int i = 1; i <= 100; ++i) {
+      histogram.record(i);
+    }
+
+    assertThat(histogram.getCount()).isEqualTo(100);
+    assertThat(histogram.getValueAtPercentile(50)).isEqualTo(50);
+    assertThat(histogram.getValueAtPercentile(99)).isEqualTo(99);
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(100);
+    assertThat(histogram.getMax()).isEqualTo(100);
+    assertThat(histogram.getMean()).isEqualTo(50.5);
+  }
+
+  @Test
+  public void largeValues_withinPrecision() {
+    for (long value = 1_000; value <= 1_000_000_000L; value *= 10) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(value);
+
+      long reported = histogram.getValueAtPercentile(50);
+      assertThat(reported).isAtMost(value);
+      assertThat(reported).isAtLeast(value - value / 32);
+    }
+  }
+
+  @Test
+  public void percentiles_pickTheTail() {
+    for (int i = 0; i < 990; ++i) {
+      histogram.record(10_000);
+    }
+    for (int i = 0; i < 10; ++i) {
+      histogram.record(5_000_000);
+    }
+
+    // reported as the largest value in the bucket
+    assertThat(histogram.getValueAtPercentile(50)).isAtMost(10_000 + 10_000 / 32);
+    assertThat(histogram.getValueAtPercentile(99)).isAtMost(10_000 + 10_000 / 32);
+    assertThat(histogram.getValueAtPercentile(99.9)).isGreaterThan(4_900_000);
+  }
+
+  @Test
+  public void add_mergesEverything() {
+    LatencyHistogram other = new LatencyHistogram();
+    histogram.record(10);
+    other.record(20);
+    other.record(30);
+
+    histogram.add(other);
+
+    assertThat(histogram.getCount()).isEqualTo(3);
+    assertThat(histogram.getSum()).isEqualTo(60);
+    assertThat(histogram.getMax()).isEqualTo(30);
+    assertThat(histogram.getValueAtPercentile(50)).isEqualTo(20);
+    assertThat(other.getCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void snapshotAndReset_movesEverything() {
+    histogram.record(10);
+    histogram.record(20);
+
+    LatencyHistogram snapshot = histogram.snapshotAndReset();
+    histogram.record(5);
+
+    assertThat(snapshot.getCount()).isEqualTo(2);
+    assertThat(snapshot.getSum()).isEqualTo(30);
+    assertThat(snapshot.getMax()).isEqualTo(20);
+    assertThat(histogram.getCount()).isEqualTo(1);
+    assertThat(histogram.getMax()).isEqualTo(5);
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(5);
+  }
+
+  @Test
+  public void outOfRangeValues_clamped() {
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+
+    assertThat(histogram.getValueAtPercentile(0)).isEqualTo(0);
+    assertThat(histogram.getMax()).isEqualTo(LatencyHistogram.MAX_VALUE);
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(LatencyHistogram.MAX_VALUE);
+  }
+
+  @Test
+  public void invalidPercentile_throws() {
+    assertThrows(IllegalArgumentException.class, () -> histogram.getValueAtPercentile(101));
+  }
+}
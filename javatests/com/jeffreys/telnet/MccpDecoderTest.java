@@ -0,0 +1,218 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+import static com.jeffreys.telnet.Telnet.COMPRESS2;
+import static com.jeffreys.telnet.Telnet.COMPRESS3;
+import static com.jeffreys.telnet.Telnet.DO;
+import static com.jeffreys.telnet.Telnet.DONT;
+import static com.jeffreys.telnet.Telnet.IAC;
+import static com.jeffreys.telnet.Telnet.SB;
+import static com.jeffreys.telnet.Telnet.SE;
+import static com.jeffreys.telnet.Telnet.WILL;
+import static com.jeffreys.telnet.Telnet.WONT;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.primitives.Bytes;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MccpDecoderTest {
+  private static final byte[] START_COMPRESS2 = {IAC, SB, COMPRESS2, IAC, SE};
+
+  private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream sentToRemote = new ByteArrayOutputStream();
+  private final CompressingOutputStream remoteOutputStream =
+      new CompressingOutputStream(sentToRemote);
+  private final MccpDecoder decoder =
+      new MccpDecoder(
+          (buffer, offset, length) -> received.write(buffer, offset, length), remoteOutputStream);
+
+  @After
+  public void tearDown() throws IOException {
+    decoder.close();
+    remoteOutputStream.close();
+  }
+
+  @Test
+  public void plainData_passedThrough() {
+    accept(bytes("Welcome to the BBS!"));
+
+    assertThat(receivedString()).isEqualTo("Welcome to the BBS!");
+    assertThat(sentToRemote.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void otherNegotiations_passedThrough() {
+    byte[] data =
+        Bytes.concat(
+            bytes("a"),
+            new byte[] {IAC, WILL, 1, IAC, SB, 24, 1, IAC, SE, IAC, IAC, IAC, DO, COMPRESS2},
+            bytes("b"));
+
+    accept(data);
+
+    assertThat(received.toByteArray()).isEqualTo(data);
+    assertThat(sentToRemote.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void willCompress2_acceptedAndStripped() {
+    accept(Bytes.concat(bytes("a"), new byte[] {IAC, WILL, COMPRESS2}, bytes("b")));
+
+    assertThat(receivedString()).isEqualTo("ab");
+    assertThat(sentToRemote.toByteArray()).isEqualTo(new byte[] {IAC, DO, COMPRESS2});
+    assertThat(remoteOutputStream.isCompressing()).isFalse();
+  }
+
+  @Test
+  public void repeatedWill_onlyAnsweredOnce() {
+    accept(new byte[] {IAC, WILL, COMPRESS2, IAC, WILL, COMPRESS2});
+    // and again inside the compressed stream
+    byte[] inner = Bytes.concat(bytes("text"), new byte[] {IAC, WILL, COMPRESS2});
+    accept(Bytes.concat(START_COMPRESS2, deflate(inner)));
+
+    assertThat(receivedString()).isEqualTo("text");
+    assertThat(sentToRemote.toByteArray()).isEqualTo(new byte[] {IAC, DO, COMPRESS2});
+  }
+
+  @Test
+  public void wont_answeredOnlyOnceAgreed() {
+    accept(new byte[] {IAC, WONT, COMPRESS2, IAC, WILL, COMPRESS2, IAC, WONT, COMPRESS2});
+    accept(new byte[] {IAC, WONT, COMPRESS2, IAC, WILL, COMPRESS2});
+
+    assertThat(received.size()).isEqualTo(0);
+    assertThat(sentToRemote.toByteArray())
+        .isEqualTo(new byte[] {IAC, DO, COMPRESS2, IAC, DONT, COMPRESS2, IAC, DO, COMPRESS2});
+  }
+
+  @Test
+  public void repeatedWillCompress3_onlyStartsOnce() throws IOException {
+    accept(new byte[] {IAC, WILL, COMPRESS3, IAC, WILL, COMPRESS3});
+    remoteOutputStream.write(bytes("look"));
+    remoteOutputStream.flush();
+
+    // a second reply would be compressed ahead of what was written
+    byte[] sent = sentToRemote.toByteArray();
+    byte[] preamble = {IAC, DO, COMPRESS3, IAC, SB, COMPRESS3, IAC, SE};
+    assertThat(Arrays.copyOf(sent, preamble.length)).isEqualTo(preamble);
+    assertThat(inflate(Arrays.copyOfRange(sent, preamble.length, sent.length))).isEqualTo("look");
+  }
+
+  @Test
+  public void compress2_inflated() {
+    accept(Bytes.concat(bytes("before"), START_COMPRESS2, syncFlush("compressed text")));
+
+    assertThat(decoder.isInflating()).isTrue();
+    assertThat(receivedString()).isEqualTo("beforecompressed text");
+  }
+
+  @Test
+  public void compress2_splitAcrossEveryByte() {
+    byte[] data =
+        Bytes.concat(
+            new byte[] {IAC, WILL, COMPRESS2},
+            bytes("before"),
+            START_COMPRESS2,
+            deflate("compressed text"));
+
+    for (byte b : data) {
+      accept(new byte[] {b});
+    }
+
+    assertThat(receivedString()).isEqualTo("beforecompressed text");
+    assertThat(sentToRemote.toByteArray()).isEqualTo(new byte[] {IAC, DO, COMPRESS2});
+  }
+
+  @Test
+  public void compressedStreamEnds_continuesUncompressed() {
+    accept(Bytes.concat(START_COMPRESS2, deflate("compressed"), bytes(" plain")));
+
+    assertThat(decoder.isInflating()).isFalse();
+    assertThat(receivedString()).isEqualTo("compressed plain");
+  }
+
+  @Test
+  public void negotiationsInsideCompressedStream_handled() {
+    byte[] inner = Bytes.concat(bytes("a"), new byte[] {IAC, WILL, 1}, bytes("b"));
+
+    accept(Bytes.concat(START_COMPRESS2, deflate(inner)));
+
+    assertThat(received.toByteArray()).isEqualTo(inner);
+  }
+
+  @Test
+  public void corruptStream_throws() {
+    accept(START_COMPRESS2);
+
+    assertThrows(UncheckedIOException.class, () -> accept(new byte[] {1, 2, 3, 4}));
+  }
+
+  @Test
+  public void willCompress3_compressesOutbound() throws IOException {
+    accept(new byte[] {IAC, WILL, COMPRESS3});
+    remoteOutputStream.write(bytes("look"));
+    remoteOutputStream.flush();
+
+    byte[] sent = sentToRemote.toByteArray();
+    byte[] preamble = {IAC, DO, COMPRESS3, IAC, SB, COMPRESS3, IAC, SE};
+    assertThat(Arrays.copyOf(sent, preamble.length)).isEqualTo(preamble);
+    assertThat(remoteOutputStream.isCompressing()).isTrue();
+    assertThat(inflate(Arrays.copyOfRange(sent, preamble.length, sent.length))).isEqualTo("look");
+  }
+
+  private void accept(byte[] data) {
+    decoder.accept(data, 0, data.length);
+  }
+
+  private String receivedString() {
+    return new String(received.toByteArray(), UTF_8);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(UTF_8);
+  }
+
+  private static byte[] deflate(String string) {
+    return deflate(bytes(string));
+  }
+
+  private static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater();
+    deflater.setInput(data);
+    deflater.finish();
+    byte[] buffer = new byte[data.length + 64];
+    int length = deflater.deflate(buffer);
+    deflater.end();
+    return Arrays.copyOf(buffer, length);
+  }
+
+  /** Deflates {@code string} without ending the zlib stream, as a remote mid-session would. */
+  private static byte[] syncFlush(String string) {
+    Deflater deflater = new Deflater();
+    deflater.setInput(bytes(string));
+    byte[] buffer = new byte[string.length() + 64];
+    int length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+    deflater.end();
+    return Arrays.copyOf(buffer, length);
+  }
+
+  /** Inflates a sync flushed, but unfinished, zlib stream. */
+  private static String inflate(byte[] data) throws IOException {
+    InflaterInputStream inflaterInputStream =
+        new InflaterInputStream(new ByteArrayInputStream(data));
+    byte[] buffer = new byte[256];
+    int length = inflaterInputStream.read(buffer);
+    return new String(buffer, 0, length, UTF_8);
+  }
+}
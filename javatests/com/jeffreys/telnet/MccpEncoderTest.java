@@ -0,0 +1,123 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.telnet.Telnet.COMPRESS2;
+import static com.jeffreys.telnet.Telnet.DO;
+import static com.jeffreys.telnet.Telnet.DONT;
+import static com.jeffreys.telnet.Telnet.IAC;
+import static com.jeffreys.telnet.Telnet.SB;
+import static com.jeffreys.telnet.Telnet.SE;
+import static com.jeffreys.telnet.Telnet.WILL;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.common.primitives.Bytes;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MccpEncoderTest {
+  private static final byte[] PREAMBLE = {IAC, WILL, COMPRESS2, IAC, SB, COMPRESS2, IAC, SE};
+
+  private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream sentToHost = new ByteArrayOutputStream();
+  private final CompressingOutputStream hostOutputStream = new CompressingOutputStream(sentToHost);
+  private final MccpEncoder encoder =
+      new MccpEncoder(
+          (buffer, offset, length) -> received.write(buffer, offset, length), hostOutputStream);
+
+  @After
+  public void tearDown() {
+    encoder.close();
+  }
+
+  @Test
+  public void offer_sendsWill() throws IOException {
+    encoder.offer();
+
+    assertThat(sentToHost.toByteArray()).isEqualTo(new byte[] {IAC, WILL, COMPRESS2});
+    assertThat(encoder.isCompressing()).isFalse();
+  }
+
+  @Test
+  public void doCompress2_startsCompression() throws IOException {
+    encoder.offer();
+    accept(Bytes.concat(bytes("a"), new byte[] {IAC, DO, COMPRESS2}, bytes("b")));
+    hostOutputStream.write(bytes("Welcome to the BBS!"));
+    hostOutputStream.flush();
+
+    byte[] sent = sentToHost.toByteArray();
+    assertThat(received.toString()).isEqualTo("ab");
+    assertThat(encoder.isCompressing()).isTrue();
+    assertThat(Arrays.copyOf(sent, PREAMBLE.length)).isEqualTo(PREAMBLE);
+    assertThat(inflate(Arrays.copyOfRange(sent, PREAMBLE.length, sent.length)))
+        .isEqualTo("Welcome to the BBS!");
+  }
+
+  @Test
+  public void doCompress2_splitAcrossEveryByte() {
+    for (byte b : new byte[] {IAC, DO, COMPRESS2}) {
+      accept(new byte[] {b});
+    }
+
+    assertThat(received.size()).isEqualTo(0);
+    assertThat(encoder.isCompressing()).isTrue();
+  }
+
+  @Test
+  public void dontCompress2_strippedAndUncompressed() throws IOException {
+    accept(new byte[] {IAC, DONT, COMPRESS2});
+    hostOutputStream.write(bytes("plain"));
+
+    assertThat(received.size()).isEqualTo(0);
+    assertThat(encoder.isCompressing()).isFalse();
+    assertThat(sentToHost.toString()).isEqualTo("plain");
+  }
+
+  @Test
+  public void otherNegotiations_passedThrough() {
+    byte[] data =
+        Bytes.concat(
+            bytes("a"), new byte[] {IAC, DO, 1, IAC, DONT, 3, IAC, IAC, IAC, WILL, COMPRESS2});
+
+    accept(data);
+
+    assertThat(received.toByteArray()).isEqualTo(data);
+    assertThat(encoder.isCompressing()).isFalse();
+  }
+
+  @Test
+  public void compressionRatio() throws IOException {
+    assertThat(encoder.getCompressionRatio()).isEqualTo(1.0);
+
+    accept(new byte[] {IAC, DO, COMPRESS2});
+    hostOutputStream.write(bytes(Strings.repeat("You see a rat.\r\n", 100)));
+    hostOutputStream.flush();
+
+    assertThat(encoder.getCompressionRatio()).isGreaterThan(10.0);
+  }
+
+  private void accept(byte[] data) {
+    encoder.accept(data, 0, data.length);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(UTF_8);
+  }
+
+  /** Inflates a sync flushed, but unfinished, zlib stream. */
+  private static String inflate(byte[] data) throws IOException {
+    InflaterInputStream inflaterInputStream =
+        new InflaterInputStream(new ByteArrayInputStream(data));
+    byte[] buffer = new byte[256];
+    int length = inflaterInputStream.read(buffer);
+    return new String(buffer, 0, length, UTF_8);
+  }
+}
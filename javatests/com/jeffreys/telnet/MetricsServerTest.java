@@ -0,0 +1,59 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MetricsServerTest {
+  private final Metrics metrics = Metrics.create();
+  private MetricsServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new MetricsServer(metrics, /* port= */ 0);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void get_servesPrometheusText() throws Exception {
+    SessionMetrics session = metrics.newSession();
+    metrics.register(session);
+    session.addChunk(Direction.REMOTE_TO_HOST, 123);
+
+    HttpURLConnection connection = open("/metrics");
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getContentType()).startsWith("text/plain; version=0.0.4");
+    try (InputStream in = connection.getInputStream()) {
+      assertThat(new String(in.readAllBytes(), UTF_8))
+          .contains("\ntelnet_scripter_remote_to_host_bytes_total 123\n");
+    }
+  }
+
+  @Test
+  public void post_notAllowed() throws Exception {
+    HttpURLConnection connection = open("/metrics");
+    connection.setRequestMethod("POST");
+
+    assertThat(connection.getResponseCode()).isEqualTo(405);
+  }
+
+  private HttpURLConnection open(String path) throws Exception {
+    return (HttpURLConnection)
+        new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+  }
+}
@@ -0,0 +1,184 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+
+import java.io.StringWriter;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MetricsTest {
+  private final Metrics metrics = Metrics.create();
+
+  @Test
+  public void totals_addUpOpenSessions() {
+    SessionMetrics first = metrics.newSession();
+    SessionMetrics second = metrics.newSession();
+    metrics.register(first);
+    metrics.register(second);
+
+    first.addChunk(Direction.REMOTE_TO_HOST, 100);
+    second.addChunk(Direction.REMOTE_TO_HOST, 50);
+    second.addChunk(Direction.HOST_TO_REMOTE, 5);
+    first.getIacSequenceCounter().increment();
+
+    assertThat(metrics.getTotal("remote_to_host_bytes_total")).isEqualTo(150);
+    assertThat(metrics.getTotal("remote_to_host_chunks_total")).isEqualTo(2);
+    assertThat(metrics.getTotal("host_to_remote_bytes_total")).isEqualTo(5);
+    assertThat(metrics.getTotal("iac_sequences_filtered_total")).isEqualTo(1);
+    assertThat(metrics.getTotal("active_sessions")).isEqualTo(2);
+  }
+
+  @Test
+  public void unregister_keepsCountersButNotGauges() {
+    SessionMetrics session = metrics.newSession();
+    metrics.register(session);
+    session.addChunk(Direction.PROCESS_TO_REMOTE, 10);
+    session.scriptLaunched();
+    session.setScriptBacklog(() -> 42);
+    assertThat(metrics.getTotal("script_stdin_backlog_bytes")).isEqualTo(42);
+
+    metrics.unregister(session);
+    metrics.unregister(session);
+
+    assertThat(metrics.getTotal("process_to_remote_bytes_total")).isEqualTo(10);
+    assertThat(metrics.getTotal("scripts_launched_total")).isEqualTo(1);
+    assertThat(metrics.getTotal("script_stdin_backlog_bytes")).isEqualTo(0);
+    assertThat(metrics.getTotal("active_sessions")).isEqualTo(0);
+    assertThat(metrics.getTotal("sessions_total")).isEqualTo(1);
+  }
+
+  @Test
+  public void unregisteredSession_notCounted() {
+    metrics.newSession().addChunk(Direction.REMOTE_TO_HOST, 100);
+
+    assertThat(metrics.getTotal("remote_to_host_bytes_total")).isEqualTo(0);
+  }
+
+  @Test
+  public void bufferPool_reported() {
+    BufferPool pool = BufferPool.create();
+    metrics.setBufferPool(pool);
+
+    pool.release(pool.acquire(1024));
+    pool.acquire(1024);
+
+    assertThat(metrics.getTotal("buffer_pool_hits_total")).isEqualTo(1);
+    assertThat(metrics.getTotal("buffer_pool_misses_total")).isEqualTo(1);
+    assertThat(metrics.getTotal("buffer_pool_retained_bytes")).isEqualTo(0);
+  }
+
+  @Test
+  public void unknownMetric_throws() {
+    assertThrows(IllegalArgumentException.class, () -> metrics.getTotal("nonsense"));
+  }
+
+  @Test
+  public void prometheus_totalsThenSessions() throws Exception {
+    SessionMetrics session = metrics.newSession();
+    metrics.register(session);
+    session.addChunk(Direction.REMOTE_TO_HOST, 100);
+
+    StringWriter out = new StringWriter();
+    metrics.writePrometheus(out);
+
+    String text = out.toString();
+    assertThat(text).contains("# TYPE telnet_scripter_active_sessions gauge\n");
+    assertThat(text).contains("# TYPE telnet_scripter_remote_to_host_bytes_total counter\n");
+    assertThat(text).contains("\ntelnet_scripter_remote_to_host_bytes_total 100\n");
+    assertThat(text)
+        .contains(
+            "\ntelnet_scripter_session_remote_to_host_bytes_total{session=\""
+                + session.getId()
+                + "\"} 100\n");
+    assertThat(text).endsWith("\n");
+  }
+
+  @Test
+  public void latency_mergedOverSessions() {
+    SessionMetrics first = metrics.newSession();
+    SessionMetrics second = metrics.newSession();
+    metrics.register(first);
+    metrics.register(second);
+    first.recordLatency(SessionMetrics.Latency.REMOTE_TO_HOST, 10);
+    second.recordLatency(SessionMetrics.Latency.REMOTE_TO_HOST, 20);
+    metrics.unregister(second);
+
+    LatencyHistogram total = metrics.getLatency(SessionMetrics.Latency.REMOTE_TO_HOST);
+
+    assertThat(total.getCount()).isEqualTo(2);
+    assertThat(total.getMax()).isEqualTo(20);
+    assertThat(metrics.getLatency(SessionMetrics.Latency.HOST_TO_REMOTE).getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void resetLatencies_reportsThenStartsOver() {
+    SessionMetrics session = metrics.newSession();
+    metrics.register(session);
+    session.recordLatency(SessionMetrics.Latency.SCRIPT_REACTION, 1_500_000);
+
+    String dump = metrics.dumpLatencies();
+    String interval = metrics.resetLatencies();
+
+    assertThat(interval).isEqualTo(dump);
+    assertThat(interval).contains("session " + session.getId() + "\n");
+    assertThat(interval).contains("script_reaction");
+    assertThat(interval).contains("1.50ms");
+    assertThat(metrics.getLatency(SessionMetrics.Latency.SCRIPT_REACTION).getCount()).isEqualTo(0);
+    assertThat(session.getLatency(SessionMetrics.Latency.SCRIPT_REACTION).getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void prometheus_latencySummaries() throws Exception {
+    SessionMetrics session = metrics.newSession();
+    metrics.register(session);
+    session.recordLatency(SessionMetrics.Latency.HOST_TO_REMOTE, 2_000);
+
+    StringWriter out = new StringWriter();
+    metrics.writePrometheus(out);
+
+    String text = out.toString();
+    assertThat(text).contains("# TYPE telnet_scripter_host_to_remote_latency_seconds summary\n");
+    assertThat(text)
+        .contains("\ntelnet_scripter_host_to_remote_latency_seconds{quantile=\"0.99\"} 2.0E-6\n");
+    assertThat(text).contains("\ntelnet_scripter_host_to_remote_latency_seconds_count 1\n");
+    assertThat(text)
+        .contains(
+            "\ntelnet_scripter_session_host_to_remote_latency_seconds_count{session=\""
+                + session.getId()
+                + "\"} 1\n");
+  }
+
+  @Test
+  public void jmx_registersTotalsAndSessions() throws Exception {
+    MBeanServer server = MBeanServerFactory.newMBeanServer();
+    Metrics metrics = Metrics.withJmx(server);
+    SessionMetrics session = metrics.newSession();
+    metrics.register(session);
+    session.addChunk(Direction.HOST_TO_REMOTE, 7);
+    ObjectName sessionName =
+        new ObjectName("com.jeffreys.telnet:type=Session,id=" + session.getId());
+
+    assertThat(
+            server.getAttribute(
+                new ObjectName("com.jeffreys.telnet:type=Proxy"), "host_to_remote_bytes_total"))
+        .isEqualTo(7L);
+    assertThat(server.getAttribute(sessionName, "host_to_remote_bytes_total")).isEqualTo(7L);
+
+    metrics.unregister(session);
+
+    assertThat(server.isRegistered(sessionName)).isFalse();
+    assertThat(
+            server.invoke(
+                new ObjectName("com.jeffreys.telnet:type=Proxy"),
+                "dumpLatencies",
+                new Object[0],
+                new String[0]))
+        .isEqualTo(metrics.dumpLatencies());
+  }
+}
@@ -0,0 +1,81 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PipelineTest {
+  private final List<String> calls = new ArrayList<>();
+
+  @Test
+  public void empty_returnsTerminal() {
+    ByteStage terminal = (buffer, offset, length) -> {};
+
+    assertThat(Pipeline.EMPTY.build(Direction.HOST_TO_REMOTE, terminal)).isSameInstanceAs(terminal);
+  }
+
+  @Test
+  public void stages_calledInOrder() {
+    Pipeline pipeline = new Pipeline(ImmutableList.of(recording("first"), recording("second")));
+
+    pipeline.build(Direction.REMOTE_TO_HOST, recordingStage("terminal")).accept(bytes("abc"), 3);
+
+    assertThat(calls).containsExactly("first:abc", "second:abc", "terminal:abc").inOrder();
+  }
+
+  @Test
+  public void factory_skipsOtherDirections() {
+    StageFactory remoteOnly =
+        (direction, next) ->
+            direction == Direction.REMOTE_TO_HOST ? recordingStage("remote", next) : next;
+    Pipeline pipeline = new Pipeline(ImmutableList.of(remoteOnly));
+
+    pipeline.build(Direction.HOST_TO_REMOTE, recordingStage("terminal")).accept(bytes("abc"), 3);
+
+    assertThat(calls).containsExactly("terminal:abc");
+  }
+
+  @Test
+  public void slices_passedWithoutCopying() {
+    byte[] buffer = bytes("xxhelloxx");
+    List<byte[]> seen = new ArrayList<>();
+    ByteStage terminal =
+        (data, offset, length) -> {
+          seen.add(data);
+          calls.add(new String(data, offset, length, UTF_8));
+        };
+
+    new Pipeline(ImmutableList.of(recording("first")))
+        .build(Direction.PROCESS_TO_REMOTE, terminal)
+        .accept(buffer, 2, 5);
+
+    assertThat(calls).containsExactly("first:hello", "hello").inOrder();
+    assertThat(seen.get(0)).isSameInstanceAs(buffer);
+  }
+
+  private StageFactory recording(String name) {
+    return (direction, next) -> recordingStage(name, next);
+  }
+
+  private ByteStage recordingStage(String name) {
+    return recordingStage(name, (buffer, offset, length) -> {});
+  }
+
+  private ByteStage recordingStage(String name, ByteStage next) {
+    return (buffer, offset, length) -> {
+      calls.add(name + ":" + new String(buffer, offset, length, UTF_8));
+      next.accept(buffer, offset, length);
+    };
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(UTF_8);
+  }
+}
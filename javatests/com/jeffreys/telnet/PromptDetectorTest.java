@@ -0,0 +1,54 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.telnet.Telnet.EOR;
+import static com.jeffreys.telnet.Telnet.GA;
+import static com.jeffreys.telnet.Telnet.IAC;
+import static com.jeffreys.telnet.Telnet.WILL;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.primitives.Bytes;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PromptDetectorTest {
+  private final PromptDetector promptDetector = new PromptDetector();
+
+  @Test
+  public void noPrompt() {
+    assertThat(containsPrompt(bytes("no prompt here"))).isFalse();
+    assertThat(containsPrompt(new byte[] {IAC, WILL, GA})).isFalse();
+  }
+
+  @Test
+  public void goAhead() {
+    assertThat(containsPrompt(Bytes.concat(bytes("> "), new byte[] {IAC, GA}))).isTrue();
+  }
+
+  @Test
+  public void endOfRecord() {
+    assertThat(containsPrompt(Bytes.concat(bytes("> "), new byte[] {IAC, EOR}))).isTrue();
+  }
+
+  @Test
+  public void escapedIac_isData() {
+    // an escaped 0xFF followed by a GA byte is just data
+    assertThat(containsPrompt(new byte[] {IAC, IAC, GA})).isFalse();
+  }
+
+  @Test
+  public void splitAcrossChunks() {
+    assertThat(containsPrompt(Bytes.concat(bytes("> "), new byte[] {IAC}))).isFalse();
+    assertThat(containsPrompt(new byte[] {GA})).isTrue();
+  }
+
+  private boolean containsPrompt(byte[] data) {
+    return promptDetector.containsPrompt(data, 0, data.length);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(UTF_8);
+  }
+}
@@ -0,0 +1,172 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.PatternSyntaxException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RegexDfaTest {
+  @Test
+  public void literal() {
+    assertThat(matches("tree", "You see a tree.")).isTrue();
+    assertThat(matches("tree", "You see a tee.")).isFalse();
+  }
+
+  @Test
+  public void classesAndQuantifiers() {
+    String pattern = "[A-Z]\\w+ tells you '.*'";
+
+    assertThat(matches(pattern, "Gandalf tells you 'run'")).isTrue();
+    assertThat(matches(pattern, "gandalf tells you 'run'")).isFalse();
+    assertThat(matches(pattern, "G tells you 'run'")).isFalse();
+  }
+
+  @Test
+  public void alternationAndGroups() {
+    String pattern = "(north|south)(east|west)?ward";
+
+    assertThat(matches(pattern, "It flies northward.")).isTrue();
+    assertThat(matches(pattern, "It flies southwestward.")).isTrue();
+    assertThat(matches(pattern, "It flies eastward.")).isFalse();
+  }
+
+  @Test
+  public void boundedRepetition() {
+    String pattern = "HP:\\d{2,3} ";
+
+    assertThat(matches(pattern, "HP:5 ")).isFalse();
+    assertThat(matches(pattern, "HP:55 ")).isTrue();
+    assertThat(matches(pattern, "HP:555 ")).isTrue();
+    assertThat(matches(pattern, "HP:5555 ")).isFalse();
+  }
+
+  @Test
+  public void anchors_matchWholeLines() {
+    String pattern = "^You are hungry\\.$";
+
+    assertThat(matches(pattern, "You are hungry.\r\n")).isTrue();
+    assertThat(matches(pattern, "Bob says\r\nYou are hungry.\r\n")).isTrue();
+    assertThat(matches(pattern, "Bob says You are hungry.\r\n")).isFalse();
+    assertThat(matches(pattern, "You are hungry. Very.\r\n")).isFalse();
+  }
+
+  @Test
+  public void anchors_onlyTheirOwnAlternative() {
+    assertThat(matches("^a|b", "xb")).isTrue();
+    assertThat(matches("^a|b", "a")).isTrue();
+    assertThat(matches("^a|b", "xa")).isFalse();
+    assertThat(matches("a|^b", "xa")).isTrue();
+    assertThat(matches("a|^b", "xb")).isFalse();
+    assertThat(matches("a|^b", "x\nb")).isTrue();
+  }
+
+  @Test
+  public void ignoreCase() {
+    assertThat(matches("(?i)you DIE", "You die.")).isTrue();
+    assertThat(matches("you DIE", "You die.")).isFalse();
+  }
+
+  @Test
+  public void ignoreCase_foldsOnlyAsciiLetters() {
+    assertThat(matches("(?i)[\\x00-\\xff]", "x")).isTrue();
+    assertThat(matches("(?i)[\\x41-\\x43]", "b")).isTrue();
+    assertThat(matches("(?i)[\\x41-\\x43]", "d")).isFalse();
+  }
+
+  @Test
+  public void negatedClasses() {
+    assertThat(matches("gold: \\S+", "gold: 12")).isTrue();
+    assertThat(matches("gold: [^0-9 ]", "gold: 12")).isFalse();
+  }
+
+  @Test
+  public void manyPatterns_reportedByIndex() {
+    RegexDfa dfa = new RegexDfa(ImmutableList.of("cat", "ca+t", "dog"));
+
+    assertThat(scan(dfa, "a caat and a cat")).containsExactly("1@6", "0@16", "1@16").inOrder();
+  }
+
+  @Test
+  public void splitAcrossChunks() {
+    RegexDfa dfa = new RegexDfa(ImmutableList.of("hun+gry"));
+    RegexDfa.State state = dfa.start();
+    for (byte b : "You are hun".getBytes(UTF_8)) {
+      state = dfa.next(state, b);
+    }
+    for (byte b : "gry".getBytes(UTF_8)) {
+      state = dfa.next(state, b);
+    }
+
+    assertThat(state.getMatches()).asList().containsExactly(0);
+  }
+
+  @Test
+  public void statesAreCached() {
+    RegexDfa dfa = new RegexDfa(ImmutableList.of("abc"));
+    scan(dfa, "xxabcxxabc");
+    int cached = dfa.getCachedStates();
+
+    scan(dfa, "xxabcxxabcxxabc");
+
+    assertThat(dfa.getCachedStates()).isEqualTo(cached);
+  }
+
+  @Test
+  public void cachedStates_areBounded() {
+    RegexDfa dfa = new RegexDfa(ImmutableList.of("a.{12}b"));
+    Random random = new Random(1);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 100_000; ++i) {
+      text.append(random.nextBoolean() ? 'a' : 'x');
+    }
+    scan(dfa, text.toString());
+
+    assertThat(dfa.getCachedStates()).isAtMost(RegexDfa.MAX_CACHED_STATES);
+    assertThat(scan(dfa, "axxxxxxxxxxxxb")).containsExactly("0@14");
+  }
+
+  @Test
+  public void unsupported_throws() {
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("(a)\\1")));
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("(?=a)")));
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("a++")));
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("(a")));
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("a)")));
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("[a")));
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("(^a|b)")));
+  }
+
+  @Test
+  public void matchesEmptyText_throws() {
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("a*")));
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("^")));
+    assertThrows(PatternSyntaxException.class, () -> new RegexDfa(ImmutableList.of("a|^")));
+  }
+
+  private static boolean matches(String pattern, String text) {
+    return !scan(new RegexDfa(ImmutableList.of(pattern)), text).isEmpty();
+  }
+
+  /** Returns each match as {@code pattern@end}, with end counted in bytes. */
+  private static List<String> scan(RegexDfa dfa, String text) {
+    List<String> matches = new ArrayList<>();
+    RegexDfa.State state = dfa.start();
+    byte[] bytes = text.getBytes(UTF_8);
+    for (int i = 0; i < bytes.length; ++i) {
+      state = dfa.next(state, bytes[i]);
+      for (int pattern : state.getMatches()) {
+        matches.add(pattern + "@" + (i + 1));
+      }
+    }
+    return matches;
+  }
+}
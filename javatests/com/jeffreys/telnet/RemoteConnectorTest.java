@@ -0,0 +1,156 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemoteConnectorTest {
+  private static final InetAddress LISTENING = address(127, 0, 0, 1);
+  /** Refuses connections, since the server is only bound to 127.0.0.1. */
+  private static final InetAddress REFUSING = address(127, 0, 0, 2);
+
+  private ServerSocket serverSocket;
+  private RemoteConnector connector;
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress(LISTENING, 0));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (connector != null) {
+      connector.close();
+    }
+    serverSocket.close();
+  }
+
+  @Test
+  public void connect() throws Exception {
+    startConnector(Duration.ofSeconds(5), LISTENING);
+
+    try (SocketChannel channel = connector.connectBlocking()) {
+      assertThat(channel.isConnected()).isTrue();
+      assertThat(channel.isBlocking()).isFalse();
+    }
+  }
+
+  @Test
+  public void refusedAddress_racesNextAddress() throws Exception {
+    startConnector(Duration.ofSeconds(5), REFUSING, LISTENING);
+
+    try (SocketChannel channel = connector.connectBlocking()) {
+      assertThat(((InetSocketAddress) channel.getRemoteAddress()).getAddress())
+          .isEqualTo(LISTENING);
+    }
+  }
+
+  @Test
+  public void allRefused_throws() throws Exception {
+    startConnector(Duration.ofSeconds(5), REFUSING);
+
+    assertThrows(IOException.class, connector::connectBlocking);
+  }
+
+  @Test
+  public void deadlinePassed_timesOut() throws Exception {
+    startConnector(Duration.ZERO, LISTENING);
+
+    assertThrows(SocketTimeoutException.class, connector::connectBlocking);
+  }
+
+  @Test
+  public void slowLookup_doesNotHoldUpConnect() throws Exception {
+    CountDownLatch answered = new CountDownLatch(1);
+    startConnector(
+        Duration.ofSeconds(5),
+        host -> {
+          Uninterruptibles.awaitUninterruptibly(answered);
+          return new InetAddress[] {LISTENING};
+        });
+
+    CompletableFuture<SocketChannel> future = connector.connect();
+    assertThat(future.isDone()).isFalse();
+    answered.countDown();
+
+    try (SocketChannel channel = future.get(5, TimeUnit.SECONDS)) {
+      assertThat(channel.isConnected()).isTrue();
+    }
+  }
+
+  @Test
+  public void failedLookup_throws() throws Exception {
+    startConnector(
+        Duration.ofSeconds(5),
+        host -> {
+          throw new UnknownHostException(host);
+        });
+
+    assertThrows(UnknownHostException.class, connector::connectBlocking);
+  }
+
+  @Test
+  public void closed_failsNewConnects() throws Exception {
+    startConnector(Duration.ofSeconds(5), LISTENING);
+    connector.close();
+
+    assertThrows(IOException.class, connector::connectBlocking);
+  }
+
+  @Test
+  public void interleave_alternatesFamilies() throws Exception {
+    InetAddress ipv6a = InetAddress.getByName("::1");
+    InetAddress ipv6b = InetAddress.getByName("::2");
+    InetAddress ipv4a = address(10, 0, 0, 1);
+    InetAddress ipv4b = address(10, 0, 0, 2);
+
+    assertThat(RemoteConnector.interleave(new InetAddress[] {ipv6a, ipv6b, ipv4a, ipv4b}))
+        .containsExactly(ipv6a, ipv4a, ipv6b, ipv4b)
+        .inOrder();
+    assertThat(RemoteConnector.interleave(new InetAddress[] {ipv4a, ipv4b, ipv6a}))
+        .containsExactly(ipv4a, ipv6a, ipv4b)
+        .inOrder();
+  }
+
+  private void startConnector(Duration timeout, InetAddress... addresses) throws IOException {
+    startConnector(timeout, host -> addresses);
+  }
+
+  private void startConnector(Duration timeout, CachingResolver.Lookup lookup) throws IOException {
+    CachingResolver resolver =
+        new CachingResolver("bbs", Duration.ofMinutes(1), Ticker.systemTicker(), lookup);
+    connector =
+        new RemoteConnector(resolver, serverSocket.getLocalPort(), Duration.ofMillis(50), timeout);
+    Thread thread = new Thread(connector, "test-connector");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static InetAddress address(int a, int b, int c, int d) {
+    try {
+      return InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
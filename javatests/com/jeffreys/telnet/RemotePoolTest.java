@@ -0,0 +1,142 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Ticker;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemotePoolTest {
+  private ServerSocket serverSocket;
+  private final BlockingQueue<Socket> accepted = new LinkedBlockingQueue<>();
+  private RemoteConnector connector;
+  private RemotePool remotePool;
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptThread =
+        new Thread(
+            () -> {
+              try {
+                while (true) {
+                  accepted.add(serverSocket.accept());
+                }
+              } catch (IOException ex) {
+                // server closed
+              }
+            });
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (remotePool != null) {
+      remotePool.close();
+      connector.close();
+    }
+    serverSocket.close();
+    for (Socket socket : accepted) {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void sizeZero_connectsOnDemand() throws Exception {
+    remotePool = newPool(0);
+    remotePool.start();
+
+    try (CloseableStreamer remote = remotePool.take()) {
+      Socket server = accepted.poll(5, TimeUnit.SECONDS);
+      server.getOutputStream().write("Welcome".getBytes(UTF_8));
+
+      assertThat(read(remote.getInputStream(), 7)).isEqualTo("Welcome");
+      assertThat(remotePool.getReadyCount()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void take_usesPreconnectedSocketAndKeepsBanner() throws Exception {
+    remotePool = newPool(1);
+    remotePool.start();
+    Socket server = accepted.poll(5, TimeUnit.SECONDS);
+    server.getOutputStream().write("Welcome to the BBS!".getBytes(UTF_8));
+    awaitReady(1);
+
+    try (CloseableStreamer remote = remotePool.take()) {
+      assertThat(read(remote.getInputStream(), 19)).isEqualTo("Welcome to the BBS!");
+
+      remote.getOutputStream().write("hi".getBytes(UTF_8));
+      assertThat(read(server.getInputStream(), 2)).isEqualTo("hi");
+    }
+    // refilled in the background
+    assertThat(accepted.poll(5, TimeUnit.SECONDS)).isNotNull();
+  }
+
+  @Test
+  public void take_discardsSocketsClosedByRemote() throws Exception {
+    remotePool = newPool(1);
+    remotePool.start();
+    accepted.poll(5, TimeUnit.SECONDS).close();
+    awaitReady(1);
+
+    try (CloseableStreamer remote = remotePool.take()) {
+      // the closed socket was skipped, in favour of either the refill or a new connection, and
+      // both may have been accepted by now
+      for (Socket server = accepted.poll(5, TimeUnit.SECONDS);
+          server != null;
+          server = accepted.poll(200, TimeUnit.MILLISECONDS)) {
+        server.getOutputStream().write("alive".getBytes(UTF_8));
+      }
+
+      assertThat(read(remote.getInputStream(), 5)).isEqualTo("alive");
+    }
+  }
+
+  private RemotePool newPool(int size) throws IOException {
+    CachingResolver resolver =
+        new CachingResolver(
+            "localhost",
+            Duration.ofMinutes(1),
+            Ticker.systemTicker(),
+            host -> new InetAddress[] {InetAddress.getLoopbackAddress()});
+    connector =
+        new RemoteConnector(
+            resolver, serverSocket.getLocalPort(), Duration.ofMillis(250), Duration.ofSeconds(5));
+    new Thread(connector, "test-connector").start();
+    return new RemotePool(connector, size, Duration.ofMinutes(1), Thread::new);
+  }
+
+  private void awaitReady(int count) throws InterruptedException {
+    for (int i = 0; i < 500 && remotePool.getReadyCount() < count; ++i) {
+      Thread.sleep(10);
+    }
+    assertThat(remotePool.getReadyCount()).isEqualTo(count);
+  }
+
+  private static String read(InputStream inputStream, int length) throws IOException {
+    byte[] buffer = new byte[length];
+    int offset = 0;
+    while (offset < length) {
+      int bytes = inputStream.read(buffer, offset, length - offset);
+      assertThat(bytes).isGreaterThan(0);
+      offset += bytes;
+    }
+    return new String(buffer, UTF_8);
+  }
+}
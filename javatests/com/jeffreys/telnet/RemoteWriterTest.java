@@ -0,0 +1,199 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Ticker;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RemoteWriterTest {
+  private long nowNanos = 0;
+
+  private final Ticker ticker =
+      new Ticker() {
+        @Override
+        public long read() {
+          return nowNanos;
+        }
+      };
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+  private final ByteArrayOutputStream remote = new ByteArrayOutputStream();
+
+  @After
+  public void tearDown() {
+    timer.shutdownNow();
+  }
+
+  @Test
+  public void scriptLines_writtenWhole() throws Exception {
+    RemoteWriter writer = newWriter(0, 0);
+    RemoteWriter.Source source = writer.newSource(/* mayBlock= */ true);
+
+    write(source, "eat ");
+    assertThat(received()).isEmpty();
+    write(source, "bread\ndrink ");
+
+    assertThat(received()).isEqualTo("eat bread\n");
+  }
+
+  @Test
+  public void flush_sendsUnfinishedLine() throws Exception {
+    RemoteWriter writer = newWriter(0, 0);
+    RemoteWriter.Source source = writer.newSource(/* mayBlock= */ true);
+
+    write(source, "password");
+    source.flush();
+
+    assertThat(received()).isEqualTo("password");
+  }
+
+  @Test
+  public void scriptLines_neverSplitByOtherScripts() throws Exception {
+    RemoteWriter writer = newWriter(0, 0);
+    RemoteWriter.Source first = writer.newSource(/* mayBlock= */ true);
+    RemoteWriter.Source second = writer.newSource(/* mayBlock= */ true);
+
+    write(first, "north");
+    write(second, "cast 'heal'\n");
+    write(first, "\n");
+
+    assertThat(received()).isEqualTo("cast 'heal'\nnorth\n");
+  }
+
+  @Test
+  public void scriptLines_waitWhileHumanIsTyping() throws Exception {
+    RemoteWriter writer = newWriter(0, 0);
+    RemoteWriter.Source source = writer.newSource(/* mayBlock= */ true);
+
+    writeHuman(writer, "say hel");
+    write(source, "eat bread\n");
+    assertThat(received()).isEqualTo("say hel");
+
+    writeHuman(writer, "lo\r\n");
+
+    assertThat(received()).isEqualTo("say hello\r\neat bread\n");
+  }
+
+  @Test
+  public void scriptLines_stopWaitingForAnIdleHuman() throws Exception {
+    RemoteWriter writer = newWriter(0, 0);
+    RemoteWriter.Source source = writer.newSource(/* mayBlock= */ true);
+
+    writeHuman(writer, "say hel");
+    write(source, "eat bread\n");
+    nowNanos += TimeUnit.SECONDS.toNanos(1);
+    writer.drain();
+
+    assertThat(received()).isEqualTo("say heleat bread\n");
+  }
+
+  @Test
+  public void human_notRateLimited() throws Exception {
+    RemoteWriter writer = newWriter(/* bytesPerSecond= */ 1, /* commandsPerSecond= */ 1);
+
+    writeHuman(writer, "look\r\n");
+    writeHuman(writer, "score\r\n");
+
+    assertThat(received()).isEqualTo("look\r\nscore\r\n");
+  }
+
+  @Test
+  public void commandsPerSecond_defersLines() throws Exception {
+    RemoteWriter writer = newWriter(/* bytesPerSecond= */ 0, /* commandsPerSecond= */ 2);
+    RemoteWriter.Source source = writer.newSource(/* mayBlock= */ true);
+
+    write(source, "one\ntwo\nthree\n");
+    assertThat(received()).isEqualTo("one\ntwo\n");
+    assertThat(writer.getQueuedBytes()).isEqualTo(6);
+
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(500);
+    writer.drain();
+
+    assertThat(received()).isEqualTo("one\ntwo\nthree\n");
+    assertThat(writer.getQueuedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void bytesPerSecond_defersLines() throws Exception {
+    RemoteWriter writer = newWriter(/* bytesPerSecond= */ 8, /* commandsPerSecond= */ 0);
+    RemoteWriter.Source source = writer.newSource(/* mayBlock= */ true);
+
+    write(source, "north\nsouth\n");
+    assertThat(received()).isEqualTo("north\n");
+
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(250);
+    writer.drain();
+    assertThat(received()).isEqualTo("north\n");
+
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(250);
+    writer.drain();
+    assertThat(received()).isEqualTo("north\nsouth\n");
+  }
+
+  @Test
+  public void deferredLines_writtenByTimer() throws Exception {
+    RemoteWriter writer =
+        new RemoteWriter(
+            remote,
+            /* flushEachWrite= */ true,
+            /* bytesPerSecond= */ 0,
+            /* commandsPerSecond= */ 1000,
+            Ticker.systemTicker(),
+            timer);
+    RemoteWriter.Source source = writer.newSource(/* mayBlock= */ true);
+
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 1010; ++i) {
+      expected.append(i).append('\n');
+    }
+    write(source, expected.toString());
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (writer.getQueuedBytes() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(received()).isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void nonBlockingSource_dropsLinesWhenFull() throws Exception {
+    RemoteWriter writer = newWriter(/* bytesPerSecond= */ 0, /* commandsPerSecond= */ 1);
+    RemoteWriter.Source source = writer.newSource(/* mayBlock= */ false);
+    byte[] line = new byte[1024];
+    line[line.length - 1] = '\n';
+
+    for (int i = 0; i < 100; ++i) {
+      source.write(line, 0, line.length);
+    }
+
+    assertThat(writer.getQueuedBytes()).isEqualTo(64 * 1024);
+    assertThat(writer.getDroppedLines()).isEqualTo(100 - 1 - 64);
+  }
+
+  private RemoteWriter newWriter(int bytesPerSecond, int commandsPerSecond) {
+    return new RemoteWriter(
+        remote, /* flushEachWrite= */ true, bytesPerSecond, commandsPerSecond, ticker, timer);
+  }
+
+  private String received() {
+    return new String(remote.toByteArray(), UTF_8);
+  }
+
+  private static void write(RemoteWriter.Source source, String data) throws Exception {
+    byte[] bytes = data.getBytes(UTF_8);
+    source.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeHuman(RemoteWriter writer, String data) throws Exception {
+    byte[] bytes = data.getBytes(UTF_8);
+    writer.writeHuman(bytes, 0, bytes.length);
+  }
+}
@@ -0,0 +1,131 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ReplayServerTest {
+  private static final long GAP_MILLIS = 300;
+
+  private SessionRecorder.Recording recording;
+  private Path session;
+  private ReplayServer replayServer;
+
+  @Before
+  public void setUp() throws IOException {
+    Path directory = Files.createTempDirectory("recordings");
+    recording = new SessionRecorder(directory, 4096, false, Runnable::run).start();
+    session = directory.resolve(recording.getSession());
+  }
+
+  @After
+  public void tearDown() {
+    if (replayServer != null) {
+      replayServer.close();
+    }
+  }
+
+  @Test
+  public void replay_sendsOnlyRemoteData() throws Exception {
+    record(Direction.REMOTE_TO_HOST, "Welcome!\r\n");
+    record(Direction.HOST_TO_REMOTE, "look\r\n");
+    record(Direction.PROCESS_TO_REMOTE, "get all\r\n");
+    record(Direction.REMOTE_TO_HOST, "You see a sword.\r\n");
+    recording.close();
+
+    startReplay(/* speed= */ 0);
+
+    assertThat(readAll()).isEqualTo("Welcome!\r\nYou see a sword.\r\n");
+  }
+
+  @Test
+  public void replay_servesEveryConnectionFromTheStart() throws Exception {
+    record(Direction.REMOTE_TO_HOST, "Welcome!\r\n");
+    recording.close();
+
+    startReplay(/* speed= */ 0);
+
+    assertThat(readAll()).isEqualTo("Welcome!\r\n");
+    assertThat(readAll()).isEqualTo("Welcome!\r\n");
+  }
+
+  @Test
+  public void replay_scalesRecordedGaps() throws Exception {
+    record(Direction.REMOTE_TO_HOST, "Welcome!\r\n");
+    Thread.sleep(GAP_MILLIS);
+    record(Direction.REMOTE_TO_HOST, "You are hungry.\r\n");
+    recording.close();
+
+    startReplay(/* speed= */ 3);
+
+    long startNanos = System.nanoTime();
+    assertThat(readAll()).isEqualTo("Welcome!\r\nYou are hungry.\r\n");
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    assertThat(elapsedMillis).isAtLeast(GAP_MILLIS / 3 - 20);
+    assertThat(elapsedMillis).isLessThan(GAP_MILLIS - 20);
+  }
+
+  @Test
+  public void replay_atFullSpeed_skipsGaps() throws Exception {
+    record(Direction.REMOTE_TO_HOST, "Welcome!\r\n");
+    Thread.sleep(GAP_MILLIS);
+    record(Direction.REMOTE_TO_HOST, "You are hungry.\r\n");
+    recording.close();
+
+    startReplay(/* speed= */ 0);
+
+    long startNanos = System.nanoTime();
+    assertThat(readAll()).isEqualTo("Welcome!\r\nYou are hungry.\r\n");
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos))
+        .isLessThan(GAP_MILLIS / 3);
+  }
+
+  private void record(Direction direction, String text) {
+    byte[] bytes = text.getBytes(UTF_8);
+    recording.record(direction, bytes, /* offset= */ 0, bytes.length);
+  }
+
+  private void startReplay(double speed) throws IOException {
+    replayServer = new ReplayServer(SessionRecorder.findSegments(session), /* port= */ 0, speed);
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                replayServer.run();
+              } catch (IOException ex) {
+                throw new AssertionError(ex);
+              }
+            });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Connects to the replay, returning everything it sends. */
+  private String readAll() throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), replayServer.getPort())) {
+      socket.getOutputStream().write("ignored\r\n".getBytes(UTF_8));
+      InputStream in = socket.getInputStream();
+      ByteArrayOutputStream received = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int bytes;
+      while ((bytes = in.read(buffer)) >= 0) {
+        received.write(buffer, /* offset= */ 0, bytes);
+      }
+      return received.toString(UTF_8.name());
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RouteMenuTest {
+  private final RouteMenu menu =
+      new RouteMenu(Routes.parse(ImmutableList.of("aard aardmud.org:4000", "disc discworld:23")));
+  private Socket player;
+  private Socket accepted;
+
+  @Before
+  public void setUp() throws Exception {
+    try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      player = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+      player.setSoTimeout(5000);
+      accepted = serverSocket.accept();
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    player.close();
+    accepted.close();
+  }
+
+  @Test
+  public void choose_returnsRoute_leavingWhatFollows() throws Exception {
+    // telnet negotiation before the answer is ignored
+    send(new byte[] {(byte) 0xff, (byte) 0xfb, 0x18});
+    send("DISC\r\nlook\r\n".getBytes(US_ASCII));
+
+    Routes.Route route = menu.choose(accepted);
+
+    assertThat(route.getName()).isEqualTo("disc");
+    assertThat(readLine()).isEqualTo("Destinations: aard, disc");
+    assertThat(readLine()).isEqualTo("Destination: Connecting to disc");
+    assertThat(new String(accepted.getInputStream().readNBytes(6), US_ASCII))
+        .isEqualTo("look\r\n");
+  }
+
+  @Test
+  public void choose_unknownRoute_returnsNull() throws Exception {
+    send("nowhere\r\n".getBytes(US_ASCII));
+
+    assertThat(menu.choose(accepted)).isNull();
+    readLine();
+    assertThat(readLine()).isEqualTo("Destination: No destination nowhere");
+  }
+
+  @Test
+  public void choose_disconnected_returnsNull() throws Exception {
+    send("aa".getBytes(US_ASCII));
+    player.shutdownOutput();
+
+    assertThat(menu.choose(accepted)).isNull();
+  }
+
+  private void send(byte[] bytes) throws Exception {
+    player.getOutputStream().write(bytes);
+    player.getOutputStream().flush();
+  }
+
+  /** Reads up to the next CRLF, dropping it. */
+  private String readLine() throws Exception {
+    InputStream in = player.getInputStream();
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0 && b != '\n') {
+      line.write(b);
+    }
+    return line.toString(US_ASCII).trim();
+  }
+}
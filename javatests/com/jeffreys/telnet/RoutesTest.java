@@ -0,0 +1,62 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RoutesTest {
+  private final Routes routes =
+      Routes.parse(
+          ImmutableList.of(
+              "# name remote local_port",
+              "",
+              "aard  aardmud.org:4000  4000",
+              "disc  discworld.atuin.net",
+              "v6    [::1]:4242        4242"));
+
+  @Test
+  public void parse_keepsOrder() {
+    assertThat(routes.getRoutes())
+        .containsExactly(
+            Routes.Route.create("aard", "aardmud.org", 4000, 4000),
+            Routes.Route.create("disc", "discworld.atuin.net", 23, 0),
+            Routes.Route.create("v6", "::1", 4242, 4242))
+        .inOrder();
+  }
+
+  @Test
+  public void get_ignoresCase() {
+    assertThat(routes.get("DISC")).isSameInstanceAs(routes.getRoutes().get(1));
+    assertThat(routes.get("nowhere")).isNull();
+  }
+
+  @Test
+  public void parse_badLines_throw() {
+    assertThrows(IllegalArgumentException.class, () -> parse("lonely"));
+    assertThrows(IllegalArgumentException.class, () -> parse("aard aardmud.org:4000 4000 extra"));
+    assertThrows(IllegalArgumentException.class, () -> parse("aard aardmud.org:port"));
+    assertThrows(IllegalArgumentException.class, () -> parse("aard aardmud.org:4000 port"));
+    assertThrows(IllegalArgumentException.class, () -> parse("aard aardmud.org:4000 0"));
+    assertThrows(IllegalArgumentException.class, () -> parse("aard aardmud.org:4000 70000"));
+  }
+
+  @Test
+  public void parse_repeats_throw() {
+    assertThrows(IllegalArgumentException.class, () -> parse("a host:1 4000", "A host:2"));
+    assertThrows(IllegalArgumentException.class, () -> parse("a host:1 4000", "b host:2 4000"));
+  }
+
+  @Test
+  public void parse_nothing_throws() {
+    assertThrows(IllegalArgumentException.class, () -> parse("# just a comment"));
+  }
+
+  private static Routes parse(String... lines) {
+    return Routes.parse(ImmutableList.copyOf(lines));
+  }
+}
@@ -0,0 +1,71 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ScriptPluginsTest {
+  @Test
+  public void empty_hasNoPlugins() {
+    assertThat(ScriptPlugins.EMPTY.getNames()).isEmpty();
+    assertThat(ScriptPlugins.EMPTY.get("anything")).isNull();
+  }
+
+  @Test
+  public void of_indexesByName() {
+    ScriptPlugin mapper = plugin("mapper");
+    ScriptPlugin bot = plugin("bot");
+
+    ScriptPlugins scriptPlugins = ScriptPlugins.of(ImmutableList.of(mapper, bot));
+
+    assertThat(scriptPlugins.getNames()).containsExactly("mapper", "bot").inOrder();
+    assertThat(scriptPlugins.get("bot")).isSameInstanceAs(bot);
+    assertThat(scriptPlugins.get("logger")).isNull();
+  }
+
+  @Test
+  public void of_keepsFirstOfDuplicateNames() {
+    ScriptPlugin first = plugin("bot");
+    ScriptPlugin second = plugin("bot");
+
+    assertThat(ScriptPlugins.of(ImmutableList.of(first, second)).get("bot"))
+        .isSameInstanceAs(first);
+  }
+
+  @Test
+  public void load_emptyPluginsDir() throws Exception {
+    Path pluginsDir = Files.createTempDirectory("plugins");
+    try {
+      assertThat(ScriptPlugins.load(pluginsDir.toString()).getNames()).isEmpty();
+    } finally {
+      Files.delete(pluginsDir);
+    }
+  }
+
+  @Test
+  public void load_missingPluginsDir_throws() {
+    assertThrows(IOException.class, () -> ScriptPlugins.load("/does/not/exist"));
+  }
+
+  private static ScriptPlugin plugin(String name) {
+    return new ScriptPlugin() {
+      @Override
+      public String getName() {
+        return name;
+      }
+
+      @Override
+      public Script start(String arguments, ByteStage toRemote) {
+        return (buffer, offset, length) -> {};
+      }
+    };
+  }
+}
@@ -0,0 +1,64 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ScrollbackTest {
+  @Test
+  public void replaysEverythingWithinCapacity() throws Exception {
+    Scrollback scrollback = new Scrollback(/* capacity= */ 64 * 1024);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 2000; ++i) {
+      String line = "You see a tree number " + i + ".\r\n";
+      expected.append(line);
+      byte[] bytes = line.getBytes(US_ASCII);
+      scrollback.write(bytes, /* offset= */ 0, bytes.length);
+    }
+
+    assertThat(replay(scrollback)).isEqualTo(expected.toString());
+    assertThat(scrollback.getDroppedBytes()).isEqualTo(0);
+    // repetitive text compresses well, so several blocks fit in less than one of them
+    assertThat(scrollback.getRetainedBytes()).isLessThan(expected.length());
+  }
+
+  @Test
+  public void dropsOldestBlocksPastCapacity() throws Exception {
+    Scrollback scrollback = new Scrollback(/* capacity= */ 20 * 1024);
+    // random data doesn't compress, so only one 16KB block fits
+    byte[] data = new byte[40 * 1024];
+    new Random(1234).nextBytes(data);
+    scrollback.write(data, /* offset= */ 0, data.length);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    scrollback.writeTo(out);
+
+    assertThat(scrollback.getDroppedBytes()).isEqualTo(16 * 1024);
+    assertThat(out.toByteArray()).isEqualTo(Arrays.copyOfRange(data, 16 * 1024, data.length));
+    assertThat(scrollback.getRetainedBytes()).isAtMost(20 * 1024 + 16 * 1024);
+  }
+
+  @Test
+  public void emptyReplaysNothing() throws Exception {
+    assertThat(replay(new Scrollback(/* capacity= */ 1024))).isEmpty();
+  }
+
+  @Test
+  public void invalidCapacity_throws() {
+    assertThrows(IllegalArgumentException.class, () -> new Scrollback(/* capacity= */ 0));
+  }
+
+  private static String replay(Scrollback scrollback) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    scrollback.writeTo(out);
+    return out.toString(US_ASCII);
+  }
+}
@@ -0,0 +1,189 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SessionRecorderTest {
+  /** Room for a couple of small records after the header. */
+  private static final int SEGMENT_SIZE = SessionRecorder.SEGMENT_HEADER_SIZE + 64;
+
+  private Path directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("recordings");
+  }
+
+  @Test
+  public void records_readBackInOrder() throws Exception {
+    SessionRecorder recorder = new SessionRecorder(directory, 4096, false, Runnable::run);
+
+    SessionRecorder.Recording recording = recorder.start();
+    record(recording, Direction.HOST_TO_REMOTE, "look");
+    record(recording, Direction.REMOTE_TO_HOST, "You see a sword.");
+    record(recording, Direction.PROCESS_TO_REMOTE, "get sword");
+    recording.close();
+
+    assertThat(readAll())
+        .containsExactly(
+            "HOST_TO_REMOTE look",
+            "REMOTE_TO_HOST You see a sword.",
+            "PROCESS_TO_REMOTE get sword")
+        .inOrder();
+  }
+
+  @Test
+  public void sealedSegments_trimmed() throws Exception {
+    SessionRecorder recorder = new SessionRecorder(directory, 4096, false, Runnable::run);
+
+    SessionRecorder.Recording recording = recorder.start();
+    record(recording, Direction.REMOTE_TO_HOST, "hello");
+    recording.close();
+
+    List<Path> segments = segments();
+    assertThat(segments).hasSize(1);
+    long recordSize = SessionRecorder.RECORD_HEADER_SIZE + "hello".length();
+    assertThat(Files.size(segments.get(0)))
+        .isEqualTo(SessionRecorder.SEGMENT_HEADER_SIZE + recordSize);
+  }
+
+  @Test
+  public void fullSegments_rollOver() throws Exception {
+    SessionRecorder recorder = new SessionRecorder(directory, SEGMENT_SIZE, false, Runnable::run);
+
+    SessionRecorder.Recording recording = recorder.start();
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 10; ++i) {
+      record(recording, Direction.REMOTE_TO_HOST, "line " + i);
+      expected.add("REMOTE_TO_HOST line " + i);
+    }
+    recording.close();
+
+    assertThat(segments().size()).isGreaterThan(1);
+    assertThat(readAll()).containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void largeRecords_splitAcrossSegments() throws Exception {
+    SessionRecorder recorder = new SessionRecorder(directory, SEGMENT_SIZE, false, Runnable::run);
+    String large = "0123456789".repeat(20);
+
+    SessionRecorder.Recording recording = recorder.start();
+    record(recording, Direction.REMOTE_TO_HOST, large);
+    recording.close();
+
+    StringBuilder readBack = new StringBuilder();
+    for (Path segment : segments()) {
+      SessionRecorder.read(
+          segment, (direction, nanoTime, buffer, length) -> readBack.append(text(buffer, length)));
+    }
+    assertThat(readBack.toString()).isEqualTo(large);
+  }
+
+  @Test
+  public void compress_gzipsSealedSegments() throws Exception {
+    SessionRecorder recorder = new SessionRecorder(directory, SEGMENT_SIZE, true, Runnable::run);
+
+    SessionRecorder.Recording recording = recorder.start();
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 10; ++i) {
+      record(recording, Direction.HOST_TO_REMOTE, "north " + i);
+      expected.add("HOST_TO_REMOTE north " + i);
+    }
+    recording.close();
+
+    for (Path segment : segments()) {
+      assertThat(segment.toString()).endsWith(".rec.gz");
+    }
+    assertThat(readAll()).containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void afterClose_nothingRecorded() throws Exception {
+    SessionRecorder recorder = new SessionRecorder(directory, 4096, false, Runnable::run);
+
+    SessionRecorder.Recording recording = recorder.start();
+    record(recording, Direction.HOST_TO_REMOTE, "quit");
+    recording.close();
+    record(recording, Direction.REMOTE_TO_HOST, "Goodbye!");
+
+    assertThat(readAll()).containsExactly("HOST_TO_REMOTE quit");
+  }
+
+  @Test
+  public void sessions_recordedSeparately() throws Exception {
+    SessionRecorder recorder = new SessionRecorder(directory, 4096, false, Runnable::run);
+
+    SessionRecorder.Recording first = recorder.start();
+    SessionRecorder.Recording second = recorder.start();
+    first.close();
+    second.close();
+
+    assertThat(first.getSession()).isNotEqualTo(second.getSession());
+    assertThat(segments()).hasSize(2);
+  }
+
+  @Test
+  public void findSegments_returnsOneSessionInOrder() throws Exception {
+    SessionRecorder recorder = new SessionRecorder(directory, SEGMENT_SIZE, true, Runnable::run);
+
+    SessionRecorder.Recording recording = recorder.start();
+    for (int i = 0; i < 10; ++i) {
+      record(recording, Direction.REMOTE_TO_HOST, "line " + i);
+    }
+    recording.close();
+    List<Path> expected = segments();
+    recorder.start().close();
+
+    List<Path> segments = SessionRecorder.findSegments(directory.resolve(recording.getSession()));
+
+    assertThat(segments).containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void findSegments_throwsIfNoneFound() {
+    assertThrows(
+        IOException.class, () -> SessionRecorder.findSegments(directory.resolve("missing")));
+  }
+
+  private static void record(
+      SessionRecorder.Recording recording, Direction direction, String text) {
+    byte[] bytes = text.getBytes(UTF_8);
+    recording.record(direction, bytes, /* offset= */ 0, bytes.length);
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.sorted().collect(Collectors.toList());
+    }
+  }
+
+  private List<String> readAll() throws IOException {
+    List<String> records = new ArrayList<>();
+    for (Path segment : segments()) {
+      SessionRecorder.read(
+          segment,
+          (direction, nanoTime, buffer, length) ->
+              records.add(direction + " " + text(buffer, length)));
+    }
+    return records;
+  }
+
+  private static String text(byte[] buffer, int length) {
+    return new String(buffer, /* offset= */ 0, length, UTF_8);
+  }
+}
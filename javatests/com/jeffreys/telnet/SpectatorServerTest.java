@@ -0,0 +1,242 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SpectatorServerTest {
+  private final SessionRegistry sessions = new SessionRegistry();
+  private final PipedOutputStream remoteInput = new PipedOutputStream();
+  private final PipedOutputStream hostInput = new PipedOutputStream();
+  private final ByteArrayOutputStream remoteOutput = new ByteArrayOutputStream();
+  private TelnetConnection session;
+  private SpectatorServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    session =
+        new TelnetConnection(
+            new PipedStreamer(hostInput, new ByteArrayOutputStream()),
+            new PipedStreamer(remoteInput, remoteOutput),
+            processBuilder -> {
+              throw new IOException("spectators don't need a process");
+            },
+            ConnectionOptions.builder().setSessions(sessions).build());
+    session.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    remoteInput.close();
+    hostInput.close();
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void watch_receivesRemoteData() throws Exception {
+    startServer(/* allowDriving= */ false);
+
+    try (Socket socket = connect()) {
+      assertThat(readLine(socket)).isEqualTo("Open sessions: " + session.getId());
+      send(socket, session.getId() + "\r\n");
+      assertThat(readLine(socket))
+          .isEqualTo("Session to watch: Watching session " + session.getId());
+      awaitViewers(1);
+
+      remoteInput.write("You see a tree.\r\n".getBytes(US_ASCII));
+      remoteInput.flush();
+
+      assertThat(readLine(socket)).isEqualTo("You see a tree.");
+    }
+  }
+
+  @Test
+  public void drive_sendsToRemote() throws Exception {
+    startServer(/* allowDriving= */ true);
+
+    try (Socket socket = connect()) {
+      readLine(socket);
+      send(socket, "drive " + session.getId() + "\r\n");
+      assertThat(readLine(socket))
+          .isEqualTo("Session to watch, or drive <session>: Driving session " + session.getId());
+      awaitViewers(1);
+
+      send(socket, "look\r\n");
+    }
+    awaitViewers(0);
+
+    assertThat(remoteOutput.toString(US_ASCII)).isEqualTo("look\r\n");
+  }
+
+  @Test
+  public void drive_refusedUnlessAllowed() throws Exception {
+    startServer(/* allowDriving= */ false);
+
+    try (Socket socket = connect()) {
+      readLine(socket);
+      send(socket, "drive " + session.getId() + "\r\n");
+
+      assertThat(readLine(socket))
+          .isEqualTo("Session to watch: No session drive " + session.getId());
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void unknownSession_refused() throws Exception {
+    startServer(/* allowDriving= */ false);
+
+    try (Socket socket = connect()) {
+      readLine(socket);
+      send(socket, "12345\r\n");
+
+      assertThat(readLine(socket)).isEqualTo("Session to watch: No session 12345");
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    }
+    assertThat(session.getViewerCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void resume_refusedUnlessDetached() throws Exception {
+    startServer(/* allowDriving= */ false);
+
+    try (Socket socket = connect()) {
+      readLine(socket);
+      send(socket, "resume " + session.getToken() + "\r\n");
+
+      assertThat(readLine(socket))
+          .isEqualTo("Session to watch: Resuming session " + session.getId());
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    }
+    assertThat(session.getViewerCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void resume_unknownToken_refused() throws Exception {
+    startServer(/* allowDriving= */ false);
+
+    try (Socket socket = connect()) {
+      readLine(socket);
+      send(socket, "resume 0123456789abcdef\r\n");
+
+      assertThat(readLine(socket)).isEqualTo("Session to watch: No session to resume");
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void resumeOnly_takesTheTokenAlone() throws Exception {
+    startServer(SpectatorServer.forResuming(sessions, /* port= */ 0, Thread::new));
+
+    try (Socket socket = connect()) {
+      send(socket, session.getToken() + "\r\n");
+
+      assertThat(readLine(socket))
+          .isEqualTo("Session to resume: Resuming session " + session.getId());
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void resumeOnly_refusesWatching() throws Exception {
+    startServer(SpectatorServer.forResuming(sessions, /* port= */ 0, Thread::new));
+
+    try (Socket socket = connect()) {
+      send(socket, session.getId() + "\r\n");
+
+      assertThat(readLine(socket)).isEqualTo("Session to resume: No session to resume");
+      assertThat(socket.getInputStream().read()).isEqualTo(-1);
+    }
+    assertThat(session.getViewerCount()).isEqualTo(0);
+  }
+
+  private void startServer(boolean allowDriving) throws IOException {
+    startServer(new SpectatorServer(sessions, /* port= */ 0, allowDriving, Thread::new));
+  }
+
+  private void startServer(SpectatorServer server) {
+    this.server = server;
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                server.run();
+              } catch (IOException ex) {
+                throw new AssertionError(ex);
+              }
+            });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+    socket.setSoTimeout(5000);
+    return socket;
+  }
+
+  private void awaitViewers(int count) throws InterruptedException {
+    for (int i = 0; i < 500 && session.getViewerCount() != count; ++i) {
+      Thread.sleep(10);
+    }
+    assertThat(session.getViewerCount()).isEqualTo(count);
+  }
+
+  private static void send(Socket socket, String text) throws IOException {
+    socket.getOutputStream().write(text.getBytes(US_ASCII));
+    socket.getOutputStream().flush();
+  }
+
+  /** Reads up to the next CRLF, dropping it. */
+  private static String readLine(Socket socket) throws IOException {
+    InputStream in = socket.getInputStream();
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0 && b != '\n') {
+      line.write(b);
+    }
+    return line.toString(US_ASCII).trim();
+  }
+
+  /** Reads what's written to a pipe, and writes to a buffer. */
+  private static final class PipedStreamer implements CloseableStreamer {
+    private final PipedInputStream inputStream;
+    private final OutputStream outputStream;
+
+    private PipedStreamer(PipedOutputStream source, OutputStream outputStream) throws IOException {
+      this.inputStream = new PipedInputStream(source);
+      this.outputStream = outputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inputStream.close();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return outputStream;
+    }
+  }
+}
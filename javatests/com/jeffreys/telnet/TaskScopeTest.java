@@ -0,0 +1,89 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TaskScopeTest {
+  private final TaskScope taskScope = new TaskScope(Thread::new);
+
+  @Test
+  public void close_joinsFinishingThreads() {
+    AtomicBoolean finished = new AtomicBoolean();
+    CountDownLatch startLatch = new CountDownLatch(1);
+    taskScope.fork(
+        () -> {
+          startLatch.countDown();
+          sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+          finished.set(true);
+        });
+
+    awaitUninterruptibly(startLatch);
+    taskScope.close();
+
+    assertThat(finished.get()).isTrue();
+  }
+
+  @Test
+  public void close_interruptsBlockedThreads() {
+    CountDownLatch neverReleased = new CountDownLatch(1);
+    AtomicBoolean interrupted = new AtomicBoolean();
+    taskScope.fork(
+        () -> {
+          try {
+            neverReleased.await();
+          } catch (InterruptedException ex) {
+            interrupted.set(true);
+          }
+        });
+
+    taskScope.close();
+
+    assertThat(interrupted.get()).isTrue();
+  }
+
+  @Test
+  public void close_fromOwnThread_doesNotDeadlock() throws Exception {
+    CountDownLatch closedLatch = new CountDownLatch(1);
+    taskScope.fork(
+        () -> {
+          taskScope.close();
+          closedLatch.countDown();
+        });
+
+    assertThat(closedLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+  }
+
+  @Test
+  public void fork_afterClose_throws() {
+    taskScope.close();
+
+    assertThrows(RejectedExecutionException.class, () -> taskScope.fork(() -> {}));
+  }
+
+  @Test
+  public void virtualThreadFactory_unsupportedOrWorks() throws Exception {
+    TaskScope virtualScope;
+    try {
+      virtualScope = new TaskScope(Util.virtualThreadFactory());
+    } catch (UnsupportedOperationException ex) {
+      // running on a JDK older than 21
+      return;
+    }
+
+    CountDownLatch ranLatch = new CountDownLatch(1);
+    virtualScope.fork(ranLatch::countDown);
+    assertThat(ranLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    virtualScope.close();
+  }
+}
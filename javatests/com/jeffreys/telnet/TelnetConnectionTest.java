@@ -2,28 +2,35 @@ package com.jeffreys.telnet;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.jeffreys.junit.Exceptions.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -57,6 +64,119 @@ public class TelnetConnectionTest {
     assertThat(hostOutputStream.toString()).isEqualTo("Welcome to the BBS!");
   }
 
+  @Test
+  public void metrics_countEachDirection() throws Exception {
+    CountDownLatch closeLatch = new CountDownLatch(4);
+    ByteArrayOutputStream remoteOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream hostOutputStream = new ByteArrayOutputStream();
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            closeLatch,
+            new ByteArrayInputStream(
+                new byte[] {'h', 'i', Telnet.IAC, Telnet.WILL, Telnet.COMPRESS2, '!'}),
+            new CloseableOutputStream(remoteOutputStream, closeLatch));
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            closeLatch,
+            new ByteArrayInputStream("you typed this".getBytes()),
+            new CloseableOutputStream(hostOutputStream, closeLatch));
+    Metrics metrics = Metrics.create();
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            ProcessBuilder::start,
+            ConnectionOptions.builder().setMetrics(metrics).build());
+
+    telnetConnection.start();
+
+    closeLatch.await();
+
+    SessionMetrics session = telnetConnection.getMetrics();
+    assertThat(session.getBytes(Direction.REMOTE_TO_HOST)).isEqualTo(6);
+    assertThat(session.getBytes(Direction.HOST_TO_REMOTE)).isEqualTo(14);
+    assertThat(session.getChunks(Direction.HOST_TO_REMOTE)).isEqualTo(1);
+    assertThat(session.getIacSequences()).isEqualTo(1);
+    assertThat(session.getLatency(SessionMetrics.Latency.REMOTE_TO_HOST).getCount())
+        .isEqualTo(session.getChunks(Direction.REMOTE_TO_HOST));
+    assertThat(session.getLatency(SessionMetrics.Latency.HOST_TO_REMOTE).getCount()).isEqualTo(1);
+    // whether or not the session has been unregistered yet
+    assertThat(metrics.getTotal("remote_to_host_bytes_total")).isEqualTo(6);
+  }
+
+  @Test
+  public void writeCoalescing_passesEverythingThrough() throws Exception {
+    CountDownLatch closeLatch = new CountDownLatch(4);
+    ByteArrayOutputStream remoteOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream hostOutputStream = new ByteArrayOutputStream();
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            closeLatch,
+            new ByteArrayInputStream("Welcome to the BBS!".getBytes()),
+            new CloseableOutputStream(remoteOutputStream, closeLatch));
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            closeLatch,
+            new ByteArrayInputStream("you typed this".getBytes()),
+            new CloseableOutputStream(hostOutputStream, closeLatch));
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            ProcessBuilder::start,
+            ConnectionOptions.builder().setWriteCoalescingBudget(Duration.ofHours(1)).build());
+
+    telnetConnection.start();
+
+    closeLatch.await();
+
+    // the inputs going idle flushes, long before the budget runs out
+    assertThat(remoteOutputStream.toString()).isEqualTo("you typed this");
+    assertThat(hostOutputStream.toString()).isEqualTo("Welcome to the BBS!");
+  }
+
+  @Test
+  public void remoteCompression_hostSeesPlainText() throws Exception {
+    CountDownLatch closeLatch = new CountDownLatch(4);
+    ByteArrayOutputStream remoteOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream hostOutputStream = new ByteArrayOutputStream();
+
+    // stands in for a MUD that offers MCCP2, then compresses everything after the marker
+    ByteArrayOutputStream remoteStream = new ByteArrayOutputStream();
+    remoteStream.write(new byte[] {Telnet.IAC, Telnet.WILL, Telnet.COMPRESS2});
+    remoteStream.write(Telnet.startCompression(Telnet.COMPRESS2));
+    try (DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(remoteStream)) {
+      deflaterOutputStream.write("Welcome to the BBS!".getBytes());
+    }
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            closeLatch,
+            new ByteArrayInputStream(remoteStream.toByteArray()),
+            new CloseableOutputStream(remoteOutputStream, closeLatch));
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            closeLatch,
+            new ByteArrayInputStream(new byte[0]),
+            new CloseableOutputStream(hostOutputStream, closeLatch));
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            ProcessBuilder::start,
+            ConnectionOptions.builder().setRemoteCompression(true).build());
+
+    telnetConnection.start();
+
+    closeLatch.await();
+
+    assertThat(hostOutputStream.toString()).isEqualTo("Welcome to the BBS!");
+    assertThat(remoteOutputStream.toByteArray())
+        .isEqualTo(new byte[] {Telnet.IAC, Telnet.DO, Telnet.COMPRESS2});
+  }
+
   @Test
   public void launchesScript() throws Exception {
     // --------------------------------------------------------------------------------------------
@@ -91,7 +211,8 @@ public class TelnetConnectionTest {
     TelnetConnection telnetConnection = new TelnetConnection(host, remote, processLauncher);
 
     CountDownLatch scriptLatch = new CountDownLatch(2);
-    telnetConnection.setOnPostHostDataReceived((buffer, bytes) -> scriptLatch.countDown());
+    telnetConnection.setOnPostHostDataReceived(
+        (buffer, offset, length) -> scriptLatch.countDown());
 
     // --------------------------------------------------------------------------------------------
     // ACT
@@ -132,18 +253,28 @@ public class TelnetConnectionTest {
   }
 
   @Test
-  public void doubleLaunchScript_doesntLaunchTwice() throws Exception {
+  public void twoScripts_bothReceiveRemoteData() throws Exception {
     // --------------------------------------------------------------------------------------------
     // ARRANGE
     // --------------------------------------------------------------------------------------------
+    CountDownLatch processCloseLatch = new CountDownLatch(2);
     MessageQueue<QueueMessage> processQueue = new MessageQueue<>();
-    Process process = mock(Process.class);
-    when(process.getInputStream())
-        .thenReturn(
-            new BlockingLineInputStream("commands\r\nfrom the\r\nscript\r\n", processQueue));
-    when(process.getOutputStream()).thenReturn(new ByteArrayOutputStream());
-    ProcessLauncher processLauncher = mock(ProcessLauncher.class);
-    when(processLauncher.start(any(ProcessBuilder.class))).thenReturn(process);
+    ByteArrayOutputStream mapperOutputStream = new ByteArrayOutputStream();
+    Process mapper = mock(Process.class);
+    when(mapper.getInputStream()).thenReturn(new BlockingLineInputStream("", processQueue));
+    when(mapper.getOutputStream())
+        .thenReturn(new CloseableOutputStream(mapperOutputStream, processCloseLatch));
+    ByteArrayOutputStream botOutputStream = new ByteArrayOutputStream();
+    Process bot = mock(Process.class);
+    when(bot.getInputStream()).thenReturn(new BlockingLineInputStream("", processQueue));
+    when(bot.getOutputStream())
+        .thenReturn(new CloseableOutputStream(botOutputStream, processCloseLatch));
+    List<List<String>> launched = new ArrayList<>();
+    ProcessLauncher processLauncher =
+        processBuilder -> {
+          launched.add(processBuilder.command());
+          return processBuilder.command().contains("/tmp/bot.sh") ? bot : mapper;
+        };
 
     MessageQueue<QueueMessage> remoteQueue = new MessageQueue<>();
     MessageQueue<QueueMessage> hostQueue = new MessageQueue<>();
@@ -155,44 +286,45 @@ public class TelnetConnectionTest {
     TestCloseableStreamer remote =
         new TestCloseableStreamer(
             closeLatch,
-            new BlockingLineInputStream("Welcome to the BBS!\r\n", remoteQueue),
+            new BlockingLineInputStream("Welcome to the BBS!\r\nYou are hungry.\r\n", remoteQueue),
             new CloseableOutputStream(remoteOutputStream, closeLatch));
     TestCloseableStreamer host =
         new TestCloseableStreamer(
             closeLatch,
             new BlockingLineInputStream(
-                "you typed this\r\n#!script /tmp/first.sh\r\n#!script /tmp/second.sh\r\n",
-                hostQueue),
+                "#!script /tmp/mapper.sh\r\n#!script /tmp/bot.sh --match=hungry\r\n", hostQueue),
             new CloseableOutputStream(hostOutputStream, closeLatch));
     TelnetConnection telnetConnection = new TelnetConnection(host, remote, processLauncher);
 
-    CountDownLatch firstScriptLatch = new CountDownLatch(2);
-    CountDownLatch secondScriptLatch = new CountDownLatch(3);
+    CountDownLatch scriptLatch = new CountDownLatch(2);
     telnetConnection.setOnPostHostDataReceived(
-        (buffer, bytes) -> {
-          firstScriptLatch.countDown();
-          secondScriptLatch.countDown();
-        });
+        (buffer, offset, length) -> scriptLatch.countDown());
+
+    CountDownLatch remoteLatch = new CountDownLatch(2);
+    telnetConnection.setOnPostRemoteDataReceived(
+        (buffer, offset, length) -> remoteLatch.countDown());
 
     // --------------------------------------------------------------------------------------------
     // ACT
     // --------------------------------------------------------------------------------------------
     telnetConnection.start();
 
-    // 1 lines from remote, release first one
-    remoteQueue.post(QueueMessage.create());
-    // release the lines launching the first script
+    // release the lines launching both scripts
     hostQueue.post(QueueMessage.create());
     hostQueue.post(QueueMessage.create());
+    assertThat(scriptLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
 
-    // wait for the script to launch
-    assertThat(firstScriptLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
-    // release the next script line which attempts to start the second script
-    hostQueue.post(QueueMessage.create());
-    // wait for the second script to be detected and attempted to launch
-    assertThat(secondScriptLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    // 2 lines from remote, which get piped to the scripts
+    remoteQueue.post(QueueMessage.create());
+    remoteQueue.post(QueueMessage.create());
+    assertThat(remoteLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // end both scripts, and wait for their input to be closed
+    processQueue.post(QueueMessage.create());
+    processQueue.post(QueueMessage.create());
+    assertThat(processCloseLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
 
-    // flush all the streams now
+    // release them both to finish up
     remoteQueue.post(QueueMessage.create());
     hostQueue.post(QueueMessage.create());
 
@@ -202,12 +334,13 @@ public class TelnetConnectionTest {
     // --------------------------------------------------------------------------------------------
     // ASSERT
     // --------------------------------------------------------------------------------------------
-    assertThat(remoteOutputStream.toString())
-        .isEqualTo("you typed this\r\n#!script /tmp/first.sh\r\n#!script /tmp/second.sh\r\n");
-    assertThat(hostOutputStream.toString()).isEqualTo("Welcome to the BBS!\r\n");
-    verify(processLauncher)
-        .start(argThat(processBuilder -> processBuilder.command().contains("/tmp/first.sh")));
-    verify(processLauncher, times(1)).start(any());
+    assertThat(hostOutputStream.toString()).isEqualTo("Welcome to the BBS!\r\nYou are hungry.\r\n");
+    assertThat(mapperOutputStream.toString())
+        .isEqualTo("Welcome to the BBS!\r\nYou are hungry.\r\n");
+    assertThat(botOutputStream.toString()).isEqualTo("You are hungry.\r\n");
+    assertThat(launched)
+        .containsExactly(ImmutableList.of("/tmp/mapper.sh"), ImmutableList.of("/tmp/bot.sh"))
+        .inOrder();
   }
 
   @Test
@@ -247,10 +380,12 @@ public class TelnetConnectionTest {
     TelnetConnection telnetConnection = new TelnetConnection(host, remote, processLauncher);
 
     CountDownLatch scriptLatch = new CountDownLatch(2);
-    telnetConnection.setOnPostHostDataReceived((buffer, bytes) -> scriptLatch.countDown());
+    telnetConnection.setOnPostHostDataReceived(
+        (buffer, offset, length) -> scriptLatch.countDown());
 
     CountDownLatch remoteLatch = new CountDownLatch(1);
-    telnetConnection.setOnPostRemoteDataReceived((buffer, bytes) -> remoteLatch.countDown());
+    telnetConnection.setOnPostRemoteDataReceived(
+        (buffer, offset, length) -> remoteLatch.countDown());
     // --------------------------------------------------------------------------------------------
     // ACT
     // --------------------------------------------------------------------------------------------
@@ -293,6 +428,595 @@ public class TelnetConnectionTest {
         .start(argThat(processBuilder -> processBuilder.command().contains("/tmp/test.sh")));
   }
 
+  @Test
+  public void scriptPlugin_repliesInProcess() throws Exception {
+    // --------------------------------------------------------------------------------------------
+    // ARRANGE
+    // --------------------------------------------------------------------------------------------
+    List<String> pluginArguments = new ArrayList<>();
+    CountDownLatch pluginStopLatch = new CountDownLatch(1);
+    ScriptPlugin eater =
+        new ScriptPlugin() {
+          @Override
+          public String getName() {
+            return "eater";
+          }
+
+          @Override
+          public Script start(String arguments, ByteStage toRemote) {
+            pluginArguments.add(arguments);
+            byte[] reply = "eat bread\r\n".getBytes();
+            return new Script() {
+              @Override
+              public void accept(byte[] buffer, int offset, int length) {
+                toRemote.accept(reply, reply.length);
+              }
+
+              @Override
+              public void stop() {
+                pluginStopLatch.countDown();
+              }
+            };
+          }
+        };
+
+    MessageQueue<QueueMessage> remoteQueue = new MessageQueue<>();
+    MessageQueue<QueueMessage> hostQueue = new MessageQueue<>();
+
+    CountDownLatch closeLatch = new CountDownLatch(4); // 2 input + 2 output streams
+    ByteArrayOutputStream remoteOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream hostOutputStream = new ByteArrayOutputStream();
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("You see a tree.\r\nYou are hungry.\r\n", remoteQueue),
+            new CloseableOutputStream(remoteOutputStream, closeLatch));
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("#!script eater bread --match=hungry\r\n", hostQueue),
+            new CloseableOutputStream(hostOutputStream, closeLatch));
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            processBuilder -> {
+              throw new IOException("plugins don't need a process");
+            },
+            ConnectionOptions.builder()
+                .setScriptPlugins(ScriptPlugins.of(ImmutableList.of(eater)))
+                .build());
+
+    CountDownLatch scriptLatch = new CountDownLatch(1);
+    telnetConnection.setOnPostHostDataReceived(
+        (buffer, offset, length) -> scriptLatch.countDown());
+
+    CountDownLatch remoteLatch = new CountDownLatch(2);
+    telnetConnection.setOnPostRemoteDataReceived(
+        (buffer, offset, length) -> remoteLatch.countDown());
+
+    // --------------------------------------------------------------------------------------------
+    // ACT
+    // --------------------------------------------------------------------------------------------
+    telnetConnection.start();
+
+    hostQueue.post(QueueMessage.create());
+    assertThat(scriptLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // 2 lines from remote, which the plugin sees as they're read
+    remoteQueue.post(QueueMessage.create());
+    remoteQueue.post(QueueMessage.create());
+    assertThat(remoteLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // release them both to finish up
+    remoteQueue.post(QueueMessage.create());
+    hostQueue.post(QueueMessage.create());
+
+    assertThat(closeLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    assertThat(pluginStopLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // --------------------------------------------------------------------------------------------
+    // ASSERT
+    // --------------------------------------------------------------------------------------------
+    assertThat(pluginArguments).containsExactly("bread");
+    assertThat(remoteOutputStream.toString())
+        .isEqualTo("#!script eater bread --match=hungry\r\neat bread\r\n");
+    assertThat(hostOutputStream.toString()).isEqualTo("You see a tree.\r\nYou are hungry.\r\n");
+    // timed from the first line, which the plugin didn't react to
+    assertThat(
+            telnetConnection
+                .getMetrics()
+                .getLatency(SessionMetrics.Latency.SCRIPT_REACTION)
+                .getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void trigger_sendsCommand() throws Exception {
+    // --------------------------------------------------------------------------------------------
+    // ARRANGE
+    // --------------------------------------------------------------------------------------------
+    MessageQueue<QueueMessage> remoteQueue = new MessageQueue<>();
+    MessageQueue<QueueMessage> hostQueue = new MessageQueue<>();
+
+    CountDownLatch closeLatch = new CountDownLatch(4); // 2 input + 2 output streams
+    ByteArrayOutputStream remoteOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream hostOutputStream = new ByteArrayOutputStream();
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("You see a tree.\r\nYou are hungry.\r\n", remoteQueue),
+            new CloseableOutputStream(remoteOutputStream, closeLatch));
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("look\r\n", hostQueue),
+            new CloseableOutputStream(hostOutputStream, closeLatch));
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            processBuilder -> {
+              throw new IOException("sending doesn't need a process");
+            },
+            ConnectionOptions.builder()
+                .setTriggers(
+                    Triggers.parse(ImmutableList.of("/hung+ry\\.$/ => send eat bread")))
+                .build());
+
+    CountDownLatch hostLatch = new CountDownLatch(1);
+    telnetConnection.setOnPostHostDataReceived((buffer, offset, length) -> hostLatch.countDown());
+
+    CountDownLatch remoteLatch = new CountDownLatch(2);
+    telnetConnection.setOnPostRemoteDataReceived(
+        (buffer, offset, length) -> remoteLatch.countDown());
+
+    // --------------------------------------------------------------------------------------------
+    // ACT
+    // --------------------------------------------------------------------------------------------
+    telnetConnection.start();
+
+    hostQueue.post(QueueMessage.create());
+    assertThat(hostLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    remoteQueue.post(QueueMessage.create());
+    remoteQueue.post(QueueMessage.create());
+    assertThat(remoteLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // release them both to finish up
+    remoteQueue.post(QueueMessage.create());
+    hostQueue.post(QueueMessage.create());
+
+    assertThat(closeLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // --------------------------------------------------------------------------------------------
+    // ASSERT
+    // --------------------------------------------------------------------------------------------
+    assertThat(remoteOutputStream.toString()).isEqualTo("look\r\neat bread\r\n");
+    assertThat(hostOutputStream.toString()).isEqualTo("You see a tree.\r\nYou are hungry.\r\n");
+  }
+
+  @Test
+  public void alias_expandedBeforeReachingRemote() throws Exception {
+    // --------------------------------------------------------------------------------------------
+    // ARRANGE
+    // --------------------------------------------------------------------------------------------
+    MessageQueue<QueueMessage> remoteQueue = new MessageQueue<>();
+    MessageQueue<QueueMessage> hostQueue = new MessageQueue<>();
+
+    CountDownLatch closeLatch = new CountDownLatch(4); // 2 input + 2 output streams
+    ByteArrayOutputStream remoteOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream hostOutputStream = new ByteArrayOutputStream();
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("", remoteQueue),
+            new CloseableOutputStream(remoteOutputStream, closeLatch));
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("kk orc\r\nlook\r\n", hostQueue),
+            new CloseableOutputStream(hostOutputStream, closeLatch));
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            mock(ProcessLauncher.class),
+            ConnectionOptions.builder()
+                .setAliases(Aliases.parse(ImmutableList.of("kk kill $1;get all from corpse")))
+                .build());
+
+    CountDownLatch hostLatch = new CountDownLatch(2);
+    telnetConnection.setOnPostHostDataReceived((buffer, offset, length) -> hostLatch.countDown());
+
+    // --------------------------------------------------------------------------------------------
+    // ACT
+    // --------------------------------------------------------------------------------------------
+    telnetConnection.start();
+
+    hostQueue.post(QueueMessage.create());
+    hostQueue.post(QueueMessage.create());
+    assertThat(hostLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // release them both to finish up
+    remoteQueue.post(QueueMessage.create());
+    hostQueue.post(QueueMessage.create());
+
+    assertThat(closeLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // --------------------------------------------------------------------------------------------
+    // ASSERT
+    // --------------------------------------------------------------------------------------------
+    assertThat(remoteOutputStream.toString())
+        .isEqualTo("kill orc\r\nget all from corpse\r\nlook\r\n");
+  }
+
+  @Test
+  public void recording_capturesBothDirections() throws Exception {
+    // --------------------------------------------------------------------------------------------
+    // ARRANGE
+    // --------------------------------------------------------------------------------------------
+    MessageQueue<QueueMessage> remoteQueue = new MessageQueue<>();
+    MessageQueue<QueueMessage> hostQueue = new MessageQueue<>();
+
+    CountDownLatch closeLatch = new CountDownLatch(4); // 2 input + 2 output streams
+    ByteArrayOutputStream remoteOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream hostOutputStream = new ByteArrayOutputStream();
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("Welcome!\r\n", remoteQueue),
+            new CloseableOutputStream(remoteOutputStream, closeLatch));
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("look\r\n", hostQueue),
+            new CloseableOutputStream(hostOutputStream, closeLatch));
+    Path directory = Files.createTempDirectory("recordings");
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            mock(ProcessLauncher.class),
+            ConnectionOptions.builder()
+                .setRecorder(new SessionRecorder(directory, 4096, false, Runnable::run))
+                .build());
+
+    CountDownLatch hostLatch = new CountDownLatch(1);
+    telnetConnection.setOnPostHostDataReceived((buffer, offset, length) -> hostLatch.countDown());
+    CountDownLatch remoteLatch = new CountDownLatch(1);
+    telnetConnection.setOnPostRemoteDataReceived(
+        (buffer, offset, length) -> remoteLatch.countDown());
+
+    // --------------------------------------------------------------------------------------------
+    // ACT
+    // --------------------------------------------------------------------------------------------
+    telnetConnection.start();
+
+    hostQueue.post(QueueMessage.create());
+    remoteQueue.post(QueueMessage.create());
+    assertThat(hostLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    assertThat(remoteLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    telnetConnection.shutdown();
+
+    // --------------------------------------------------------------------------------------------
+    // ASSERT
+    // --------------------------------------------------------------------------------------------
+    List<String> records = new ArrayList<>();
+    try (Stream<Path> segments = Files.list(directory)) {
+      for (Path segment : segments.collect(Collectors.toList())) {
+        SessionRecorder.read(
+            segment,
+            (direction, nanoTime, buffer, length) ->
+                records.add(direction + " " + new String(buffer, 0, length, UTF_8)));
+      }
+    }
+    assertThat(records).containsExactly("HOST_TO_REMOTE look\r\n", "REMOTE_TO_HOST Welcome!\r\n");
+  }
+
+  @Test
+  public void spectators_watchAndDrive() throws Exception {
+    // --------------------------------------------------------------------------------------------
+    // ARRANGE
+    // --------------------------------------------------------------------------------------------
+    MessageQueue<QueueMessage> remoteQueue = new MessageQueue<>();
+    MessageQueue<QueueMessage> hostQueue = new MessageQueue<>();
+    MessageQueue<QueueMessage> watcherQueue = new MessageQueue<>();
+
+    CountDownLatch closeLatch = new CountDownLatch(4); // 2 input + 2 output streams
+    ByteArrayOutputStream remoteOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream hostOutputStream = new ByteArrayOutputStream();
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("You see a tree.\r\n", remoteQueue),
+            new CloseableOutputStream(remoteOutputStream, closeLatch));
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            closeLatch,
+            new BlockingLineInputStream("look\r\n", hostQueue),
+            new CloseableOutputStream(hostOutputStream, closeLatch));
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            processBuilder -> {
+              throw new IOException("spectators don't need a process");
+            });
+
+    // what the watcher types is ignored, and what the driver types is sent
+    CountDownLatch watcherClosed = new CountDownLatch(1);
+    ByteArrayOutputStream watcherOutputStream = new ByteArrayOutputStream();
+    CountDownLatch watcherReceived = new CountDownLatch(1);
+    TestCloseableStreamer watcher =
+        new TestCloseableStreamer(
+            watcherClosed,
+            new BlockingLineInputStream("quit\r\n", watcherQueue),
+            new FilterOutputStream(watcherOutputStream) {
+              @Override
+              public void flush() throws IOException {
+                super.flush();
+                watcherReceived.countDown();
+              }
+            });
+    CountDownLatch driverClosed = new CountDownLatch(1);
+    TestCloseableStreamer driver =
+        new TestCloseableStreamer(
+            driverClosed,
+            new ByteArrayInputStream(
+                new byte[] {'s', 'a', 'y', Telnet.IAC, Telnet.WILL, Telnet.COMPRESS2, '\n'}),
+            new ByteArrayOutputStream());
+
+    // --------------------------------------------------------------------------------------------
+    // ACT
+    // --------------------------------------------------------------------------------------------
+    telnetConnection.start();
+    telnetConnection.attachViewer(watcher, /* driving= */ false);
+    telnetConnection.attachViewer(driver, /* driving= */ true);
+
+    // the driver is detached once it runs out of input
+    assertThat(driverClosed.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    watcherQueue.post(QueueMessage.create());
+
+    remoteQueue.post(QueueMessage.create());
+    assertThat(watcherReceived.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // release them both to finish up
+    remoteQueue.post(QueueMessage.create());
+    hostQueue.post(QueueMessage.create());
+    hostQueue.post(QueueMessage.create());
+
+    assertThat(closeLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    assertThat(watcherClosed.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // --------------------------------------------------------------------------------------------
+    // ASSERT
+    // --------------------------------------------------------------------------------------------
+    assertThat(remoteOutputStream.toString()).isEqualTo("say\nlook\r\n");
+    assertThat(watcherOutputStream.toString()).isEqualTo("You see a tree.\r\n");
+    assertThat(hostOutputStream.toString()).isEqualTo("You see a tree.\r\n");
+    assertThat(telnetConnection.getViewerCount()).isEqualTo(0);
+    assertThrows(
+        IOException.class, () -> telnetConnection.attachViewer(driver, /* driving= */ true));
+  }
+
+  @Test
+  public void detached_resumedWithScrollback() throws Exception {
+    // --------------------------------------------------------------------------------------------
+    // ARRANGE
+    // --------------------------------------------------------------------------------------------
+    MessageQueue<QueueMessage> remoteQueue = new MessageQueue<>();
+    MessageQueue<QueueMessage> clientQueue = new MessageQueue<>();
+
+    CountDownLatch remoteClosed = new CountDownLatch(1);
+    CountDownLatch hostClosed = new CountDownLatch(1);
+    ByteArrayOutputStream remoteOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream hostOutputStream = new ByteArrayOutputStream();
+    ByteArrayOutputStream clientOutputStream = new ByteArrayOutputStream();
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            remoteClosed,
+            new BlockingLineInputStream("You see a tree.\r\nYou are hungry.\r\n", remoteQueue),
+            remoteOutputStream);
+    // the player's client sends a line, then drops
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            hostClosed, new ByteArrayInputStream("look\r\n".getBytes()), hostOutputStream);
+    TestCloseableStreamer client =
+        new TestCloseableStreamer(
+            new CountDownLatch(1),
+            new BlockingLineInputStream("eat\r\n", clientQueue),
+            clientOutputStream);
+    SessionRegistry sessions = new SessionRegistry();
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            processBuilder -> {
+              throw new IOException("resuming doesn't need a process");
+            },
+            ConnectionOptions.builder()
+                .setSessions(sessions)
+                .setDetachGracePeriod(Duration.ofHours(1))
+                .build());
+
+    CountDownLatch remoteLatch = new CountDownLatch(1);
+    telnetConnection.setOnPostRemoteDataReceived(
+        (buffer, offset, length) -> remoteLatch.countDown());
+
+    // --------------------------------------------------------------------------------------------
+    // ACT
+    // --------------------------------------------------------------------------------------------
+    telnetConnection.start();
+    assertThat(hostClosed.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // sent while detached, so kept for the player
+    remoteQueue.post(QueueMessage.create());
+    assertThat(remoteLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    assertThat(sessions.getByToken(telnetConnection.getToken())).isSameInstanceAs(telnetConnection);
+    telnetConnection.resume(client);
+    awaitOutput(clientOutputStream, "You see a tree.\r\n");
+
+    // sent once resumed, so delivered right away
+    remoteQueue.post(QueueMessage.create());
+    awaitOutput(clientOutputStream, "You see a tree.\r\nYou are hungry.\r\n");
+    clientQueue.post(QueueMessage.create());
+    awaitOutput(remoteOutputStream, "look\r\neat\r\n");
+
+    // the remote ending still ends the session
+    remoteQueue.post(QueueMessage.create());
+    assertThat(remoteClosed.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+
+    // --------------------------------------------------------------------------------------------
+    // ASSERT
+    // --------------------------------------------------------------------------------------------
+    assertThat(hostOutputStream.toString())
+        .isEqualTo("Resume this session with: resume " + telnetConnection.getToken() + "\r\n");
+    assertThat(sessions.getIds()).isEmpty();
+    assertThrows(IOException.class, () -> telnetConnection.resume(client));
+  }
+
+  @Test
+  public void resumed_slowPlayerLosesNothing() throws Exception {
+    MessageQueue<QueueMessage> remoteQueue = new MessageQueue<>();
+    CountDownLatch hostClosed = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+    ByteArrayOutputStream clientOutputStream = new ByteArrayOutputStream();
+
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            new CountDownLatch(1),
+            new BlockingLineInputStream(
+                "You see a tree.\r\nYou are hungry.\r\nYou are thirsty.\r\n", remoteQueue),
+            new ByteArrayOutputStream());
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            hostClosed, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+    // a client that can't keep up, taking nothing until released
+    TestCloseableStreamer client =
+        new TestCloseableStreamer(
+            new CountDownLatch(1),
+            new BlockingLineInputStream("", new MessageQueue<>()),
+            new FilterOutputStream(clientOutputStream) {
+              @Override
+              public void write(byte[] buffer, int offset, int length) throws IOException {
+                try {
+                  released.await();
+                } catch (InterruptedException ex) {
+                  throw new IOException(ex);
+                }
+                out.write(buffer, offset, length);
+              }
+            });
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            ProcessBuilder::start,
+            ConnectionOptions.builder()
+                .setDetachGracePeriod(Duration.ofHours(1))
+                .setViewerBufferSize(16)
+                .build());
+    CountDownLatch remoteLatch = new CountDownLatch(3);
+    telnetConnection.setOnPostRemoteDataReceived(
+        (buffer, offset, length) -> remoteLatch.countDown());
+
+    telnetConnection.start();
+    assertThat(hostClosed.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    telnetConnection.resume(client);
+    for (int i = 0; i < 3; ++i) {
+      remoteQueue.post(QueueMessage.create());
+    }
+    assertThat(remoteLatch.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    released.countDown();
+
+    awaitOutput(clientOutputStream, "You see a tree.\r\nYou are hungry.\r\nYou are thirsty.\r\n");
+    telnetConnection.shutdown();
+  }
+
+  @Test
+  public void resumed_playerOfferedCompressionAgain() throws Exception {
+    CountDownLatch hostClosed = new CountDownLatch(1);
+    ByteArrayOutputStream clientOutputStream = new ByteArrayOutputStream();
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            new CountDownLatch(1),
+            new BlockingLineInputStream("", new MessageQueue<>()),
+            new ByteArrayOutputStream());
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            hostClosed, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+    TestCloseableStreamer client =
+        new TestCloseableStreamer(
+            new CountDownLatch(1),
+            new BlockingLineInputStream("", new MessageQueue<>()),
+            clientOutputStream);
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            ProcessBuilder::start,
+            ConnectionOptions.builder()
+                .setDetachGracePeriod(Duration.ofHours(1))
+                .setHostCompression(true)
+                .build());
+
+    telnetConnection.start();
+    assertThat(hostClosed.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    telnetConnection.resume(client);
+    telnetConnection.shutdown();
+
+    // nothing was sent while detached, so the offer is all the client gets
+    assertThat(clientOutputStream.toByteArray())
+        .isEqualTo(new byte[] {Telnet.IAC, Telnet.WILL, Telnet.COMPRESS2});
+  }
+
+  @Test
+  public void detached_endsOnceGracePeriodRunsOut() throws Exception {
+    CountDownLatch remoteClosed = new CountDownLatch(1);
+    TestCloseableStreamer remote =
+        new TestCloseableStreamer(
+            remoteClosed,
+            new BlockingLineInputStream("You see a tree.\r\n", new MessageQueue<>()),
+            new ByteArrayOutputStream());
+    TestCloseableStreamer host =
+        new TestCloseableStreamer(
+            new CountDownLatch(1),
+            new ByteArrayInputStream(new byte[0]),
+            new ByteArrayOutputStream());
+    SessionRegistry sessions = new SessionRegistry();
+    TelnetConnection telnetConnection =
+        new TelnetConnection(
+            host,
+            remote,
+            ProcessBuilder::start,
+            ConnectionOptions.builder()
+                .setSessions(sessions)
+                .setDetachGracePeriod(Duration.ofMillis(100))
+                .build());
+
+    telnetConnection.start();
+
+    assertThat(remoteClosed.await(5000, TimeUnit.MILLISECONDS)).isTrue();
+    assertThat(sessions.getIds()).isEmpty();
+  }
+
+  private static void awaitOutput(ByteArrayOutputStream outputStream, String expected)
+      throws InterruptedException {
+    for (int i = 0; i < 500 && !outputStream.toString().equals(expected); ++i) {
+      Thread.sleep(10);
+    }
+    assertThat(outputStream.toString()).isEqualTo(expected);
+  }
+
   @Test
   public void emptyMessageQueue_throwsOnGet() {
     MessageQueue<QueueMessage> messageQueue = new MessageQueue<>();
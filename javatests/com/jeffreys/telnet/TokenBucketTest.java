@@ -0,0 +1,72 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+
+import com.google.common.base.Ticker;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TokenBucketTest {
+  private long nowNanos = 0;
+
+  private final Ticker ticker =
+      new Ticker() {
+        @Override
+        public long read() {
+          return nowNanos;
+        }
+      };
+  private final TokenBucket bucket = new TokenBucket(10, ticker);
+
+  @Test
+  public void startsFull() {
+    assertThat(bucket.tryTake(10)).isTrue();
+    assertThat(bucket.tryTake(1)).isFalse();
+  }
+
+  @Test
+  public void refillsOverTime() {
+    assertThat(bucket.tryTake(10)).isTrue();
+
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(100);
+
+    assertThat(bucket.tryTake(1)).isTrue();
+    assertThat(bucket.tryTake(1)).isFalse();
+  }
+
+  @Test
+  public void refill_capsAtOneSecond() {
+    nowNanos += TimeUnit.SECONDS.toNanos(10);
+
+    assertThat(bucket.tryTake(10)).isTrue();
+    assertThat(bucket.tryTake(1)).isFalse();
+  }
+
+  @Test
+  public void nanosUntilAvailable() {
+    assertThat(bucket.nanosUntilAvailable(10)).isEqualTo(0);
+    assertThat(bucket.tryTake(10)).isTrue();
+
+    assertThat(bucket.nanosUntilAvailable(2)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  @Test
+  public void oversizedTake_leavesBucketInDebt() {
+    assertThat(bucket.tryTake(20)).isTrue();
+
+    nowNanos += TimeUnit.SECONDS.toNanos(1);
+    assertThat(bucket.tryTake(1)).isFalse();
+
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(100);
+    assertThat(bucket.tryTake(1)).isTrue();
+  }
+
+  @Test
+  public void rateMustBePositive() {
+    assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, ticker));
+  }
+}
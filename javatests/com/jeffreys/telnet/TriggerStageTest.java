@@ -0,0 +1,74 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TriggerStageTest {
+  private final List<String> fired = new ArrayList<>();
+  private final ByteArrayOutputStream passedOn = new ByteArrayOutputStream();
+
+  @Test
+  public void literalsAndRegexes_fireTheirActions() {
+    TriggerStage stage =
+        newStage(
+            "You are hungry. => send eat bread",
+            "/^(\\w+) tells you/ => notify tell",
+            "tree => send climb");
+
+    accept(stage, "Bob tells you 'hi'\r\nYou are hungry.\r\n");
+
+    assertThat(fired).containsExactly("tell", "eat bread").inOrder();
+    assertThat(passedOn.toString()).isEqualTo("Bob tells you 'hi'\r\nYou are hungry.\r\n");
+  }
+
+  @Test
+  public void patternSplitAcrossChunks() {
+    TriggerStage stage = newStage("You are hungry. => send eat", "/thirst+y/ => send drink");
+
+    accept(stage, "You are hun");
+    accept(stage, "gry. You are thir");
+    accept(stage, "sty.");
+
+    assertThat(fired).containsExactly("eat", "drink").inOrder();
+  }
+
+  @Test
+  public void firesOncePerLine() {
+    TriggerStage stage = newStage("rat => send kill rat", "/r[a-z]t/ => send look");
+
+    accept(stage, "A rat and a rat and a rot.\r\n");
+    accept(stage, "Another rat.\r\n");
+
+    assertThat(fired).containsExactly("kill rat", "look", "kill rat", "look").inOrder();
+  }
+
+  @Test
+  public void samePattern_firesEveryTrigger() {
+    TriggerStage stage = newStage("dies => send loot", "dies => notify kill");
+
+    accept(stage, "The orc dies.");
+
+    assertThat(fired).containsExactly("loot", "kill");
+  }
+
+  private TriggerStage newStage(String... lines) {
+    return new TriggerStage(
+        Triggers.parse(ImmutableList.copyOf(lines)),
+        trigger -> fired.add(trigger.getArgument()),
+        passedOn::write);
+  }
+
+  private static void accept(TriggerStage stage, String data) {
+    byte[] bytes = data.getBytes(UTF_8);
+    stage.accept(bytes, /* offset= */ 0, bytes.length);
+  }
+}
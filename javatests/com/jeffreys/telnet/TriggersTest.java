@@ -0,0 +1,86 @@
+package com.jeffreys.telnet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.jeffreys.junit.Exceptions.assertThrows;
+import static com.jeffreys.junit.Exceptions.expectThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TriggersTest {
+  @Test
+  public void parse() {
+    Triggers triggers =
+        Triggers.parse(
+            ImmutableList.of(
+                "# a comment",
+                "",
+                "You are hungry. => send eat bread",
+                "/^(\\w+) tells you/ => notify tell",
+                "is DEAD!! => script ./loot.sh --match=gold"));
+
+    assertThat(triggers.getTriggers()).hasSize(3);
+    Triggers.Trigger send = triggers.getTriggers().get(0);
+    assertThat(send.getPattern()).isEqualTo("You are hungry.");
+    assertThat(send.isRegex()).isFalse();
+    assertThat(send.getAction()).isEqualTo(Triggers.Action.SEND);
+    assertThat(send.getArgument()).isEqualTo("eat bread");
+    Triggers.Trigger notify = triggers.getTriggers().get(1);
+    assertThat(notify.getPattern()).isEqualTo("^(\\w+) tells you");
+    assertThat(notify.isRegex()).isTrue();
+    assertThat(notify.getAction()).isEqualTo(Triggers.Action.NOTIFY);
+    assertThat(triggers.getTriggers().get(2).getArgument()).isEqualTo("./loot.sh --match=gold");
+  }
+
+  @Test
+  public void parse_patternMayContainSeparator() {
+    Triggers triggers = Triggers.parse(ImmutableList.of("a => b => send c"));
+
+    assertThat(triggers.getTriggers().get(0).getPattern()).isEqualTo("a => b");
+  }
+
+  @Test
+  public void parse_badLines_throw() {
+    assertThrows(
+        IllegalArgumentException.class, () -> Triggers.parse(ImmutableList.of("no action")));
+    assertThrows(
+        IllegalArgumentException.class, () -> Triggers.parse(ImmutableList.of("text => send")));
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> Triggers.parse(ImmutableList.of("text => shout loudly")));
+  }
+
+  @Test
+  public void parse_badRegex_reportsLine() {
+    IllegalArgumentException ex =
+        expectThrows(
+            IllegalArgumentException.class,
+            () -> Triggers.parse(ImmutableList.of("fine => send x", "/(a/ => send y")));
+
+    assertThat(ex).hasMessageThat().contains("line 2");
+  }
+
+  @Test
+  public void load() throws Exception {
+    Path file = Files.createTempFile("triggers", ".txt");
+    try {
+      Files.write(file, ImmutableList.of("You are hungry. => send eat bread"), UTF_8);
+
+      assertThat(Triggers.load(file.toString()).getTriggers()).hasSize(1);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void load_noFile_isEmpty() throws Exception {
+    assertThat(Triggers.load("")).isSameInstanceAs(Triggers.EMPTY);
+    assertThat(Triggers.EMPTY.isEmpty()).isTrue();
+  }
+}
@@ -0,0 +1,121 @@
+package com.jeffreys.telnet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures a {@link TelnetConnection} forwarding a read-sized chunk from the remote to the local
+ * client, through every stage it passes on the way, over in-memory streams.
+ *
+ * <p>The chunk is handed over through the same calls the forwarding threads and the NIO engine
+ * make, so this is the cost of a read once it's off the socket. Run with {@code -prof gc} to see
+ * allocation rates as well.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ForwardingBenchmark {
+  @Param public IACFilterBenchmark.Traffic traffic;
+
+  /** How long writes to the local client may be held back, 0 flushing every read. */
+  @Param({"0", "2"})
+  public int writeCoalescingMs;
+
+  private byte[] chunk;
+  private TelnetConnection telnetConnection;
+
+  @Setup
+  public void setUp(Blackhole blackhole) throws IOException {
+    chunk = IACFilterBenchmark.createChunk(traffic);
+    telnetConnection =
+        new TelnetConnection(
+            new InMemoryStreamer(blackhole),
+            new InMemoryStreamer(blackhole),
+            processBuilder -> {
+              throw new IOException("Scripts aren't launched by this benchmark");
+            },
+            ConnectionOptions.builder()
+                .setWriteCoalescingBudget(Duration.ofMillis(writeCoalescingMs))
+                .build());
+    telnetConnection.startNonBlocking();
+  }
+
+  @TearDown
+  public void tearDown() {
+    telnetConnection.shutdown();
+  }
+
+  @Benchmark
+  public void remoteToHost() throws IOException {
+    forward();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void remoteToHostThroughput(Throughput throughput) throws IOException {
+    forward();
+    throughput.add(chunk.length);
+  }
+
+  private void forward() throws IOException {
+    telnetConnection.receiveFromRemote(chunk, chunk.length);
+    // the remote has nothing more to send
+    telnetConnection.flushToHost();
+  }
+
+  /** A side of the connection that never sends, and hands what it's sent to the blackhole. */
+  private static final class InMemoryStreamer implements CloseableStreamer {
+    private final InputStream inputStream = new ByteArrayInputStream(new byte[0]);
+    private final OutputStream outputStream;
+
+    private InMemoryStreamer(Blackhole blackhole) {
+      this.outputStream =
+          new OutputStream() {
+            @Override
+            public void write(int b) {
+              blackhole.consume(b);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+              blackhole.consume(buffer);
+              blackhole.consume(length);
+            }
+          };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return outputStream;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,112 @@
+package com.jeffreys.telnet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link IACFilter} against {@link LegacyIACFilter} on a single read-sized chunk, sampling
+ * the time each chunk takes, and measures the throughput of {@link IACFilter}.
+ *
+ * <p>Run with {@code -prof gc} to compare allocation rates as well.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IACFilterBenchmark {
+  static final int CHUNK_SIZE = 2048;
+
+  /** The shape of the traffic being filtered. */
+  public enum Traffic {
+    /** Plain MUD output without a single IAC, the common case. */
+    CLEAN,
+    /** A three byte IAC command after every five bytes of text. */
+    IAC_DENSE,
+    /** A GMCP subnegotiation, like servers send with every prompt, every 128 bytes. */
+    SUBNEGOTIATION_DENSE
+  }
+
+  private static final byte[] GMCP_VITALS =
+      concat(
+          new byte[] {(byte) 0xFF, (byte) 0xFA, (byte) 201},
+          "Char.Vitals {\"hp\":100,\"maxhp\":120,\"mp\":50}".getBytes(UTF_8),
+          new byte[] {(byte) 0xFF, (byte) 0xF0});
+
+  @Param public Traffic traffic;
+
+  private byte[] chunk;
+  private IACFilter iacFilter;
+  private LegacyIACFilter legacyIACFilter;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    chunk = createChunk(traffic);
+    iacFilter = new IACFilter((buffer, offset, length) -> blackhole.consume(length));
+    legacyIACFilter = new LegacyIACFilter((buffer, length) -> blackhole.consume(length));
+  }
+
+  @Benchmark
+  public void swar() {
+    iacFilter.accept(chunk, /* offset= */ 0, chunk.length);
+  }
+
+  @Benchmark
+  public void legacy() {
+    legacyIACFilter.accept(chunk, chunk.length);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void swarThroughput(Throughput throughput) {
+    iacFilter.accept(chunk, /* offset= */ 0, chunk.length);
+    throughput.add(chunk.length);
+  }
+
+  static byte[] createChunk(Traffic traffic) {
+    byte[] text =
+        "You are standing in an open field west of a white house, with a boarded front door.\r\n"
+            .getBytes(UTF_8);
+    byte[] chunk = new byte[CHUNK_SIZE];
+    for (int i = 0; i < chunk.length; ) {
+      if (traffic == Traffic.IAC_DENSE && i % 8 == 5 && i + 3 <= chunk.length) {
+        chunk[i++] = (byte) 0xFF;
+        chunk[i++] = (byte) 0xFB;
+        chunk[i++] = 0x01;
+      } else if (traffic == Traffic.SUBNEGOTIATION_DENSE
+          && i % 128 == 64
+          && i + GMCP_VITALS.length <= chunk.length) {
+        System.arraycopy(GMCP_VITALS, 0, chunk, i, GMCP_VITALS.length);
+        i += GMCP_VITALS.length;
+      } else {
+        chunk[i] = text[i % text.length];
+        ++i;
+      }
+    }
+    return chunk;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      out.write(part, /* offset= */ 0, part.length);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,79 @@
+package com.jeffreys.telnet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link ScriptParser} looking for {@code #!script} tags in a read-sized chunk of what the
+ * local client typed, sampling the time each chunk takes and measuring throughput.
+ *
+ * <p>Run with {@code -prof gc} to see allocation rates as well.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScriptParserBenchmark {
+  /** What the local client typed. */
+  public enum Input {
+    /** Ordinary commands, the common case. */
+    COMMANDS,
+    /** A script launched every few commands, so script names are captured too. */
+    SCRIPT_TAGS
+  }
+
+  @Param public Input input;
+
+  private byte[] chunk;
+  private ScriptParser scriptParser;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    chunk = createChunk(input);
+    scriptParser = new ScriptParser(blackhole::consume);
+  }
+
+  @Benchmark
+  public void parse() {
+    scriptParser.accept(chunk, /* offset= */ 0, chunk.length);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void parseThroughput(Throughput throughput) {
+    scriptParser.accept(chunk, /* offset= */ 0, chunk.length);
+    throughput.add(chunk.length);
+  }
+
+  private static byte[] createChunk(Input input) {
+    String[] commands =
+        input == Input.COMMANDS
+            ? new String[] {"kill orc\r\n", "get all from corpse\r\n", "north\r\n", "look\r\n"}
+            : new String[] {"kill orc\r\n", "#!script /home/me/loot.sh --match=gold\r\n"};
+    byte[] chunk = new byte[IACFilterBenchmark.CHUNK_SIZE];
+    int length = 0;
+    for (int i = 0; length < chunk.length; ++i) {
+      byte[] command = commands[i % commands.length].getBytes(UTF_8);
+      int bytes = Math.min(command.length, chunk.length - length);
+      System.arraycopy(command, 0, chunk, length, bytes);
+      length += bytes;
+    }
+    return chunk;
+  }
+}
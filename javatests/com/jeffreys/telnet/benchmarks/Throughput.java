@@ -0,0 +1,27 @@
+package com.jeffreys.telnet;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the data a benchmark handles, which JMH reports as MB/s alongside the operations.
+ *
+ * <p>Only reported by benchmarks in {@code Mode.Throughput} with an output time unit of seconds.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+  public double megabytes;
+
+  @Setup(Level.Iteration)
+  public void reset() {
+    megabytes = 0;
+  }
+
+  void add(int bytes) {
+    megabytes += bytes / 1e6;
+  }
+}
@@ -0,0 +1,94 @@
+package com.jeffreys.telnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link TriggerStage} scanning a read-sized chunk, to show the cost per chunk stays flat
+ * as the number of triggers grows.
+ *
+ * <p>The generated triggers practically never match, so this is the cost of looking, which is what
+ * every chunk pays.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TriggerBenchmark {
+  /** How the triggers are written. */
+  public enum Kind {
+    /** Plain text, found by the Aho-Corasick automaton. */
+    LITERAL,
+    /** Regular expressions, found by the lazy DFA. */
+    REGEX
+  }
+
+  @Param({"10", "100", "1000", "10000"})
+  public int triggerCount;
+
+  @Param public Kind kind;
+
+  private byte[] chunk;
+  private TriggerStage triggerStage;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    chunk = IACFilterBenchmark.createChunk(IACFilterBenchmark.Traffic.CLEAN);
+    triggerStage =
+        new TriggerStage(
+            Triggers.parse(createTriggers(kind, triggerCount)),
+            blackhole::consume,
+            (buffer, offset, length) -> blackhole.consume(length));
+  }
+
+  @Benchmark
+  public void scan() {
+    triggerStage.accept(chunk, /* offset= */ 0, chunk.length);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void scanThroughput(Throughput throughput) {
+    triggerStage.accept(chunk, /* offset= */ 0, chunk.length);
+    throughput.add(chunk.length);
+  }
+
+  /** Returns the lines of a triggers file, which look real but won't match the chunk. */
+  static List<String> createTriggers(Kind kind, int count) {
+    Random random = new Random(count);
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      String word = randomWord(random) + " " + randomWord(random);
+      String pattern = kind == Kind.LITERAL ? word : "/" + word + " \\d+ (\\w+)/";
+      lines.add(pattern + " => send " + randomWord(random));
+    }
+    return lines;
+  }
+
+  private static String randomWord(Random random) {
+    // starting with a capital keeps most from even partly matching the chunk
+    StringBuilder word = new StringBuilder().append((char) ('A' + random.nextInt(26)));
+    int length = 3 + random.nextInt(6);
+    for (int i = 0; i < length; ++i) {
+      word.append((char) ('a' + random.nextInt(26)));
+    }
+    return word.toString();
+  }
+}
@@ -0,0 +1,178 @@
+package com.jeffreys.telnet;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in MUD on localhost, which sends timestamped lines at a set rate with telnet commands
+ * mixed in, and times the commands it's sent.
+ *
+ * <p>Every line ends {@code @<time>}, and every {@code say <time>} command it receives is timed,
+ * using {@link LoadTest#now}, so clients in the same JVM can tell how long each took to get through
+ * the proxy.
+ */
+final class FakeMud implements Closeable {
+  private static final String[] LINES = {
+    "The orc swings his rusty axe at you, but misses by a mile.",
+    "You slash the orc, leaving a deep gash across his chest!",
+    "A cold wind blows in from the north, carrying the smell of rain.",
+    "Gandalf tells you, 'Meet me at the tower before nightfall.'",
+    "[HP: 120/120] [MP: 48/50] [MV: 95/100] >",
+  };
+
+  /** A GMCP message, like servers send alongside prompts. */
+  private static final byte[] GMCP_VITALS =
+      concat(
+          new byte[] {(byte) 0xFF, (byte) 0xFA, (byte) 201},
+          "Char.Vitals {\"hp\":120,\"mp\":48,\"mv\":95}".getBytes(US_ASCII),
+          new byte[] {(byte) 0xFF, (byte) 0xF0});
+
+  /** IAC GA, marking a prompt. */
+  private static final byte[] GO_AHEAD = {(byte) 0xFF, (byte) 0xF9};
+
+  private final ServerSocket serverSocket;
+  private final int outputBytesPerSecond;
+  private final int iacPercent;
+  private final LoadTest.Stats stats;
+  private final ScheduledExecutorService output;
+  private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger sessionCount = new AtomicInteger();
+
+  /**
+   * @param outputBytesPerSecond how much each session is sent, roughly
+   * @param iacPercent the percentage of lines followed by a telnet command
+   */
+  FakeMud(int outputBytesPerSecond, int iacPercent, int outputThreads, LoadTest.Stats stats)
+      throws IOException {
+    this.serverSocket = new ServerSocket(0, /* backlog= */ 1024, InetAddress.getLoopbackAddress());
+    this.outputBytesPerSecond = outputBytesPerSecond;
+    this.iacPercent = iacPercent;
+    this.stats = stats;
+    this.output =
+        Executors.newScheduledThreadPool(outputThreads, LoadTest.daemon("load-mud-output"));
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  void start() {
+    LoadTest.daemon("load-mud-acceptor").newThread(this::accept).start();
+  }
+
+  @Override
+  public void close() {
+    Util.close(serverSocket);
+    output.shutdownNow();
+    for (Socket socket : sockets) {
+      Util.close(socket);
+    }
+  }
+
+  private void accept() {
+    try {
+      while (true) {
+        Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        sockets.add(socket);
+        int session = sessionCount.incrementAndGet();
+        LoadTest.daemon("load-mud-" + session).newThread(() -> readCommands(socket)).start();
+        startOutput(socket, session);
+      }
+    } catch (IOException ex) {
+      // closed
+    }
+  }
+
+  private void startOutput(Socket socket, int session) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    Random random = new Random(session);
+    write(out, ("Welcome to the fake MUD! @" + LoadTest.now() + "\r\n").getBytes(US_ASCII));
+    if (outputBytesPerSecond <= 0) {
+      return;
+    }
+
+    long periodNanos = TimeUnit.SECONDS.toNanos(1) * averageLineLength() / outputBytesPerSecond;
+    output.scheduleAtFixedRate(
+        () -> {
+          String line = LINES[random.nextInt(LINES.length)] + " @" + LoadTest.now() + "\r\n";
+          try {
+            write(out, line.getBytes(US_ASCII));
+            if (random.nextInt(100) < iacPercent) {
+              write(out, random.nextBoolean() ? GMCP_VITALS : GO_AHEAD);
+            }
+          } catch (IOException ex) {
+            // stops the output, and the reading thread cleans up after the session
+            throw new IllegalStateException(ex);
+          }
+        },
+        random.nextInt((int) Math.max(1, TimeUnit.NANOSECONDS.toMicros(periodNanos))),
+        TimeUnit.NANOSECONDS.toMicros(periodNanos),
+        TimeUnit.MICROSECONDS);
+  }
+
+  /** Times each {@code say} command as it arrives. */
+  private void readCommands(Socket socket) {
+    try (InputStream in = new BufferedInputStream(socket.getInputStream())) {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = in.read()) >= 0) {
+        if (b != '\n') {
+          line.write(b);
+          continue;
+        }
+        String command = line.toString(US_ASCII.name()).trim();
+        line.reset();
+        if (command.startsWith("say ")) {
+          stats.commandLatency.record(
+              LoadTest.now() - Long.parseLong(command.substring("say ".length())));
+        }
+      }
+    } catch (IOException | NumberFormatException ex) {
+      // closed
+    } finally {
+      sockets.remove(socket);
+      Util.close(socket);
+    }
+  }
+
+  private static void write(OutputStream out, byte[] bytes) throws IOException {
+    synchronized (out) {
+      out.write(bytes);
+      out.flush();
+    }
+  }
+
+  private static int averageLineLength() {
+    int total = 0;
+    for (String line : LINES) {
+      // with the timestamp
+      total += line.length() + 20;
+    }
+    return total / LINES.length;
+  }
+
+  private static byte[] concat(byte[]... parts) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      out.write(part, /* offset= */ 0, part.length);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,313 @@
+package com.jeffreys.telnet;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Loads an {@link Interceptor} with synthetic players connected through it to a {@link FakeMud},
+ * all in this JVM, then reports how it coped.
+ *
+ * <p>Latencies are measured from a line being written on one side of the proxy to it being read
+ * on the other, so they include the loopback hops as well as the time spent in the proxy. Thread
+ * counts and heap are measured against the proxy sitting idle before anyone connects, so they
+ * include the players and the fake MUD too, which keep their thread names starting {@code load-}
+ * and are left out of the thread counts.
+ */
+public final class LoadTest {
+  /** Times are measured from here, so they're never negative. */
+  private static final long ORIGIN_NANOS = System.nanoTime();
+
+  private static final long WAIT_FOR_PROXY_MILLIS = 10_000;
+  private static final int REPORT_INTERVAL_SECS = 5;
+
+  /** Kept, so the level set on it isn't lost when it's garbage collected. */
+  private static final Logger proxyLogger = Logger.getLogger("com.jeffreys.telnet");
+
+  private static class Flags {
+    @Option(name = "--clients", usage = "Number of players to connect through the proxy")
+    public int clients = 100;
+
+    @Option(name = "--ramp_up_secs", usage = "Time to spread the players' connections over")
+    public int rampUpSecs = 5;
+
+    @Option(name = "--duration_secs", usage = "How long to run once everyone has connected")
+    public int durationSecs = 30;
+
+    @Option(name = "--output_bytes_per_sec", usage = "How much the fake MUD sends each player")
+    public int outputBytesPerSec = 2000;
+
+    @Option(name = "--iac_percent", usage = "Percentage of the MUD's lines followed by an IAC")
+    public int iacPercent = 10;
+
+    @Option(name = "--mud_threads", usage = "Number of threads sending the MUD's output")
+    public int mudThreads = 4;
+
+    @Option(name = "--commands_per_sec", usage = "How fast each player types, 0 to only read")
+    public double commandsPerSec = 1;
+
+    @Option(name = "--script", usage = "Script players launch with #!script, empty for none")
+    public String script = "true";
+
+    @Option(name = "--script_every", usage = "Launch the script every this many commands")
+    public int scriptEvery = 50;
+
+    @Option(
+        name = "--proxy_args",
+        usage = "Extra flags for the proxy, like \"--engine=NIO --write_coalescing_ms=2\"")
+    public String proxyArgs = "";
+
+    @Option(name = "--proxy_logging", usage = "Keep the proxy's informational logging")
+    public boolean proxyLogging = false;
+  }
+
+  /** Everything measured, shared by the players and the fake MUD. */
+  static final class Stats {
+    final LatencyHistogram connectionSetup = new LatencyHistogram();
+    /** From the fake MUD writing a line to a player reading it. */
+    final LatencyHistogram remoteLatency = new LatencyHistogram();
+    /** From a player writing a command to the fake MUD reading it. */
+    final LatencyHistogram commandLatency = new LatencyHistogram();
+
+    final AtomicInteger connectedClients = new AtomicInteger();
+    final AtomicInteger failedConnections = new AtomicInteger();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder commandsSent = new LongAdder();
+    final LongAdder scriptsLaunched = new LongAdder();
+  }
+
+  private LoadTest() {}
+
+  /** Returns the time in nanoseconds, from some point before any was measured. */
+  static long now() {
+    return System.nanoTime() - ORIGIN_NANOS;
+  }
+
+  /** Returns a factory for daemon threads, named {@code prefix} and a number if there are more. */
+  static ThreadFactory daemon(String prefix) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      int number = count.getAndIncrement();
+      Thread thread = new Thread(runnable, number == 0 ? prefix : prefix + "-" + number);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  public static void main(String[] args) throws Exception {
+    Flags flags = new Flags();
+    CmdLineParser parser = new CmdLineParser(flags);
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException ex) {
+      throw new IllegalArgumentException(ex);
+    }
+    if (!flags.proxyLogging) {
+      proxyLogger.setLevel(Level.WARNING);
+    }
+
+    Stats stats = new Stats();
+    FakeMud mud = new FakeMud(flags.outputBytesPerSec, flags.iacPercent, flags.mudThreads, stats);
+    mud.start();
+
+    int proxyPort = findFreePort();
+    List<String> proxyArgs =
+        new ArrayList<>(
+            Arrays.asList(
+                "--remote_host=" + InetAddress.getLoopbackAddress().getHostAddress(),
+                "--remote_port=" + mud.getPort(),
+                "--local_port=" + proxyPort));
+    if (!flags.proxyArgs.isBlank()) {
+      proxyArgs.addAll(Arrays.asList(flags.proxyArgs.trim().split("\\s+")));
+    }
+    Interceptor interceptor = new Interceptor(Options.parse(proxyArgs.toArray(new String[0])));
+    Thread proxyThread =
+        new Thread(
+            () -> {
+              try {
+                interceptor.run();
+              } catch (IOException ex) {
+                ex.printStackTrace();
+              }
+            },
+            "proxy-main");
+    proxyThread.setDaemon(true);
+    proxyThread.start();
+    waitForProxy(proxyPort);
+
+    long idleHeap = usedHeapAfterGc();
+    int idleThreads = proxyThreadCount();
+    System.out.printf(
+        "Proxy on port %d, fake MUD on port %d, %d threads idle%n",
+        proxyPort, mud.getPort(), idleThreads);
+
+    ScheduledExecutorService scheduler =
+        Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), daemon("load-typing"));
+    List<SyntheticClient> clients = new ArrayList<>();
+    long rampUpNanos = TimeUnit.SECONDS.toNanos(flags.rampUpSecs);
+    for (int i = 0; i < flags.clients; ++i) {
+      SyntheticClient client =
+          new SyntheticClient(
+              i,
+              proxyPort,
+              stats,
+              flags.commandsPerSec,
+              flags.script,
+              flags.scriptEvery,
+              scheduler);
+      clients.add(client);
+      scheduler.schedule(client::connect, rampUpNanos * i / flags.clients, TimeUnit.NANOSECONDS);
+    }
+
+    int peakThreads = idleThreads;
+    long startNanos = System.nanoTime();
+    // without a ramp up, the whole run is steady
+    long bytesAtStart = stats.bytesReceived.sum();
+    long steadyStartNanos = startNanos;
+    for (int second = 1; second <= flags.rampUpSecs + flags.durationSecs; ++second) {
+      TimeUnit.NANOSECONDS.sleep(startNanos + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+      peakThreads = Math.max(peakThreads, proxyThreadCount());
+      if (second == flags.rampUpSecs) {
+        bytesAtStart = stats.bytesReceived.sum();
+        steadyStartNanos = System.nanoTime();
+      }
+      if (second % REPORT_INTERVAL_SECS == 0) {
+        System.out.printf(
+            "%4ds: %d connected, %d failed, %d disconnected, %s received%n",
+            second,
+            stats.connectedClients.get(),
+            stats.failedConnections.get(),
+            stats.disconnects.sum(),
+            formatBytes(stats.bytesReceived.sum()));
+      }
+    }
+    double steadySecs = (System.nanoTime() - steadyStartNanos) / 1e9;
+    long steadyBytes = stats.bytesReceived.sum() - bytesAtStart;
+    int connected = stats.connectedClients.get();
+    long sessionHeap = usedHeapAfterGc() - idleHeap;
+
+    System.out.println();
+    System.out.printf(
+        "Sessions:    %d connected of %d, %d failed, %d dropped%n",
+        connected, flags.clients, stats.failedConnections.get(), stats.disconnects.sum());
+    printLatency("Setup:", stats.connectionSetup);
+    printLatency("Remote->you:", stats.remoteLatency);
+    printLatency("You->remote:", stats.commandLatency);
+    System.out.printf(
+        "Throughput:  %s/s to players, %d commands and %d scripts sent%n",
+        formatBytes((long) (steadyBytes / Math.max(steadySecs, 1e-9))),
+        stats.commandsSent.sum(),
+        stats.scriptsLaunched.sum());
+    System.out.printf(
+        "Threads:     %d idle, %d now, %d peak, %.1f a session%n",
+        idleThreads,
+        proxyThreadCount(),
+        peakThreads,
+        connected == 0 ? 0 : (double) (peakThreads - idleThreads) / connected);
+    System.out.printf(
+        "Heap:        %s idle, %s more with sessions, %s a session, %s peak%n",
+        formatBytes(idleHeap),
+        formatBytes(sessionHeap),
+        formatBytes(connected == 0 ? 0 : sessionHeap / connected),
+        formatBytes(peakHeap()));
+
+    for (SyntheticClient client : clients) {
+      client.close();
+    }
+    mud.close();
+    System.exit(0);
+  }
+
+  private static int findFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void waitForProxy(int port) throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + WAIT_FOR_PROXY_MILLIS;
+    while (true) {
+      try {
+        new Socket(InetAddress.getLoopbackAddress(), port).close();
+        return;
+      } catch (IOException ex) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IOException("The proxy didn't start listening on port " + port, ex);
+        }
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  /** Returns the number of live threads, other than those of the players and fake MUD. */
+  private static int proxyThreadCount() {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (!thread.getName().startsWith("load-")) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  private static long usedHeapAfterGc() {
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private static void printLatency(String name, LatencyHistogram histogram) {
+    System.out.printf(
+        "%-12s p50 %s, p99 %s, p99.9 %s, max %s (%d samples)%n",
+        name,
+        formatNanos(histogram.getValueAtPercentile(50)),
+        formatNanos(histogram.getValueAtPercentile(99)),
+        formatNanos(histogram.getValueAtPercentile(99.9)),
+        formatNanos(histogram.getMax()),
+        histogram.getCount());
+  }
+
+  private static String formatNanos(long nanos) {
+    if (nanos < 1_000_000) {
+      return String.format("%.1fus", nanos / 1e3);
+    }
+    return String.format("%.2fms", nanos / 1e6);
+  }
+
+  private static String formatBytes(long bytes) {
+    if (bytes < 1024 * 1024) {
+      return String.format("%.1fKB", bytes / 1024.0);
+    }
+    return String.format("%.1fMB", bytes / (1024.0 * 1024));
+  }
+}
@@ -0,0 +1,150 @@
+package com.jeffreys.telnet;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A player connected through the proxy, who types timestamped {@code say} commands and the odd
+ * {@code #!script}, and times each line the {@link FakeMud} sends.
+ */
+final class SyntheticClient implements Closeable {
+  private static final int READ_BUFFER_SIZE = 2048;
+
+  private final int id;
+  private final int port;
+  private final LoadTest.Stats stats;
+  private final long typingPeriodNanos;
+  private final String script;
+  private final int scriptEvery;
+  private final ScheduledExecutorService typing;
+  private final Socket socket = new Socket();
+  private long connectStartNanos;
+  private int commandCount = 0;
+  private volatile ScheduledFuture<?> typingFuture;
+
+  /**
+   * @param commandsPerSecond how fast to type, or 0 to only read
+   * @param script launched with {@code #!script} every {@code scriptEvery} commands, unless empty
+   */
+  SyntheticClient(
+      int id,
+      int port,
+      LoadTest.Stats stats,
+      double commandsPerSecond,
+      String script,
+      int scriptEvery,
+      ScheduledExecutorService typing) {
+    this.id = id;
+    this.port = port;
+    this.stats = stats;
+    this.typingPeriodNanos =
+        commandsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / commandsPerSecond) : 0;
+    this.script = script;
+    this.scriptEvery = scriptEvery;
+    this.typing = typing;
+  }
+
+  /** Connects to the proxy, then reads and types from other threads until closed. */
+  void connect() {
+    try {
+      connectStartNanos = System.nanoTime();
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      socket.setTcpNoDelay(true);
+    } catch (IOException ex) {
+      stats.failedConnections.incrementAndGet();
+      Util.close(socket);
+      return;
+    }
+
+    LoadTest.daemon("load-client-" + id).newThread(this::read).start();
+    if (typingPeriodNanos > 0) {
+      typingFuture =
+          typing.scheduleAtFixedRate(
+              this::type,
+              // spread out, so everyone doesn't type at once
+              (long) (Math.random() * typingPeriodNanos),
+              typingPeriodNanos,
+              TimeUnit.NANOSECONDS);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (typingFuture != null) {
+      typingFuture.cancel(/* mayInterruptIfRunning= */ false);
+    }
+    Util.close(socket);
+  }
+
+  private void type() {
+    ++commandCount;
+    boolean launch = !script.isEmpty() && scriptEvery > 0 && commandCount % scriptEvery == 0;
+    String command = launch ? "#!script " + script : "say " + LoadTest.now();
+    byte[] bytes = (command + "\r\n").getBytes(US_ASCII);
+    try {
+      OutputStream out = socket.getOutputStream();
+      out.write(bytes);
+      out.flush();
+      stats.bytesSent.add(bytes.length);
+      if (launch) {
+        stats.scriptsLaunched.increment();
+      } else {
+        stats.commandsSent.increment();
+      }
+    } catch (IOException ex) {
+      // stops the typing, and the reading thread notices too
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /** Times each line from the fake MUD, the first of which completes the connection. */
+  private void read() {
+    boolean connected = false;
+    try (InputStream in = socket.getInputStream()) {
+      byte[] buffer = new byte[READ_BUFFER_SIZE];
+      long stamp = -1;
+      int bytes;
+      while ((bytes = in.read(buffer)) >= 0) {
+        stats.bytesReceived.add(bytes);
+        for (int i = 0; i < bytes; ++i) {
+          byte b = buffer[i];
+          if (b == '@') {
+            stamp = 0;
+          } else if (stamp >= 0 && b >= '0' && b <= '9') {
+            stamp = stamp * 10 + (b - '0');
+          } else if (b == '\n' && stamp >= 0) {
+            long latency = LoadTest.now() - stamp;
+            if (connected) {
+              stats.remoteLatency.record(latency);
+            } else {
+              connected = true;
+              stats.connectedClients.incrementAndGet();
+              stats.connectionSetup.record(System.nanoTime() - connectStartNanos);
+            }
+            stamp = -1;
+          } else if (b != '\r') {
+            stamp = -1;
+          }
+        }
+      }
+    } catch (IOException ex) {
+      // closed
+    } finally {
+      if (connected) {
+        stats.connectedClients.decrementAndGet();
+      }
+      stats.disconnects.increment();
+      close();
+    }
+  }
+}